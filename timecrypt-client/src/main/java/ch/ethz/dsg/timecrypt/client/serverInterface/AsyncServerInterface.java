@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2020 by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.client.serverInterface;
+
+import ch.ethz.dsg.timecrypt.client.exceptions.CouldNotReceiveException;
+import ch.ethz.dsg.timecrypt.client.exceptions.CouldNotStoreException;
+import ch.ethz.dsg.timecrypt.client.exceptions.InvalidQueryException;
+import ch.ethz.dsg.timecrypt.client.streamHandling.metaData.StreamMetaData;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous variant of the ServerInterface. The methods send their request and return at once, so a single client
+ * can have many requests in flight. The futures complete exceptionally with the exceptions that the corresponding
+ * method of the ServerInterface throws, SynchronousServerInterface adapts an implementation to the ServerInterface.
+ * <p>
+ * Inserts are retried and idempotent by chunk ID: the server acknowledges an insert of a chunk that it already has
+ * without inserting it a second time. The inserts of a stream may therefore be pipelined, but a query only sees the
+ * chunks whose inserts completed before it was sent.
+ */
+public interface AsyncServerInterface extends Closeable {
+
+    /**
+     * See ServerInterface.createStream.
+     *
+     * @return The ID that was assigned to the stream by the server, completes exceptionally with a
+     * CouldNotStoreException.
+     */
+    CompletableFuture<Long> createStream(List<StreamMetaData> metadataConfig);
+
+    /**
+     * See ServerInterface.getLastWrittenChunkId.
+     *
+     * @return The ID of the last written chunk, completes exceptionally with an InvalidQueryException or an
+     * UnsupportedOperationException.
+     */
+    CompletableFuture<Long> getLastWrittenChunkId(long streamId);
+
+    /**
+     * See ServerInterface.addChunk. A failed insert is retried, also if it might have reached the server.
+     *
+     * @return The chunk ID that the server assigned to this chunk, completes exceptionally with a
+     * CouldNotStoreException.
+     */
+    CompletableFuture<Long> addChunk(long streamId, EncryptedChunk chunk, EncryptedDigest digest);
+
+    /**
+     * See ServerInterface.addChunks. By default all chunks are added with pipelined addChunk requests.
+     *
+     * @return The ID of the last chunk that the server stored, -1 if no chunk was given, completes exceptionally
+     * with a CouldNotStoreException.
+     */
+    default CompletableFuture<Long> addChunks(long streamId, List<EncryptedChunk> chunks,
+                                              List<EncryptedDigest> digests) {
+        if (chunks.size() != digests.size())
+            throw new IllegalArgumentException("Got " + chunks.size() + " chunks but " + digests.size() + " digests");
+        List<CompletableFuture<Long>> inserts = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            inserts.add(addChunk(streamId, chunks.get(i), digests.get(i)));
+        }
+        if (inserts.isEmpty())
+            return CompletableFuture.completedFuture(-1L);
+        CompletableFuture<Long> last = inserts.get(inserts.size() - 1);
+        return CompletableFuture.allOf(inserts.toArray(new CompletableFuture[0])).thenCompose(ignored -> last);
+    }
+
+    /**
+     * See ServerInterface.getChunks.
+     *
+     * @return The encrypted chunks that were returned by the server, completes exceptionally with a
+     * CouldNotReceiveException.
+     */
+    CompletableFuture<List<EncryptedChunk>> getChunks(long streamId, long chunkIdFrom, long chunkIdTo);
+
+    /**
+     * See ServerInterface.deleteStream.
+     *
+     * @return Completes when the stream is deleted, exceptionally with an InvalidQueryException.
+     */
+    CompletableFuture<Void> deleteStream(long streamId);
+
+    /**
+     * See ServerInterface.getStatisticalData.
+     *
+     * @return The encrypted digests that represent the servers response, completes exceptionally with an
+     * InvalidQueryException.
+     */
+    CompletableFuture<List<EncryptedDigest>> getStatisticalData(long streamId, long chunkIdFrom, long chunkIdTo,
+                                                                int granularity, List<StreamMetaData> metaData);
+
+    /**
+     * Closes the connections to the server, requests in flight fail.
+     */
+    @Override
+    void close();
+}
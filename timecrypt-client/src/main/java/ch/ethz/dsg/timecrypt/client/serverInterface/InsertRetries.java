@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2020 by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.client.serverInterface;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Retries the failed inserts of an asynchronous server interface. Pipelined inserts of a stream can reach the server
+ * out of order, an insert that overtook its predecessor fails. So a failed insert is retried once the insert that was
+ * sent before it to the same stream completed, and after a backoff that grows with every attempt. The server
+ * acknowledges an insert of a chunk that it already has, so it is safe to retry an insert that reached the server.
+ */
+public class InsertRetries {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_BACKOFF_MILLIS = 10;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InsertRetries.class);
+
+    private final int maxAttempts;
+    private final long backoffMillis;
+    // the last insert of every stream with an insert in flight
+    private final Map<Long, CompletableFuture<Long>> lastInserts = new ConcurrentHashMap<>();
+
+    public InsertRetries() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BACKOFF_MILLIS);
+    }
+
+    public InsertRetries(int maxAttempts, long backoffMillis) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("At least one attempt is needed");
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * @return the cause of a failure of a future
+     */
+    public static Throwable unwrap(Throwable throwable) {
+        while ((throwable instanceof CompletionException || throwable instanceof ExecutionException)
+                && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        return throwable;
+    }
+
+    /**
+     * Sends an insert to a stream and retries it until it succeeds, a failure is not retryable or maxAttempts
+     * attempts failed.
+     *
+     * @param send      sends the insert and returns the chunk ID that the server acknowledged
+     * @param retryable whether the insert is retried after a failure
+     * @return the result of the last attempt, completes exceptionally with the cause of its failure
+     */
+    public CompletableFuture<Long> insert(long streamId, Supplier<CompletableFuture<Long>> send,
+                                          Predicate<Throwable> retryable) {
+        CompletableFuture<Long> result = lastInserts.compute(streamId,
+                (id, previous) -> attempt(send, retryable, previous, 1));
+        result.whenComplete((chunkId, throwable) -> lastInserts.remove(streamId, result));
+        return result;
+    }
+
+    private CompletableFuture<Long> attempt(Supplier<CompletableFuture<Long>> send, Predicate<Throwable> retryable,
+                                            CompletableFuture<Long> previous, int attempt) {
+        CompletableFuture<Long> sent;
+        try {
+            sent = send.get();
+        } catch (RuntimeException e) {
+            sent = CompletableFuture.failedFuture(e);
+        }
+        return sent.handle((chunkId, throwable) -> {
+            if (throwable == null)
+                return CompletableFuture.completedFuture(chunkId);
+            Throwable cause = unwrap(throwable);
+            if (attempt >= maxAttempts || !retryable.test(cause))
+                return CompletableFuture.<Long>failedFuture(cause);
+            LOGGER.warn("Insert failed in attempt " + attempt + " of " + maxAttempts + ", retrying: "
+                    + cause.getMessage());
+            // the insert might have overtaken its predecessor, the retry waits for it
+            CompletableFuture<?> predecessor = (previous == null) ? CompletableFuture.completedFuture(null)
+                    : previous.handle((ignored, e) -> null);
+            return predecessor.thenComposeAsync(ignored -> attempt(send, retryable, null, attempt + 1),
+                    CompletableFuture.delayedExecutor(backoffMillis * attempt, TimeUnit.MILLISECONDS));
+        }).thenCompose(future -> future);
+    }
+}
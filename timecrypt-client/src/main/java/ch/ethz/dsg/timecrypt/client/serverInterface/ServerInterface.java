@@ -52,6 +52,29 @@ public interface ServerInterface {
      */
     long addChunk(long streamId, EncryptedChunk chunk, EncryptedDigest digest) throws CouldNotStoreException;
 
+    /**
+     * Add consecutive chunks to the stream on the server. The first chunk has to be the next chunk of the stream and
+     * every further chunk has to follow its predecessor. By default the chunks are added one by one with addChunk,
+     * server interfaces that support it send them with a single request.
+     *
+     * @param streamId The ID of the stream for which the chunks shall be inserted.
+     * @param chunks   The already encrypted chunks in the order of their IDs.
+     * @param digests  The digests associated with the chunks, in the same order.
+     * @return The ID of the last chunk that the server stored, -1 if no chunk was given.
+     * @throws CouldNotStoreException Exception that is raised if the chunks could not be stored on the server. A part
+     *                                of the chunks might be stored, the server knows the last written chunk.
+     */
+    default long addChunks(long streamId, List<EncryptedChunk> chunks, List<EncryptedDigest> digests)
+            throws CouldNotStoreException {
+        if (chunks.size() != digests.size())
+            throw new IllegalArgumentException("Got " + chunks.size() + " chunks but " + digests.size() + " digests");
+        long lastChunkId = -1;
+        for (int i = 0; i < chunks.size(); i++) {
+            lastChunkId = addChunk(streamId, chunks.get(i), digests.get(i));
+        }
+        return lastChunkId;
+    }
+
     /**
      * Receive raw chunks from the server.
      *
@@ -5,8 +5,10 @@
 
 package ch.ethz.dsg.timecrypt.client.serverInterface;
 
+import ch.ethz.dsg.timecrypt.client.serverInterface.grpcServer.AsyncGrpcServerClient;
 import ch.ethz.dsg.timecrypt.client.serverInterface.grpcServer.GrpcServerClient;
 import ch.ethz.dsg.timecrypt.client.serverInterface.mockServer.MockServerInterface;
+import ch.ethz.dsg.timecrypt.client.serverInterface.nettyServer.AsyncNettyServerClient;
 import ch.ethz.dsg.timecrypt.client.serverInterface.nettyServer.NettyServerClient;
 import ch.ethz.dsg.timecrypt.client.state.TimeCryptProfile;
 import org.slf4j.Logger;
@@ -87,6 +89,12 @@ public class ServerInterfaceFactory {
                 return new GrpcServerClient(profile.getServerAddress(), profile.getServerPort());
             case NETTY_SERVER_INTERFACE:
                 return new NettyServerClient(profile.getServerAddress(), profile.getServerPort());
+            case ASYNC_GRPC_SERVER_INTERFACE:
+                return new SynchronousServerInterface(new AsyncGrpcServerClient(profile.getServerAddress(),
+                        profile.getServerPort()));
+            case ASYNC_NETTY_SERVER_INTERFACE:
+                return new SynchronousServerInterface(new AsyncNettyServerClient(profile.getServerAddress(),
+                        profile.getServerPort()));
             default:
                 return null;
         }
@@ -98,6 +106,8 @@ public class ServerInterfaceFactory {
         PERSISTENT_MOCK_SERVER_INTERFACE("PERSISTENT_MOCK_SERVER_INTERFACE"),
         NETTY_SERVER_INTERFACE("NETTY_SERVER_INTERFACE"),
         GRPC_SERVER_INTERFACE("GRPC_SERVER_INTERFACE"),
+        ASYNC_NETTY_SERVER_INTERFACE("ASYNC_NETTY_SERVER_INTERFACE"),
+        ASYNC_GRPC_SERVER_INTERFACE("ASYNC_GRPC_SERVER_INTERFACE"),
         ;
 
         private final String explanation;
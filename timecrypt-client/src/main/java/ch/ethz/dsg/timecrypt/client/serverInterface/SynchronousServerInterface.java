@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020 by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.client.serverInterface;
+
+import ch.ethz.dsg.timecrypt.client.exceptions.CouldNotReceiveException;
+import ch.ethz.dsg.timecrypt.client.exceptions.CouldNotStoreException;
+import ch.ethz.dsg.timecrypt.client.exceptions.InvalidQueryException;
+import ch.ethz.dsg.timecrypt.client.exceptions.UnsupportedOperationException;
+import ch.ethz.dsg.timecrypt.client.streamHandling.metaData.StreamMetaData;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * Adapts an AsyncServerInterface to the ServerInterface: every method waits for the future of its request.
+ */
+public class SynchronousServerInterface implements ServerInterface {
+
+    private final AsyncServerInterface asyncInterface;
+
+    public SynchronousServerInterface(AsyncServerInterface asyncInterface) {
+        this.asyncInterface = asyncInterface;
+    }
+
+    public AsyncServerInterface getAsyncInterface() {
+        return asyncInterface;
+    }
+
+    /**
+     * Waits for the future and throws the cause of its failure if it has the expected type, any other cause is
+     * wrapped.
+     */
+    private static <T, E extends Exception> T await(CompletableFuture<T> future, Class<E> expected,
+                                                    Function<String, E> wrap) throws E {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw wrap.apply("Interrupted while waiting for the server");
+        } catch (ExecutionException e) {
+            Throwable cause = InsertRetries.unwrap(e);
+            if (expected.isInstance(cause))
+                throw expected.cast(cause);
+            throw wrap.apply(cause.getMessage());
+        }
+    }
+
+    @Override
+    public long createStream(List<StreamMetaData> metadataConfig) throws CouldNotStoreException {
+        return await(asyncInterface.createStream(metadataConfig), CouldNotStoreException.class,
+                CouldNotStoreException::new);
+    }
+
+    @Override
+    public long getLastWrittenChunkId(long streamId) throws InvalidQueryException, UnsupportedOperationException {
+        try {
+            return asyncInterface.getLastWrittenChunkId(streamId).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InvalidQueryException("Interrupted while waiting for the server");
+        } catch (ExecutionException e) {
+            Throwable cause = InsertRetries.unwrap(e);
+            if (cause instanceof UnsupportedOperationException)
+                throw (UnsupportedOperationException) cause;
+            if (cause instanceof InvalidQueryException)
+                throw (InvalidQueryException) cause;
+            throw new InvalidQueryException(cause.getMessage());
+        }
+    }
+
+    @Override
+    public long addChunk(long streamId, EncryptedChunk chunk, EncryptedDigest digest) throws CouldNotStoreException {
+        return await(asyncInterface.addChunk(streamId, chunk, digest), CouldNotStoreException.class,
+                CouldNotStoreException::new);
+    }
+
+    @Override
+    public long addChunks(long streamId, List<EncryptedChunk> chunks, List<EncryptedDigest> digests)
+            throws CouldNotStoreException {
+        return await(asyncInterface.addChunks(streamId, chunks, digests), CouldNotStoreException.class,
+                CouldNotStoreException::new);
+    }
+
+    @Override
+    public List<EncryptedChunk> getChunks(long streamId, long chunkIdFrom, long chunkIdTo)
+            throws CouldNotReceiveException {
+        return await(asyncInterface.getChunks(streamId, chunkIdFrom, chunkIdTo), CouldNotReceiveException.class,
+                CouldNotReceiveException::new);
+    }
+
+    @Override
+    public void deleteStream(long streamId) throws InvalidQueryException {
+        await(asyncInterface.deleteStream(streamId), InvalidQueryException.class, InvalidQueryException::new);
+    }
+
+    @Override
+    public List<EncryptedDigest> getStatisticalData(long streamId, long chunkIdFrom, long chunkIdTo, int granularity,
+                                                    List<StreamMetaData> metaData) throws InvalidQueryException {
+        return await(asyncInterface.getStatisticalData(streamId, chunkIdFrom, chunkIdTo, granularity, metaData),
+                InvalidQueryException.class, InvalidQueryException::new);
+    }
+}
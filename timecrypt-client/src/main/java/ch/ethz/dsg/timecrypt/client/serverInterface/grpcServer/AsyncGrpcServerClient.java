@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2020 by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.client.serverInterface.grpcServer;
+
+import ch.ethz.dsg.timecrypt.client.exceptions.CouldNotReceiveException;
+import ch.ethz.dsg.timecrypt.client.exceptions.CouldNotStoreException;
+import ch.ethz.dsg.timecrypt.client.exceptions.InvalidQueryException;
+import ch.ethz.dsg.timecrypt.client.serverInterface.AsyncServerInterface;
+import ch.ethz.dsg.timecrypt.client.serverInterface.EncryptedChunk;
+import ch.ethz.dsg.timecrypt.client.serverInterface.EncryptedDigest;
+import ch.ethz.dsg.timecrypt.client.serverInterface.InsertRetries;
+import ch.ethz.dsg.timecrypt.client.streamHandling.metaData.StreamMetaData;
+import ch.ethz.dsg.timecrypt.protocol.*;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static ch.ethz.dsg.timecrypt.client.serverInterface.grpcServer.GrpcServerClient.AUTH_USER_METADATA_KEY;
+import static ch.ethz.dsg.timecrypt.client.serverInterface.grpcServer.GrpcServerClient.DUMMY_OWNER;
+
+/**
+ * Asynchronous gRPC client. The unary requests use future stubs, the streaming ones async stubs. The requests are
+ * spread round robin over a small pool of channels, every channel multiplexes its requests over one HTTP/2
+ * connection.
+ */
+public class AsyncGrpcServerClient implements AsyncServerInterface {
+
+    public static final int DEFAULT_CHANNELS = 4;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncGrpcServerClient.class);
+    // the server failed, but a retry of the insert might succeed, INTERNAL is an insert that overtook its predecessor
+    private static final Set<Status.Code> RETRYABLE = EnumSet.of(Status.Code.UNAVAILABLE,
+            Status.Code.DEADLINE_EXCEEDED, Status.Code.RESOURCE_EXHAUSTED, Status.Code.ABORTED, Status.Code.INTERNAL);
+
+    private final List<ManagedChannel> channels;
+    private final List<TimecryptGrpc.TimecryptFutureStub> futureStubs = new ArrayList<>();
+    private final List<TimecryptGrpc.TimecryptStub> asyncStubs = new ArrayList<>();
+    private final AtomicInteger nextChannel = new AtomicInteger();
+    private final InsertRetries insertRetries;
+
+    public AsyncGrpcServerClient(String serverAddress, int serverPort) {
+        this(serverAddress, serverPort, DEFAULT_CHANNELS);
+    }
+
+    public AsyncGrpcServerClient(String serverAddress, int serverPort, int numChannels) {
+        this(openChannels(serverAddress, serverPort, numChannels), new InsertRetries());
+    }
+
+    /**
+     * @param channels the channels to the server, they are closed with the client
+     */
+    public AsyncGrpcServerClient(List<ManagedChannel> channels, InsertRetries insertRetries) {
+        if (channels.isEmpty())
+            throw new IllegalArgumentException("At least one channel is needed");
+        this.channels = channels;
+        this.insertRetries = insertRetries;
+
+        // create a custom header
+        Metadata header = new Metadata();
+        header.put(AUTH_USER_METADATA_KEY, "user");
+        for (ManagedChannel channel : channels) {
+            futureStubs.add(MetadataUtils.attachHeaders(TimecryptGrpc.newFutureStub(channel), header));
+            asyncStubs.add(MetadataUtils.attachHeaders(TimecryptGrpc.newStub(channel), header));
+        }
+    }
+
+    private static List<ManagedChannel> openChannels(String serverAddress, int serverPort, int numChannels) {
+        List<ManagedChannel> channels = new ArrayList<>(numChannels);
+        for (int i = 0; i < numChannels; i++) {
+            channels.add(ManagedChannelBuilder.forAddress(serverAddress, serverPort)
+                    .usePlaintext()
+                    .build());
+        }
+        return channels;
+    }
+
+    private int nextChannel() {
+        return Math.floorMod(nextChannel.getAndIncrement(), channels.size());
+    }
+
+    private TimecryptGrpc.TimecryptFutureStub futureStub() {
+        return futureStubs.get(nextChannel());
+    }
+
+    private TimecryptGrpc.TimecryptStub asyncStub() {
+        return asyncStubs.get(nextChannel());
+    }
+
+    private static <T> CompletableFuture<T> toCompletableFuture(ListenableFuture<T> future) {
+        CompletableFuture<T> result = new CompletableFuture<T>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                future.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        future.addListener(() -> {
+            try {
+                result.complete(future.get());
+            } catch (ExecutionException e) {
+                result.completeExceptionally(e.getCause());
+            } catch (CancellationException | InterruptedException e) {
+                result.completeExceptionally(e);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    /**
+     * Maps the failure of a request to the exception of the ServerInterface.
+     */
+    private static <T> CompletableFuture<T> mapFailure(CompletableFuture<T> future,
+                                                       Function<String, ? extends Exception> exception) {
+        return future.handle((value, throwable) -> {
+            if (throwable == null)
+                return CompletableFuture.completedFuture(value);
+            Throwable cause = InsertRetries.unwrap(throwable);
+            if (cause instanceof CouldNotStoreException || cause instanceof CouldNotReceiveException
+                    || cause instanceof InvalidQueryException)
+                return CompletableFuture.<T>failedFuture(cause);
+            String msg = ("GRPC failed: " + Status.fromThrowable(cause));
+            LOGGER.error(msg);
+            return CompletableFuture.<T>failedFuture(exception.apply(msg));
+        }).thenCompose(f -> f);
+    }
+
+    /**
+     * Collects the responses of a server streaming request.
+     */
+    private static class Collector<T> implements StreamObserver<T> {
+        private final List<T> responses = new ArrayList<>();
+        private final CompletableFuture<List<T>> result = new CompletableFuture<>();
+
+        @Override
+        public void onNext(T value) {
+            responses.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            result.completeExceptionally(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            result.complete(responses);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Long> createStream(List<StreamMetaData> metadataConfigValue) {
+        streamMessage.Builder streamMessageBuilder = streamMessage.newBuilder();
+        streamMessageBuilder.setOwnerId(DUMMY_OWNER);
+        try {
+            for (StreamMetaData streamMetaData : metadataConfigValue) {
+                streamMessageBuilder.addMetadataConfig(GrpcServerClient.getMetadataConfig(streamMetaData.getId(),
+                        streamMetaData.getEncryptionScheme()));
+            }
+        } catch (CouldNotStoreException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return mapFailure(toCompletableFuture(futureStub().createStream(streamMessageBuilder.build()))
+                .thenApply(streamId::getStreamId), CouldNotStoreException::new);
+    }
+
+    @Override
+    public CompletableFuture<Long> getLastWrittenChunkId(long inputStreamId) {
+        return mapFailure(toCompletableFuture(futureStub().getLastWrittenChunk(
+                streamId.newBuilder().setStreamId(inputStreamId).build()))
+                .thenApply(chunkId::getId), InvalidQueryException::new);
+    }
+
+    @Override
+    public CompletableFuture<Long> addChunk(long streamIdValue, EncryptedChunk encryptedChunk,
+                                            EncryptedDigest encryptedDigest) {
+        chunkCreationMessage request;
+        try {
+            request = GrpcServerClient.toCreationMessage(streamIdValue, encryptedChunk, encryptedDigest);
+        } catch (CouldNotStoreException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return mapFailure(insertRetries.insert(streamIdValue,
+                () -> toCompletableFuture(futureStub().insertChunk(request)).thenApply(chunkId::getId),
+                t -> RETRYABLE.contains(Status.fromThrowable(t).getCode())), CouldNotStoreException::new);
+    }
+
+    @Override
+    public CompletableFuture<List<EncryptedChunk>> getChunks(long streamIdValue, long chunkIdFrom, long chunkIdTo) {
+        chunkRequestMessage request = chunkRequestMessage.newBuilder()
+                .setStreamId(streamId.newBuilder().setStreamId(streamIdValue).build())
+                .setStart(chunkId.newBuilder().setId(chunkIdFrom))
+                .setEnd(chunkId.newBuilder().setId(chunkIdTo))
+                .build();
+        Collector<chunk> collector = new Collector<>();
+        asyncStub().getRawData(request, collector);
+        return mapFailure(collector.result.thenApply(chunks -> {
+            List<EncryptedChunk> returnList = new ArrayList<>(chunks.size());
+            for (chunk next : chunks) {
+                returnList.add(new EncryptedChunk(next.getStreamId().getStreamId(), next.getChunkId().getId(),
+                        next.getChunkContent().toByteArray()));
+            }
+            return returnList;
+        }), CouldNotReceiveException::new);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteStream(long streamIdValue) {
+        return mapFailure(toCompletableFuture(futureStub().deleteStream(
+                streamId.newBuilder().setStreamId(streamIdValue).build()))
+                .thenApply(empty -> (Void) null), InvalidQueryException::new);
+    }
+
+    @Override
+    public CompletableFuture<List<EncryptedDigest>> getStatisticalData(long streamIdValue, long chunkIdFrom,
+                                                                       long chunkIdTo, int granularity,
+                                                                       List<StreamMetaData> metaData) {
+        statisticRequestMessage.Builder builder = statisticRequestMessage.newBuilder()
+                .setStreamId(streamId.newBuilder().setStreamId(streamIdValue).build())
+                .setStart(chunkId.newBuilder().setId(chunkIdFrom))
+                .setEnd(chunkId.newBuilder().setId(chunkIdTo))
+                .setGranularity(granularity);
+        try {
+            for (StreamMetaData streamMetaData : metaData) {
+                builder.addMetadataConfig(GrpcServerClient.getMetadataConfig(streamMetaData.getId(),
+                        streamMetaData.getEncryptionScheme()));
+            }
+        } catch (CouldNotStoreException e) {
+            return CompletableFuture.failedFuture(new InvalidQueryException(e.getMessage()));
+        }
+
+        Collector<digest> collector = new Collector<>();
+        asyncStub().getStatisticalData(builder.build(), collector);
+        return mapFailure(collector.result.thenApply(digests -> {
+            List<EncryptedDigest> returnList = new ArrayList<>(digests.size());
+            for (digest next : digests) {
+                try {
+                    returnList.add(GrpcServerClient.toEncryptedDigest(streamIdValue, next));
+                } catch (InvalidQueryException e) {
+                    throw new CompletionException(e);
+                }
+            }
+            return returnList;
+        }), InvalidQueryException::new);
+    }
+
+    @Override
+    public void close() {
+        for (ManagedChannel channel : channels) {
+            channel.shutdown();
+        }
+        try {
+            for (ManagedChannel channel : channels) {
+                if (!channel.awaitTermination(5, TimeUnit.SECONDS))
+                    channel.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            channels.forEach(ManagedChannel::shutdownNow);
+        }
+    }
+}
@@ -16,10 +16,14 @@ import ch.ethz.dsg.timecrypt.client.serverInterface.ServerInterface;
 import ch.ethz.dsg.timecrypt.client.streamHandling.metaData.StreamMetaData;
 import ch.ethz.dsg.timecrypt.protocol.*;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Metadata;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.MetadataUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +32,8 @@ import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
 
@@ -41,6 +47,7 @@ public class GrpcServerClient implements ServerInterface {
     static final Metadata.Key<String> AUTH_USER_METADATA_KEY = Metadata.Key.of("User", ASCII_STRING_MARSHALLER);
     private static final Logger LOGGER = LoggerFactory.getLogger(GrpcServerClient.class);
     private TimecryptGrpc.TimecryptBlockingStub stub;
+    private TimecryptGrpc.TimecryptStub asyncStub;
 
 
     public GrpcServerClient(String serverAddress, int serverPort) {
@@ -55,6 +62,7 @@ public class GrpcServerClient implements ServerInterface {
                 .build();
         stub = TimecryptGrpc.newBlockingStub(channel);
         stub = MetadataUtils.attachHeaders(stub, header);
+        asyncStub = MetadataUtils.attachHeaders(TimecryptGrpc.newStub(channel), header);
     }
 
     @Override
@@ -93,10 +101,8 @@ public class GrpcServerClient implements ServerInterface {
         return response.getId();
     }
 
-    @Override
-    public long addChunk(long streamIdValue, EncryptedChunk encryptedChunk, EncryptedDigest encryptedDigest)
-            throws CouldNotStoreException {
-        chunkId response;
+    static chunkCreationMessage toCreationMessage(long streamIdValue, EncryptedChunk encryptedChunk,
+                                                  EncryptedDigest encryptedDigest) throws CouldNotStoreException {
         digest.Builder digestBuilder = digest.newBuilder()
                 .setStart(chunkId.newBuilder().setId(encryptedDigest.getChunkIdFrom()))
                 .setEnd(chunkId.newBuilder().setId(encryptedDigest.getChunkIdTo()));
@@ -143,13 +149,22 @@ public class GrpcServerClient implements ServerInterface {
         chunk chunkMessage = chunk.newBuilder()
                 .setChunkId(chunkId.newBuilder().setId(encryptedChunk.getChunkId()))
                 .setStreamId(streamId.newBuilder().setStreamId(streamIdValue).build())
-                .setChunkContent(ByteString.copyFrom(encryptedChunk.getPayload()))
+                .setChunkContent(UnsafeByteOperations.unsafeWrap(encryptedChunk.getPayload()))
                 .build();
 
+        return chunkCreationMessage.newBuilder()
+                .setChunk(chunkMessage)
+                .setDigest(digestBuilder.build()).build();
+    }
+
+    @Override
+    public long addChunk(long streamIdValue, EncryptedChunk encryptedChunk, EncryptedDigest encryptedDigest)
+            throws CouldNotStoreException {
+        chunkId response;
+        chunkCreationMessage request = toCreationMessage(streamIdValue, encryptedChunk, encryptedDigest);
+
         try {
-            response = stub.insertChunk(chunkCreationMessage.newBuilder()
-                    .setChunk(chunkMessage)
-                    .setDigest(digestBuilder.build()).build());
+            response = stub.insertChunk(request);
         } catch (StatusRuntimeException e) {
             String msg = ("GRPC failed: " + e.getStatus());
             LOGGER.error(msg);
@@ -159,6 +174,72 @@ public class GrpcServerClient implements ServerInterface {
         return response.getId();
     }
 
+    @Override
+    public long addChunks(long streamIdValue, List<EncryptedChunk> chunks, List<EncryptedDigest> digests)
+            throws CouldNotStoreException {
+        if (chunks.size() != digests.size())
+            throw new IllegalArgumentException("Got " + chunks.size() + " chunks but " + digests.size() + " digests");
+        CompletableFuture<Long> response = new CompletableFuture<>();
+        Object ready = new Object();
+
+        ClientResponseObserver<chunkCreationMessage, chunkId> responseObserver =
+                new ClientResponseObserver<chunkCreationMessage, chunkId>() {
+                    @Override
+                    public void beforeStart(ClientCallStreamObserver<chunkCreationMessage> requestStream) {
+                        requestStream.setOnReadyHandler(() -> {
+                            synchronized (ready) {
+                                ready.notifyAll();
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onNext(chunkId value) {
+                        response.complete(value.getId());
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        response.completeExceptionally(t);
+                        synchronized (ready) {
+                            ready.notifyAll();
+                        }
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        response.completeExceptionally(new IllegalStateException("No last chunk in the response"));
+                    }
+                };
+        ClientCallStreamObserver<chunkCreationMessage> requests =
+                (ClientCallStreamObserver<chunkCreationMessage>) asyncStub.insertChunks(responseObserver);
+
+        try {
+            for (int i = 0; i < chunks.size() && !response.isDone(); i++) {
+                // wait for the transport instead of queueing all chunks in memory
+                synchronized (ready) {
+                    while (!requests.isReady() && !response.isDone()) {
+                        ready.wait();
+                    }
+                }
+                requests.onNext(toCreationMessage(streamIdValue, chunks.get(i), digests.get(i)));
+            }
+            requests.onCompleted();
+            return response.get();
+        } catch (InterruptedException e) {
+            requests.cancel("Interrupted", e);
+            Thread.currentThread().interrupt();
+            throw new CouldNotStoreException("Interrupted while inserting chunks");
+        } catch (CouldNotStoreException e) {
+            requests.cancel(e.getMessage(), e);
+            throw e;
+        } catch (ExecutionException e) {
+            String msg = ("GRPC failed: " + Status.fromThrowable(e.getCause()));
+            LOGGER.error(msg);
+            throw new CouldNotStoreException(msg);
+        }
+    }
+
     @Override
     public List<EncryptedChunk> getChunks(long streamIdValue, long chunkIdFrom, long chunkIdTo)
             throws CouldNotReceiveException {
@@ -235,40 +316,7 @@ public class GrpcServerClient implements ServerInterface {
         ArrayList<EncryptedDigest> returnList = new ArrayList<>();
         try {
             while (response.hasNext()) {
-                digest next = response.next();
-
-                List<EncryptedMetadata> encryptedMetadata = new ArrayList<>();
-                for (metadataContent content : next.getMetadataContentList()) {
-                    metadataConfig config = content.getConfig();
-                    switch (content.getPayloadCase().getNumber()) {
-                        case metadataContent.LONG_PAYLOAD_FIELD_NUMBER:
-                            encryptedMetadata.add(new EncryptedMetadata(content.getLongPayload().getEncryptedLong(),
-                                    config.getId(), getEncryptionScheme(config.getScheme())));
-                            break;
-                        case metadataContent.LONG_MAC_PAYLOAD_FIELD_NUMBER:
-                            encryptedMetadata.add(new EncryptedMetadata(content.getLongMacPayload().getEncryptedLong(),
-                                    new BigInteger(content.getLongMacPayload().getAuthCode().toByteArray()),
-                                    config.getId(), getEncryptionScheme(config.getScheme())));
-                            break;
-                        case metadataContent.BIG_INT_PAYLOAD_FIELD_NUMBER:
-                            encryptedMetadata.add(new EncryptedMetadata(
-                                    new BigInteger(content.getBigIntPayload().getEncryptedBigInt().toByteArray()),
-                                    config.getId(), getEncryptionScheme(config.getScheme())));
-                            break;
-                        case metadataContent.BIG_INT_MAC_PAYLOAD_FIELD_NUMBER:
-                            encryptedMetadata.add(new EncryptedMetadata(
-                                    new BigInteger(content.getBigIntMacPayload().getEncryptedBigInt().toByteArray()),
-                                    new BigInteger(content.getBigIntMacPayload().getAuthCode().toByteArray()),
-                                    config.getId(), getEncryptionScheme(config.getScheme())));
-                            break;
-                        default:
-                            String msg = "Unknown metadata content payload type " + content.getPayloadCase().getNumber();
-                            LOGGER.error(msg);
-                            throw new InvalidQueryException(msg);
-                    }
-                }
-                returnList.add(new EncryptedDigest(streamIdValue, next.getStart().getId(), next.getEnd().getId(),
-                        encryptedMetadata));
+                returnList.add(toEncryptedDigest(streamIdValue, response.next()));
             }
         } catch (StatusRuntimeException e) {
             String msg = ("GRPC failed: " + e.getStatus());
@@ -279,7 +327,42 @@ public class GrpcServerClient implements ServerInterface {
         return returnList;
     }
 
-    private metadataConfig getMetadataConfig(int id, StreamMetaData.MetadataEncryptionScheme encryptionSchemeValue)
+    static EncryptedDigest toEncryptedDigest(long streamIdValue, digest next) throws InvalidQueryException {
+        List<EncryptedMetadata> encryptedMetadata = new ArrayList<>();
+        for (metadataContent content : next.getMetadataContentList()) {
+            metadataConfig config = content.getConfig();
+            switch (content.getPayloadCase().getNumber()) {
+                case metadataContent.LONG_PAYLOAD_FIELD_NUMBER:
+                    encryptedMetadata.add(new EncryptedMetadata(content.getLongPayload().getEncryptedLong(),
+                            config.getId(), getEncryptionScheme(config.getScheme())));
+                    break;
+                case metadataContent.LONG_MAC_PAYLOAD_FIELD_NUMBER:
+                    encryptedMetadata.add(new EncryptedMetadata(content.getLongMacPayload().getEncryptedLong(),
+                            new BigInteger(content.getLongMacPayload().getAuthCode().toByteArray()),
+                            config.getId(), getEncryptionScheme(config.getScheme())));
+                    break;
+                case metadataContent.BIG_INT_PAYLOAD_FIELD_NUMBER:
+                    encryptedMetadata.add(new EncryptedMetadata(
+                            new BigInteger(content.getBigIntPayload().getEncryptedBigInt().toByteArray()),
+                            config.getId(), getEncryptionScheme(config.getScheme())));
+                    break;
+                case metadataContent.BIG_INT_MAC_PAYLOAD_FIELD_NUMBER:
+                    encryptedMetadata.add(new EncryptedMetadata(
+                            new BigInteger(content.getBigIntMacPayload().getEncryptedBigInt().toByteArray()),
+                            new BigInteger(content.getBigIntMacPayload().getAuthCode().toByteArray()),
+                            config.getId(), getEncryptionScheme(config.getScheme())));
+                    break;
+                default:
+                    String msg = "Unknown metadata content payload type " + content.getPayloadCase().getNumber();
+                    LOGGER.error(msg);
+                    throw new InvalidQueryException(msg);
+            }
+        }
+        return new EncryptedDigest(streamIdValue, next.getStart().getId(), next.getEnd().getId(),
+                encryptedMetadata);
+    }
+
+    static metadataConfig getMetadataConfig(int id, StreamMetaData.MetadataEncryptionScheme encryptionSchemeValue)
             throws CouldNotStoreException {
         EncryptionScheme encryptionScheme;
         switch (encryptionSchemeValue) {
@@ -303,7 +386,7 @@ public class GrpcServerClient implements ServerInterface {
         return metadataConfig.newBuilder().setScheme(encryptionScheme).setId(id).build();
     }
 
-    private StreamMetaData.MetadataEncryptionScheme getEncryptionScheme(EncryptionScheme encryptionScheme)
+    static StreamMetaData.MetadataEncryptionScheme getEncryptionScheme(EncryptionScheme encryptionScheme)
             throws InvalidQueryException {
         switch (encryptionScheme) {
             case LONG:
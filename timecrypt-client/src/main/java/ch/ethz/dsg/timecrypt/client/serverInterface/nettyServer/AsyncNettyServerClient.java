@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2020 by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.client.serverInterface.nettyServer;
+
+import ch.ethz.dsg.timecrypt.client.exceptions.CouldNotReceiveException;
+import ch.ethz.dsg.timecrypt.client.exceptions.CouldNotStoreException;
+import ch.ethz.dsg.timecrypt.client.exceptions.InvalidQueryException;
+import ch.ethz.dsg.timecrypt.client.exceptions.UnsupportedOperationException;
+import ch.ethz.dsg.timecrypt.client.serverInterface.AsyncServerInterface;
+import ch.ethz.dsg.timecrypt.client.serverInterface.EncryptedChunk;
+import ch.ethz.dsg.timecrypt.client.serverInterface.EncryptedDigest;
+import ch.ethz.dsg.timecrypt.client.serverInterface.InsertRetries;
+import ch.ethz.dsg.timecrypt.client.streamHandling.metaData.StreamMetaData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+import static ch.ethz.dsg.timecrypt.client.serverInterface.nettyServer.NettyServerClient.DUMMY_OWNER;
+
+/**
+ * Asynchronous client for the Netty server. The requests are pipelined over one connection, a failed connection is
+ * replaced by a new one with the next request. Sending a request blocks while maxInFlight requests are in flight.
+ */
+public class AsyncNettyServerClient implements AsyncServerInterface {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncNettyServerClient.class);
+
+    private final String ip;
+    private final int port;
+    private final int maxInFlight;
+    private final InsertRetries insertRetries;
+    private final Random rand = new Random();
+    private PipelinedNettyClient client = null;
+
+    public AsyncNettyServerClient(String ip, int port) throws IOException {
+        this(ip, port, PipelinedNettyClient.DEFAULT_MAX_IN_FLIGHT, new InsertRetries());
+    }
+
+    public AsyncNettyServerClient(String ip, int port, int maxInFlight, InsertRetries insertRetries)
+            throws IOException {
+        this.ip = ip;
+        this.port = port;
+        this.maxInFlight = maxInFlight;
+        this.insertRetries = insertRetries;
+        client();
+    }
+
+    private synchronized PipelinedNettyClient client() throws IOException {
+        if (client != null && client.isFailed()) {
+            LOGGER.warn("Connection to server " + ip + ":" + port + " failed, creating a new connection");
+            try {
+                client.close();
+            } catch (IOException e) {
+                LOGGER.error("Could not close the failed connection", e);
+            }
+            client = null;
+        }
+        if (client == null)
+            client = new PipelinedNettyClient(ip, port, maxInFlight);
+        return client;
+    }
+
+    @FunctionalInterface
+    private interface Request<T> {
+        CompletableFuture<T> send(PipelinedNettyClient client) throws IOException, InterruptedException;
+    }
+
+    private <T> CompletableFuture<T> send(Request<T> request) {
+        try {
+            return request.send(client());
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Maps the failure of a request to the exception of the ServerInterface.
+     */
+    private static <T> CompletableFuture<T> mapFailure(CompletableFuture<T> future, String what,
+                                                       Function<String, ? extends Exception> exception) {
+        return future.handle((value, throwable) -> {
+            if (throwable == null)
+                return CompletableFuture.completedFuture(value);
+            Throwable cause = InsertRetries.unwrap(throwable);
+            LOGGER.error("Tried to " + what + " got error.", cause);
+            if (cause instanceof CouldNotStoreException || cause instanceof CouldNotReceiveException
+                    || cause instanceof InvalidQueryException)
+                return CompletableFuture.<T>failedFuture(cause);
+            return CompletableFuture.<T>failedFuture(exception.apply(cause.getMessage()));
+        }).thenCompose(f -> f);
+    }
+
+    @Override
+    public CompletableFuture<Long> createStream(List<StreamMetaData> metadataConfig) {
+        //TODO: Generate the uid on the server
+        long uid;
+        synchronized (rand) {
+            uid = rand.nextLong();
+        }
+        return mapFailure(send(c -> c.createStream(uid, DUMMY_OWNER, metadataConfig.size()))
+                .thenApply(success -> {
+                    if (!success)
+                        throw new CompletionException(new CouldNotStoreException("Create stream failed"));
+                    return uid;
+                }), "create stream", CouldNotStoreException::new);
+    }
+
+    @Override
+    public CompletableFuture<Long> getLastWrittenChunkId(long streamId) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("The TimeCrypt server currently " +
+                "does not support getting the last written Chunk"));
+    }
+
+    @Override
+    public CompletableFuture<Long> addChunk(long streamId, EncryptedChunk chunk, EncryptedDigest digest) {
+        // a retry may use a new connection, so an error response can be an insert that overtook its predecessor
+        return mapFailure(insertRetries.insert(streamId,
+                () -> send(c -> c.insertChunk(chunk, streamId, DUMMY_OWNER, digest)).thenApply(success -> {
+                    if (!success)
+                        throw new CompletionException(new CouldNotStoreException("Store failed"));
+                    // Currently cassandra does not really support this. We trust it to be honest.
+                    return chunk.getChunkId();
+                }), t -> true), "insert chunk " + chunk.getChunkId() + " to stream id " + streamId,
+                CouldNotStoreException::new);
+    }
+
+    @Override
+    public CompletableFuture<List<EncryptedChunk>> getChunks(long streamId, long chunkIdFrom, long chunkIdTo) {
+        return mapFailure(send(c -> c.getChunks(DUMMY_OWNER, streamId, chunkIdFrom, chunkIdTo)),
+                "get chunks from stream id " + streamId, CouldNotReceiveException::new);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteStream(long streamId) {
+        return mapFailure(send(c -> c.deleteStream(DUMMY_OWNER, streamId)).thenApply(success -> (Void) null),
+                "delete stream id " + streamId, InvalidQueryException::new);
+    }
+
+    @Override
+    public CompletableFuture<List<EncryptedDigest>> getStatisticalData(long streamId, long chunkIdFrom,
+                                                                       long chunkIdTo, int granularity,
+                                                                       List<StreamMetaData> metaData) {
+        return mapFailure(send(c -> c.getStatistics(streamId, DUMMY_OWNER, chunkIdFrom, chunkIdTo - 1,
+                granularity, metaData)), "get statistics for stream id " + streamId, InvalidQueryException::new);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (client == null)
+            return;
+        try {
+            client.close();
+        } catch (IOException e) {
+            LOGGER.error("Could not close the connection to server " + ip + ":" + port, e);
+        }
+        client = null;
+    }
+}
@@ -13,6 +13,7 @@ import ch.ethz.dsg.timecrypt.client.serverInterface.EncryptedMetadata;
 import ch.ethz.dsg.timecrypt.client.serverInterface.nettyServer.TimeCryptNettyProtocol.*;
 import ch.ethz.dsg.timecrypt.client.streamHandling.metaData.StreamMetaData;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
 import java.io.Closeable;
 import java.io.IOException;
@@ -26,6 +27,9 @@ import java.util.stream.Collectors;
 
 public class NettyClient implements Closeable, AutoCloseable {
 
+    // keeps the messages of a bulk insert in the order of a few megabytes
+    private static final int MULTI_INSERT_CHUNKS = 1024;
+
     private Socket net;
     private OutputStream outStream;
     private InputStream inStream;
@@ -88,7 +92,7 @@ public class NettyClient implements Closeable, AutoCloseable {
         }
     }
 
-    private static EncryptedDigest parseMetadata(List<StreamMetaData> info, long streamId, long chunkIdFrom, long chunkIdTo, StatisticsResponse response) {
+    static EncryptedDigest parseMetadata(List<StreamMetaData> info, long streamId, long chunkIdFrom, long chunkIdTo, StatisticsResponse response) {
         List<EncryptedMetadata> result = new ArrayList<>(response.getDataCount());
         int id = 0;
         for (Metadata meta : response.getDataList()) {
@@ -116,52 +120,91 @@ public class NettyClient implements Closeable, AutoCloseable {
         return ResponseMessage.parser().parseFrom(buffer, 0, len);
     }
 
-    public boolean createStream(long uid, String owner, int numDigest) throws IOException {
-
+    static RequestMessage.Builder createStreamRequest(long uid, String owner, int numDigest) {
         CreateStream.Builder cMsgBuilder = CreateStream.newBuilder()
                 .setUid(uid)
                 .setOwner(owner)
                 .setMetadataConfig(MetaConfig.newBuilder().setNumdigests(numDigest).build());
 
-        writeRequest(RequestMessage.newBuilder()
+        return RequestMessage.newBuilder()
                 .setType(MessageRequestType.CREATE_STREAM)
-                .setCreateStream(cMsgBuilder)
-                .build());
-
-        ResponseMessage msg = loadResponse();
-
-        return msg.hasSuccessResponse();
+                .setCreateStream(cMsgBuilder);
     }
 
-    public boolean deleteStream(String owner, long uid) throws IOException {
+    static RequestMessage.Builder deleteStreamRequest(String owner, long uid) {
         DeleteStream.Builder dMsgBuilder = DeleteStream.newBuilder()
                 .setUid(uid)
                 .setOwner(owner);
 
-        writeRequest(RequestMessage.newBuilder()
+        return RequestMessage.newBuilder()
                 .setType(MessageRequestType.DELETE_STREAM)
-                .setDeleteStream(dMsgBuilder)
-                .build());
-
-        ResponseMessage msg = loadResponse();
-
-        return msg.hasSuccessResponse();
+                .setDeleteStream(dMsgBuilder);
     }
 
-    public List<EncryptedDigest> getStatistics(Long streamId, String owner, long from, long to,
-                                               long granularity, List<StreamMetaData> metaData) throws IOException, InvalidQueryException {
-
+    static RequestMessage.Builder getStatisticsRequest(long streamId, String owner, long from, long to,
+                                                       long granularity, List<StreamMetaData> metaData) {
         int[] types = new int[metaData.size()];
         for (int i = 0; i < metaData.size(); i++) {
             types[i] = metaData.get(i).getId();
         }
-        writeRequest(RequestMessage.newBuilder().setType(MessageRequestType.GET_STATISTICS)
+        return RequestMessage.newBuilder().setType(MessageRequestType.GET_STATISTICS)
                 .setGetStatistics(GetStatistics.newBuilder()
                         .setOwner(owner)
                         .setUid(streamId).setFrom(from)
                         .setTo(to)
                         .setGranularity(granularity)
-                        .addAllDigestid(Arrays.stream(types).boxed().collect(Collectors.toList()))).build());
+                        .addAllDigestid(Arrays.stream(types).boxed().collect(Collectors.toList())));
+    }
+
+    static RequestMessage.Builder getChunksRequest(String owner, long uid, long from, long to) {
+        return RequestMessage.newBuilder().setType(MessageRequestType.GET_CHUNKS)
+                .setGetChunks(GetChunks.newBuilder()
+                        .setOwner(owner)
+                        .setUid(uid)
+                        .setFrom(from)
+                        .setTo(to));
+    }
+
+    static RequestMessage.Builder insertChunkRequest(EncryptedChunk chunk, long streamId, String owner,
+                                                     EncryptedDigest digest) {
+        InsertChunk.Builder iMsgBuilder = InsertChunk.newBuilder()
+                .setUid(streamId).setOwner(owner)
+                .setFrom(chunk.getChunkId())
+                .setTo(chunk.getChunkId() + 1)
+                .setKey((int) chunk.getChunkId())
+                .setChunk(UnsafeByteOperations.unsafeWrap(chunk.getPayload()));
+
+        for (EncryptedMetadata meta : digest.getPayload()) {
+            iMsgBuilder.addMetadata(Metadata.newBuilder()
+                    .setDigestid(meta.getMetadataId())
+                    .setData(ByteString.copyFrom(NodeContentSerialization.encodeToNodeContent(meta))));
+        }
+
+        return RequestMessage.newBuilder()
+                .setType(MessageRequestType.INSERT_CHUNK)
+                .setInsertChunk(iMsgBuilder);
+    }
+
+    public boolean createStream(long uid, String owner, int numDigest) throws IOException {
+        writeRequest(createStreamRequest(uid, owner, numDigest).build());
+
+        ResponseMessage msg = loadResponse();
+
+        return msg.hasSuccessResponse();
+    }
+
+    public boolean deleteStream(String owner, long uid) throws IOException {
+        writeRequest(deleteStreamRequest(owner, uid).build());
+
+        ResponseMessage msg = loadResponse();
+
+        return msg.hasSuccessResponse();
+    }
+
+    public List<EncryptedDigest> getStatistics(Long streamId, String owner, long from, long to,
+                                               long granularity, List<StreamMetaData> metaData) throws IOException, InvalidQueryException {
+
+        writeRequest(getStatisticsRequest(streamId, owner, from, to, granularity, metaData).build());
         int numMsgs = (int) ((to - from) / granularity);
         int cur = 0;
         boolean hasError = false;
@@ -247,12 +290,7 @@ public class NettyClient implements Closeable, AutoCloseable {
 
     public List<EncryptedChunk> getChunks(String owner, long uid, long from, long to) throws IOException,
             CouldNotReceiveException {
-        writeRequest(RequestMessage.newBuilder().setType(MessageRequestType.GET_CHUNKS)
-                .setGetChunks(GetChunks.newBuilder()
-                        .setOwner(owner)
-                        .setUid(uid)
-                        .setFrom(from)
-                        .setTo(to)).build());
+        writeRequest(getChunksRequest(owner, uid, from, to).build());
 
         outStream.flush();
         int numMsgs = (int) ((to - from));
@@ -290,27 +328,50 @@ public class NettyClient implements Closeable, AutoCloseable {
     }
 
     public boolean insertChunk(EncryptedChunk chunk, long streamId, String owner, EncryptedDigest digest) throws IOException {
-        InsertChunk.Builder iMsgBuilder = InsertChunk.newBuilder()
-                .setUid(streamId).setOwner(owner)
-                .setFrom(chunk.getChunkId())
-                .setTo(chunk.getChunkId() + 1)
-                .setKey((int) chunk.getChunkId())
-                .setChunk(ByteString.copyFrom(chunk.getPayload()));
+        writeRequest(insertChunkRequest(chunk, streamId, owner, digest).build());
 
-        for (EncryptedMetadata meta : digest.getPayload()) {
-            iMsgBuilder.addMetadata(Metadata.newBuilder()
-                    .setDigestid(meta.getMetadataId())
-                    .setData(ByteString.copyFrom(NodeContentSerialization.encodeToNodeContent(meta))));
-        }
+        ResponseMessage msg = loadResponse();
+        return msg.hasSuccessResponse();
+    }
 
+    /**
+     * Inserts consecutive chunks with MultiInsert messages of at most MULTI_INSERT_CHUNKS chunks each.
+     *
+     * @return the id of the last chunk that the server committed
+     */
+    public long insertChunks(List<EncryptedChunk> chunks, long streamId, String owner, List<EncryptedDigest> digests)
+            throws IOException {
+        long lastChunk = -1;
+        for (int start = 0; start < chunks.size(); start += MULTI_INSERT_CHUNKS) {
+            MultiInsert.Builder mMsgBuilder = MultiInsert.newBuilder().setUid(streamId).setOwner(owner);
+            for (int i = start; i < Math.min(chunks.size(), start + MULTI_INSERT_CHUNKS); i++) {
+                EncryptedChunk chunk = chunks.get(i);
+                MultiInsertChunk.Builder cMsgBuilder = MultiInsertChunk.newBuilder()
+                        .setFrom(chunk.getChunkId())
+                        .setKey((int) chunk.getChunkId())
+                        .setChunk(UnsafeByteOperations.unsafeWrap(chunk.getPayload()));
+                for (EncryptedMetadata meta : digests.get(i).getPayload()) {
+                    cMsgBuilder.addMetadata(Metadata.newBuilder()
+                            .setDigestid(meta.getMetadataId())
+                            .setData(ByteString.copyFrom(NodeContentSerialization.encodeToNodeContent(meta))));
+                }
+                mMsgBuilder.addChunks(cMsgBuilder);
+            }
 
-        writeRequest(RequestMessage.newBuilder()
-                .setType(MessageRequestType.INSERT_CHUNK)
-                .setInsertChunk(iMsgBuilder)
-                .build());
+            writeRequest(RequestMessage.newBuilder()
+                    .setType(MessageRequestType.MULTI_INSERT)
+                    .setMultiInsert(mMsgBuilder)
+                    .build());
 
-        ResponseMessage msg = loadResponse();
-        return msg.hasSuccessResponse();
+            ResponseMessage msg = loadResponse();
+            if (!msg.hasSuccessResponse()) {
+                String reason = msg.hasErrorResponse() ? msg.getErrorResponse().getMessage() : "no response";
+                long committed = msg.hasErrorResponse() ? msg.getErrorResponse().getLastChunk() : lastChunk;
+                throw new RuntimeException("Insert failed after chunk " + committed + ": " + reason);
+            }
+            lastChunk = msg.getSuccessResponse().getLastChunk();
+        }
+        return lastChunk;
     }
 
     /*
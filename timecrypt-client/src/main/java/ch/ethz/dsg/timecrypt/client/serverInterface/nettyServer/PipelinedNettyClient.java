@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.client.serverInterface.nettyServer;
+
+import ch.ethz.dsg.timecrypt.client.exceptions.CouldNotReceiveException;
+import ch.ethz.dsg.timecrypt.client.exceptions.InvalidQueryException;
+import ch.ethz.dsg.timecrypt.client.serverInterface.EncryptedChunk;
+import ch.ethz.dsg.timecrypt.client.serverInterface.EncryptedDigest;
+import ch.ethz.dsg.timecrypt.client.serverInterface.nettyServer.TimeCryptNettyProtocol.*;
+import ch.ethz.dsg.timecrypt.client.streamHandling.metaData.StreamMetaData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client for the Netty server that keeps up to maxInFlight requests in flight on one connection. Every request gets
+ * a request ID, the server answers the requests as they complete and a reader thread hands the responses to the
+ * futures of their requests. Sending blocks while maxInFlight requests wait for their responses.
+ * <p>
+ * The server applies the inserts of a stream in the order in which they were sent, but a read may overtake an insert
+ * that was sent before it: wait for the insert before sending a read that depends on it.
+ * <p>
+ * Thread safe.
+ */
+public class PipelinedNettyClient implements Closeable, AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PipelinedNettyClient.class);
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private final Socket net;
+    private final OutputStream outStream;
+    private final InputStream inStream;
+    private final Semaphore inFlight;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Map<Long, PendingRequest> pending = new ConcurrentHashMap<>();
+    private final Thread reader;
+    private volatile IOException failure = null;
+
+    /**
+     * The responses of one request: a single response or a MULTIRESPONSE header and the announced responses.
+     */
+    private static class PendingRequest {
+        private final CompletableFuture<List<ResponseMessage>> future = new CompletableFuture<>();
+        private final List<ResponseMessage> responses = new ArrayList<>(1);
+        private int expected = 1;
+
+        /**
+         * @return true if this was the last response of the request
+         */
+        private boolean add(ResponseMessage response) {
+            if (responses.isEmpty() && response.getType() == MessageResponseType.MULTIRESPONSE)
+                expected = 1 + response.getMultiTransfer().getNumTransfers();
+            responses.add(response);
+            return responses.size() >= expected;
+        }
+    }
+
+    public PipelinedNettyClient(String ip, int port) throws IOException {
+        this(ip, port, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public PipelinedNettyClient(String ip, int port, int maxInFlight) throws IOException {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("At least one request has to be in flight");
+        this.inFlight = new Semaphore(maxInFlight);
+        this.net = new Socket(ip, port);
+        this.net.setTcpNoDelay(true);
+        this.outStream = new BufferedOutputStream(net.getOutputStream());
+        this.inStream = new BufferedInputStream(net.getInputStream());
+        this.reader = new Thread(this::readResponses, "timecrypt-pipelined-reader-" + ip + ":" + port);
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * Sends a request, blocks while maxInFlight requests are in flight.
+     *
+     * @return all responses of the request, a MULTIRESPONSE header first if the server sent one
+     */
+    public CompletableFuture<List<ResponseMessage>> send(RequestMessage.Builder request) throws InterruptedException {
+        inFlight.acquire();
+        long requestId = nextRequestId.getAndIncrement();
+        PendingRequest pendingRequest = new PendingRequest();
+        pendingRequest.future.whenComplete((responses, throwable) -> inFlight.release());
+        pending.put(requestId, pendingRequest);
+
+        // a failure before the put did not see this request
+        if (failure != null) {
+            fail(requestId, failure);
+            return pendingRequest.future;
+        }
+        try {
+            RequestMessage message = request.setRequestId(requestId).build();
+            synchronized (outStream) {
+                message.writeDelimitedTo(outStream);
+                outStream.flush();
+            }
+        } catch (IOException e) {
+            failAll(e);
+        }
+        return pendingRequest.future;
+    }
+
+    private void fail(long requestId, Throwable cause) {
+        PendingRequest pendingRequest = pending.remove(requestId);
+        if (pendingRequest != null)
+            pendingRequest.future.completeExceptionally(cause);
+    }
+
+    private void failAll(IOException cause) {
+        if (failure == null)
+            failure = cause;
+        for (Long requestId : pending.keySet()) {
+            fail(requestId, cause);
+        }
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                ResponseMessage response = ResponseMessage.parseDelimitedFrom(inStream);
+                if (response == null)
+                    throw new EOFException("Connection closed by the server");
+                if (!response.hasRequestId())
+                    throw new IOException("Response without request ID: " + response.getType());
+                PendingRequest pendingRequest = pending.get(response.getRequestId());
+                if (pendingRequest == null) {
+                    LOGGER.warn("Dropping response to the unknown request " + response.getRequestId());
+                    continue;
+                }
+                if (pendingRequest.add(response)) {
+                    pending.remove(response.getRequestId());
+                    pendingRequest.future.complete(pendingRequest.responses);
+                }
+            }
+        } catch (IOException e) {
+            if (!net.isClosed())
+                LOGGER.error("Connection failed, failing " + pending.size() + " requests in flight", e);
+            failAll(e);
+        }
+    }
+
+    /**
+     * @return the responses without the MULTIRESPONSE header
+     */
+    private static List<ResponseMessage> payload(List<ResponseMessage> responses) {
+        if (!responses.isEmpty() && responses.get(0).getType() == MessageResponseType.MULTIRESPONSE)
+            return responses.subList(1, responses.size());
+        return responses;
+    }
+
+    public CompletableFuture<Boolean> createStream(long uid, String owner, int numDigest)
+            throws InterruptedException {
+        return send(NettyClient.createStreamRequest(uid, owner, numDigest))
+                .thenApply(responses -> responses.get(0).hasSuccessResponse());
+    }
+
+    public CompletableFuture<Boolean> deleteStream(String owner, long uid) throws InterruptedException {
+        return send(NettyClient.deleteStreamRequest(owner, uid))
+                .thenApply(responses -> responses.get(0).hasSuccessResponse());
+    }
+
+    public CompletableFuture<Boolean> insertChunk(EncryptedChunk chunk, long streamId, String owner,
+                                                  EncryptedDigest digest) throws InterruptedException {
+        return send(NettyClient.insertChunkRequest(chunk, streamId, owner, digest))
+                .thenApply(responses -> responses.get(0).hasSuccessResponse());
+    }
+
+    public CompletableFuture<List<EncryptedDigest>> getStatistics(long streamId, String owner, long from, long to,
+                                                                  long granularity, List<StreamMetaData> metaData)
+            throws InterruptedException {
+        // the server does not answer a range without a window
+        if (granularity > 0 && (to - from) / granularity < 1)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return send(NettyClient.getStatisticsRequest(streamId, owner, from, to, granularity, metaData))
+                .thenApply(responses -> {
+                    List<EncryptedDigest> result = new ArrayList<>();
+                    long fromCur = from;
+                    for (ResponseMessage msg : payload(responses)) {
+                        if (!msg.hasStatisticsResponse())
+                            throw new CompletionException(new InvalidQueryException("Error message from server: '"
+                                    + msg.getErrorResponse().getMessage() + "'"));
+                        result.add(NettyClient.parseMetadata(metaData, streamId, fromCur, fromCur + granularity,
+                                msg.getStatisticsResponse()));
+                        fromCur += granularity;
+                    }
+                    return result;
+                });
+    }
+
+    public CompletableFuture<List<EncryptedChunk>> getChunks(String owner, long uid, long from, long to)
+            throws InterruptedException {
+        // the server does not answer an empty range
+        if (to <= from)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return send(NettyClient.getChunksRequest(owner, uid, from, to))
+                .thenApply(responses -> {
+                    List<EncryptedChunk> result = new ArrayList<>();
+                    for (ResponseMessage msg : payload(responses)) {
+                        if (!msg.hasDataResponse())
+                            throw new CompletionException(new CouldNotReceiveException("Query failed "
+                                    + msg.getErrorResponse().getMessage()));
+                        DataResponse resp = msg.getDataResponse();
+                        result.add(new EncryptedChunk(uid, resp.getKey(), resp.getData().toByteArray()));
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * @return true if the connection failed, every further request fails
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * @return the number of requests that wait for their responses
+     */
+    public int getInFlight() {
+        return pending.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        net.close();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -92,6 +92,25 @@ public class NettyServerClient implements ServerInterface {
         return chunk.getChunkId();
     }
 
+    @Override
+    public long addChunks(long streamId, List<EncryptedChunk> chunks, List<EncryptedDigest> digests)
+            throws CouldNotStoreException {
+        try {
+            return client.insertChunks(chunks, streamId, DUMMY_OWNER, digests);
+        } catch (IOException e) {
+            LOGGER.error("Tried to insert " + chunks.size() + " chunks to stream id " + streamId + " got error.", e);
+            try {
+                createNewConnection();
+            } catch (IOException ex) {
+                LOGGER.error("Could not create a new connection to server", ex);
+            }
+            throw new CouldNotStoreException(e.getMessage());
+        } catch (Exception e) {
+            LOGGER.error("Tried to insert " + chunks.size() + " chunks to stream id " + streamId + " got error.", e);
+            throw new CouldNotStoreException(e.getMessage());
+        }
+    }
+
     @Override
     public List<EncryptedChunk> getChunks(long streamId, long from, long to) throws CouldNotReceiveException {
         List<EncryptedChunk> result;
@@ -15,19 +15,27 @@ import ch.ethz.dsg.timecrypt.crypto.keymanagement.StreamKeyManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
 
+/**
+ * Writes the chunks of past data. The encrypted chunks are sent in batches of BATCH_SIZE with one bulk insert, the
+ * last batch when the handler is flushed.
+ */
 public class BackupHandler implements InsertHandler {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TCWriteHandler.class);
+    private static final int BATCH_SIZE = 256;
 
     private final Stream associatedStream;
     private final StreamKeyManager streamKeyManager;
     private final ServerInterface serverInterface;
     private final List<InsertHandler> openHandlers;
 
+    private final List<EncryptedChunk> pendingChunks = new ArrayList<>(BATCH_SIZE);
+    private final List<EncryptedDigest> pendingDigests = new ArrayList<>(BATCH_SIZE);
     private Chunk curChunk;
 
     public BackupHandler(Stream associatedStream, StreamKeyManager streamKeyManager, ServerInterface serverInterface, Date backupStartDate, List<InsertHandler> openHandlers) {
@@ -58,6 +66,7 @@ public class BackupHandler implements InsertHandler {
     @Override
     public void flush() {
         sendChunk(curChunk);
+        sendPendingChunks();
         curChunk = new Chunk(associatedStream, curChunk.getChunkID() + 1);
         ;
     }
@@ -93,23 +102,35 @@ public class BackupHandler implements InsertHandler {
                     ". Message:" + e.getMessage());
         }
 
+        pendingChunks.add(encryptedChunk);
+        pendingDigests.add(digest);
+        if (pendingChunks.size() >= BATCH_SIZE)
+            sendPendingChunks();
+    }
+
+    private void sendPendingChunks() {
+        if (pendingChunks.isEmpty())
+            return;
+        long chunkId = pendingChunks.get(pendingChunks.size() - 1).getChunkId();
         long serverChunkId = -1;
         try {
-            LOGGER.debug("Sending chunk " + chunkId + " to server.");
-            serverChunkId = serverInterface.addChunk(associatedStream.getId(), encryptedChunk, digest);
+            LOGGER.debug("Sending " + pendingChunks.size() + " chunks up to chunk " + chunkId + " to server.");
+            serverChunkId = serverInterface.addChunks(associatedStream.getId(), pendingChunks, pendingDigests);
             if (serverChunkId != chunkId) {
                 LOGGER.error("Server reported a different chunkId than we expected for stream " + associatedStream.getId() +
-                        "Expected " + curChunk + " got " + serverChunkId + ". This means the understanding of the " +
+                        "Expected " + chunkId + " got " + serverChunkId + ". This means the understanding of the " +
                         "stream got inconsistent between server and client - can't handle that");
                 // TODO: raise a useful exception.
                 throw new RuntimeException("Server reported a different chunkId than we expected. For stream " +
                         associatedStream.getId());
             }
         } catch (CouldNotStoreException e) {
-            LOGGER.error("Could not store chunk with chunk ID " + chunkId + " on the server", e);
+            LOGGER.error("Could not store chunks up to chunk ID " + chunkId + " on the server", e);
             // TODO: raise a useful exception.
             System.exit(1);
         }
+        pendingChunks.clear();
+        pendingDigests.clear();
         associatedStream.getLocalChunkStore().setLastWrittenChunkId(serverChunkId);
     }
 
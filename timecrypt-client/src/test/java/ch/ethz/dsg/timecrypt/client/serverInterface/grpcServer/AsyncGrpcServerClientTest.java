@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2020 by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.client.serverInterface.grpcServer;
+
+import ch.ethz.dsg.timecrypt.client.serverInterface.EncryptedChunk;
+import ch.ethz.dsg.timecrypt.client.serverInterface.EncryptedDigest;
+import ch.ethz.dsg.timecrypt.client.serverInterface.EncryptedMetadata;
+import ch.ethz.dsg.timecrypt.client.serverInterface.InsertRetries;
+import ch.ethz.dsg.timecrypt.client.serverInterface.ServerInterface;
+import ch.ethz.dsg.timecrypt.client.serverInterface.SynchronousServerInterface;
+import ch.ethz.dsg.timecrypt.client.streamHandling.metaData.MetaDataFactory;
+import ch.ethz.dsg.timecrypt.client.streamHandling.metaData.StreamMetaData;
+import ch.ethz.dsg.timecrypt.protocol.*;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the asynchronous gRPC client against an in-process server that keeps the streams in memory and answers after
+ * a configurable delay.
+ */
+public class AsyncGrpcServerClientTest {
+
+    private static final List<StreamMetaData> META_DATA = Collections.singletonList(
+            MetaDataFactory.getMetadataOfType(0, StreamMetaData.MetadataType.SUM,
+                    StreamMetaData.MetadataEncryptionScheme.LONG));
+
+    private InMemoryTimecrypt service;
+    private Server server;
+    private AsyncGrpcServerClient client;
+
+    /**
+     * Keeps the chunks of the streams in memory. Inserts are idempotent by chunk ID and fail if they overtook their
+     * predecessor, like on the TimeCrypt server.
+     */
+    private static class InMemoryTimecrypt extends TimecryptGrpc.TimecryptImplBase {
+        private final AtomicLong nextStream = new AtomicLong();
+        private final Map<Long, List<chunkCreationMessage>> streams = new ConcurrentHashMap<>();
+        private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(8);
+        private final Random rand = new Random(1);
+        private final AtomicInteger inserts = new AtomicInteger();
+        private volatile long delayMicros = 0;
+        private volatile boolean jitter = false;
+        // every nth insert is stored, but its response is lost
+        private volatile int loseEveryNth = 0;
+
+        private void later(Runnable response) {
+            long delay = delayMicros;
+            if (jitter) {
+                synchronized (rand) {
+                    delay = (long) (rand.nextDouble() * delay);
+                }
+            }
+            executor.schedule(response, delay, TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        public void createStream(streamMessage request, StreamObserver<streamId> responseObserver) {
+            long id = nextStream.getAndIncrement();
+            streams.put(id, new ArrayList<>());
+            responseObserver.onNext(streamId.newBuilder().setStreamId(id).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void insertChunk(chunkCreationMessage request, StreamObserver<chunkId> responseObserver) {
+            later(() -> {
+                List<chunkCreationMessage> stream = streams.get(request.getChunk().getStreamId().getStreamId());
+                long id = request.getChunk().getChunkId().getId();
+                synchronized (stream) {
+                    if (id > stream.size()) {
+                        responseObserver.onError(Status.INTERNAL.withDescription("Not in order Insert!")
+                                .asRuntimeException());
+                        return;
+                    }
+                    if (id == stream.size())
+                        stream.add(request);
+                }
+                int count = inserts.incrementAndGet();
+                if (loseEveryNth > 0 && count % loseEveryNth == 0) {
+                    responseObserver.onError(Status.UNAVAILABLE.withDescription("Lost response").asRuntimeException());
+                    return;
+                }
+                responseObserver.onNext(chunkId.newBuilder().setId(id).build());
+                responseObserver.onCompleted();
+            });
+        }
+
+        @Override
+        public void getLastWrittenChunk(streamId request, StreamObserver<chunkId> responseObserver) {
+            List<chunkCreationMessage> stream = streams.get(request.getStreamId());
+            synchronized (stream) {
+                responseObserver.onNext(chunkId.newBuilder().setId(stream.size() - 1).build());
+            }
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void getRawData(chunkRequestMessage request, StreamObserver<chunk> responseObserver) {
+            later(() -> {
+                List<chunkCreationMessage> stream = streams.get(request.getStreamId().getStreamId());
+                synchronized (stream) {
+                    for (long id = request.getStart().getId(); id < request.getEnd().getId(); id++) {
+                        responseObserver.onNext(stream.get((int) id).getChunk());
+                    }
+                }
+                responseObserver.onCompleted();
+            });
+        }
+
+        @Override
+        public void getStatisticalData(statisticRequestMessage request, StreamObserver<digest> responseObserver) {
+            later(() -> {
+                List<chunkCreationMessage> stream = streams.get(request.getStreamId().getStreamId());
+                synchronized (stream) {
+                    for (long from = request.getStart().getId(); from + request.getGranularity()
+                            <= request.getEnd().getId(); from += request.getGranularity()) {
+                        long sum = 0;
+                        for (long id = from; id < from + request.getGranularity(); id++) {
+                            sum += stream.get((int) id).getDigest().getMetadataContent(0).getLongPayload()
+                                    .getEncryptedLong();
+                        }
+                        responseObserver.onNext(digest.newBuilder()
+                                .setStart(chunkId.newBuilder().setId(from))
+                                .setEnd(chunkId.newBuilder().setId(from + request.getGranularity()))
+                                .addMetadataContent(metadataContent.newBuilder()
+                                        .setConfig(request.getMetadataConfig(0))
+                                        .setLongPayload(longPayload.newBuilder().setEncryptedLong(sum)))
+                                .build());
+                    }
+                }
+                responseObserver.onCompleted();
+            });
+        }
+
+        @Override
+        public void deleteStream(streamId request, StreamObserver<Empty> responseObserver) {
+            streams.remove(request.getStreamId());
+            responseObserver.onNext(Empty.newBuilder().build());
+            responseObserver.onCompleted();
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        String name = InProcessServerBuilder.generateName();
+        service = new InMemoryTimecrypt();
+        server = InProcessServerBuilder.forName(name)
+                .addService(service)
+                .executor(Executors.newFixedThreadPool(4))
+                .build()
+                .start();
+        List<ManagedChannel> channels = new ArrayList<>();
+        for (int i = 0; i < AsyncGrpcServerClient.DEFAULT_CHANNELS; i++) {
+            channels.add(InProcessChannelBuilder.forName(name).build());
+        }
+        client = new AsyncGrpcServerClient(channels, new InsertRetries(InsertRetries.DEFAULT_MAX_ATTEMPTS, 0));
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        client.close();
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        service.executor.shutdownNow();
+    }
+
+    private static EncryptedChunk chunk(long stream, long id) {
+        return new EncryptedChunk(stream, id, new byte[]{(byte) id});
+    }
+
+    private static EncryptedDigest digest(long stream, long id) {
+        return new EncryptedDigest(stream, id, id + 1, Collections.singletonList(
+                new EncryptedMetadata(id, 0, StreamMetaData.MetadataEncryptionScheme.LONG)));
+    }
+
+    /**
+     * Sends all inserts at once and waits for them.
+     */
+    private void insertAll(long stream, int num) {
+        List<CompletableFuture<Long>> inserts = new ArrayList<>();
+        for (long id = 0; id < num; id++) {
+            inserts.add(client.addChunk(stream, chunk(stream, id), digest(stream, id)));
+        }
+        for (int id = 0; id < num; id++) {
+            assertEquals(id, (long) inserts.get(id).join());
+        }
+    }
+
+    @Test
+    public void testPipelinedInsertsAndQueries() {
+        long stream = client.createStream(META_DATA).join();
+        insertAll(stream, 500);
+        assertEquals(499, (long) client.getLastWrittenChunkId(stream).join());
+
+        List<EncryptedChunk> chunks = client.getChunks(stream, 100, 200).join();
+        assertEquals(100, chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            assertEquals(100 + i, chunks.get(i).getChunkId());
+        }
+        List<EncryptedDigest> digests = client.getStatisticalData(stream, 0, 500, 100, META_DATA).join();
+        assertEquals(5, digests.size());
+        assertEquals(99 * 100 / 2, digests.get(0).getPayload().get(0).getPayloadAsLong());
+    }
+
+    @Test
+    public void testRetriesInsertsThatOvertookTheirPredecessor() {
+        service.delayMicros = 500;
+        service.jitter = true;
+        long stream = client.createStream(META_DATA).join();
+        insertAll(stream, 1000);
+        assertEquals(999, (long) client.getLastWrittenChunkId(stream).join());
+    }
+
+    @Test
+    public void testRetriesInsertsWithLostResponses() {
+        service.loseEveryNth = 7;
+        long stream = client.createStream(META_DATA).join();
+        insertAll(stream, 200);
+        assertEquals(199, (long) client.getLastWrittenChunkId(stream).join());
+        // every chunk is stored once
+        assertEquals(200, service.streams.get(stream).size());
+    }
+
+    @Test
+    public void testSynchronousAdapter() throws Exception {
+        ServerInterface adapter = new SynchronousServerInterface(client);
+        long stream = adapter.createStream(META_DATA);
+        for (long id = 0; id < 10; id++) {
+            assertEquals(id, adapter.addChunk(stream, chunk(stream, id), digest(stream, id)));
+        }
+        assertEquals(9, adapter.getLastWrittenChunkId(stream));
+        assertEquals(10, adapter.getChunks(stream, 0, 10).size());
+        adapter.deleteStream(stream);
+    }
+
+    @Test
+    public void benchmarkSynchronousAndPipelinedRequests() throws Exception {
+        // a server that needs 200us per request
+        service.delayMicros = 200;
+        int num = 2000;
+        ServerInterface adapter = new SynchronousServerInterface(client);
+        double syncInserts = 0, pipelinedInserts = 0, syncQueries = 0, pipelinedQueries = 0, latency = 0;
+        for (int round = 0; round < 3; round++) {
+            long stream = adapter.createStream(META_DATA);
+            long start = System.nanoTime();
+            for (long id = 0; id < num; id++) {
+                adapter.addChunk(stream, chunk(stream, id), digest(stream, id));
+            }
+            long elapsed = System.nanoTime() - start;
+            syncInserts = num / (elapsed / 1e9);
+            latency = elapsed / 1e3 / num;
+
+            stream = adapter.createStream(META_DATA);
+            start = System.nanoTime();
+            insertAll(stream, num);
+            pipelinedInserts = num / ((System.nanoTime() - start) / 1e9);
+
+            start = System.nanoTime();
+            for (int i = 0; i < num; i++) {
+                adapter.getStatisticalData(stream, 0, num, num / 4, META_DATA);
+            }
+            syncQueries = num / ((System.nanoTime() - start) / 1e9);
+
+            List<CompletableFuture<List<EncryptedDigest>>> queries = new ArrayList<>();
+            start = System.nanoTime();
+            for (int i = 0; i < num; i++) {
+                queries.add(client.getStatisticalData(stream, 0, num, num / 4, META_DATA));
+            }
+            CompletableFuture.allOf(queries.toArray(new CompletableFuture[0])).join();
+            pipelinedQueries = num / ((System.nanoTime() - start) / 1e9);
+        }
+        System.out.format("in-process server with 200us per request: %.0f us per synchronous insert, inserts %.0f/s " +
+                        "synchronous %.0f/s pipelined, queries %.0f/s synchronous %.0f/s pipelined%n", latency,
+                syncInserts, pipelinedInserts, syncQueries, pipelinedQueries);
+        assertTrue(pipelinedInserts > 0 && pipelinedQueries > 0);
+    }
+}
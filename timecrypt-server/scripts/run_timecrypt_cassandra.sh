@@ -9,7 +9,6 @@ export TIMECRYPT_PORT=15000
 export TIMECRYPT_SERVER_GROUP_THREADS=2;
 export TIMECRYPT_WORKER_GROUP_THREADS=16;
 export TIMECRYPT_EVENT_EXECUTOR_THREADS=32;
-export TIMECRYPT_TREE_CACHE=2000;
 export TIMECRYPT_BLOCK_CACHE=20000000;
 export TIMECRYPT_K_FACTOR=64;
 export TIMECRYPT_IN_MEMORY="false";
@@ -10,6 +10,7 @@ import ch.ethz.dsg.timecrypt.index.Chunk;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
 import ch.ethz.dsg.timecrypt.protocol.TimeCryptNettyProtocol.*;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
 import java.io.Closeable;
 import java.io.IOException;
@@ -258,7 +259,7 @@ public class BasicClient implements Closeable, AutoCloseable {
                     cur++;
                     break;
                 case ERROR_RESPONSE:
-                    result.add(new Chunk(0, null));
+                    result.add(new Chunk(0, (byte[]) null));
                     hasError = true;
                     cur++;
                     break;
@@ -282,7 +283,7 @@ public class BasicClient implements Closeable, AutoCloseable {
                 .setFrom(from)
                 .setTo(to)
                 .setKey(id)
-                .setChunk(ByteString.copyFrom(chunk.getData()));
+                .setChunk(UnsafeByteOperations.unsafeWrap(chunk.getBuffer()));
 
         for (int iter = 0; iter < metadata.length; iter++) {
             iMsgBuilder.addMetadata(Metadata.newBuilder()
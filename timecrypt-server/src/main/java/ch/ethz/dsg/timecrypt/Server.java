@@ -5,25 +5,44 @@
 
 package ch.ethz.dsg.timecrypt;
 
+import ch.ethz.dsg.timecrypt.db.Buckets;
 import ch.ethz.dsg.timecrypt.db.CassandraBlockTreeManager;
 import ch.ethz.dsg.timecrypt.db.CassandraDatabaseManager;
 import ch.ethz.dsg.timecrypt.db.CassandraStorage;
 import ch.ethz.dsg.timecrypt.db.CassandraTreeManager;
+import ch.ethz.dsg.timecrypt.db.CassandraWritePipeline;
+import ch.ethz.dsg.timecrypt.db.DeferredTreeWriter;
 import ch.ethz.dsg.timecrypt.db.debug.DebugStorage;
+import ch.ethz.dsg.timecrypt.db.mmap.MmapBlockTreeManager;
+import ch.ethz.dsg.timecrypt.db.mmap.MmapDatabase;
+import ch.ethz.dsg.timecrypt.db.mmap.MmapStorage;
+import ch.ethz.dsg.timecrypt.db.mmap.MmapTreeManager;
+import ch.ethz.dsg.timecrypt.db.offheap.OffHeapBlockTreeManager;
+import ch.ethz.dsg.timecrypt.db.offheap.OffHeapStorage;
+import ch.ethz.dsg.timecrypt.db.offheap.SlabArena;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptStorageException;
 import ch.ethz.dsg.timecrypt.index.IStorage;
 import ch.ethz.dsg.timecrypt.index.ITreeManager;
 import ch.ethz.dsg.timecrypt.index.MemoryTreeManager;
 import ch.ethz.dsg.timecrypt.index.blockindex.IBlockTreeFetcher;
 import ch.ethz.dsg.timecrypt.index.blockindex.InMemoryCacheBlockTreeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.NodeCache;
 import ch.ethz.dsg.timecrypt.server.NettyRequestManager;
+import ch.ethz.dsg.timecrypt.server.RequestExecutors;
 import ch.ethz.dsg.timecrypt.server.TimeCryptServerChannelInitializer;
+import ch.ethz.dsg.timecrypt.server.VirtualThreads;
 import ch.ethz.dsg.timecrypt.server.grpc.AuthServerInterceptor;
+import ch.ethz.dsg.timecrypt.server.grpc.ExecutorServerInterceptor;
 import ch.ethz.dsg.timecrypt.server.grpc.TimeCryptGRPCServer;
 import com.datastax.oss.driver.api.core.AllNodesFailedException;
 import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.logging.LogLevel;
@@ -34,12 +53,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.concurrent.Executor;
 
 public class Server implements Runnable {
 
     public static final int DEFAULT_PORT = 15000;
     public static final int DEFAULT_CASSANDRA_PORT = 9042;
     private static final String SERVER_INTERFACE_ENVIRONMENT_VARIABLE = "TIMECRYPT_SERVER_INTERFACE";
+    private static final String MMAP_STORAGE = "mmap";
     private static final Logger LOGGER = LoggerFactory.getLogger(Server.class);
 
     private final int block_tree_k_factor;
@@ -47,7 +70,6 @@ public class Server implements Runnable {
     private final int aThreads;
     private final int cThreads;
     private final int wThreads;
-    private final int treeCache;
     private final int blockCache;
     private final String[] cassandraHosts;
     private final int cassandraPort;
@@ -55,15 +77,38 @@ public class Server implements Runnable {
     private final int cassandraMinConnections;
     private final int cassandraMaxConnections;
     private final InterfaceProvider interfaceProvider;
-
-    public Server(int timeCryptPort, int aThreads, int cThreads, int wThreads, int treeCache, int blockCache,
+    private boolean prefixSumIndex = false;
+    private boolean offHeap = false;
+    private String mmapDirectory = null;
+    private boolean mmapSync = false;
+    private CassandraWritePipeline.AckMode cassandraAckMode = CassandraWritePipeline.AckMode.MEMORY;
+    private String cassandraLogDirectory = null;
+    private int groupCommitMillis = CassandraWritePipeline.DEFAULT_GROUP_COMMIT_MILLIS;
+    private int groupCommitRecords = CassandraWritePipeline.DEFAULT_GROUP_COMMIT_RECORDS;
+    private int cassandraBucketSize = Buckets.DEFAULT_BUCKET_SIZE;
+    private boolean deferredTreeWrites = false;
+    private int checkpointInserts = DeferredTreeWriter.DEFAULT_CHECKPOINT_INSERTS;
+    private int checkpointMillis = DeferredTreeWriter.DEFAULT_CHECKPOINT_MILLIS;
+    private long nodeCacheBytes = NodeCache.DEFAULT_BUDGET;
+    private int nodeCacheOwnerQuota = NodeCache.DEFAULT_OWNER_QUOTA_PERCENT;
+    private RequestExecutors.Mode executorMode = RequestExecutors.Mode.SHARED;
+    private int insertThreads = RequestExecutors.DEFAULT_INSERT_THREADS;
+    private int queryThreads = RequestExecutors.DEFAULT_QUERY_THREADS;
+    private int executorQueueSize = RequestExecutors.DEFAULT_QUEUE_SIZE;
+    private boolean epoll = true;
+
+    /**
+     * The blockCache is the number of nodes cached by the mmap and the off heap storage. The trees of the Cassandra
+     * and the in memory mode are cached within the budget of {@link #setNodeCache}.
+     */
+    public Server(int timeCryptPort, int aThreads, int cThreads, int wThreads, int blockCache,
                   String[] cassandraHosts, int cassandraPort, boolean inMemoryOnly, int cassandraMinConnections,
                   int cassandraMaxConnections, InterfaceProvider interfaceProvider) {
-        this(timeCryptPort, aThreads, cThreads, wThreads, treeCache, blockCache, cassandraHosts, cassandraPort, 64,
+        this(timeCryptPort, aThreads, cThreads, wThreads, blockCache, cassandraHosts, cassandraPort, 64,
                 inMemoryOnly, cassandraMinConnections, cassandraMaxConnections, interfaceProvider);
     }
 
-    public Server(int timeCryptPort, int aThreads, int cThreads, int wThreads, int treeCache, int blockCache,
+    public Server(int timeCryptPort, int aThreads, int cThreads, int wThreads, int blockCache,
                   String[] cassandraHosts, int cassandraPort, int kfactor, boolean inMemoryOnly,
                   int cassandraMinConnections, int cassandraMaxConnections, InterfaceProvider interfaceProvider) {
         this.block_tree_k_factor = kfactor;
@@ -71,7 +116,6 @@ public class Server implements Runnable {
         this.aThreads = aThreads;
         this.cThreads = cThreads;
         this.wThreads = wThreads;
-        this.treeCache = treeCache;
         this.blockCache = blockCache;
         this.cassandraHosts = cassandraHosts;
         this.cassandraPort = cassandraPort;
@@ -81,6 +125,89 @@ public class Server implements Runnable {
         this.interfaceProvider = interfaceProvider;
     }
 
+    /**
+     * Use a prefix sum index instead of a block tree for streams with additive digests without MACs. Only available
+     * with the in memory index and the gRPC interface.
+     */
+    public void setPrefixSumIndex(boolean prefixSumIndex) {
+        this.prefixSumIndex = prefixSumIndex;
+    }
+
+    /**
+     * Keep the nodes and chunks of the in memory mode outside of the heap. Only used with the in memory index.
+     */
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Keep the trees and chunks in memory-mapped segment files in the given directory instead of cassandra or the
+     * memory. With sync every write is forced to the disk before it is acknowledged.
+     */
+    public void setMmapStorage(String directory, boolean sync) {
+        this.mmapDirectory = directory;
+        this.mmapSync = sync;
+    }
+
+    /**
+     * When inserts into cassandra are acknowledged and how they are grouped. The log directory is only used with
+     * {@link CassandraWritePipeline.AckMode#LOG}.
+     */
+    public void setCassandraWritePipeline(CassandraWritePipeline.AckMode ackMode, String logDirectory,
+                                          int groupCommitMillis, int groupCommitRecords) {
+        this.cassandraAckMode = ackMode;
+        this.cassandraLogDirectory = logDirectory;
+        this.groupCommitMillis = groupCommitMillis;
+        this.groupCommitRecords = groupCommitRecords;
+    }
+
+    /**
+     * The number of chunk ids per cassandra partition of the chunks and tree blocks of a stream. Only used when the
+     * keyspace is created, afterwards the stored bucket size is used.
+     */
+    public void setCassandraBucketSize(int bucketSize) {
+        this.cassandraBucketSize = bucketSize;
+    }
+
+    /**
+     * Only write the sealed tree nodes to cassandra, the right edges of the trees are kept in memory behind a local log
+     * in the write-ahead log directory. The root rows are checkpointed every checkpointInserts inserts or
+     * checkpointMillis milliseconds.
+     */
+    public void setCassandraDeferredTreeWrites(boolean deferred, int checkpointInserts, int checkpointMillis) {
+        this.deferredTreeWrites = deferred;
+        this.checkpointInserts = checkpointInserts;
+        this.checkpointMillis = checkpointMillis;
+    }
+
+    /**
+     * The memory budget of the cached trees and nodes of the cassandra and the in memory mode, shared by all users. A
+     * user that holds more than ownerQuotaPercent of the budget evicts its own nodes first once the cache is full.
+     */
+    public void setNodeCache(long bytes, int ownerQuotaPercent) {
+        this.nodeCacheBytes = bytes;
+        this.nodeCacheOwnerQuota = ownerQuotaPercent;
+    }
+
+    /**
+     * How the requests are executed, see {@link RequestExecutors}. The SHARED mode runs the Netty requests on the
+     * wThreads of the handlers and the gRPC calls on the default executor of gRPC. The insert and query threads and
+     * the queue size are used by the SPLIT mode, the VIRTUAL mode runs at most insertThreads inserts at a time.
+     */
+    public void setRequestExecutors(RequestExecutors.Mode mode, int insertThreads, int queryThreads, int queueSize) {
+        this.executorMode = mode;
+        this.insertThreads = insertThreads;
+        this.queryThreads = queryThreads;
+        this.executorQueueSize = queueSize;
+    }
+
+    /**
+     * Use the native epoll transport of Netty if it is available (Linux), NIO otherwise.
+     */
+    public void setEpoll(boolean epoll) {
+        this.epoll = epoll;
+    }
+
     private static String getStringFromEnv(String envVarName, String defaultValue) throws RuntimeException {
         String val = System.getenv(envVarName);
         if (val == null && defaultValue != null) {
@@ -122,16 +249,45 @@ public class Server implements Runnable {
         int aThreads = getIntFromEnv("TIMECRYPT_SERVER_GROUP_THREADS", 2);
         int cThreads = getIntFromEnv("TIMECRYPT_WORKER_GROUP_THREADS", 16);
         int wThreads = getIntFromEnv("TIMECRYPT_EVENT_EXECUTOR_THREADS", 32);
-        int treeCache = getIntFromEnv("TIMECRYPT_TREE_CACHE", 2000);
+        if (System.getenv("TIMECRYPT_TREE_CACHE") != null)
+            LOGGER.warn("TIMECRYPT_TREE_CACHE is not supported anymore - the trees are cached within " +
+                    "TIMECRYPT_NODE_CACHE_MB");
         int blockCache = getIntFromEnv("TIMECRYPT_BLOCK_CACHE", 1000);
+        int nodeCacheMegabytes = getIntFromEnv("TIMECRYPT_NODE_CACHE_MB", (int) (NodeCache.DEFAULT_BUDGET >> 20));
+        int nodeCacheOwnerQuota = getIntFromEnv("TIMECRYPT_NODE_CACHE_OWNER_QUOTA",
+                NodeCache.DEFAULT_OWNER_QUOTA_PERCENT);
         int kfactor = getIntFromEnv("TIMECRYPT_K_FACTOR", 64);
 
         boolean inMemoryTree = getBoolFromEnv("TIMECRYPT_IN_MEMORY", true);
+        boolean prefixSumIndex = getBoolFromEnv("TIMECRYPT_PREFIX_SUM_INDEX", false);
+        boolean offHeap = getBoolFromEnv("TIMECRYPT_OFF_HEAP", false);
+        String storageMode = getStringFromEnv("TIMECRYPT_STORAGE", "");
+        String storageDirectory = getStringFromEnv("TIMECRYPT_STORAGE_DIR", "timecrypt-data");
+        boolean storageSync = getBoolFromEnv("TIMECRYPT_STORAGE_SYNC", false);
         String cassandraHost = getStringFromEnv("TIMECRYPT_CASSANDRA_HOST", "127.0.0.1");
         int cassandraPort = getIntFromEnv("TIMECRYPT_CASSANDRA_PORT", DEFAULT_CASSANDRA_PORT);
         String[] cassandraHosts = new String[]{cassandraHost};
         int cassandraMinConnections = getIntFromEnv("TIMECRYPT_CASSANDRA_MIN_CONNECTIONS", 2);
         int cassadndraMaxConnections = getIntFromEnv("TIMECRYPT_CASSANDRA_MAX_CONNECTIONS", 16);
+        CassandraWritePipeline.AckMode cassandraAckMode = CassandraWritePipeline.AckMode.valueOf(
+                getStringFromEnv("TIMECRYPT_CASSANDRA_ACK", CassandraWritePipeline.AckMode.MEMORY.name()));
+        String cassandraLogDirectory = getStringFromEnv("TIMECRYPT_CASSANDRA_WAL_DIR", "timecrypt-wal");
+        int groupCommitMillis = getIntFromEnv("TIMECRYPT_GROUP_COMMIT_MILLIS",
+                CassandraWritePipeline.DEFAULT_GROUP_COMMIT_MILLIS);
+        int groupCommitRecords = getIntFromEnv("TIMECRYPT_GROUP_COMMIT_RECORDS",
+                CassandraWritePipeline.DEFAULT_GROUP_COMMIT_RECORDS);
+        int cassandraBucketSize = getIntFromEnv("TIMECRYPT_CASSANDRA_BUCKET_SIZE", Buckets.DEFAULT_BUCKET_SIZE);
+        boolean deferredTreeWrites = getBoolFromEnv("TIMECRYPT_CASSANDRA_DEFERRED_TREE_WRITES", false);
+        int checkpointInserts = getIntFromEnv("TIMECRYPT_TREE_CHECKPOINT_INSERTS",
+                DeferredTreeWriter.DEFAULT_CHECKPOINT_INSERTS);
+        int checkpointMillis = getIntFromEnv("TIMECRYPT_TREE_CHECKPOINT_MILLIS",
+                DeferredTreeWriter.DEFAULT_CHECKPOINT_MILLIS);
+        RequestExecutors.Mode executorMode = RequestExecutors.Mode.valueOf(
+                getStringFromEnv("TIMECRYPT_EXECUTOR", RequestExecutors.Mode.SHARED.name()));
+        int insertThreads = getIntFromEnv("TIMECRYPT_INSERT_THREADS", RequestExecutors.DEFAULT_INSERT_THREADS);
+        int queryThreads = getIntFromEnv("TIMECRYPT_QUERY_THREADS", RequestExecutors.DEFAULT_QUERY_THREADS);
+        int executorQueueSize = getIntFromEnv("TIMECRYPT_EXECUTOR_QUEUE", RequestExecutors.DEFAULT_QUEUE_SIZE);
+        boolean epoll = getBoolFromEnv("TIMECRYPT_EPOLL", true);
         InterfaceProvider implementation = determineImplementation();
 
         if (args.length >= 8) {
@@ -139,15 +295,28 @@ public class Server implements Runnable {
             aThreads = Integer.parseInt(args[1]);
             cThreads = Integer.parseInt(args[2]);
             wThreads = Integer.parseInt(args[3]);
-            treeCache = Integer.parseInt(args[4]);
+            // the size of the removed tree cache
+            LOGGER.warn("The tree cache argument " + args[4] + " is not supported anymore - the trees are cached " +
+                    "within TIMECRYPT_NODE_CACHE_MB");
             blockCache = Integer.parseInt(args[5]);
             kfactor = Integer.parseInt(args[6]);
             cassandraHosts = new String[args.length - 7];
             System.arraycopy(args, 7, cassandraHosts, 0, cassandraHosts.length);
         }
 
-        Server server = new Server(timecryptPort, aThreads, cThreads, wThreads, treeCache, blockCache, cassandraHosts, cassandraPort, kfactor,
+        Server server = new Server(timecryptPort, aThreads, cThreads, wThreads, blockCache, cassandraHosts, cassandraPort, kfactor,
                 inMemoryTree, cassandraMinConnections, cassadndraMaxConnections, implementation);
+        server.setPrefixSumIndex(prefixSumIndex);
+        server.setOffHeap(offHeap);
+        server.setCassandraWritePipeline(cassandraAckMode, cassandraLogDirectory, groupCommitMillis,
+                groupCommitRecords);
+        server.setCassandraBucketSize(cassandraBucketSize);
+        server.setCassandraDeferredTreeWrites(deferredTreeWrites, checkpointInserts, checkpointMillis);
+        server.setNodeCache((long) nodeCacheMegabytes << 20, nodeCacheOwnerQuota);
+        server.setRequestExecutors(executorMode, insertThreads, queryThreads, executorQueueSize);
+        server.setEpoll(epoll);
+        if (storageMode.equals(MMAP_STORAGE))
+            server.setMmapStorage(storageDirectory, storageSync);
         server.run();
     }
 
@@ -187,23 +356,78 @@ public class Server implements Runnable {
         ITreeManager treeManager = null;
         IStorage storage = null;
 
-        if (inMemoryOnly) {
-            blockTreeFetcher = new InMemoryCacheBlockTreeManager(blockCache);
+        if (mmapDirectory != null) {
+            try {
+                MmapDatabase db = new MmapDatabase(Paths.get(mmapDirectory), MmapDatabase.DEFAULT_SEGMENT_SIZE,
+                        mmapSync);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        db.close();
+                    } catch (IOException e) {
+                        System.err.println("*** could not close the storage: " + e.getMessage());
+                    }
+                }));
+                blockTreeFetcher = new MmapBlockTreeManager(db, blockCache);
+                treeManager = new MmapTreeManager((MmapBlockTreeManager) blockTreeFetcher, block_tree_k_factor);
+                storage = new MmapStorage(db);
+            } catch (IOException e) {
+                LOGGER.error("Could not open the storage in " + mmapDirectory, e);
+                System.exit(1);
+            }
+        } else if (inMemoryOnly && offHeap) {
+            SlabArena arena = new SlabArena();
+            blockTreeFetcher = new OffHeapBlockTreeManager(arena, blockCache);
+            treeManager = new MemoryTreeManager(blockTreeFetcher, block_tree_k_factor);
+            storage = new OffHeapStorage(arena);
+        } else if (inMemoryOnly) {
+            blockTreeFetcher = new InMemoryCacheBlockTreeManager(nodeCacheBytes,
+                    NodeCache.ownerQuota(nodeCacheBytes, nodeCacheOwnerQuota));
             treeManager = new MemoryTreeManager(blockTreeFetcher, block_tree_k_factor);
             storage = new DebugStorage();
         } else {
             try {
                 CassandraDatabaseManager db;
-                db = new CassandraDatabaseManager(cassandraHosts, cassandraPort, cassandraMaxConnections);
-                blockTreeFetcher = new CassandraBlockTreeManager(db, treeCache, blockCache);
+                db = new CassandraDatabaseManager(cassandraHosts, cassandraPort, cassandraMaxConnections,
+                        cassandraAckMode, cassandraLogDirectory, groupCommitMillis, groupCommitRecords,
+                        cassandraBucketSize);
+                CassandraBlockTreeManager cassandraTrees;
+                long ownerQuotaBytes = NodeCache.ownerQuota(nodeCacheBytes, nodeCacheOwnerQuota);
+                if (deferredTreeWrites) {
+                    DeferredTreeWriter deferred = new DeferredTreeWriter(db, Paths.get(cassandraLogDirectory),
+                            cassandraAckMode != CassandraWritePipeline.AckMode.MEMORY, checkpointInserts,
+                            checkpointMillis, DeferredTreeWriter.DEFAULT_MAX_LOG_SIZE);
+                    cassandraTrees = new CassandraBlockTreeManager(db, nodeCacheBytes, ownerQuotaBytes, deferred);
+                } else {
+                    cassandraTrees = new CassandraBlockTreeManager(db, nodeCacheBytes, ownerQuotaBytes);
+                }
+                // the right edges of the trees and the queued inserts are sent before the session is closed
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    cassandraTrees.close();
+                    db.close();
+                }));
+                blockTreeFetcher = cassandraTrees;
                 treeManager = new CassandraTreeManager((CassandraBlockTreeManager) blockTreeFetcher, db, block_tree_k_factor);
                 storage = new CassandraStorage(db);
             } catch (AllNodesFailedException e) {
                 LOGGER.error("Could not connect to cassandra", e);
                 System.exit(1);
+            } catch (UncheckedIOException | IOException e) {
+                LOGGER.error("Could not open the write-ahead log in " + cassandraLogDirectory, e);
+                System.exit(1);
+            } catch (TimeCryptStorageException e) {
+                LOGGER.error("Could not recover the trees from the write-ahead log in " + cassandraLogDirectory, e);
+                System.exit(1);
             }
         }
 
+        if (offHeap && (!inMemoryOnly || mmapDirectory != null)) {
+            LOGGER.warn("Off heap storage is only available with the in memory index - ignoring it");
+        }
+
+        if (prefixSumIndex && (!inMemoryOnly || mmapDirectory != null)) {
+            LOGGER.warn("The prefix sum index is only available with the in memory index - using block trees");
+        }
+
         if (interfaceProvider.equals(InterfaceProvider.NETTY_SERVER_INTERFACE)) {
             runNettyServer(treeManager, storage);
         } else {
@@ -211,15 +435,63 @@ public class Server implements Runnable {
         }
     }
 
+    /**
+     * @return the executors of the SPLIT or VIRTUAL mode, or the SHARED mode on the given pool
+     */
+    private RequestExecutors createRequestExecutors(Executor sharedPool) {
+        RequestExecutors.Mode mode = executorMode;
+        if (mode == RequestExecutors.Mode.VIRTUAL && !VirtualThreads.isAvailable()) {
+            LOGGER.warn("Virtual threads need JDK 21 and a server built with it - using the SPLIT mode");
+            mode = RequestExecutors.Mode.SPLIT;
+        }
+        switch (mode) {
+            case VIRTUAL:
+                return RequestExecutors.virtual(insertThreads, executorQueueSize);
+            case SPLIT:
+                return RequestExecutors.split(insertThreads, queryThreads, executorQueueSize);
+            default:
+                return RequestExecutors.shared(sharedPool, wThreads);
+        }
+    }
+
+    private boolean useEpoll() {
+        if (epoll && !Epoll.isAvailable())
+            LOGGER.info("The epoll transport is not available - using NIO", Epoll.unavailabilityCause());
+        return epoll && Epoll.isAvailable();
+    }
+
     private void runGrpcServer(ITreeManager treeManager, IStorage storage) {
 
         // TODO: check for nodelay
-        // TODO: configure worker groups
 
-        io.grpc.Server server = NettyServerBuilder.forPort(timeCryptPort)
-                .addService(new TimeCryptGRPCServer(treeManager, storage))
-                .intercept(new AuthServerInterceptor())
-                .build();
+        io.grpc.netty.shaded.io.netty.channel.EventLoopGroup bossGroup;
+        io.grpc.netty.shaded.io.netty.channel.EventLoopGroup workerGroup;
+        Class<? extends io.grpc.netty.shaded.io.netty.channel.ServerChannel> channelType;
+        if (epoll && io.grpc.netty.shaded.io.netty.channel.epoll.Epoll.isAvailable()) {
+            bossGroup = new io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup(aThreads);
+            workerGroup = new io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup(cThreads);
+            channelType = io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerSocketChannel.class;
+        } else {
+            bossGroup = new io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup(aThreads);
+            workerGroup = new io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup(cThreads);
+            channelType = io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel.class;
+        }
+
+        NettyServerBuilder builder = NettyServerBuilder.forPort(timeCryptPort)
+                .bossEventLoopGroup(bossGroup)
+                .workerEventLoopGroup(workerGroup)
+                .channelType(channelType)
+                .addService(new TimeCryptGRPCServer(treeManager, storage, prefixSumIndex && inMemoryOnly && mmapDirectory == null))
+                .intercept(new AuthServerInterceptor());
+        RequestExecutors executors = null;
+        if (executorMode != RequestExecutors.Mode.SHARED) {
+            // the interceptor moves the calls from the event loops to the executors
+            executors = createRequestExecutors(null);
+            builder.directExecutor().intercept(new ExecutorServerInterceptor(executors));
+        }
+        LOGGER.info("GRPC server uses " + channelType.getSimpleName() + " and the "
+                + ((executors == null) ? RequestExecutors.Mode.SHARED : executors.getMode()) + " executors");
+        io.grpc.Server server = builder.build();
         try {
             server.start();
         } catch (IOException e) {
@@ -251,22 +523,40 @@ public class Server implements Runnable {
             server.awaitTermination();
         } catch (InterruptedException e) {
             LOGGER.error("GRPC server interrupted", e);
+        } finally {
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully();
+            if (executors != null)
+                executors.close();
         }
         LOGGER.info("GRPC server terminated");
     }
 
     private void runNettyServer(ITreeManager treeManager, IStorage storage) {
-        EventLoopGroup serverGroup = new NioEventLoopGroup(aThreads);
-        EventLoopGroup workerGroup = new NioEventLoopGroup(cThreads);
+        EventLoopGroup serverGroup;
+        EventLoopGroup workerGroup;
+        Class<? extends ServerChannel> channelType;
+        if (useEpoll()) {
+            serverGroup = new EpollEventLoopGroup(aThreads);
+            workerGroup = new EpollEventLoopGroup(cThreads);
+            channelType = EpollServerSocketChannel.class;
+        } else {
+            serverGroup = new NioEventLoopGroup(aThreads);
+            workerGroup = new NioEventLoopGroup(cThreads);
+            channelType = NioServerSocketChannel.class;
+        }
         EventExecutorGroup group = new DefaultEventExecutorGroup(wThreads);
+        RequestExecutors executors = createRequestExecutors(group);
+        LOGGER.info("Netty server uses " + channelType.getSimpleName() + " and the " + executors.getMode()
+                + " executors");
 
         TimeCryptServerChannelInitializer initializer = new TimeCryptServerChannelInitializer(
-                new NettyRequestManager(treeManager, storage), group);
+                new NettyRequestManager(treeManager, storage), group, executors);
 
         try {
             ServerBootstrap bootStrap = new ServerBootstrap();
             bootStrap.group(serverGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(channelType)
                     .handler(new LoggingHandler(LogLevel.INFO))
                     .childHandler(initializer)
                     .option(ChannelOption.TCP_NODELAY, true)
@@ -280,6 +570,7 @@ public class Server implements Runnable {
             serverGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
             group.shutdownGracefully();
+            executors.close();
         }
         LOGGER.info("Netty server shut down");
     }
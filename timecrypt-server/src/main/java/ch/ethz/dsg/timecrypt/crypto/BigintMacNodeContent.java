@@ -5,20 +5,53 @@
 
 package ch.ethz.dsg.timecrypt.crypto;
 
+import ch.ethz.dsg.timecrypt.index.blockindex.node.HeapSize;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
 
 import java.math.BigInteger;
 
+/**
+ * A HEAC ciphertext with its MAC modulo {@link UInt128#PRIME}. The client verifies the MAC of a sum modulo the prime
+ * and decrypts it modulo 2^128, so the ciphertexts are added without reduction: they are held in three longs, which
+ * fit the sum of 2^64 ciphertexts below 2^128. The MAC is held in two longs.
+ */
 public class BigintMacNodeContent extends BigintNodeContent {
 
-    public static final BigInteger PRIME = new BigInteger("340282366920938463463374607431768211297");
-
-    private BigInteger mac;
+    public static final BigInteger PRIME = UInt128.PRIME;
 
+    private long top;
+    private long macLow;
+    private long macHigh;
 
     public BigintMacNodeContent(BigInteger content, BigInteger mac) {
-        super(content);
-        this.mac = mac;
+        super(0, 0);
+        long[] contentWords = UInt128.fromBigInteger192(content);
+        this.low = contentWords[0];
+        this.high = contentWords[1];
+        this.top = contentWords[2];
+        long[] words = UInt128.fromBigIntegerModPrime(mac);
+        this.macLow = words[0];
+        this.macHigh = words[1];
+    }
+
+    /**
+     * @param low     the low word of the ciphertext
+     * @param high    the high word of the ciphertext
+     * @param macLow  the low word of a MAC below {@link UInt128#PRIME}
+     * @param macHigh the high word of the MAC
+     */
+    public BigintMacNodeContent(long low, long high, long macLow, long macHigh) {
+        this(low, high, 0, macLow, macHigh);
+    }
+
+    /**
+     * @param top the bits 128 to 191 of the ciphertext
+     */
+    public BigintMacNodeContent(long low, long high, long top, long macLow, long macHigh) {
+        super(low, high);
+        this.top = top;
+        this.macLow = macLow;
+        this.macHigh = macHigh;
     }
 
     public static BigintNodeContent decode(byte[] data) {
@@ -29,28 +62,55 @@ public class BigintMacNodeContent extends BigintNodeContent {
         return new BigintMacNodeContent(new BigInteger(1, contentBytes), new BigInteger(1, macBytes));
     }
 
+    @Override
+    public BigInteger getContent() {
+        return UInt128.toBigInteger(low, high, top);
+    }
+
+    public long getTop() {
+        return top;
+    }
+
     public BigInteger getMac() {
-        return mac;
+        return UInt128.toBigInteger(macLow, macHigh);
+    }
+
+    public long getMacLow() {
+        return macLow;
+    }
+
+    public long getMacHigh() {
+        return macHigh;
     }
 
     @Override
     public NodeContent copy() {
-        return new BigintMacNodeContent(this.content, this.mac);
+        return new BigintMacNodeContent(this.low, this.high, this.top, this.macLow, this.macHigh);
     }
 
+    /**
+     * Adds the other content without reduction and its MAC modulo {@link UInt128#PRIME}.
+     */
     @Override
     public void mergeOther(NodeContent otherContent) {
-        super.mergeOther(otherContent);
         if (!(otherContent instanceof BigintMacNodeContent))
             throw new RuntimeException("Merge Failed, inconsistent Node Contents");
-        //this.mac = this.mac.add(((CastellucciaMACNodeContent) otherContent).mac).mod(PRIME);
-        this.mac = this.mac.add(((BigintMacNodeContent) otherContent).mac);
+        BigintMacNodeContent other = (BigintMacNodeContent) otherContent;
+        long sumLow = this.low + other.low;
+        long lowCarry = UInt128.carry(sumLow, other.low);
+        long sumHigh = this.high + other.high + lowCarry;
+        top += other.top + UInt128.carry(sumHigh, other.high, lowCarry);
+        this.high = sumHigh;
+        this.low = sumLow;
+        long low = UInt128.addModPrimeLow(macLow, macHigh, other.macLow, other.macHigh);
+        macHigh = UInt128.addModPrimeHigh(macLow, macHigh, other.macLow, other.macHigh);
+        macLow = low;
     }
 
     @Override
     public byte[] encode() {
-        byte[] contentBytes = content.toByteArray();
-        byte[] macBytes = mac.toByteArray();
+        byte[] contentBytes = UInt128.toByteArray(low, high, top);
+        byte[] macBytes = UInt128.toByteArray(macLow, macHigh);
         byte[] res = new byte[contentBytes.length + macBytes.length + 2];
         res[0] = CryptoContentFactory.CASTELLUCIA_MAC_TYPE;
         res[1] = (byte) contentBytes.length;
@@ -61,11 +121,16 @@ public class BigintMacNodeContent extends BigintNodeContent {
 
     @Override
     public NodeContent createEmpty() {
-        return new BigintMacNodeContent(BigInteger.ZERO, BigInteger.ZERO);
+        return new BigintMacNodeContent(0, 0, 0, 0);
     }
 
     @Override
     public String getStringRepresentation() {
-        return super.getStringRepresentation() + "|" + this.mac.toString();
+        return UInt128.toString(low, high, top) + "|" + UInt128.toString(macLow, macHigh);
+    }
+
+    @Override
+    public long retainedSize() {
+        return HeapSize.object(5 * Long.BYTES);
     }
 }
@@ -5,16 +5,28 @@
 
 package ch.ethz.dsg.timecrypt.crypto;
 
+import ch.ethz.dsg.timecrypt.index.blockindex.node.HeapSize;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
 
 import java.math.BigInteger;
 
+/**
+ * A HEAC ciphertext modulo 2^128, held in two longs. Values of other sizes are reduced when the content is created.
+ */
 public class BigintNodeContent implements NodeContent {
 
-    protected BigInteger content;
+    protected long low;
+    protected long high;
 
     public BigintNodeContent(BigInteger content) {
-        this.content = content;
+        long[] words = UInt128.fromBigInteger(content);
+        this.low = words[0];
+        this.high = words[1];
+    }
+
+    public BigintNodeContent(long low, long high) {
+        this.low = low;
+        this.high = high;
     }
 
     public static BigintNodeContent decode(byte[] data) {
@@ -24,17 +36,31 @@ public class BigintNodeContent implements NodeContent {
     }
 
     public BigInteger getContent() {
-        return content;
+        return UInt128.toBigInteger(low, high);
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    public long getHigh() {
+        return high;
     }
 
     public NodeContent copy() {
-        return new BigintNodeContent(this.content);
+        return new BigintNodeContent(this.low, this.high);
     }
 
+    /**
+     * Adds the other content modulo 2^128.
+     */
     public void mergeOther(NodeContent otherContent) {
         if (!(otherContent instanceof BigintNodeContent))
             return;
-        this.content = content.add(((BigintNodeContent) otherContent).content);
+        BigintNodeContent other = (BigintNodeContent) otherContent;
+        long sum = low + other.low;
+        high += other.high + UInt128.carry(sum, other.low);
+        low = sum;
     }
 
     public NodeContent mergeOtherCopy(NodeContent otherContent) {
@@ -44,7 +70,7 @@ public class BigintNodeContent implements NodeContent {
     }
 
     public byte[] encode() {
-        byte[] tmp = content.toByteArray();
+        byte[] tmp = UInt128.toByteArray(low, high);
         byte[] res = new byte[tmp.length + 1];
         res[0] = CryptoContentFactory.CASTELLUCIA_TYPE;
         System.arraycopy(tmp, 0, res, 1, tmp.length);
@@ -52,10 +78,14 @@ public class BigintNodeContent implements NodeContent {
     }
 
     public NodeContent createEmpty() {
-        return new BigintNodeContent(BigInteger.ZERO);
+        return new BigintNodeContent(0, 0);
     }
 
     public String getStringRepresentation() {
-        return content.toString();
+        return UInt128.toString(low, high);
+    }
+
+    public long retainedSize() {
+        return HeapSize.object(2 * Long.BYTES);
     }
 }
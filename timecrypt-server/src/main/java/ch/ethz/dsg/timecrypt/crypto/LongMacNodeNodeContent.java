@@ -5,35 +5,60 @@
 
 package ch.ethz.dsg.timecrypt.crypto;
 
+import ch.ethz.dsg.timecrypt.index.blockindex.node.HeapSize;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
 
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 
+/**
+ * A HEAC ciphertext modulo 2^64 with its MAC modulo {@link UInt128#PRIME}, the MAC is held in two longs.
+ */
 public class LongMacNodeNodeContent extends LongNodeContent {
-    public static final BigInteger PRIME = new BigInteger("340282366920938463463374607431768211297");
+    public static final BigInteger PRIME = UInt128.PRIME;
 
-    private BigInteger mac;
+    private long macLow;
+    private long macHigh;
 
     public LongMacNodeNodeContent(long content, BigInteger mac) {
         super(content);
-        this.mac = mac;
+        long[] words = UInt128.fromBigIntegerModPrime(mac);
+        this.macLow = words[0];
+        this.macHigh = words[1];
+    }
+
+    /**
+     * @param macLow  the low word of a MAC below {@link UInt128#PRIME}
+     * @param macHigh the high word of the MAC
+     */
+    public LongMacNodeNodeContent(long content, long macLow, long macHigh) {
+        super(content);
+        this.macLow = macLow;
+        this.macHigh = macHigh;
     }
 
     public static LongMacNodeNodeContent decode(byte[] data) {
-        byte[] macBytes = new byte[data.length - Long.BYTES - 2];
+        byte[] macBytes = new byte[data.length - Long.BYTES - 1];
         ByteBuffer buff = ByteBuffer.wrap(data, 1, Long.BYTES);
         System.arraycopy(data, 1 + Long.BYTES, macBytes, 0, macBytes.length);
         return new LongMacNodeNodeContent(buff.getLong(), new BigInteger(1, macBytes));
     }
 
     public BigInteger getMac() {
-        return mac;
+        return UInt128.toBigInteger(macLow, macHigh);
+    }
+
+    public long getMacLow() {
+        return macLow;
+    }
+
+    public long getMacHigh() {
+        return macHigh;
     }
 
     @Override
     public NodeContent copy() {
-        return new LongMacNodeNodeContent(this.i, this.mac);
+        return new LongMacNodeNodeContent(this.i, this.macLow, this.macHigh);
     }
 
     @Override
@@ -41,17 +66,19 @@ public class LongMacNodeNodeContent extends LongNodeContent {
         super.mergeOther(otherContent);
         if (!(otherContent instanceof LongMacNodeNodeContent))
             throw new RuntimeException("Merge Failed, inconsistent Node Contents");
-        //this.mac = this.mac.add(((LongBigintContent) otherContent).mac);
-        this.mac = this.mac.add(((LongMacNodeNodeContent) otherContent).mac);
+        LongMacNodeNodeContent other = (LongMacNodeNodeContent) otherContent;
+        long low = UInt128.addModPrimeLow(macLow, macHigh, other.macLow, other.macHigh);
+        macHigh = UInt128.addModPrimeHigh(macLow, macHigh, other.macLow, other.macHigh);
+        macLow = low;
     }
 
     @Override
     public byte[] encode() {
         ByteBuffer buff = ByteBuffer.allocate(Long.BYTES);
         byte[] contentBytes = buff.putLong(this.i).array();
-        byte[] macBytes = mac.toByteArray();
+        byte[] macBytes = UInt128.toByteArray(macLow, macHigh);
         byte[] res = new byte[contentBytes.length + macBytes.length + 1];
-        res[0] = CryptoContentFactory.CASTELLUCIA_MAC_TYPE;
+        res[0] = CryptoContentFactory.LONG_MAC_TYPE;
         System.arraycopy(contentBytes, 0, res, 1, contentBytes.length);
         System.arraycopy(macBytes, 0, res, 1 + contentBytes.length, macBytes.length);
         return res;
@@ -59,11 +86,16 @@ public class LongMacNodeNodeContent extends LongNodeContent {
 
     @Override
     public NodeContent createEmpty() {
-        return new LongMacNodeNodeContent(0, BigInteger.ZERO);
+        return new LongMacNodeNodeContent(0, 0, 0);
     }
 
     @Override
     public String getStringRepresentation() {
-        return super.getStringRepresentation() + "|" + this.mac.toString();
+        return super.getStringRepresentation() + "|" + UInt128.toString(macLow, macHigh);
+    }
+
+    @Override
+    public long retainedSize() {
+        return HeapSize.object(3 * Long.BYTES);
     }
 }
@@ -5,6 +5,7 @@
 
 package ch.ethz.dsg.timecrypt.crypto;
 
+import ch.ethz.dsg.timecrypt.index.blockindex.node.HeapSize;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
 
 import java.nio.ByteBuffer;
@@ -57,4 +58,8 @@ public class LongNodeContent implements NodeContent {
     public String getStringRepresentation() {
         return String.valueOf(i);
     }
+
+    public long retainedSize() {
+        return HeapSize.object(Long.BYTES);
+    }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.crypto;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * Arithmetic on unsigned 128 bit values that are held in a low and a high long. The node contents add ciphertexts of
+ * the HEAC scheme modulo 2^128 and MACs modulo {@link #PRIME}, the same groups the client decrypts and verifies in,
+ * so the values keep their width however many of them are aggregated. The ciphertexts that carry a MAC are the
+ * exception: the client verifies their sum modulo the prime and decrypts it modulo 2^128, so they are summed without
+ * reduction in a third, top word.
+ * <p>
+ * The server only adds. Both summands are reduced, so a sum is below 2 * PRIME and one conditional subtraction
+ * reduces it, no Barrett or Montgomery reduction is needed.
+ */
+public final class UInt128 {
+
+    /**
+     * The prime of the homomorphic MAC, 2^128 - 159.
+     */
+    public static final BigInteger PRIME = new BigInteger("340282366920938463463374607431768211297");
+    public static final long PRIME_LOW = PRIME.longValue();
+    public static final long PRIME_HIGH = PRIME.shiftRight(64).longValue();
+    // 2^128 - PRIME, subtracting the prime is adding this value modulo 2^128
+    private static final long PRIME_COMPLEMENT = 159;
+
+    private static final BigInteger MOD_128 = BigInteger.ONE.shiftLeft(128);
+    private static final BigInteger MOD_192 = BigInteger.ONE.shiftLeft(192);
+
+    private UInt128() {
+    }
+
+    /**
+     * @return 1 if the sum of the low words overflowed, the sum is smaller than one of its summands then
+     */
+    public static long carry(long sum, long summand) {
+        return (Long.compareUnsigned(sum, summand) < 0) ? 1 : 0;
+    }
+
+    /**
+     * @return 1 if the sum of the summand, another word and the carry of the lower words overflowed
+     */
+    public static long carry(long sum, long summand, long carry) {
+        int cmp = Long.compareUnsigned(sum, summand);
+        return (cmp < 0 || (cmp == 0 && carry != 0)) ? 1 : 0;
+    }
+
+    public static int compare(long low, long high, long otherLow, long otherHigh) {
+        int cmp = Long.compareUnsigned(high, otherHigh);
+        return (cmp != 0) ? cmp : Long.compareUnsigned(low, otherLow);
+    }
+
+    /**
+     * @return true if the sum of the two values below {@link #PRIME} has to be reduced by the prime
+     */
+    private static boolean exceedsPrime(long high, long otherHigh, long sumLow, long carry) {
+        long sumHigh = high + otherHigh + carry;
+        return carry(sumHigh, high, carry) != 0 || compare(sumLow, sumHigh, PRIME_LOW, PRIME_HIGH) >= 0;
+    }
+
+    /**
+     * @return the low word of the sum of two values below {@link #PRIME} modulo the prime
+     */
+    public static long addModPrimeLow(long low, long high, long otherLow, long otherHigh) {
+        long sumLow = low + otherLow;
+        if (exceedsPrime(high, otherHigh, sumLow, carry(sumLow, otherLow)))
+            sumLow += PRIME_COMPLEMENT;
+        return sumLow;
+    }
+
+    /**
+     * @return the high word of the sum of two values below {@link #PRIME} modulo the prime
+     */
+    public static long addModPrimeHigh(long low, long high, long otherLow, long otherHigh) {
+        long sumLow = low + otherLow;
+        long carry = carry(sumLow, otherLow);
+        long sumHigh = high + otherHigh + carry;
+        if (exceedsPrime(high, otherHigh, sumLow, carry))
+            sumHigh += carry(sumLow + PRIME_COMPLEMENT, PRIME_COMPLEMENT);
+        return sumHigh;
+    }
+
+    /**
+     * @return the value modulo 2^128 as low and high word, negative values are mapped into the range as well
+     */
+    public static long[] fromBigInteger(BigInteger value) {
+        if (value.signum() < 0 || value.bitLength() > 128)
+            value = value.mod(MOD_128);
+        return new long[]{value.longValue(), value.shiftRight(64).longValue()};
+    }
+
+    /**
+     * @return the value modulo 2^192 as low, high and top word, the sum of 2^64 values below 2^128 is not reduced
+     */
+    public static long[] fromBigInteger192(BigInteger value) {
+        if (value.signum() < 0 || value.bitLength() > 192)
+            value = value.mod(MOD_192);
+        return new long[]{value.longValue(), value.shiftRight(64).longValue(), value.shiftRight(128).longValue()};
+    }
+
+    /**
+     * @return the value modulo {@link #PRIME} as low and high word
+     */
+    public static long[] fromBigIntegerModPrime(BigInteger value) {
+        if (value.signum() < 0 || value.compareTo(PRIME) >= 0)
+            value = value.mod(PRIME);
+        return new long[]{value.longValue(), value.shiftRight(64).longValue()};
+    }
+
+    public static BigInteger toBigInteger(long low, long high) {
+        if (high == 0 && low >= 0)
+            return BigInteger.valueOf(low);
+        byte[] bytes = new byte[2 * Long.BYTES];
+        ByteBuffer.wrap(bytes).putLong(high).putLong(low);
+        return new BigInteger(1, bytes);
+    }
+
+    public static BigInteger toBigInteger(long low, long high, long top) {
+        if (top == 0)
+            return toBigInteger(low, high);
+        byte[] bytes = new byte[3 * Long.BYTES];
+        ByteBuffer.wrap(bytes).putLong(top).putLong(high).putLong(low);
+        return new BigInteger(1, bytes);
+    }
+
+    /**
+     * @return the two's complement bytes of {@link BigInteger#toByteArray()}, the encoding of the older versions
+     */
+    public static byte[] toByteArray(long low, long high) {
+        return toByteArray(low, high, 0);
+    }
+
+    public static byte[] toByteArray(long low, long high, long top) {
+        long[] words = {low, high, top};
+        int bits = 0;
+        for (int word = words.length - 1; word >= 0 && bits == 0; word--) {
+            if (words[word] != 0)
+                bits = 64 * (word + 1) - Long.numberOfLeadingZeros(words[word]);
+        }
+        // one sign bit, zero takes one byte
+        byte[] res = new byte[bits / 8 + 1];
+        for (int i = 0; i < res.length; i++) {
+            // the bytes do not cross the words
+            int shift = 8 * (res.length - 1 - i);
+            res[i] = (shift < 64 * words.length) ? (byte) (words[shift / 64] >>> (shift % 64)) : 0;
+        }
+        return res;
+    }
+
+    public static String toString(long low, long high) {
+        if (high == 0 && low >= 0)
+            return Long.toString(low);
+        return toBigInteger(low, high).toString();
+    }
+
+    public static String toString(long low, long high, long top) {
+        return (top == 0) ? toString(low, high) : toBigInteger(low, high, top).toString();
+    }
+}
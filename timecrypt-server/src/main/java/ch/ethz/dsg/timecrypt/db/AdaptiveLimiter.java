@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db;
+
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptOverloadedException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of requests in flight to a storage without blocking the calling thread. The limit follows the
+ * observed latency: it grows while the latency stays close to the lowest latency seen (the storage is not queueing)
+ * and shrinks by the ratio of the two when it rises, failed requests shrink it multiplicatively.
+ * <p>
+ * Requests above the limit wait in a bounded queue per stream, the queues are served round-robin so a busy stream
+ * does not starve the others. A request that does not fit into its queue fails with a
+ * {@link TimeCryptOverloadedException}.
+ */
+public class AdaptiveLimiter {
+
+    public static final int DEFAULT_MAX_QUEUED_PER_STREAM = 1024;
+    public static final int DEFAULT_MAX_QUEUED = 1 << 16;
+
+    // the latency may grow to this factor of the lowest latency before the limit shrinks
+    private static final double TOLERANCE = 1.5;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF = 0.9;
+    // the lowest latency is measured again after this time, with half the limit to let the storage drain
+    private static final long PROBE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueuedPerStream;
+    private final int maxQueued;
+
+    private final Map<Object, StreamQueue> streams = new HashMap<>();
+    private final Deque<StreamQueue> ready = new ArrayDeque<>();
+    private double limit;
+    private int inFlight = 0;
+    private int queued = 0;
+    private long minLatency = Long.MAX_VALUE;
+    private long lastProbe = System.nanoTime();
+
+    private static class Task<T> {
+        private final Supplier<? extends CompletionStage<T>> operation;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Task(Supplier<? extends CompletionStage<T>> operation) {
+            this.operation = operation;
+        }
+    }
+
+    private static class StreamQueue {
+        private final Object stream;
+        private final Deque<Task<?>> tasks = new ArrayDeque<>();
+
+        StreamQueue(Object stream) {
+            this.stream = stream;
+        }
+    }
+
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueuedPerStream, int maxQueued) {
+        if (minLimit < 1 || maxLimit < minLimit)
+            throw new IllegalArgumentException("Invalid limits " + minLimit + " - " + maxLimit);
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueuedPerStream = maxQueuedPerStream;
+        this.maxQueued = maxQueued;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    public AdaptiveLimiter(int maxLimit) {
+        this(Math.min(maxLimit, 32), 1, maxLimit, DEFAULT_MAX_QUEUED_PER_STREAM, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * Runs the operation now if the limit allows it, otherwise when a request of the limiter completes.
+     *
+     * @param stream    the stream the request belongs to, requests of a stream are started in order
+     * @param operation sends the request
+     * @return completes with the result of the operation or with a {@link TimeCryptOverloadedException}
+     */
+    public <T> CompletableFuture<T> submit(Object stream, Supplier<? extends CompletionStage<T>> operation) {
+        Task<T> task = new Task<>(operation);
+        synchronized (this) {
+            if (queued > 0 || inFlight >= (int) limit) {
+                StreamQueue queue = streams.get(stream);
+                int queueSize = (queue == null) ? 0 : queue.tasks.size();
+                if (queueSize >= maxQueuedPerStream || queued >= maxQueued) {
+                    task.result.completeExceptionally(new TimeCryptOverloadedException("Too many requests are "
+                            + "waiting for the storage (" + queued + " queued, limit " + (int) limit + ")", 1));
+                    return task.result;
+                }
+                if (queue == null) {
+                    queue = new StreamQueue(stream);
+                    streams.put(stream, queue);
+                    ready.addLast(queue);
+                }
+                queue.tasks.addLast(task);
+                queued++;
+                return task.result;
+            }
+            inFlight++;
+        }
+        start(task);
+        return task.result;
+    }
+
+    private <T> void start(Task<T> task) {
+        long begin = System.nanoTime();
+        CompletionStage<T> stage;
+        try {
+            stage = task.operation.get();
+        } catch (RuntimeException e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            stage = failed;
+        }
+        stage.whenComplete((result, throwable) -> {
+            complete(System.nanoTime() - begin, throwable != null);
+            if (throwable != null)
+                task.result.completeExceptionally(throwable);
+            else
+                task.result.complete(result);
+        });
+    }
+
+    private void complete(long latency, boolean failed) {
+        List<Task<?>> next = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            update(latency, failed);
+            while (inFlight < (int) limit && !ready.isEmpty()) {
+                StreamQueue queue = ready.pollFirst();
+                next.add(queue.tasks.pollFirst());
+                queued--;
+                inFlight++;
+                if (queue.tasks.isEmpty())
+                    streams.remove(queue.stream);
+                else
+                    ready.addLast(queue);
+            }
+        }
+        for (Task<?> task : next) {
+            start(task);
+        }
+    }
+
+    private void update(long latency, boolean failed) {
+        long now = System.nanoTime();
+        if (now - lastProbe > PROBE_INTERVAL_NANOS) {
+            lastProbe = now;
+            minLatency = Long.MAX_VALUE;
+            limit = Math.max(minLimit, limit / 2);
+            return;
+        }
+        minLatency = Math.min(minLatency, Math.max(1, latency));
+
+        double newLimit;
+        if (failed) {
+            newLimit = limit * BACKOFF;
+        } else {
+            // a request that did not use the limit tells nothing about a larger one
+            if (inFlight + 1 < limit / 2)
+                return;
+            double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, TOLERANCE * minLatency / latency));
+            newLimit = limit * (1 - SMOOTHING) + (limit * gradient + Math.sqrt(limit)) * SMOOTHING;
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+}
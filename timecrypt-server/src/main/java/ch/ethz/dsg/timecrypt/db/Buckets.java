@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db;
+
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockIdUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the chunks and tree blocks of a stream into partitions of a fixed number of chunk ids. A chunk belongs to the
+ * bucket of its key, a block to the bucket of the first chunk it covers, so the upper levels of the tree share the
+ * bucket with their leftmost leaf.
+ * <p>
+ * The bucket size is part of the primary key of the stored rows, changing it makes existing rows unreachable.
+ */
+public class Buckets {
+
+    public static final int DEFAULT_BUCKET_SIZE = 1 << 14;
+
+    private final int bucketSize;
+
+    /**
+     * A part of a chunk range that lies in a single bucket.
+     */
+    public static class Range {
+        public final long bucket;
+        public final int from;
+        public final int to;
+
+        Range(long bucket, int from, int to) {
+            this.bucket = bucket;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    public Buckets(int bucketSize) {
+        if (bucketSize <= 0)
+            throw new IllegalArgumentException("The bucket size must be positive, got " + bucketSize);
+        this.bucketSize = bucketSize;
+    }
+
+    public int getBucketSize() {
+        return bucketSize;
+    }
+
+    public long ofChunk(int chunkKey) {
+        return Math.floorDiv(chunkKey, bucketSize);
+    }
+
+    public long ofBlock(long blockId) {
+        return Math.floorDiv(BlockIdUtil.getFrom(blockId), bucketSize);
+    }
+
+    /**
+     * @return the parts of [from, to) per bucket in key order, empty if the range is empty
+     */
+    public List<Range> split(int from, int to) {
+        List<Range> ranges = new ArrayList<>();
+        long start = from;
+        while (start < to) {
+            long bucket = Math.floorDiv(start, (long) bucketSize);
+            long end = Math.min(to, (bucket + 1) * bucketSize);
+            ranges.add(new Range(bucket, (int) start, (int) end));
+            start = end;
+        }
+        return ranges;
+    }
+}
@@ -5,49 +5,103 @@
 
 package ch.ethz.dsg.timecrypt.db;
 
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptStorageException;
 import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
 import ch.ethz.dsg.timecrypt.index.blockindex.IBlockTreeFetcher;
 import ch.ethz.dsg.timecrypt.index.blockindex.INodeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.NodeCache;
+import ch.ethz.dsg.timecrypt.index.blockindex.RightEdge;
 import ch.ethz.dsg.timecrypt.index.blockindex.UpdateSummary;
+import ch.ethz.dsg.timecrypt.index.blockindex.VersionWaiters;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.HeapSize;
 import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 
 public class CassandraBlockTreeManager implements IBlockTreeFetcher {
 
-    private CassandraDatabaseManager man;
-
-    private Cache<NodeKey, CacheContent<BlockNode>> blockCache;
-    private Cache<TreeKey, CacheContent<BlockTree>> treeCache;
+    private static final Logger LOGGER = LoggerFactory.getLogger(CassandraBlockTreeManager.class);
 
-    public CassandraBlockTreeManager(CassandraDatabaseManager man, int treeCacheSize, int blockCacheSize) {
+    private CassandraDatabaseManager man;
+    // holds the right edges of the trees if only sealed nodes are written, null if every update is written
+    private DeferredTreeWriter deferred = null;
+
+    // the trees (TreeKey) and the sealed nodes (NodeKey) share one memory budget
+    private final NodeCache<Object, CacheContent<?>> cache;
+
+    // waiters are only completed by updates of this server, updates of other servers are found by reloading
+    private final Map<TreeKey, VersionWaiters<BlockNode>> nodeWaiters = new ConcurrentHashMap<>();
+    private final Map<TreeKey, VersionWaiters<BlockNode>> treeWaiters = new ConcurrentHashMap<>();
+    // the nodes the next insert of a tree reads, they are only handed to the block cache once they are sealed
+    private final Map<TreeKey, RightEdge> rightEdges = new ConcurrentHashMap<>();
+
+    /**
+     * @param cacheBytes      the estimated heap size of the cached trees and nodes of all users
+     * @param ownerQuotaBytes the soft limit of the cached trees and nodes of one user
+     */
+    public CassandraBlockTreeManager(CassandraDatabaseManager man, long cacheBytes, long ownerQuotaBytes) {
         this.man = man;
-        buildBlockCache(blockCacheSize);
-        buildTreeCache(treeCacheSize);
+        this.cache = new NodeCache<>(cacheBytes, ownerQuotaBytes, CassandraBlockTreeManager::ownerOf,
+                CassandraBlockTreeManager::retainedSize);
+    }
+
+    /**
+     * Only writes the sealed nodes, the right edges of the trees are held by the deferred writer. The trees in its log
+     * are recovered before the manager is returned.
+     */
+    public CassandraBlockTreeManager(CassandraDatabaseManager man, long cacheBytes, long ownerQuotaBytes,
+                                     DeferredTreeWriter deferred) {
+        this(man, cacheBytes, ownerQuotaBytes);
+        this.deferred = deferred;
+        try {
+            deferred.recover((user, uid, tree, firstChunk, digests) -> {
+                tree.setMan(new CassandraNodeManager(user, uid));
+                tree.insertBatch(firstChunk, digests);
+            });
+        } catch (Exception e) {
+            throw new TimeCryptStorageException("Could not recover the trees from the log: " + e.getMessage(), 1);
+        }
     }
 
     private static String deductKey(long uid, String user, long blockid) {
         return String.format("%d|%s|%d", uid, user, blockid);
     }
 
-    private void buildBlockCache(int maxBlocks) {
-        blockCache = Caffeine.newBuilder()
-                .maximumSize(maxBlocks)
-                .build();
+    private static String ownerOf(Object key) {
+        return (key instanceof NodeKey) ? ((NodeKey) key).user : ((TreeKey) key).user;
+    }
+
+    private static long retainedSize(CacheContent<?> cached) {
+        if (cached.content instanceof BlockNode)
+            return ((BlockNode) cached.content).retainedSize();
+        BlockTree tree = (BlockTree) cached.content;
+        // the tree, its node manager and the root
+        return HeapSize.object(2 * Integer.BYTES + 2 * HeapSize.REFERENCE)
+                + HeapSize.object(Long.BYTES + 2 * HeapSize.REFERENCE) + tree.root.retainedSize();
     }
 
-    private void buildTreeCache(int maxTree) {
-        treeCache = Caffeine.newBuilder()
-                .maximumSize(maxTree)
-                .build();
+    @SuppressWarnings("unchecked")
+    private <T> CacheContent<T> cached(Object key) {
+        return (CacheContent<T>) cache.getIfPresent(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CacheContent<T> compute(Object key, BiFunction<Object, CacheContent<T>, CacheContent<T>> remapping) {
+        return (CacheContent<T>) cache.compute(key, (k, current) -> remapping.apply(k, (CacheContent<T>) current));
     }
 
     public boolean treeExistsInCache(long uid, String user) {
-        CacheContent<BlockTree> cacheTree = treeCache.getIfPresent(new TreeKey(user, uid));
+        CacheContent<BlockTree> cacheTree = cached(new TreeKey(user, uid));
         return cacheTree != null;
     }
 
@@ -57,22 +111,35 @@ public class CassandraBlockTreeManager implements IBlockTreeFetcher {
         BlockNode newRoot = new BlockNode(0, 0, interval * k, k);
         CassandraNodeManager nodeMan = new CassandraNodeManager(user, uid);
         BlockTree tree = new BlockTree(k, newRoot, nodeMan);
-        CompletionStage<AsyncResultSet> resTree = man.insertTree(user, uid, newRoot, 0, k);
+        CompletionStage<Void> resTree = man.insertTree(user, uid, newRoot, 0, k);
+        rightEdgeFor(user, uid).set(newRoot, new ArrayList<>());
+        if (deferred != null)
+            deferred.created(user, uid, newRoot, k);
         //ResultSetFuture resBlock = man.insertBlock(user, uid, newRoot);
-        treeCache.put(new TreeKey(user, uid), new CacheContent<>(tree, resTree));
+        cache.put(new TreeKey(user, uid), new CacheContent<>(tree, resTree));
+        return tree;
+    }
+
+    /**
+     * Reads the tree row, a tree with a right edge on this server is taken from the deferred writer instead.
+     */
+    private BlockTree loadTree(long uid, String user) throws Exception {
+        BlockTree tree = (deferred == null) ? null : deferred.getTree(user, uid);
+        if (tree == null) {
+            CompletionStage<AsyncResultSet> res = man.loadTree(user, uid);
+            tree = man.getTree(res);
+        }
+        tree.setMan(new CassandraNodeManager(user, uid));
         return tree;
     }
 
     @Override
     public BlockTree fetchNewestTreeAndAwait(long uid, String user) throws Exception {
-        CacheContent<BlockTree> cacheTree = treeCache.getIfPresent(new TreeKey(user, uid));
+        CacheContent<BlockTree> cacheTree = cached(new TreeKey(user, uid));
         BlockTree newest;
         if (cacheTree == null) {
-            CompletionStage<AsyncResultSet> res = man.loadTree(user, uid);
-            newest = man.getTree(res);
-            CassandraNodeManager nodeMan = new CassandraNodeManager(user, uid);
-            newest.setMan(nodeMan);
-            treeCache.put(new TreeKey(user, uid), new CacheContent<>(newest));
+            newest = loadTree(uid, user);
+            cache.put(new TreeKey(user, uid), new CacheContent<>(newest));
         } else {
             newest = cacheTree.content;
             cacheTree.awaitDBWrite();
@@ -82,14 +149,11 @@ public class CassandraBlockTreeManager implements IBlockTreeFetcher {
 
     @Override
     public BlockTree fetchTree(long uid, String user) throws Exception {
-        CacheContent<BlockTree> cacheTree = treeCache.getIfPresent(new TreeKey(user, uid));
+        CacheContent<BlockTree> cacheTree = cached(new TreeKey(user, uid));
         BlockTree newest;
         if (cacheTree == null) {
-            CompletionStage<AsyncResultSet> res = man.loadTree(user, uid);
-            newest = man.getTree(res);
-            CassandraNodeManager nodeMan = new CassandraNodeManager(user, uid);
-            newest.setMan(nodeMan);
-            treeCache.put(new TreeKey(user, uid), new CacheContent<>(newest));
+            newest = loadTree(uid, user);
+            cache.put(new TreeKey(user, uid), new CacheContent<>(newest));
         } else {
             newest = cacheTree.content;
         }
@@ -98,32 +162,101 @@ public class CassandraBlockTreeManager implements IBlockTreeFetcher {
 
     @Override
     public BlockTree fetchTreeMinVersion(long uid, String user, int minVersion) throws Exception {
-        CacheContent<BlockTree> cacheTree = treeCache.getIfPresent(new TreeKey(user, uid));
+        CacheContent<BlockTree> cacheTree = cached(new TreeKey(user, uid));
         BlockTree newest;
         if (cacheTree == null) {
-            CompletionStage<AsyncResultSet> res = man.loadTree(user, uid);
-            newest = man.getTree(res);
-            CassandraNodeManager nodeMan = new CassandraNodeManager(user, uid);
-            newest.setMan(nodeMan);
-            treeCache.put(new TreeKey(user, uid), new CacheContent<>(newest));
+            newest = loadTree(uid, user);
+            cache.put(new TreeKey(user, uid), new CacheContent<>(newest));
 
         } else {
             newest = cacheTree.content;
             if (newest.root.getVersion() < minVersion) {
-                treeCache.invalidate(new TreeKey(user, uid));
-                CompletionStage<AsyncResultSet> res = man.loadTree(user, uid);
-                newest = man.getTree(res);
-                newest.setMan(new CassandraNodeManager(user, uid));
-                treeCache.put(new TreeKey(user, uid), new CacheContent<>(newest));
+                cache.invalidate(new TreeKey(user, uid));
+                newest = loadTree(uid, user);
+                cache.put(new TreeKey(user, uid), new CacheContent<>(newest));
             }
         }
         return newest;
     }
 
+    @Override
+    public CompletionStage<BlockTree> fetchTreeMinVersionAsync(long uid, String user, int minVersion) {
+        CacheContent<BlockTree> cacheTree = cached(new TreeKey(user, uid));
+        if (cacheTree != null && cacheTree.content.root.getVersion() >= minVersion)
+            return CompletableFuture.completedFuture(cacheTree.content);
+        BlockTree held = (deferred == null) ? null : deferred.getTree(user, uid);
+        if (held != null) {
+            held.setMan(new CassandraNodeManager(user, uid));
+            cache.put(new TreeKey(user, uid), new CacheContent<>(held));
+            return CompletableFuture.completedFuture(held);
+        }
+        return man.loadTree(user, uid).thenApply(result -> {
+            BlockTree loaded = man.toTree(result);
+            loaded.setMan(new CassandraNodeManager(user, uid));
+            // an update of this server may have cached a newer tree while the row was read
+            return this.<BlockTree>compute(new TreeKey(user, uid), (key, cached) ->
+                    (cached != null && cached.content.root.getVersion() >= loaded.root.getVersion())
+                            ? cached : new CacheContent<>(loaded)).content;
+        });
+    }
+
     @Override
     public void invalidateCache() {
-        this.treeCache.invalidateAll();
-        this.blockCache.invalidateAll();
+        this.cache.invalidateAll();
+    }
+
+    @Override
+    public void deleteTree(long uid, String user) {
+        TreeKey key = new TreeKey(user, uid);
+        cache.invalidate(key);
+        cache.removeIf(cached -> cached instanceof NodeKey && ((NodeKey) cached).uid == uid
+                && ((NodeKey) cached).user.equals(user));
+        nodeWaiters.remove(key);
+        treeWaiters.remove(key);
+        rightEdges.remove(key);
+        if (deferred != null)
+            deferred.drop(user, uid);
+    }
+
+    /**
+     * Checkpoints the right edges of the trees, must be called before the database manager is closed.
+     */
+    public void close() {
+        if (deferred == null)
+            return;
+        try {
+            deferred.close();
+        } catch (IOException e) {
+            LOGGER.error("Could not close the tree log", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<BlockNode> awaitNodeVersion(long uid, String user, long blockid, int minVersion)
+            throws Exception {
+        return new CassandraNodeManager(user, uid).awaitNodeVersion(blockid, minVersion);
+    }
+
+    @Override
+    public CompletableFuture<BlockTree> awaitTreeVersion(long uid, String user, int minVersion) throws Exception {
+        return new CassandraNodeManager(user, uid).awaitTreeVersion(minVersion).thenApply(root -> {
+            CacheContent<BlockTree> cacheTree = cached(new TreeKey(user, uid));
+            if (cacheTree != null && cacheTree.content.root == root)
+                return cacheTree.content;
+            return new BlockTree(root.getK(), root, new CassandraNodeManager(user, uid));
+        });
+    }
+
+    private RightEdge rightEdgeFor(String user, long uid) {
+        return rightEdges.computeIfAbsent(new TreeKey(user, uid), key -> new RightEdge());
+    }
+
+    private VersionWaiters<BlockNode> nodeWaitersFor(String user, long uid) {
+        return nodeWaiters.computeIfAbsent(new TreeKey(user, uid), key -> new VersionWaiters<>(BlockNode::getVersion));
+    }
+
+    private VersionWaiters<BlockNode> treeWaitersFor(String user, long uid) {
+        return treeWaiters.computeIfAbsent(new TreeKey(user, uid), key -> new VersionWaiters<>(BlockNode::getVersion));
     }
 
     private static class NodeKey {
@@ -154,14 +287,14 @@ public class CassandraBlockTreeManager implements IBlockTreeFetcher {
     }
 
     public static class CacheContent<T> {
-        public CompletionStage<AsyncResultSet> insertSet = null;
+        public CompletionStage<?> insertSet = null;
         public T content;
 
         public CacheContent(T content) {
             this.content = content;
         }
 
-        public CacheContent(T content, CompletionStage<AsyncResultSet> insertSet) {
+        public CacheContent(T content, CompletionStage<?> insertSet) {
             this.content = content;
             this.insertSet = insertSet;
         }
@@ -207,38 +340,111 @@ public class CassandraBlockTreeManager implements IBlockTreeFetcher {
             this.uid = uid;
         }
 
+        /**
+         * @return the node if it is on the right edge of the tree, the deferred writer also holds the right edges of
+         * the recovered trees
+         */
+        private BlockNode heldNode(long id) {
+            RightEdge edge = rightEdges.get(new TreeKey(user, uid));
+            BlockNode held = (edge == null) ? null : edge.get(id);
+            if (held == null && deferred != null)
+                held = deferred.getNode(user, uid, id);
+            return held;
+        }
+
         private CacheContent<BlockNode> loadNodeCache(long id) throws Exception {
-            CacheContent<BlockNode> result = blockCache.getIfPresent(new NodeKey(user, uid, id));
+            CacheContent<BlockNode> result = cached(new NodeKey(user, uid, id));
             BlockNode res;
             if (result == null) {
                 CompletionStage<AsyncResultSet> futureNode = man.loadBlock(this.user, this.uid, id);
                 res = man.getNode(futureNode, id);
                 result = new CacheContent<>(res);
-                blockCache.put(new NodeKey(user, uid, id), result);
+                cache.put(new NodeKey(user, uid, id), result);
             }
             return result;
         }
 
         @Override
         public BlockNode loadNode(long id) throws Exception {
+            BlockNode held = heldNode(id);
+            if (held != null)
+                return held;
             CacheContent<BlockNode> result = loadNodeCache(id);
             return result.content;
 
         }
 
         @Override
-        public void pushUpdates(UpdateSummary summary) {
+        public CompletionStage<BlockNode> loadNodeAsync(long id) {
+            BlockNode held = heldNode(id);
+            if (held != null)
+                return CompletableFuture.completedFuture(held);
+            return loadStoredNodeAsync(id);
+        }
+
+        private CompletionStage<BlockNode> loadStoredNodeAsync(long id) {
+            CacheContent<BlockNode> cached = cached(new NodeKey(user, uid, id));
+            if (cached != null)
+                return CompletableFuture.completedFuture(cached.content);
+            return man.loadBlock(user, uid, id).thenApply(result -> {
+                BlockNode loaded = man.toNode(result, id);
+                // an update of this server may have cached a newer version while the row was read
+                return CassandraBlockTreeManager.this.<BlockNode>compute(new NodeKey(user, uid, id),
+                        (key, current) -> (current != null && current.content.getVersion() >= loaded.getVersion())
+                                ? current : new CacheContent<>(loaded)).content;
+            });
+        }
+
+        @Override
+        public CompletionStage<BlockNode> loadNodeWithMinVersionAsync(long blockid, int version) {
+            return loadNodeAsync(blockid).thenCompose(node -> {
+                if (node.getVersion() >= version)
+                    return CompletableFuture.completedFuture(node);
+                // an update of an other server, the held node is outdated as well
+                cache.invalidate(new NodeKey(user, uid, blockid));
+                return loadStoredNodeAsync(blockid);
+            });
+        }
+
+        @Override
+        public void pushUpdates(UpdateSummary summary) throws Exception {
             List<BlockNode> newNodes = summary.getNewNodes();
             CassandraNodeManager nodeMan = new CassandraNodeManager(user, uid);
             BlockTree tree = new BlockTree(summary.k, summary.getNewRoot(), nodeMan);
-            CompletionStage<AsyncResultSet> res = man.insertBlocks(user, uid, newNodes);
-            CompletionStage<AsyncResultSet> resTree =
-                    man.insertTree(user, uid, summary.getNewRoot(), summary.version, summary.k);
+            CompletionStage<Void> res;
+            CompletionStage<Void> resTree;
+            if (deferred != null) {
+                // only the sealed nodes are written, the root row with the next checkpoint
+                res = deferred.push(user, uid, summary);
+                resTree = res;
+            } else {
+                res = man.insertBlocks(user, uid, newNodes);
+                resTree = man.insertTree(user, uid, summary.getNewRoot(), summary.version, summary.k);
+            }
+            for (BlockNode n : RightEdge.sealedNodes(summary)) {
+                cache.put(new NodeKey(user, uid, n.getId()), new CacheContent<>(n, res));
+            }
+            rightEdgeFor(user, uid).update(summary);
+            cache.put(new TreeKey(user, uid), new CacheContent<>(tree, resTree));
+
+            VersionWaiters<BlockNode> waiters = nodeWaitersFor(user, uid);
             for (BlockNode n : newNodes) {
-                blockCache.put(new NodeKey(user, uid, n.getId()), new CacheContent<>(n, res));
+                waiters.publish(n.getId(), n);
             }
-            treeCache.put(new TreeKey(user, uid), new CacheContent<>(tree, resTree));
+            treeWaitersFor(user, uid).publish(0, summary.getNewRoot());
+
+            // the insert is only acknowledged once the new nodes are durable in the sense of the ack mode
+            CompletableFuture.allOf(res.toCompletableFuture(), resTree.toCompletableFuture()).get();
+        }
 
+        @Override
+        public void writeNodes(List<BlockNode> nodes) {
+            CompletionStage<Void> res = man.insertBlocks(user, uid, nodes);
+            VersionWaiters<BlockNode> waiters = nodeWaitersFor(user, uid);
+            for (BlockNode n : nodes) {
+                cache.put(new NodeKey(user, uid, n.getId()), new CacheContent<>(n, res));
+                waiters.publish(n.getId(), n);
+            }
         }
 
         @Override
@@ -255,9 +461,12 @@ public class CassandraBlockTreeManager implements IBlockTreeFetcher {
 
         @Override
         public BlockNode loadNodeWithVersionForInsert(long blockid, int version) throws Exception {
+            BlockNode held = heldNode(blockid);
+            if (held != null && held.getVersion() == version)
+                return held;
             CacheContent<BlockNode> node = loadNodeCache(blockid);
             if (node.content.getVersion() != version) {
-                blockCache.invalidate(new NodeKey(user, uid, blockid));
+                cache.invalidate(new NodeKey(user, uid, blockid));
                 node = loadNodeCache(blockid);
             } else {
                 node.awaitDBWrite();
@@ -270,10 +479,38 @@ public class CassandraBlockTreeManager implements IBlockTreeFetcher {
         public BlockNode loadNodeWithMinVersion(long blockid, int version) throws Exception {
             BlockNode node = loadNode(blockid);
             if (node.getVersion() < version) {
-                blockCache.invalidate(new NodeKey(user, uid, blockid));
-                node = loadNode(blockid);
+                cache.invalidate(new NodeKey(user, uid, blockid));
+                node = loadNodeCache(blockid).content;
             }
             return node;
         }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitNodeVersion(long blockid, int minVersion) {
+            // does not block, the waiters of the async traversal are registered from the callbacks of the driver
+            return loadNodeWithMinVersionAsync(blockid, minVersion).toCompletableFuture().thenCompose(node -> {
+                if (node.getVersion() >= minVersion)
+                    return CompletableFuture.completedFuture(node);
+                return nodeWaitersFor(user, uid).await(blockid, minVersion, () -> {
+                    BlockNode held = heldNode(blockid);
+                    if (held != null)
+                        return held;
+                    CacheContent<BlockNode> cached = cached(new NodeKey(user, uid, blockid));
+                    return (cached == null) ? null : cached.content;
+                });
+            });
+        }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitTreeVersion(int minVersion) {
+            return fetchTreeMinVersionAsync(uid, user, minVersion).toCompletableFuture().thenCompose(tree -> {
+                if (tree.root.getVersion() >= minVersion)
+                    return CompletableFuture.completedFuture(tree.root);
+                return treeWaitersFor(user, uid).await(0, minVersion, () -> {
+                    CacheContent<BlockTree> cached = cached(new TreeKey(user, uid));
+                    return (cached == null) ? null : cached.content.root;
+                });
+            });
+        }
     }
 }
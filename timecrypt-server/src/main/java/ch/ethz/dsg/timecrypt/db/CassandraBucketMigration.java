@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.ResultSet;
+import com.datastax.oss.driver.api.core.cql.Row;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copies the rows of the unbucketed treeblockstore and chunkstore tables into the bucketed tables. The rows keep
+ * their write timestamps, so rows that the server wrote to the bucketed tables in the meantime are not overwritten.
+ * Running it twice is harmless. The old tables are not dropped.
+ * <p>
+ * Usage: CassandraBucketMigration [host] [port]
+ */
+public class CassandraBucketMigration {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CassandraBucketMigration.class);
+
+    private static final String CQL_SCAN_BLOCKS =
+            "SELECT username, uid, blockid, version, content, WRITETIME(content) AS written FROM treeblockstore;";
+    private static final String CQL_SCAN_CHUNKS =
+            "SELECT username, uid, chunk_key, chunk, WRITETIME(chunk) AS written FROM chunkstore;";
+    private static final String CQL_COPY_BLOCK =
+            "INSERT INTO treeblockbucketstore (username, uid, bucket, blockid, version, content) VALUES (?, ?, ?, ?, ?, ?) USING TIMESTAMP ?;";
+    private static final String CQL_COPY_CHUNK =
+            "INSERT INTO chunkbucketstore (username, uid, bucket, chunk_key, chunk) VALUES (?, ?, ?, ?, ?) USING TIMESTAMP ?;";
+    private static final String CQL_INSERT_BUCKET =
+            "INSERT INTO bucketstore (username, uid, tablename, bucket) VALUES (?, ?, ?, ?);";
+    private static final int MAX_IN_FLIGHT = 256;
+
+    private final CqlSession session;
+    private final Buckets buckets;
+    private final PreparedStatement copyBlock;
+    private final PreparedStatement copyChunk;
+    private final PreparedStatement insertBucket;
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final Set<String> registered = new HashSet<>();
+
+    public CassandraBucketMigration(CqlSession session, Buckets buckets) {
+        this.session = session;
+        this.buckets = buckets;
+        this.copyBlock = session.prepare(CQL_COPY_BLOCK);
+        this.copyChunk = session.prepare(CQL_COPY_CHUNK);
+        this.insertBucket = session.prepare(CQL_INSERT_BUCKET);
+    }
+
+    /**
+     * @return the number of copied blocks
+     */
+    public long migrateBlocks() throws InterruptedException {
+        long copied = 0;
+        ResultSet rows = session.execute(CQL_SCAN_BLOCKS);
+        for (Row row : rows) {
+            String user = row.getString("username");
+            long uid = row.getLong("uid");
+            long blockid = row.getLong("blockid");
+            long bucket = buckets.ofBlock(blockid);
+            register(user, uid, "treeblockbucketstore", bucket);
+            send(copyBlock.bind()
+                    .setString(0, user)
+                    .setLong(1, uid)
+                    .setLong(2, bucket)
+                    .setLong(3, blockid)
+                    .setInt(4, row.getInt("version"))
+                    .setByteBuffer(5, row.getByteBuffer("content"))
+                    .setLong(6, row.getLong("written")));
+            copied++;
+        }
+        awaitSent();
+        return copied;
+    }
+
+    /**
+     * @return the number of copied chunks
+     */
+    public long migrateChunks() throws InterruptedException {
+        long copied = 0;
+        ResultSet rows = session.execute(CQL_SCAN_CHUNKS);
+        for (Row row : rows) {
+            String user = row.getString("username");
+            long uid = row.getLong("uid");
+            int key = row.getInt("chunk_key");
+            long bucket = buckets.ofChunk(key);
+            register(user, uid, "chunkbucketstore", bucket);
+            send(copyChunk.bind()
+                    .setString(0, user)
+                    .setLong(1, uid)
+                    .setLong(2, bucket)
+                    .setInt(3, key)
+                    .setByteBuffer(4, row.getByteBuffer("chunk"))
+                    .setLong(5, row.getLong("written")));
+            copied++;
+        }
+        awaitSent();
+        return copied;
+    }
+
+    private void register(String user, long uid, String table, long bucket) throws InterruptedException {
+        if (registered.add(table + "|" + uid + "|" + bucket + "|" + user))
+            send(insertBucket.bind()
+                    .setString(0, user)
+                    .setLong(1, uid)
+                    .setString(2, table)
+                    .setLong(3, bucket));
+    }
+
+    private void send(BoundStatement statement) throws InterruptedException {
+        if (failure.get() != null)
+            throw new IllegalStateException("Migration failed", failure.get());
+        inFlight.acquire();
+        CompletionStage<AsyncResultSet> res = session.executeAsync(statement);
+        res.whenComplete((result, throwable) -> {
+            if (throwable != null)
+                failure.compareAndSet(null, throwable);
+            inFlight.release();
+        });
+    }
+
+    private void awaitSent() throws InterruptedException {
+        inFlight.acquire(MAX_IN_FLIGHT);
+        inFlight.release(MAX_IN_FLIGHT);
+        if (failure.get() != null)
+            throw new IllegalStateException("Migration failed", failure.get());
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = (args.length > 0) ? args[0] : "127.0.0.1";
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : 9042;
+
+        // creates the bucketed tables and reads the bucket size of the keyspace
+        CassandraDatabaseManager db = new CassandraDatabaseManager(new String[]{host}, port, 1);
+        try {
+            CassandraBucketMigration migration = new CassandraBucketMigration(db.getSessionCassandra(),
+                    db.getBuckets());
+            LOGGER.info("Copying the blocks with a bucket size of " + db.getBuckets().getBucketSize());
+            LOGGER.info("Copied " + migration.migrateBlocks() + " blocks");
+            LOGGER.info("Copied " + migration.migrateChunks() + " chunks");
+            LOGGER.info("The tables treeblockstore and chunkstore are no longer used and can be dropped");
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -10,6 +10,7 @@ import ch.ethz.dsg.timecrypt.index.Chunk;
 import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockIdUtil;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.MetaInnerNode;
 import com.datastax.oss.driver.api.core.CqlSession;
 import com.datastax.oss.driver.api.core.CqlSessionBuilder;
 import com.datastax.oss.driver.api.core.config.DefaultDriverOption;
@@ -17,43 +18,69 @@ import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
 import com.datastax.oss.driver.api.core.cql.*;
 import com.datastax.oss.driver.api.querybuilder.SchemaBuilder;
 import com.datastax.oss.driver.api.querybuilder.schema.CreateKeyspace;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.protobuf.InvalidProtocolBufferException;
 import org.cognitor.cassandra.migration.Database;
 import org.cognitor.cassandra.migration.MigrationRepository;
 import org.cognitor.cassandra.migration.MigrationTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
-import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
 
-public class CassandraDatabaseManager {
+public class CassandraDatabaseManager implements DeferredTreeWriter.TreeStore {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CassandraDatabaseManager.class);
 
     private static final String KEY_SPACE = "timecrypt";
+    private static final String BLOCK_TABLE = "treeblockbucketstore";
+    private static final String CHUNK_TABLE = "chunkbucketstore";
+    private static final String SETTING_BUCKET_SIZE = "bucket_size";
+    private static final int BUCKET_LOOK_AHEAD = 4;
+    private static final int MAX_REGISTERED_BUCKETS = 1 << 20;
     private static final String CQL_INSERT_TREE_TABLE =
-            "INSERT INTO treestore (username, uid, root_node, root_content, root_version, k) VALUES (?, ?, ?, ? ,?, ?);";
+            "INSERT INTO treestore (username, uid, root_node, root_content, root_version, k) VALUES (?, ?, ?, ? ,?, ?) USING TIMESTAMP ?;";
     private static final String CQL_INSERT_BLOCK_TABLE =
-            "INSERT INTO treeblockstore (username, uid, blockid, version, content) VALUES (?, ?, ?, ? ,?);";
+            "INSERT INTO treeblockbucketstore (username, uid, bucket, blockid, version, content) VALUES (?, ?, ?, ?, ? ,?) USING TIMESTAMP ?;";
     private static final String CQL_INSERT_CHUNK_TABLE =
-            "INSERT INTO chunkstore (username, uid, chunk_key, chunk) VALUES (?, ?, ?, ?);";
+            "INSERT INTO chunkbucketstore (username, uid, bucket, chunk_key, chunk) VALUES (?, ?, ?, ?, ?) USING TIMESTAMP ?;";
+    private static final String CQL_INSERT_BUCKET =
+            "INSERT INTO bucketstore (username, uid, tablename, bucket) VALUES (?, ?, ?, ?);";
+    private static final String CQL_INSERT_SETTING =
+            "INSERT INTO settingstore (name, value) VALUES (?, ?) IF NOT EXISTS;";
     private static final String CQL_QUERY_TREE_SINGLE =
             "SELECT root_node, root_content, root_version, k FROM treestore WHERE username = ? AND uid = ?;";
     private static final String CQL_QUERY_BLOCK_SINGLE =
-            "SELECT version, content FROM treeblockstore WHERE username = ? AND uid = ? AND blockid = ?;";
+            "SELECT version, content FROM treeblockbucketstore WHERE username = ? AND uid = ? AND bucket = ? AND blockid = ?;";
+    private static final String CQL_QUERY_CHUNK_SINGLE =
+            "SELECT chunk FROM chunkbucketstore WHERE username = ? AND uid = ? AND bucket = ? AND chunk_key = ?;";
     private static final String CQL_QUERY_CHUNK_RANGE =
-            "SELECT chunk_key, chunk FROM chunkstore WHERE username = ? AND uid = ? AND chunk_key >= ? AND chunk_key < ?;";
+            "SELECT chunk_key, chunk FROM chunkbucketstore WHERE username = ? AND uid = ? AND bucket = ? AND chunk_key >= ? AND chunk_key < ?;";
+    private static final String CQL_QUERY_BUCKETS =
+            "SELECT tablename, bucket FROM bucketstore WHERE username = ? AND uid = ?;";
 
     private static final String CQL_DELETE_TREESTORE =
             "DELETE FROM treestore WHERE username = ? AND uid = ?;";
     private static final String CQL_DELETE_TREEBLOCKSTORE =
-            "DELETE FROM treeblockstore WHERE username = ? AND uid = ?;";
+            "DELETE FROM treeblockbucketstore WHERE username = ? AND uid = ? AND bucket = ?;";
     private static final String CQL_DELETE_CHUNKS =
-            "DELETE FROM chunkstore WHERE username = ? AND uid = ?;";
+            "DELETE FROM chunkbucketstore WHERE username = ? AND uid = ? AND bucket = ?;";
+    private static final String CQL_DELETE_BUCKETS =
+            "DELETE FROM bucketstore WHERE username = ? AND uid = ? AND tablename = ?;";
     private static final String CQL_CHECK_TREE_EXISTS =
             "SELECT uid FROM treestore WHERE username = ? AND uid = ?;";
 
@@ -67,28 +94,83 @@ public class CassandraDatabaseManager {
     private static PreparedStatement checkTreeExists;
     private static PreparedStatement insertChunk;
     private static PreparedStatement queryChunks;
+    private static PreparedStatement querySingleChunk;
     private static PreparedStatement deleteTreestore;
     private static PreparedStatement deleteTreeblockstore;
     private static PreparedStatement deleteChunkstore;
+    private static PreparedStatement insertBucket;
+    private static PreparedStatement queryBuckets;
+    private static PreparedStatement deleteBuckets;
     private CqlSession sessionCassandra;
-    private Semaphore semWrite;
-    private Semaphore semRead;
+    private AdaptiveLimiter writes;
+    private AdaptiveLimiter reads;
+    private CassandraWritePipeline pipeline;
+    private Buckets buckets;
+    // the buckets that are known to be in the bucketstore
+    private final Cache<BucketKey, Boolean> registeredBuckets = Caffeine.newBuilder()
+            .maximumSize(MAX_REGISTERED_BUCKETS)
+            .build();
 
     public CassandraDatabaseManager(String[] serverNodes, int port, int maxConnections) {
+        this(serverNodes, port, maxConnections, CassandraWritePipeline.AckMode.MEMORY, null,
+                CassandraWritePipeline.DEFAULT_GROUP_COMMIT_MILLIS, CassandraWritePipeline.DEFAULT_GROUP_COMMIT_RECORDS,
+                Buckets.DEFAULT_BUCKET_SIZE);
+    }
+
+    /**
+     * @param ackMode            when the inserts are acknowledged
+     * @param logDirectory       the directory of the write-ahead log of the {@link CassandraWritePipeline.AckMode#LOG}
+     *                           mode
+     * @param groupCommitMillis  how long the write pipeline collects inserts before they are sent
+     * @param groupCommitRecords the maximal number of inserts that are collected
+     * @param bucketSize         the number of chunk ids per partition of the chunk and block tables, the size that was
+     *                           used first for the keyspace takes precedence
+     */
+    public CassandraDatabaseManager(String[] serverNodes, int port, int maxConnections,
+                                    CassandraWritePipeline.AckMode ackMode, String logDirectory,
+                                    int groupCommitMillis, int groupCommitRecords, int bucketSize) {
+        // the limits adapt to the latency, up to the requests the connections can carry
         int numInFligts = maxConnections * 256;
-        semWrite = new Semaphore(numInFligts / 4, true);
-        semRead = new Semaphore(numInFligts / 2, true);
+        writes = new AdaptiveLimiter(numInFligts / 4);
+        reads = new AdaptiveLimiter(numInFligts / 2);
 
         // The migration framework explicitly advices to use a custom session for the migration
         migrate(serverNodes, port);
         this.sessionCassandra = connectToCluster(serverNodes, port, maxConnections);
         createStatements();
+        this.buckets = new Buckets(resolveBucketSize(bucketSize));
+        try {
+            this.pipeline = new CassandraWritePipeline(this::writeBatch, ackMode,
+                    (logDirectory == null) ? null : Paths.get(logDirectory), groupCommitMillis, groupCommitRecords,
+                    CassandraWritePipeline.DEFAULT_MAX_BATCH_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the write-ahead log", e);
+        }
     }
 
     public CqlSession getSessionCassandra() {
         return sessionCassandra;
     }
 
+    public Buckets getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * Stores the bucket size for the keyspace if there is none yet, otherwise the stored one is used.
+     */
+    private int resolveBucketSize(int bucketSize) {
+        ResultSet set = sessionCassandra.execute(SimpleStatement.newInstance(CQL_INSERT_SETTING,
+                SETTING_BUCKET_SIZE, bucketSize));
+        if (set.wasApplied())
+            return bucketSize;
+        int stored = set.one().getInt("value");
+        if (stored != bucketSize)
+            LOGGER.warn("The keyspace was created with a bucket size of " + stored + " - ignoring the configured "
+                    + "bucket size " + bucketSize);
+        return stored;
+    }
+
     private CqlSession connectToCluster(String[] serverNodes, int port, int maxConnections) {
         // TODO: Before switching to Datastax 4.5 there was a way to note the min connections:
         // poolingOptions.setConnectionsPerHost(HostDistance.LOCAL, minConnections, maxConnections);
@@ -110,9 +192,6 @@ public class CassandraDatabaseManager {
             builder.addContactPoint(new InetSocketAddress(node, port));
         }
 
-        int numInFligts = maxConnections * 256;
-        semWrite = new Semaphore(numInFligts / 4, true);
-        semRead = new Semaphore(numInFligts / 2, true);
         return builder.build();
     }
 
@@ -165,177 +244,315 @@ public class CassandraDatabaseManager {
                 checkTreeExists = sessionCassandra.prepare(CQL_CHECK_TREE_EXISTS);
                 insertChunk = sessionCassandra.prepare(CQL_INSERT_CHUNK_TABLE);
                 queryChunks = sessionCassandra.prepare(CQL_QUERY_CHUNK_RANGE);
+                querySingleChunk = sessionCassandra.prepare(CQL_QUERY_CHUNK_SINGLE);
                 deleteTreestore = sessionCassandra.prepare(CQL_DELETE_TREESTORE);
                 deleteTreeblockstore = sessionCassandra.prepare(CQL_DELETE_TREEBLOCKSTORE);
                 deleteChunkstore = sessionCassandra.prepare(CQL_DELETE_CHUNKS);
+                insertBucket = sessionCassandra.prepare(CQL_INSERT_BUCKET);
+                queryBuckets = sessionCassandra.prepare(CQL_QUERY_BUCKETS);
+                deleteBuckets = sessionCassandra.prepare(CQL_DELETE_BUCKETS);
 
                 statementsRdy = true;
             }
         }
     }
 
-    private void throttleRead() {
-        try {
-            semRead.acquire();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+    private static String streamKey(String user, long uid) {
+        return uid + "|" + user;
     }
 
-    private CompletionStage<AsyncResultSet> addCallbackRead(CompletionStage<AsyncResultSet> resultSetCompletionStage) {
-        resultSetCompletionStage.whenComplete(
-                ((asyncResultSet, throwable) -> {
-                    if (throwable != null) {
-                        logger.error("Read failed : " + throwable.getMessage());
-                    }
-                    semRead.release();
-                }));
-        return resultSetCompletionStage;
+    /**
+     * Sends the read when the read limiter allows it.
+     */
+    private CompletionStage<AsyncResultSet> read(String user, long uid,
+                                                 Supplier<CompletionStage<AsyncResultSet>> request) {
+        CompletionStage<AsyncResultSet> res = reads.submit(streamKey(user, uid), request);
+        res.whenComplete((asyncResultSet, throwable) -> {
+            if (throwable != null) {
+                logger.error("Read failed : " + throwable.getMessage());
+            }
+        });
+        return res;
     }
 
-    private void throttleWrite() {
-        try {
-            semWrite.acquire();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Sends the write when the write limiter allows it.
+     */
+    private CompletionStage<AsyncResultSet> write(String user, long uid,
+                                                  Supplier<CompletionStage<AsyncResultSet>> request) {
+        CompletionStage<AsyncResultSet> res = writes.submit(streamKey(user, uid), request);
+        res.whenComplete((asyncResultSet, throwable) -> {
+            if (throwable != null) {
+                logger.error("Write failed : " + throwable.getMessage());
+            }
+        });
+        return res;
     }
 
-    private CompletionStage<AsyncResultSet> addCallbackWrite(CompletionStage<AsyncResultSet> resultSetCompletionStage) {
-        resultSetCompletionStage.whenComplete(
-                ((asyncResultSet, throwable) -> {
-                    if (throwable != null) {
-                        logger.error("Write failed : " + throwable.getMessage());
+    /**
+     * Deletes the bucket partitions of the stream that are in the bucketstore. The delete is sent after the queued
+     * inserts, so it gets a newer timestamp than the rows it deletes.
+     */
+    private CompletionStage<AsyncResultSet> deleteStream(String user, long uid, boolean blocks, boolean chunks,
+                                                        boolean tree) {
+        forgetBuckets(user, uid);
+        CompletionStage<AsyncResultSet> res = pipeline.flush()
+                .thenCompose(ignored -> collectRows(read(user, uid, () -> sessionCassandra.executeAsync(
+                        queryBuckets.bind()
+                                .setString(0, user)
+                                .setLong(1, uid))), new ArrayList<>()))
+                .thenCompose(rows -> {
+                    BatchStatement statement = BatchStatement.newInstance(DefaultBatchType.LOGGED);
+                    for (Row row : rows) {
+                        String table = row.getString("tablename");
+                        long bucket = row.getLong("bucket");
+                        if (blocks && table.equals(BLOCK_TABLE))
+                            statement = statement.add(deleteTreeblockstore.bind()
+                                    .setString(0, user).setLong(1, uid).setLong(2, bucket));
+                        else if (chunks && table.equals(CHUNK_TABLE))
+                            statement = statement.add(deleteChunkstore.bind()
+                                    .setString(0, user).setLong(1, uid).setLong(2, bucket));
                     }
-                    semWrite.release();
-                }));
-        return resultSetCompletionStage;
+                    if (blocks)
+                        statement = statement.add(deleteBuckets.bind()
+                                .setString(0, user).setLong(1, uid).setString(2, BLOCK_TABLE));
+                    if (chunks)
+                        statement = statement.add(deleteBuckets.bind()
+                                .setString(0, user).setLong(1, uid).setString(2, CHUNK_TABLE));
+                    if (tree)
+                        statement = statement.add(deleteTreestore.bind().setString(0, user).setLong(1, uid));
+                    BatchStatement delete = statement;
+                    return write(user, uid, () -> sessionCassandra.executeAsync(delete));
+                });
+        // inserts that raced with the delete register their buckets again
+        res.whenComplete((set, throwable) -> forgetBuckets(user, uid));
+        return res;
     }
 
+    private static CompletionStage<List<Row>> collectRows(CompletionStage<AsyncResultSet> page, List<Row> rows) {
+        return page.thenCompose(result -> {
+            result.currentPage().forEach(rows::add);
+            if (result.hasMorePages())
+                return collectRows(result.fetchNextPage(), rows);
+            return CompletableFuture.completedFuture(rows);
+        });
+    }
 
     public CompletionStage<AsyncResultSet> deleteAllFor(String user, long uid) {
-        throttleWrite();
-        BatchStatement statement = BatchStatement.newInstance(DefaultBatchType.LOGGED);
-        statement.add(deleteTreeblockstore.bind().setString(0, user).setLong(1, uid));
-        statement.add(deleteChunkstore.bind().setString(0, user).setLong(1, uid));
-        statement.add(deleteTreestore.bind().setString(0, user).setLong(1, uid));
-        CompletionStage<AsyncResultSet> var = sessionCassandra.executeAsync(statement);
-        return addCallbackWrite(var);
+        return deleteStream(user, uid, true, true, true);
     }
 
     public CompletionStage<AsyncResultSet> deleteAllIndexFor(String user, long uid) {
-        throttleWrite();
-        BatchStatement statement = BatchStatement.newInstance(DefaultBatchType.LOGGED);
-        statement.add(deleteTreeblockstore.bind().setString(0, user).setLong(1, uid));
-        statement.add(deleteTreestore.bind().setString(0, user).setLong(1, uid));
-        return addCallbackWrite(sessionCassandra.executeAsync(statement));
+        return deleteStream(user, uid, true, false, true);
     }
 
     public CompletionStage<AsyncResultSet> deleteAllChunksFor(String user, long uid) {
-        throttleWrite();
-        BatchStatement statement = BatchStatement.newInstance(DefaultBatchType.LOGGED);
-        statement.add(deleteChunkstore.bind().setString(0, user).setLong(1, uid));
-        return addCallbackWrite(sessionCassandra.executeAsync(statement));
+        return deleteStream(user, uid, false, true, false);
+    }
+
+    private static class BucketKey {
+        private final String table;
+        private final String user;
+        private final long uid;
+        private final long bucket;
+
+        BucketKey(String table, String user, long uid, long bucket) {
+            this.table = table;
+            this.user = user;
+            this.uid = uid;
+            this.bucket = bucket;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BucketKey))
+                return false;
+            BucketKey other = (BucketKey) obj;
+            return other.uid == this.uid && other.bucket == this.bucket && other.table.equals(this.table)
+                    && other.user.equals(this.user);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(table, user, uid, bucket);
+        }
+    }
+
+    private void forgetBuckets(String user, long uid) {
+        registeredBuckets.asMap().keySet().removeIf(key -> key.uid == uid && key.user.equals(user));
     }
 
-    public CompletionStage<AsyncResultSet> insertTree(String user, long uid, BlockNode rootnode, int verison, int k) {
-        throttleWrite();
-        BoundStatement bound = insertTreestore.bind()
+    /**
+     * Adds the bucket to the bucketstore before its first rows are written, so a delete of the stream finds it.
+     */
+    private CompletionStage<?> registerBucket(String table, String user, long uid, long bucket) {
+        BucketKey key = new BucketKey(table, user, uid, bucket);
+        if (registeredBuckets.getIfPresent(key) != null)
+            return CompletableFuture.completedFuture(null);
+        return sessionCassandra.executeAsync(insertBucket.bind()
                 .setString(0, user)
                 .setLong(1, uid)
-                .setLong(2, rootnode.getId())
-                .setByteBuffer(3, ByteBuffer.wrap(rootnode.encodeContent()))
-                .setInt(4, verison)
-                .setInt(5, k);
+                .setString(2, table)
+                .setLong(3, bucket))
+                .thenApply(result -> {
+                    registeredBuckets.put(key, Boolean.TRUE);
+                    return result;
+                });
+    }
+
+    /**
+     * Writes the rows of one stream and table for the write pipeline, as a single statement or an UNLOGGED batch per
+     * bucket partition.
+     */
+    private CompletionStage<Void> writeBatch(List<CassandraWritePipeline.Write> writes) {
+        CassandraWritePipeline.Write first = writes.get(0);
+        if (first.isTree())
+            return write(first.user, first.uid, () -> sessionCassandra.executeAsync(bindWrite(first)))
+                    .thenApply(result -> null);
+        String table = first.isBlock() ? BLOCK_TABLE : CHUNK_TABLE;
+        Map<Long, List<CassandraWritePipeline.Write>> partitions = new LinkedHashMap<>();
+        for (CassandraWritePipeline.Write write : writes) {
+            partitions.computeIfAbsent(bucketOf(write), bucket -> new ArrayList<>()).add(write);
+        }
+        List<CompletableFuture<?>> sent = new ArrayList<>(partitions.size());
+        for (Map.Entry<Long, List<CassandraWritePipeline.Write>> partition : partitions.entrySet()) {
+            long bucket = partition.getKey();
+            Statement<?> batch = buildBatch(partition.getValue());
+            sent.add(write(first.user, first.uid, () -> registerBucket(table, first.user, first.uid, bucket)
+                    .thenCompose(ignored -> sessionCassandra.executeAsync(batch)))
+                    .toCompletableFuture());
+        }
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private Statement<?> buildBatch(List<CassandraWritePipeline.Write> writes) {
+        if (writes.size() == 1)
+            return bindWrite(writes.get(0));
+        BatchStatementBuilder batch = BatchStatement.builder(DefaultBatchType.UNLOGGED);
+        for (CassandraWritePipeline.Write write : writes) {
+            batch.addStatement(bindWrite(write));
+        }
+        return batch.build();
+    }
+
+    private long bucketOf(CassandraWritePipeline.Write write) {
+        return write.isBlock() ? buckets.ofBlock(write.key) : buckets.ofChunk((int) write.key);
+    }
 
+    private BoundStatement bindWrite(CassandraWritePipeline.Write write) {
+        if (write.isTree()) {
+            return insertTreestore.bind()
+                    .setString(0, write.user)
+                    .setLong(1, write.uid)
+                    .setLong(2, write.key)
+                    .setByteBuffer(3, write.data.duplicate())
+                    .setInt(4, write.version)
+                    .setInt(5, write.k)
+                    .setLong(6, write.getTimestamp());
+        } else if (write.isBlock()) {
+            return insertBLOCK.bind()
+                    .setString(0, write.user)
+                    .setLong(1, write.uid)
+                    .setLong(2, buckets.ofBlock(write.key))
+                    .setLong(3, write.key)
+                    .setInt(4, write.version)
+                    .setByteBuffer(5, write.data.duplicate())
+                    .setLong(6, write.getTimestamp());
+        } else {
+            return insertChunk.bind()
+                    .setString(0, write.user)
+                    .setLong(1, write.uid)
+                    .setLong(2, buckets.ofChunk((int) write.key))
+                    .setInt(3, (int) write.key)
+                    .setByteBuffer(4, write.data.duplicate())
+                    .setLong(5, write.getTimestamp());
+        }
+    }
 
-        return addCallbackWrite(sessionCassandra.executeAsync(bound));
+    @Override
+    public CompletionStage<Void> insertTree(String user, long uid, BlockNode rootnode, int verison, int k) {
+        return pipeline.submit(CassandraWritePipeline.Write.tree(user, uid, rootnode.getId(),
+                rootnode.encodeContent(), verison, k));
     }
 
-    public CompletionStage<AsyncResultSet> insertBlocks(String user, long uid, List<BlockNode> nodes) {
-        throttleWrite();
-        BatchStatementBuilder batch = BatchStatement.builder(DefaultBatchType.LOGGED);
-               // newInstance(DefaultBatchType.LOGGED).;
+    @Override
+    public CompletionStage<Void> insertBlocks(String user, long uid, List<BlockNode> nodes) {
+        List<CassandraWritePipeline.Write> writes = new ArrayList<>(nodes.size());
         for (BlockNode node : nodes) {
-            BoundStatement bound = insertBLOCK.bind()
-                    .setString(0, user)
-                    .setLong(1, uid)
-                    .setLong(2, node.getId())
-                    .setInt(3, node.getVersion())
-                    .setByteBuffer(4, ByteBuffer.wrap(node.encodeContent()));
-            batch.addStatement(bound);
+            writes.add(CassandraWritePipeline.Write.block(user, uid, node.getId(), node.getVersion(),
+                    node.encodeContent()));
         }
-        return addCallbackWrite(sessionCassandra.executeAsync(batch.build()));
+        return pipeline.submitAll(writes);
     }
 
-    public CompletionStage<AsyncResultSet> insertBlock(String user, long uid, BlockNode node) {
-        throttleWrite();
-        BoundStatement bound = insertBLOCK.bind()
-                .setString(0, user)
-                .setLong(1, uid)
-                .setLong(2, node.getId())
-                .setInt(3, node.getVersion())
-                .setByteBuffer(4, ByteBuffer.wrap(node.encodeContent()));
-        return addCallbackWrite(sessionCassandra.executeAsync(bound));
+    public CompletionStage<Void> insertBlock(String user, long uid, BlockNode node) {
+        return pipeline.submit(CassandraWritePipeline.Write.block(user, uid, node.getId(), node.getVersion(),
+                node.encodeContent()));
     }
 
     public CompletionStage<AsyncResultSet> loadBlock(String user, long uid, long blockid) {
-        throttleRead();
         BoundStatement bound = querySingleBLOCK.bind()
                 .setString(0, user)
                 .setLong(1, uid)
-                .setLong(2, blockid);
-        return addCallbackRead(sessionCassandra.executeAsync(bound));
+                .setLong(2, buckets.ofBlock(blockid))
+                .setLong(3, blockid);
+        return read(user, uid, () -> sessionCassandra.executeAsync(bound));
     }
 
     public CompletionStage<AsyncResultSet> loadTree(String user, long uid) {
-        throttleRead();
         BoundStatement bound = querySingleTree.bind()
                 .setString(0, user)
                 .setLong(1, uid);
-        return addCallbackRead(sessionCassandra.executeAsync(bound));
+        return read(user, uid, () -> sessionCassandra.executeAsync(bound));
     }
 
     public BlockTree getTree(CompletionStage<AsyncResultSet> futureSet) throws Exception {
-        AsyncResultSet result = futureSet.toCompletableFuture().get();
+        return toTree(futureSet.toCompletableFuture().get());
+    }
+
+    public BlockTree toTree(AsyncResultSet result) {
         Row row = result.one();
         if (row == null)
             throw new TimeCryptStorageException("No tree found", 1);
         long id = row.getLong("root_node");
         int from = BlockIdUtil.getFrom(id), to = BlockIdUtil.getTo(id);
         BlockNode root = new BlockNode(row.getInt("root_version"), from, to,
-                BlockNode.decodeNodeContent(row.getByteBuffer("root_content").array()));
+                decodeNodeContent(row.getByteBuffer("root_content"), id));
         return new BlockTree(row.getInt("k"), root);
     }
 
     public BlockNode getNode(CompletionStage<AsyncResultSet> futureSet, long blockid) throws Exception {
-        AsyncResultSet result = futureSet.toCompletableFuture().get();
+        return toNode(futureSet.toCompletableFuture().get(), blockid);
+    }
+
+    public BlockNode toNode(AsyncResultSet result, long blockid) {
         Row row = result.one();
         if (row == null)
             throw new TimeCryptStorageException("No tree found", 1);
         int from = BlockIdUtil.getFrom(blockid), to = BlockIdUtil.getTo(blockid);
-        return new BlockNode(row.getInt("version"), from, to,
-                BlockNode.decodeNodeContent(row.getByteBuffer("content").array()));
+        return new BlockNode(row.getInt("version"), from, to, decodeNodeContent(row.getByteBuffer("content"), blockid));
     }
 
-    public CompletionStage<AsyncResultSet> insertChunk(String user, long uid, Chunk chunk) {
-        throttleWrite();
-        BoundStatement bound = insertChunk.bind()
-                .setString(0, user)
-                .setLong(1, uid)
-                .setInt(2, chunk.getStorageKey())
-                .setByteBuffer(3, ByteBuffer.wrap(chunk.getData()));
-        return addCallbackWrite(sessionCassandra.executeAsync(bound));
+    private static MetaInnerNode[] decodeNodeContent(ByteBuffer content, long blockid) {
+        try {
+            return BlockNode.decodeNodeContent(content);
+        } catch (InvalidProtocolBufferException e) {
+            throw new TimeCryptStorageException("Could not decode block " + blockid + ": " + e.getMessage(), 1);
+        }
+    }
+
+    public CompletionStage<Void> insertChunk(String user, long uid, Chunk chunk) {
+        return pipeline.submit(CassandraWritePipeline.Write.chunk(user, uid, chunk.getStorageKey(), chunk.getBuffer()));
     }
 
-    public CompletionStage<AsyncResultSet> loadChunks(String user, long uid, int from, int to) {
-        throttleRead();
+    private CompletionStage<AsyncResultSet> loadChunks(String user, long uid, Buckets.Range range) {
         BoundStatement bound = queryChunks.bind()
                 .setString(0, user)
                 .setLong(1, uid)
-                .setInt(2, from)
-                .setInt(3, to);
-        return addCallbackRead(sessionCassandra.executeAsync(bound));
+                .setLong(2, range.bucket)
+                .setInt(3, range.from)
+                .setInt(4, range.to);
+        return read(user, uid, () -> sessionCassandra.executeAsync(bound));
     }
 
     public boolean checkTreeExists(String user, long uid) {
@@ -343,18 +560,118 @@ public class CassandraDatabaseManager {
         return set.one() != null;
     }
 
-    public List<Chunk> getChunks(CompletionStage<AsyncResultSet> future) throws Exception {
-        List<Chunk> chunks = new ArrayList<>();
+    public CompletionStage<AsyncResultSet> loadChunk(String user, long uid, int key) {
+        BoundStatement bound = querySingleChunk.bind()
+                .setString(0, user)
+                .setLong(1, uid)
+                .setLong(2, buckets.ofChunk(key))
+                .setInt(3, key);
+        return read(user, uid, () -> sessionCassandra.executeAsync(bound));
+    }
+
+    /**
+     * @return the chunk or null if it does not exist
+     */
+    public Chunk getChunk(CompletionStage<AsyncResultSet> future, int key) throws Exception {
         AsyncResultSet result = future.toCompletableFuture().get();
+        Row row = result.one();
+        if (row == null)
+            return null;
+        return new Chunk(key, row.getByteBuffer("chunk"));
+    }
+
+    /**
+     * Iterates over the chunks of the range in key order, all pages of the result are fetched. The buckets of the
+     * range are queried in parallel, a few buckets ahead of the one being iterated.
+     */
+    public Iterator<Chunk> loadChunkRange(String user, long uid, int from, int to) {
+        List<Supplier<Iterator<Chunk>>> parts = new ArrayList<>();
+        for (Buckets.Range range : buckets.split(from, to)) {
+            parts.add(() -> new PagingIterator<>(loadChunks(user, uid, range)
+                    .thenApply(result -> new ChunkPage(user, uid, result))));
+        }
+        return PagingIterator.concat(parts, BUCKET_LOOK_AHEAD);
+    }
 
-        // TODO check for more pages?
-        for (Row row : result.currentPage()) {
-            chunks.add(new Chunk(row.getInt("chunk_key"), row.getByteBuffer("chunk").array()));
+    /**
+     * Reads the chunks in [from, to) without blocking, the buckets of the range are read concurrently.
+     *
+     * @return the existing chunks in key order
+     */
+    public CompletionStage<List<Chunk>> loadChunkRangeAsync(String user, long uid, int from, int to) {
+        List<CompletableFuture<List<Chunk>>> parts = new ArrayList<>();
+        for (Buckets.Range range : buckets.split(from, to)) {
+            parts.add(loadChunks(user, uid, range)
+                    .thenCompose(result -> collectChunks(new ChunkPage(user, uid, result), new ArrayList<>()))
+                    .toCompletableFuture());
         }
-        return chunks;
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<Chunk> chunks = new ArrayList<>();
+            for (CompletableFuture<List<Chunk>> part : parts) {
+                chunks.addAll(part.join());
+            }
+            return chunks;
+        });
+    }
+
+    private CompletionStage<List<Chunk>> collectChunks(ChunkPage page, List<Chunk> chunks) {
+        page.currentPage().forEach(chunks::add);
+        if (!page.hasMorePages())
+            return CompletableFuture.completedFuture(chunks);
+        return page.fetchNextPage().thenCompose(next -> collectChunks(next, chunks));
+    }
+
+    private class ChunkPage implements PagingIterator.Page<Chunk> {
+        private final String user;
+        private final long uid;
+        private final AsyncResultSet result;
+
+        ChunkPage(String user, long uid, AsyncResultSet result) {
+            this.user = user;
+            this.uid = uid;
+            this.result = result;
+        }
+
+        @Override
+        public Iterable<Chunk> currentPage() {
+            return () -> {
+                Iterator<Row> rows = result.currentPage().iterator();
+                return new Iterator<Chunk>() {
+                    @Override
+                    public boolean hasNext() {
+                        return rows.hasNext();
+                    }
+
+                    @Override
+                    public Chunk next() {
+                        Row row = rows.next();
+                        return new Chunk(row.getInt("chunk_key"), row.getByteBuffer("chunk"));
+                    }
+                };
+            };
+        }
+
+        @Override
+        public boolean hasMorePages() {
+            return result.hasMorePages();
+        }
+
+        @Override
+        public CompletionStage<ChunkPage> fetchNextPage() {
+            return read(user, uid, result::fetchNextPage).thenApply(next -> new ChunkPage(user, uid, next));
+        }
+    }
+
+    public CassandraWritePipeline.AckMode getAckMode() {
+        return pipeline.getAckMode();
     }
 
     public void close() {
+        try {
+            this.pipeline.close();
+        } catch (IOException e) {
+            LOGGER.error("Could not close the write pipeline", e);
+        }
         this.sessionCassandra.close();
     }
 }
@@ -5,12 +5,17 @@
 
 package ch.ethz.dsg.timecrypt.db;
 
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptOverloadedException;
 import ch.ethz.dsg.timecrypt.exceptions.TimeCryptStorageException;
 import ch.ethz.dsg.timecrypt.index.Chunk;
 import ch.ethz.dsg.timecrypt.index.IStorage;
 import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
 
 public class CassandraStorage implements IStorage {
@@ -21,36 +26,77 @@ public class CassandraStorage implements IStorage {
         this.databaseManager = databaseManager;
     }
 
-    @Override
-    public Chunk getChunk(long uid, String owner, int key) throws TimeCryptStorageException {
-        List<Chunk> chunks = getChunks(uid, owner, key, key + 1);
-        if (chunks == null || chunks.size() != 1)
-            throw new TimeCryptStorageException("No Chunk found", 1);
-        return chunks.get(0);
+    private static TimeCryptStorageException toStorageException(Throwable e) {
+        TimeCryptOverloadedException overloaded = TimeCryptOverloadedException.findIn(e);
+        if (overloaded != null)
+            return overloaded;
+        if (e instanceof CompletionException && e.getCause() != null)
+            e = e.getCause();
+        if (e instanceof TimeCryptStorageException)
+            return (TimeCryptStorageException) e;
+        return new TimeCryptStorageException(e.getMessage(), 1);
     }
 
     @Override
-    public List<Chunk> getChunks(long uid, String owner, int from, int to) throws TimeCryptStorageException {
-        List<Chunk> chunks;
+    public Chunk getChunk(long uid, String owner, int key) throws TimeCryptStorageException {
+        Chunk chunk;
         try {
-            CompletionStage<AsyncResultSet> res = databaseManager.loadChunks(owner, uid, from, to);
-            chunks = databaseManager.getChunks(res);
+            chunk = databaseManager.getChunk(databaseManager.loadChunk(owner, uid, key), key);
         } catch (Exception e) {
-            throw new TimeCryptStorageException(e.getMessage(), 1);
+            throw toStorageException(e);
         }
-        if (chunks == null)
+        if (chunk == null)
             throw new TimeCryptStorageException("No Chunk found", 1);
+        return chunk;
+    }
+
+    @Override
+    public List<Chunk> getChunks(long uid, String owner, int from, int to) throws TimeCryptStorageException {
+        List<Chunk> chunks = new ArrayList<>();
+        databaseManager.loadChunkRange(owner, uid, from, to).forEachRemaining(chunks::add);
         return chunks;
     }
 
+    @Override
+    public Iterator<Chunk> getChunkRange(long uid, String owner, int fromChunk, int toChunk)
+            throws TimeCryptStorageException {
+        return databaseManager.loadChunkRange(owner, uid, fromChunk, toChunk);
+    }
+
+    @Override
+    public CompletionStage<List<Chunk>> getChunksAsync(long uid, String owner, int fromChunk, int toChunk) {
+        CompletableFuture<List<Chunk>> result = new CompletableFuture<>();
+        databaseManager.loadChunkRangeAsync(owner, uid, fromChunk, toChunk).whenComplete((chunks, throwable) -> {
+            if (throwable != null)
+                result.completeExceptionally(toStorageException(throwable));
+            else
+                result.complete(chunks);
+        });
+        return result;
+    }
 
     @Override
     public boolean putChunk(long uid, String owner, Chunk chunk) throws TimeCryptStorageException {
         try {
-            // TODO: should check for success or async
-            CompletionStage<AsyncResultSet> res = databaseManager.insertChunk(owner, uid, chunk);
+            // completes according to the ack mode of the write pipeline
+            databaseManager.insertChunk(owner, uid, chunk).toCompletableFuture().get();
+        } catch (Exception e) {
+            throw toStorageException(e);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean putChunks(long uid, String owner, List<Chunk> chunks) throws TimeCryptStorageException {
+        // all writes are submitted before the first is awaited, the pipeline groups them
+        CompletableFuture<?>[] writes = new CompletableFuture<?>[chunks.size()];
+        for (int i = 0; i < writes.length; i++) {
+            writes[i] = databaseManager.insertChunk(owner, uid, chunks.get(i)).toCompletableFuture();
+        }
+        try {
+            CompletableFuture.allOf(writes).get();
         } catch (Exception e) {
-            throw new TimeCryptStorageException(e.getMessage(), 1);
+            throw toStorageException(e);
         }
         return true;
     }
@@ -66,7 +112,7 @@ public class CassandraStorage implements IStorage {
         try {
             CompletionStage<AsyncResultSet> res = databaseManager.deleteAllChunksFor(owner, uid);
         } catch (Exception e) {
-            throw new TimeCryptStorageException(e.getMessage(), 1);
+            throw toStorageException(e);
         }
 
         return true;
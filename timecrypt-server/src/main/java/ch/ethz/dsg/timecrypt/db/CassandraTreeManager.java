@@ -8,10 +8,15 @@ package ch.ethz.dsg.timecrypt.db;
 import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeAlreadyExistsException;
 import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
 import ch.ethz.dsg.timecrypt.index.ITreeManager;
+import ch.ethz.dsg.timecrypt.index.IndexType;
 import ch.ethz.dsg.timecrypt.index.UserStreamTree;
 import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
 import ch.ethz.dsg.timecrypt.index.blockindex.IBlockTreeFetcher;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
 public class CassandraTreeManager implements ITreeManager {
 
     private int k;
@@ -32,6 +37,13 @@ public class CassandraTreeManager implements ITreeManager {
 
     @Override
     public UserStreamTree createTree(long uid, String user) throws TimeCryptTreeException {
+        return createTree(uid, user, IndexType.BLOCK_TREE);
+    }
+
+    @Override
+    public UserStreamTree createTree(long uid, String user, IndexType indexType) throws TimeCryptTreeException {
+        if (indexType != IndexType.BLOCK_TREE)
+            throw new TimeCryptTreeException("Index type " + indexType + " is not supported with cassandra", 1);
         UserStreamTree result = null;
         try {
             if (blockTree.treeExistsInCache(uid, user))
@@ -54,6 +66,7 @@ public class CassandraTreeManager implements ITreeManager {
     public boolean deleteTree(long uid, String user) throws TimeCryptTreeException {
         try {
             db.deleteAllIndexFor(user, uid);
+            blockTree.deleteTree(uid, user);
         } catch (Exception e) {
             throw new TimeCryptTreeException(e.getMessage(), 1);
         }
@@ -86,6 +99,21 @@ public class CassandraTreeManager implements ITreeManager {
         return result;
     }
 
+    @Override
+    public CompletionStage<UserStreamTree> getTreeForUserAsync(long uid, String user, int minVersion) {
+        CompletableFuture<UserStreamTree> result = new CompletableFuture<>();
+        blockTree.fetchTreeMinVersionAsync(uid, user, minVersion).whenComplete((tree, throwable) -> {
+            if (throwable != null) {
+                Throwable cause = (throwable instanceof CompletionException && throwable.getCause() != null)
+                        ? throwable.getCause() : throwable;
+                result.completeExceptionally(new TimeCryptTreeException(cause.getMessage(), 1));
+            } else {
+                result.complete(new UserStreamTree(user, uid, tree));
+            }
+        });
+        return result;
+    }
+
     @Override
     public void invalidateCache() {
         blockTree.invalidateCache();
@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Collects the inserts of all streams and writes them to cassandra in UNLOGGED batches that only contain rows of one
+ * partition. A single thread drains the queue every group commit (after a few milliseconds or a number of records),
+ * so concurrent inserts of many streams share the round trips. Later writes of the same row in one drain replace the
+ * earlier ones. The pipeline assigns every write an increasing timestamp when it is drained and cassandra applies the
+ * row with it, so a newer version of a row always wins even if the batches are reordered on the wire or an older
+ * write is replayed from the write-ahead log after a restart.
+ * <p>
+ * When a write is acknowledged depends on the {@link AckMode}.
+ */
+public class CassandraWritePipeline implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CassandraWritePipeline.class);
+
+    public static final int DEFAULT_GROUP_COMMIT_MILLIS = 2;
+    public static final int DEFAULT_GROUP_COMMIT_RECORDS = 1024;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    private static final int QUEUE_CAPACITY = 1 << 16;
+    private static final long LOG_FILE_SIZE = 64 << 20;
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    static final byte TREE = 1;
+    static final byte BLOCK = 2;
+    static final byte CHUNK = 3;
+    private static final byte BARRIER = 0;
+    static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    public enum AckMode {
+        /**
+         * Acknowledged when the write is queued, it is lost if the server crashes before it reaches cassandra.
+         */
+        MEMORY,
+        /**
+         * Acknowledged when the write is forced to the local write-ahead log, a crash is recovered at the next start.
+         */
+        LOG,
+        /**
+         * Acknowledged when cassandra acknowledged the write.
+         */
+        CASSANDRA
+    }
+
+    /**
+     * A row of the treestore, treeblockstore or chunkstore table. The key is the block id or the chunk key, the
+     * version and k are only used by the tables that have them. The data is not copied, it must not be modified after
+     * the write was submitted.
+     */
+    public static class Write {
+        public final byte table;
+        public final String user;
+        public final long uid;
+        public final long key;
+        public final int version;
+        public final int k;
+        public final ByteBuffer data;
+        // microseconds since the epoch, assigned by the pipeline and kept in the log
+        long timestamp = NO_TIMESTAMP;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        PipelineLog.LogFile logFile = null;
+
+        Write(byte table, String user, long uid, long key, int version, int k, ByteBuffer data) {
+            this.table = table;
+            this.user = user;
+            this.uid = uid;
+            this.key = key;
+            this.version = version;
+            this.k = k;
+            this.data = data;
+        }
+
+        public static Write tree(String user, long uid, long rootId, byte[] rootContent, int version, int k) {
+            return new Write(TREE, user, uid, rootId, version, k, ByteBuffer.wrap(rootContent));
+        }
+
+        public static Write block(String user, long uid, long blockId, int version, byte[] content) {
+            return new Write(BLOCK, user, uid, blockId, version, 0, ByteBuffer.wrap(content));
+        }
+
+        /**
+         * @param chunk the chunk, its remaining bytes are written without copying them
+         */
+        public static Write chunk(String user, long uid, int chunkKey, ByteBuffer chunk) {
+            return new Write(CHUNK, user, uid, chunkKey, 0, 0, chunk);
+        }
+
+        /**
+         * @return the write time of the row in microseconds since the epoch, set once the pipeline drained the write
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public boolean isTree() {
+            return table == TREE;
+        }
+
+        public boolean isBlock() {
+            return table == BLOCK;
+        }
+
+        public boolean isChunk() {
+            return table == CHUNK;
+        }
+
+        /**
+         * The tree table has one row per partition.
+         */
+        private long rowKey() {
+            return (table == TREE) ? 0 : key;
+        }
+    }
+
+    /**
+     * Sends the writes of one stream and table, split into one request per cassandra partition.
+     */
+    public interface BatchWriter {
+        CompletionStage<?> write(List<Write> partition);
+    }
+
+    private static class PartitionKey {
+        private final byte table;
+        private final String user;
+        private final long uid;
+
+        PartitionKey(Write write) {
+            this.table = write.table;
+            this.user = write.user;
+            this.uid = write.uid;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PartitionKey))
+                return false;
+            PartitionKey other = (PartitionKey) obj;
+            return other.table == this.table && other.uid == this.uid && other.user.equals(this.user);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(table, user, uid);
+        }
+    }
+
+    private final BatchWriter writer;
+    private final AckMode ackMode;
+    private final PipelineLog log;
+    private final long groupCommitNanos;
+    private final int groupCommitRecords;
+    private final int maxBatchSize;
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread flusher;
+    private final List<Write> recovered;
+    private volatile boolean running = true;
+    // the last assigned write timestamp, only used by the flusher thread
+    private long lastTimestamp = NO_TIMESTAMP;
+    // completes when all writes that were sent so far are answered
+    private CompletableFuture<Void> applied = CompletableFuture.completedFuture(null);
+
+    /**
+     * @param logDirectory the directory of the write-ahead log, only used with {@link AckMode#LOG}
+     */
+    public CassandraWritePipeline(BatchWriter writer, AckMode ackMode, Path logDirectory, int groupCommitMillis,
+                                  int groupCommitRecords, int maxBatchSize) throws IOException {
+        this.writer = writer;
+        this.ackMode = ackMode;
+        this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+        this.groupCommitRecords = groupCommitRecords;
+        this.maxBatchSize = maxBatchSize;
+        if (ackMode == AckMode.LOG) {
+            this.log = new PipelineLog(logDirectory, LOG_FILE_SIZE);
+            List<Write> recovered = log.recover();
+            if (!recovered.isEmpty())
+                LOGGER.info("Replaying " + recovered.size() + " writes from the write-ahead log");
+            // they keep the timestamps of their first try, so they do not replace a newer version that was applied
+            // before the restart, and the writes of this run get newer timestamps
+            for (Write write : recovered) {
+                lastTimestamp = Math.max(lastTimestamp, write.timestamp);
+            }
+            this.recovered = recovered;
+        } else {
+            this.log = null;
+            this.recovered = new ArrayList<>();
+        }
+        this.flusher = new Thread(this::run, "timecrypt-write-pipeline");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public CassandraWritePipeline(BatchWriter writer, AckMode ackMode, Path logDirectory) throws IOException {
+        this(writer, ackMode, logDirectory, DEFAULT_GROUP_COMMIT_MILLIS, DEFAULT_GROUP_COMMIT_RECORDS,
+                DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public AckMode getAckMode() {
+        return ackMode;
+    }
+
+    /**
+     * Queues the write, blocks while the queue is full.
+     *
+     * @return completes when the write is acknowledged according to the ack mode
+     */
+    public CompletableFuture<Void> submit(Write write) {
+        if (!running)
+            return CompletableFuture.failedFuture(new IllegalStateException("Write pipeline is closed"));
+        try {
+            queue.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        if (ackMode == AckMode.MEMORY)
+            write.done.complete(null);
+        return write.done;
+    }
+
+    public CompletableFuture<Void> submitAll(List<Write> writes) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[writes.size()];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = submit(writes.get(i));
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * @return completes when all writes that were queued before are answered by cassandra
+     */
+    public CompletableFuture<Void> flush() {
+        Write barrier = new Write(BARRIER, null, 0, 0, 0, 0, null);
+        try {
+            queue.put(barrier);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        return barrier.done;
+    }
+
+    private void run() {
+        for (int from = 0; from < recovered.size(); from += groupCommitRecords) {
+            commit(recovered.subList(from, Math.min(recovered.size(), from + groupCommitRecords)));
+        }
+        recovered.clear();
+        List<Write> drained = new ArrayList<>(groupCommitRecords);
+        while (running || !queue.isEmpty()) {
+            try {
+                Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                drained.add(first);
+                long deadline = System.nanoTime() + groupCommitNanos;
+                queue.drainTo(drained, groupCommitRecords - drained.size());
+                while (drained.size() < groupCommitRecords) {
+                    long wait = deadline - System.nanoTime();
+                    Write next = (wait > 0) ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if (next == null)
+                        break;
+                    drained.add(next);
+                    queue.drainTo(drained, groupCommitRecords - drained.size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+            try {
+                commit(drained);
+            } catch (RuntimeException e) {
+                LOGGER.error("Write pipeline failed", e);
+                for (Write write : drained) {
+                    write.done.completeExceptionally(e);
+                }
+            }
+            drained.clear();
+        }
+    }
+
+    private void commit(List<Write> drained) {
+        List<Write> barriers = new ArrayList<>();
+        List<Write> unlogged = new ArrayList<>(drained.size());
+        Map<PartitionKey, Map<Long, List<Write>>> partitions = new LinkedHashMap<>();
+        for (Write write : drained) {
+            if (write.table == BARRIER) {
+                barriers.add(write);
+                continue;
+            }
+            if (write.timestamp == NO_TIMESTAMP)
+                write.timestamp = nextTimestamp();
+            if (log != null && write.logFile == null)
+                unlogged.add(write);
+            partitions.computeIfAbsent(new PartitionKey(write), key -> new LinkedHashMap<>())
+                    .computeIfAbsent(write.rowKey(), key -> new ArrayList<>(1))
+                    .add(write);
+        }
+
+        if (!unlogged.isEmpty()) {
+            try {
+                log.append(unlogged);
+                for (Write write : unlogged) {
+                    write.done.complete(null);
+                }
+            } catch (IOException e) {
+                LOGGER.error("Could not write the write-ahead log", e);
+                for (Write write : unlogged) {
+                    write.done.completeExceptionally(e);
+                }
+            }
+        }
+
+        List<CompletableFuture<?>> sent = new ArrayList<>();
+        sent.add(applied);
+        for (Map<Long, List<Write>> rows : partitions.values()) {
+            List<List<Write>> versions = new ArrayList<>(rows.values());
+            for (int from = 0; from < versions.size(); from += maxBatchSize) {
+                List<List<Write>> batchVersions = versions.subList(from, Math.min(versions.size(),
+                        from + maxBatchSize));
+                List<Write> batch = new ArrayList<>(batchVersions.size());
+                for (List<Write> rowVersions : batchVersions) {
+                    batch.add(rowVersions.get(rowVersions.size() - 1));
+                }
+                sent.add(send(batch, batchVersions));
+            }
+        }
+        applied = CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0]));
+        for (Write barrier : barriers) {
+            applied.whenComplete((res, throwable) -> barrier.done.complete(null));
+        }
+    }
+
+    /**
+     * @return the current time in microseconds, but always later than the previous timestamp
+     */
+    private long nextTimestamp() {
+        lastTimestamp = Math.max(lastTimestamp + 1, TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()));
+        return lastTimestamp;
+    }
+
+    /**
+     * Sends the batch and answers all versions of its rows.
+     *
+     * @return completes normally when the batch is answered
+     */
+    private CompletableFuture<?> send(List<Write> batch, List<List<Write>> versions) {
+        CompletionStage<?> stage;
+        try {
+            stage = writer.write(batch);
+        } catch (RuntimeException e) {
+            stage = CompletableFuture.failedFuture(e);
+        }
+        return stage.handle((res, throwable) -> {
+            if (throwable != null && ackMode != AckMode.CASSANDRA)
+                LOGGER.error("Write to cassandra failed: " + throwable.getMessage());
+            for (List<Write> rowVersions : versions) {
+                for (Write write : rowVersions) {
+                    if (throwable == null)
+                        write.done.complete(null);
+                    else
+                        write.done.completeExceptionally(throwable);
+                    if (write.logFile != null)
+                        log.release(write.logFile, throwable != null);
+                }
+            }
+            return null;
+        }).toCompletableFuture();
+    }
+
+    /**
+     * Sends the queued writes and waits until they are answered.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        try {
+            flusher.join();
+            applied.get(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (TimeoutException | ExecutionException e) {
+            LOGGER.warn("Not all writes were answered before closing the write pipeline");
+        }
+        if (log != null)
+            log.close();
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db;
+
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptStorageException;
+import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
+import ch.ethz.dsg.timecrypt.index.blockindex.RightEdge;
+import ch.ethz.dsg.timecrypt.index.blockindex.UpdateSummary;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.MetaInnerNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Defers the writes of the tree nodes that still change. An insert rewrites the whole root-to-leaf path, but only the
+ * nodes that are sealed (full, they never change again) are written to the store. The nodes of the right edge of a
+ * tree are kept in memory and protected by a local log of the inserted leaf digests, the root row and the right edge
+ * are checkpointed to the store every N inserts or T milliseconds.
+ * <p>
+ * Every update summary holds the complete new {@link RightEdge}, so it is logged as a whole whenever the digests do
+ * not suffice. After a restart the right edge is rebuilt from the last checkpoint in the log by inserting the logged
+ * digests again.
+ * <p>
+ * The trees are only complete on this server, other servers see them as of their last checkpoint.
+ */
+public class DeferredTreeWriter implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeferredTreeWriter.class);
+
+    public static final int DEFAULT_CHECKPOINT_INSERTS = 1024;
+    public static final int DEFAULT_CHECKPOINT_MILLIS = 10000;
+    public static final long DEFAULT_MAX_LOG_SIZE = 64 << 20;
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final TreeStore store;
+    private final TreeEdgeLog log;
+    private final int checkpointInserts;
+    private final long checkpointNanos;
+    private final long maxLogSize;
+    private final Map<String, Edge> edges = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+    // the records of the log files of the last run, until they are recovered
+    private List<TreeEdgeLog.Record> logged;
+
+    /**
+     * The rows the writer needs from the store, see {@link CassandraDatabaseManager}.
+     */
+    public interface TreeStore {
+        CompletionStage<Void> insertTree(String user, long uid, BlockNode rootnode, int verison, int k);
+
+        CompletionStage<Void> insertBlocks(String user, long uid, List<BlockNode> nodes);
+    }
+
+    /**
+     * Inserts the logged digests of a recovered tree again, the inserts are pushed to
+     * {@link #push(String, long, UpdateSummary)} as usual. The tree has no node manager yet.
+     */
+    public interface Replayer {
+        void replay(String user, long uid, BlockTree tree, long firstChunk, List<NodeContent[]> digests)
+                throws Exception;
+    }
+
+    private static class Edge {
+        private final String user;
+        private final long uid;
+        private final int k;
+        private RightEdge path = new RightEdge();
+        private int version = -1;
+        private int sinceCheckpoint = 0;
+        private long lastCheckpoint = System.nanoTime();
+        private boolean replaying = false;
+        private boolean dropped = false;
+
+        Edge(String user, long uid, int k) {
+            this.user = user;
+            this.uid = uid;
+            this.k = k;
+        }
+    }
+
+    /**
+     * @param sync force the log to the disk before an insert is acknowledged
+     */
+    public DeferredTreeWriter(TreeStore store, Path logDirectory, boolean sync, int checkpointInserts,
+                              int checkpointMillis, long maxLogSize) throws IOException {
+        this.store = store;
+        this.log = new TreeEdgeLog(logDirectory, sync);
+        this.logged = log.recover();
+        this.checkpointInserts = checkpointInserts;
+        this.checkpointNanos = TimeUnit.MILLISECONDS.toNanos(checkpointMillis);
+        this.maxLogSize = maxLogSize;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "timecrypt-tree-checkpoints");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, checkpointMillis / 2);
+        timer.scheduleAtFixedRate(this::checkpointOld, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public DeferredTreeWriter(TreeStore store, Path logDirectory, boolean sync) throws IOException {
+        this(store, logDirectory, sync, DEFAULT_CHECKPOINT_INSERTS, DEFAULT_CHECKPOINT_MILLIS, DEFAULT_MAX_LOG_SIZE);
+    }
+
+    private static String key(String user, long uid) {
+        return String.format("%d|%s", uid, user);
+    }
+
+    /**
+     * Rebuilds the right edges of the trees in the log of the last run and checkpoints them, must be called before the
+     * first insert.
+     */
+    public void recover(Replayer replayer) throws Exception {
+        Map<String, TreeEdgeLog.Record> checkpoints = new LinkedHashMap<>();
+        Map<String, Map<Integer, NodeContent[]>> digests = new HashMap<>();
+        List<TreeEdgeLog.Record> records = logged;
+        logged = new ArrayList<>();
+        for (TreeEdgeLog.Record record : records) {
+            String key = key(record.user, record.uid);
+            if (record.type == TreeEdgeLog.DROP) {
+                checkpoints.remove(key);
+                digests.remove(key);
+            } else if (record.type == TreeEdgeLog.CHECKPOINT) {
+                TreeEdgeLog.Record last = checkpoints.get(key);
+                if (last == null || record.version >= last.version)
+                    checkpoints.put(key, record);
+            } else if (record.type == TreeEdgeLog.DIGESTS && checkpoints.containsKey(key)) {
+                Map<Integer, NodeContent[]> leaves = digests.computeIfAbsent(key, k -> new HashMap<>());
+                for (int i = 0; i < record.digests.size(); i++) {
+                    leaves.put(record.version + i, record.digests.get(i));
+                }
+            }
+        }
+
+        List<CompletableFuture<Void>> written = new ArrayList<>();
+        for (Map.Entry<String, TreeEdgeLog.Record> entry : checkpoints.entrySet()) {
+            TreeEdgeLog.Record checkpoint = entry.getValue();
+            Edge edge = new Edge(checkpoint.user, checkpoint.uid, checkpoint.k);
+            edge.path.set(checkpoint.nodes.get(0), checkpoint.nodes.subList(1, checkpoint.nodes.size()));
+            edge.version = checkpoint.version;
+            edge.replaying = true;
+            edges.put(entry.getKey(), edge);
+
+            // the digests after the checkpoint, up to the first one that is missing
+            List<NodeContent[]> replay = new ArrayList<>();
+            Map<Integer, NodeContent[]> leaves = digests.getOrDefault(entry.getKey(), new HashMap<>());
+            for (NodeContent[] leaf = leaves.get(edge.version); leaf != null;
+                 leaf = leaves.get(edge.version + replay.size())) {
+                replay.add(leaf);
+            }
+            if (!replay.isEmpty()) {
+                replayer.replay(edge.user, edge.uid, new BlockTree(edge.k, edge.path.getRoot()), edge.version,
+                        replay);
+            }
+            synchronized (edge) {
+                edge.replaying = false;
+            }
+            written.add(checkpoint(edge));
+        }
+        if (!checkpoints.isEmpty())
+            LOGGER.info("Recovered the right edges of " + checkpoints.size() + " trees from the log");
+        CompletableFuture.allOf(written.toArray(new CompletableFuture<?>[0])).get();
+        compact();
+    }
+
+    /**
+     * @return the newest tree that this writer holds, null if it holds none for the stream
+     */
+    public BlockTree getTree(String user, long uid) {
+        Edge edge = edges.get(key(user, uid));
+        if (edge == null)
+            return null;
+        synchronized (edge) {
+            return (edge.path.getRoot() == null) ? null : new BlockTree(edge.k, edge.path.getRoot());
+        }
+    }
+
+    /**
+     * @return the newest version of the node if it is on the right edge of the tree, otherwise null
+     */
+    public BlockNode getNode(String user, long uid, long id) {
+        Edge edge = edges.get(key(user, uid));
+        if (edge == null)
+            return null;
+        synchronized (edge) {
+            return edge.path.get(id);
+        }
+    }
+
+    /**
+     * Holds the right edge of a new tree, the root row is written by the caller.
+     */
+    public void created(String user, long uid, BlockNode root, int k) {
+        Edge edge = new Edge(user, uid, k);
+        edges.put(key(user, uid), edge);
+        synchronized (edge) {
+            edge.path.set(root, new ArrayList<>());
+            edge.version = root.getVersion();
+            try {
+                log.force(log.appendCheckpoint(user, uid, k, edge.version, root, edge.path.getNodes()));
+            } catch (IOException e) {
+                throw new TimeCryptStorageException("Could not write the tree log: " + e.getMessage(), 1);
+            }
+        }
+    }
+
+    /**
+     * Logs the digests of the new leaves, keeps the new right edge and writes the sealed nodes of the summary.
+     *
+     * @return completes when the sealed nodes are written in the sense of the ack mode of the store
+     */
+    public CompletionStage<Void> push(String user, long uid, UpdateSummary summary) {
+        Edge edge = edges.computeIfAbsent(key(user, uid), key -> new Edge(user, uid, summary.k));
+        RightEdge path = new RightEdge();
+        List<BlockNode> sealed = path.update(summary);
+
+        long position = -1;
+        boolean checkpoint;
+        synchronized (edge) {
+            if (!edge.replaying) {
+                try {
+                    List<NodeContent[]> digests = (edge.version < 0) ? null : leafDigests(edge.version, summary);
+                    // a tree that was not held yet or a bulk load is logged as checkpoint of the new right edge
+                    position = (digests != null)
+                            ? log.appendDigests(user, uid, edge.version, digests)
+                            : log.appendCheckpoint(user, uid, summary.k, summary.version, path.getRoot(),
+                            path.getNodes());
+                } catch (IOException e) {
+                    throw new TimeCryptStorageException("Could not write the tree log: " + e.getMessage(), 1);
+                }
+            }
+            edge.sinceCheckpoint += (edge.version < 0) ? 1 : summary.version - edge.version;
+            edge.path = path;
+            edge.version = summary.version;
+            checkpoint = edge.sinceCheckpoint >= checkpointInserts;
+        }
+
+        CompletionStage<Void> written = sealed.isEmpty() ? DONE : store.insertBlocks(user, uid, sealed);
+        try {
+            if (position >= 0)
+                log.force(position);
+            if (log.size() >= maxLogSize && compactionScheduled.compareAndSet(false, true))
+                timer.execute(this::compactQuietly);
+        } catch (IOException e) {
+            throw new TimeCryptStorageException("Could not write the tree log: " + e.getMessage(), 1);
+        }
+        if (checkpoint)
+            checkpoint(edge);
+        return written;
+    }
+
+    /**
+     * The digests of the leaves from the first chunk up to the version of the summary, null if a leaf is not part of
+     * the summary.
+     */
+    private static List<NodeContent[]> leafDigests(int firstChunk, UpdateSummary summary) {
+        int count = summary.version - firstChunk;
+        if (count <= 0 || summary.newTime % summary.version != 0)
+            return null;
+        int interval = summary.newTime / summary.version;
+        Map<Integer, BlockNode> leaves = new HashMap<>();
+        if (summary.getNewRoot().isLeaf(interval))
+            leaves.put(summary.getNewRoot().from, summary.getNewRoot());
+        for (BlockNode node : summary.getNewNodes()) {
+            if (node.isLeaf(interval))
+                leaves.put(node.from, node);
+        }
+        int span = interval * summary.k;
+        List<NodeContent[]> res = new ArrayList<>(count);
+        for (int chunk = firstChunk; chunk < summary.version; chunk++) {
+            int time = chunk * interval;
+            BlockNode leaf = leaves.get((time / span) * span);
+            MetaInnerNode meta = (leaf == null) ? null : leaf.getMetaAtIndex((time - leaf.from) / interval);
+            if (meta == null)
+                return null;
+            res.add(meta.metaInformation);
+        }
+        return res;
+    }
+
+    /**
+     * Writes the root row and the right edge of the tree to the store.
+     */
+    private CompletableFuture<Void> checkpoint(Edge edge) {
+        BlockNode root;
+        int version;
+        List<BlockNode> nodes;
+        synchronized (edge) {
+            if (edge.dropped || edge.path.getRoot() == null)
+                return DONE;
+            root = edge.path.getRoot();
+            version = edge.version;
+            nodes = new ArrayList<>(edge.path.getNodes());
+            edge.sinceCheckpoint = 0;
+            edge.lastCheckpoint = System.nanoTime();
+        }
+        CompletionStage<Void> blocks = nodes.isEmpty() ? DONE : store.insertBlocks(edge.user, edge.uid, nodes);
+        CompletionStage<Void> tree = store.insertTree(edge.user, edge.uid, root, version, edge.k);
+        return CompletableFuture.allOf(blocks.toCompletableFuture(), tree.toCompletableFuture())
+                .whenComplete((res, throwable) -> {
+                    if (throwable != null) {
+                        LOGGER.error("Could not checkpoint the tree " + edge.uid + " of " + edge.user, throwable);
+                        // retried by the timer
+                        synchronized (edge) {
+                            edge.sinceCheckpoint = Math.max(edge.sinceCheckpoint, 1);
+                        }
+                    }
+                });
+    }
+
+    private void checkpointOld() {
+        long now = System.nanoTime();
+        for (Edge edge : edges.values()) {
+            boolean due;
+            synchronized (edge) {
+                due = edge.sinceCheckpoint > 0 && now - edge.lastCheckpoint >= checkpointNanos;
+            }
+            if (due)
+                checkpoint(edge);
+        }
+    }
+
+    /**
+     * Starts a new log file with a checkpoint of every right edge and deletes the older files.
+     */
+    private void compact() throws IOException {
+        List<Path> old = log.rotate();
+        long position = 0;
+        for (Edge edge : edges.values()) {
+            synchronized (edge) {
+                if (edge.dropped || edge.path.getRoot() == null || edge.replaying)
+                    continue;
+                position = log.appendCheckpoint(edge.user, edge.uid, edge.k, edge.version, edge.path.getRoot(),
+                        edge.path.getNodes());
+            }
+        }
+        log.force(position);
+        log.delete(old);
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException e) {
+            LOGGER.error("Could not compact the tree log", e);
+        } finally {
+            compactionScheduled.set(false);
+        }
+    }
+
+    /**
+     * Forgets the right edge of a deleted tree.
+     */
+    public void drop(String user, long uid) {
+        Edge edge = edges.remove(key(user, uid));
+        if (edge == null)
+            return;
+        synchronized (edge) {
+            edge.dropped = true;
+            try {
+                log.force(log.appendDrop(user, uid));
+            } catch (IOException e) {
+                throw new TimeCryptStorageException("Could not write the tree log: " + e.getMessage(), 1);
+            }
+        }
+    }
+
+    /**
+     * Checkpoints the trees with inserts since their last checkpoint. The store must still accept writes.
+     */
+    @Override
+    public void close() throws IOException {
+        // a running compaction still writes to the log
+        timer.shutdown();
+        try {
+            timer.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<CompletableFuture<Void>> written = new ArrayList<>();
+        for (Edge edge : edges.values()) {
+            boolean dirty;
+            synchronized (edge) {
+                dirty = edge.sinceCheckpoint > 0;
+            }
+            if (dirty)
+                written.add(checkpoint(edge));
+        }
+        try {
+            CompletableFuture.allOf(written.toArray(new CompletableFuture<?>[0]))
+                    .get(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            // the log still holds the digests, they are replayed at the next start
+            LOGGER.error("Could not checkpoint the trees", e);
+        }
+        log.close();
+    }
+}
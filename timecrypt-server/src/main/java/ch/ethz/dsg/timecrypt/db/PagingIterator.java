@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db;
+
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptOverloadedException;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptStorageException;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Iterates over all pages of a query. The next page is requested as soon as the iteration enters the current one, so
+ * the round trip of the next page overlaps with the processing of the current one.
+ */
+public class PagingIterator<T> implements Iterator<T> {
+
+    /**
+     * A page of a query result, like the async result sets of the cassandra driver.
+     */
+    public interface Page<T> {
+        Iterable<T> currentPage();
+
+        boolean hasMorePages();
+
+        CompletionStage<? extends Page<T>> fetchNextPage();
+    }
+
+    private Iterator<T> current = Collections.emptyIterator();
+    private CompletableFuture<? extends Page<T>> next;
+
+    public PagingIterator(CompletionStage<? extends Page<T>> firstPage) {
+        this.next = firstPage.toCompletableFuture();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (next == null)
+                return false;
+            Page<T> page;
+            try {
+                page = next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TimeCryptStorageException("Interrupted while fetching a page", 1);
+            } catch (ExecutionException e) {
+                TimeCryptOverloadedException overloaded = TimeCryptOverloadedException.findIn(e);
+                if (overloaded != null)
+                    throw overloaded;
+                throw new TimeCryptStorageException("Could not fetch a page: " + e.getCause().getMessage(), 1);
+            }
+            next = page.hasMorePages() ? page.fetchNextPage().toCompletableFuture() : null;
+            current = page.currentPage().iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return current.next();
+    }
+
+    /**
+     * Iterates over the parts one after the other. A part is started (its query is sent) when it gets within
+     * lookAhead parts of the one being iterated, so the first pages of the next parts are fetched in parallel.
+     */
+    public static <T> Iterator<T> concat(List<? extends Supplier<? extends Iterator<T>>> parts, int lookAhead) {
+        return new Iterator<T>() {
+            private final Deque<Iterator<T>> started = new ArrayDeque<>();
+            private int nextPart = 0;
+
+            private void start() {
+                while (nextPart < parts.size() && started.size() <= lookAhead) {
+                    started.addLast(parts.get(nextPart++).get());
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                start();
+                while (!started.isEmpty() && !started.peekFirst().hasNext()) {
+                    started.removeFirst();
+                    start();
+                }
+                return !started.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return started.peekFirst().next();
+            }
+        };
+    }
+}
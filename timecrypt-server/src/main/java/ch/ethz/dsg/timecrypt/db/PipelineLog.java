@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead log of the cassandra write pipeline. The writes are appended to log files and forced to the disk
+ * once per group commit. A file is deleted as soon as it is full and all of its writes were applied to cassandra, a
+ * file with failed writes is kept and replayed at the next start.
+ * <p>
+ * Record layout: int body length, int crc32 of the body, body: byte table, long uid, utf user, long key, int version,
+ * int k, long timestamp, int data length, data.
+ */
+class PipelineLog {
+
+    private static final String FILE_PREFIX = "pipeline-";
+    private static final String FILE_SUFFIX = ".wal";
+    private static final int HEADER = 2 * Integer.BYTES;
+
+    private final Path directory;
+    private final long maxFileSize;
+    private LogFile current = null;
+    private long nextId = 0;
+
+    static class LogFile {
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicInteger pending = new AtomicInteger(0);
+        private volatile boolean sealed = false;
+        private volatile boolean failed = false;
+
+        private LogFile(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    PipelineLog(Path directory, long maxFileSize) throws IOException {
+        this.directory = directory;
+        this.maxFileSize = maxFileSize;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Reads the writes of the existing log files, they are released like appended writes once they are applied.
+     */
+    List<CassandraWritePipeline.Write> recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        List<CassandraWritePipeline.Write> res = new ArrayList<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            nextId = Math.max(nextId, Long.parseLong(name.substring(FILE_PREFIX.length(),
+                    name.length() - FILE_SUFFIX.length())) + 1);
+            LogFile logFile = new LogFile(file, null);
+            logFile.sealed = true;
+            List<CassandraWritePipeline.Write> writes = read(file);
+            for (CassandraWritePipeline.Write write : writes) {
+                write.logFile = logFile;
+            }
+            logFile.pending.addAndGet(writes.size());
+            if (writes.isEmpty())
+                Files.deleteIfExists(file);
+            res.addAll(writes);
+        }
+        return res;
+    }
+
+    private static List<CassandraWritePipeline.Write> read(Path file) throws IOException {
+        List<CassandraWritePipeline.Write> res = new ArrayList<>();
+        ByteBuffer buff = ByteBuffer.wrap(Files.readAllBytes(file));
+        CRC32 crc = new CRC32();
+        while (buff.remaining() >= HEADER) {
+            int length = buff.getInt();
+            int checksum = buff.getInt();
+            if (length <= 0 || length > buff.remaining())
+                break;
+            crc.reset();
+            crc.update(buff.array(), buff.position(), length);
+            // a torn record at the end was never acknowledged
+            if ((int) crc.getValue() != checksum)
+                break;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(buff.array(), buff.position(), length));
+            byte table = in.readByte();
+            long uid = in.readLong();
+            String user = in.readUTF();
+            long key = in.readLong();
+            int version = in.readInt();
+            int k = in.readInt();
+            long timestamp = in.readLong();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            CassandraWritePipeline.Write write = new CassandraWritePipeline.Write(table, user, uid, key, version, k,
+                    ByteBuffer.wrap(data));
+            write.timestamp = timestamp;
+            res.add(write);
+            buff.position(buff.position() + length);
+        }
+        return res;
+    }
+
+    /**
+     * @return the body of the record up to the data, which follows it
+     */
+    private static byte[] encodeHeader(CassandraWritePipeline.Write write) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(write.table);
+        out.writeLong(write.uid);
+        out.writeUTF(write.user);
+        out.writeLong(write.key);
+        out.writeInt(write.version);
+        out.writeInt(write.k);
+        out.writeLong(write.timestamp);
+        out.writeInt(write.data.remaining());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Appends the writes and forces them to the disk.
+     */
+    void append(List<CassandraWritePipeline.Write> writes) throws IOException {
+        if (current == null || current.channel.size() >= maxFileSize)
+            rotate();
+        List<ByteBuffer> records = new ArrayList<>(2 * writes.size());
+        CRC32 crc = new CRC32();
+        for (CassandraWritePipeline.Write write : writes) {
+            // the data is written from its own buffer, it is not copied into the record
+            byte[] body = encodeHeader(write);
+            ByteBuffer data = write.data.duplicate();
+            crc.reset();
+            crc.update(body);
+            crc.update(data.duplicate());
+            ByteBuffer record = ByteBuffer.allocate(HEADER + body.length);
+            record.putInt(body.length + data.remaining()).putInt((int) crc.getValue()).put(body);
+            record.flip();
+            records.add(record);
+            records.add(data);
+        }
+        // the writes count as pending before they can be released by a fast cassandra
+        current.pending.addAndGet(writes.size());
+        for (CassandraWritePipeline.Write write : writes) {
+            write.logFile = current;
+        }
+        ByteBuffer[] buffers = records.toArray(new ByteBuffer[0]);
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= current.channel.write(buffers);
+        }
+        current.channel.force(false);
+    }
+
+    private void rotate() throws IOException {
+        LogFile old = current;
+        Path path = directory.resolve(String.format("%s%016d%s", FILE_PREFIX, nextId++, FILE_SUFFIX));
+        current = new LogFile(path, FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE));
+        if (old != null) {
+            old.channel.close();
+            old.sealed = true;
+            deleteIfApplied(old);
+        }
+    }
+
+    /**
+     * Marks a write of the file as applied to cassandra or as failed.
+     */
+    void release(LogFile file, boolean failed) {
+        if (failed)
+            file.failed = true;
+        if (file.pending.decrementAndGet() == 0 && file.sealed)
+            deleteIfApplied(file);
+    }
+
+    private static void deleteIfApplied(LogFile file) {
+        if (file.pending.get() != 0 || file.failed)
+            return;
+        try {
+            Files.deleteIfExists(file.path);
+        } catch (IOException e) {
+            // deleted at the next start after its writes were replayed
+        }
+    }
+
+    void close() throws IOException {
+        if (current != null) {
+            current.channel.close();
+            current.sealed = true;
+            deleteIfApplied(current);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db;
+
+import ch.ethz.dsg.timecrypt.crypto.CryptoContentFactory;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockIdUtil;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead log of the deferred tree writes. It holds the digests of the inserted leaves and checkpoints of
+ * the mutable right edges, the sealed nodes are in cassandra. Appends are forced to the disk in groups: a thread
+ * that forces the file covers the appends of all threads before it.
+ * <p>
+ * Record layout: int body length, int crc32 of the body, body: byte type, long uid, utf user, then for digests: int
+ * first chunk, int count, per leaf int number of contents and per content int length, content; for checkpoints:
+ * int k, int version, int number of nodes (the root first), per node long id, int version, int length, content.
+ */
+class TreeEdgeLog {
+
+    static final byte DIGESTS = 1;
+    static final byte CHECKPOINT = 2;
+    static final byte DROP = 3;
+
+    private static final String FILE_PREFIX = "tree-";
+    private static final String FILE_SUFFIX = ".wal";
+    private static final int HEADER = 2 * Integer.BYTES;
+
+    private final Path directory;
+    private final boolean sync;
+    private final Object forceLock = new Object();
+    private final List<Path> files = new ArrayList<>();
+    private FileChannel current = null;
+    private long nextId = 0;
+    // bytes appended and forced over all files, an append is durable once forced reaches its end
+    private long appended = 0;
+    private long forced = 0;
+
+    static class Record {
+        final byte type;
+        final String user;
+        final long uid;
+        int k;
+        // the first chunk of digests, the version of checkpoints
+        int version;
+        List<NodeContent[]> digests;
+        List<BlockNode> nodes;
+
+        Record(byte type, String user, long uid) {
+            this.type = type;
+            this.user = user;
+            this.uid = uid;
+        }
+    }
+
+    /**
+     * @param sync force the appends to the disk, without it they survive a crash of the process but not of the machine
+     */
+    TreeEdgeLog(Path directory, boolean sync) throws IOException {
+        this.directory = directory;
+        this.sync = sync;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Reads the records of the existing files in order and opens a new file for the appends.
+     */
+    synchronized List<Record> recover() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        List<Record> res = new ArrayList<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            nextId = Math.max(nextId, Long.parseLong(name.substring(FILE_PREFIX.length(),
+                    name.length() - FILE_SUFFIX.length())) + 1);
+            read(file, res);
+        }
+        open();
+        return res;
+    }
+
+    private static void read(Path file, List<Record> res) throws IOException {
+        ByteBuffer buff = ByteBuffer.wrap(Files.readAllBytes(file));
+        CRC32 crc = new CRC32();
+        while (buff.remaining() >= HEADER) {
+            int length = buff.getInt();
+            int checksum = buff.getInt();
+            if (length <= 0 || length > buff.remaining())
+                break;
+            crc.reset();
+            crc.update(buff.array(), buff.position(), length);
+            // a torn record at the end was never acknowledged
+            if ((int) crc.getValue() != checksum)
+                break;
+            res.add(decode(new DataInputStream(new ByteArrayInputStream(buff.array(), buff.position(), length))));
+            buff.position(buff.position() + length);
+        }
+    }
+
+    private static Record decode(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        long uid = in.readLong();
+        Record record = new Record(type, in.readUTF(), uid);
+        if (type == DIGESTS) {
+            record.version = in.readInt();
+            int count = in.readInt();
+            record.digests = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                NodeContent[] contents = new NodeContent[in.readInt()];
+                for (int j = 0; j < contents.length; j++) {
+                    contents[j] = CryptoContentFactory.decodeNodeContent(readBytes(in));
+                }
+                record.digests.add(contents);
+            }
+        } else if (type == CHECKPOINT) {
+            record.k = in.readInt();
+            record.version = in.readInt();
+            int count = in.readInt();
+            record.nodes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                int version = in.readInt();
+                record.nodes.add(new BlockNode(version, BlockIdUtil.getFrom(id), BlockIdUtil.getTo(id),
+                        BlockNode.decodeNodeContent(readBytes(in))));
+            }
+        }
+        return record;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return data;
+    }
+
+    private static DataOutputStream header(ByteArrayOutputStream bytes, byte type, String user, long uid)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeLong(uid);
+        out.writeUTF(user);
+        return out;
+    }
+
+    /**
+     * @return the position to force for the record
+     */
+    long appendDigests(String user, long uid, int firstChunk, List<NodeContent[]> digests) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + digests.size() * 64);
+        DataOutputStream out = header(bytes, DIGESTS, user, uid);
+        out.writeInt(firstChunk);
+        out.writeInt(digests.size());
+        for (NodeContent[] contents : digests) {
+            out.writeInt(contents.length);
+            for (NodeContent content : contents) {
+                byte[] data = content.encode();
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        }
+        return append(bytes.toByteArray());
+    }
+
+    long appendCheckpoint(String user, long uid, int k, int version, BlockNode root, Collection<BlockNode> nodes)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * (nodes.size() + 1));
+        DataOutputStream out = header(bytes, CHECKPOINT, user, uid);
+        out.writeInt(k);
+        out.writeInt(version);
+        out.writeInt(nodes.size() + 1);
+        writeNode(out, root);
+        for (BlockNode node : nodes) {
+            writeNode(out, node);
+        }
+        return append(bytes.toByteArray());
+    }
+
+    private static void writeNode(DataOutputStream out, BlockNode node) throws IOException {
+        byte[] data = node.encodeContent();
+        out.writeLong(node.getId());
+        out.writeInt(node.getVersion());
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    long appendDrop(String user, long uid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        header(bytes, DROP, user, uid);
+        return append(bytes.toByteArray());
+    }
+
+    private synchronized long append(byte[] body) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer record = ByteBuffer.allocate(HEADER + body.length);
+        record.putInt(body.length).putInt((int) crc.getValue()).put(body);
+        record.flip();
+        while (record.hasRemaining()) {
+            current.write(record);
+        }
+        appended += HEADER + body.length;
+        return appended;
+    }
+
+    /**
+     * Forces the file up to the given position, returns at once if an other thread already did.
+     */
+    void force(long position) throws IOException {
+        if (!sync)
+            return;
+        synchronized (forceLock) {
+            if (forced >= position)
+                return;
+            long target;
+            FileChannel channel;
+            synchronized (this) {
+                target = appended;
+                channel = current;
+            }
+            channel.force(false);
+            forced = Math.max(forced, target);
+        }
+    }
+
+    synchronized long size() throws IOException {
+        return current.size();
+    }
+
+    /**
+     * Starts a new file for the appends.
+     *
+     * @return the older files, they can be deleted once their content is checkpointed into the new one
+     */
+    List<Path> rotate() throws IOException {
+        synchronized (forceLock) {
+            synchronized (this) {
+                List<Path> old = new ArrayList<>(files);
+                FileChannel previous = current;
+                if (sync)
+                    previous.force(false);
+                forced = appended;
+                previous.close();
+                open();
+                return old;
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        Path path = directory.resolve(String.format("%s%016d%s", FILE_PREFIX, nextId++, FILE_SUFFIX));
+        current = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        files.add(path);
+    }
+
+    synchronized void delete(List<Path> old) throws IOException {
+        for (Path file : old) {
+            Files.deleteIfExists(file);
+            files.remove(file);
+        }
+    }
+
+    void close() throws IOException {
+        synchronized (forceLock) {
+            synchronized (this) {
+                if (sync)
+                    current.force(false);
+                forced = appended;
+                current.close();
+            }
+        }
+    }
+}
@@ -10,13 +10,14 @@ import ch.ethz.dsg.timecrypt.index.IStorage;
 import ch.ethz.dsg.timecrypt.index.KeyUtil;
 import ch.ethz.dsg.timecrypt.exceptions.TimeCryptStorageException;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class DebugStorage implements IStorage {
 
-    public Map<String, byte[]> keys = new HashMap<String, byte[]>();
+    public Map<String, ByteBuffer> keys = new HashMap<String, ByteBuffer>();
 
     public Chunk getChunk(String key) {
         return new Chunk(KeyUtil.returnID(key), keys.get(key));
@@ -32,7 +33,7 @@ public class DebugStorage implements IStorage {
     }
 
     public boolean putChunk(String key, Chunk chunk) {
-        keys.put(key, chunk.getData());
+        keys.put(key, chunk.getBuffer());
         return true;
     }
 
@@ -42,7 +43,7 @@ public class DebugStorage implements IStorage {
 
     @Override
     public boolean deleteChunk(long uid, String owner, int key) throws TimeCryptStorageException {
-        byte[] before = keys.remove(KeyUtil.deriveKey(uid, owner, key));
+        ByteBuffer before = keys.remove(KeyUtil.deriveKey(uid, owner, key));
         return before != null;
     }
 
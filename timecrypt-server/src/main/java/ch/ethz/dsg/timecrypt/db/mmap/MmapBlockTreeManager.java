@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db.mmap;
+
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeAlreadyExistsException;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
+import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
+import ch.ethz.dsg.timecrypt.index.blockindex.IBlockTreeFetcher;
+import ch.ethz.dsg.timecrypt.index.blockindex.INodeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.UpdateSummary;
+import ch.ethz.dsg.timecrypt.index.blockindex.VersionWaiters;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockIdUtil;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.MetaInnerNode;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the trees in a memory-mapped database. The trees are loaded lazily from their committed root, the decoded
+ * nodes are kept in a bounded cache and every update of a root is committed to the write-ahead log of the database.
+ */
+public class MmapBlockTreeManager implements IBlockTreeFetcher {
+
+    private final MmapDatabase db;
+    private final Map<String, BlockTree> treeMap = new ConcurrentHashMap<>();
+    private final Cache<NodeKey, BlockNode> nodeCache;
+
+    public MmapBlockTreeManager(MmapDatabase db, int cacheSize) {
+        this.db = db;
+        this.nodeCache = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .build();
+    }
+
+    private static String deductKeyTree(long uid, String user) {
+        return String.format("%d|%s", uid, user);
+    }
+
+    private static byte[] encode(BlockNode node) {
+        byte[] meta = node.encodeContent();
+        ByteBuffer buff = ByteBuffer.allocate(meta.length + 4);
+        buff.putInt(node.getVersion());
+        buff.put(meta);
+        return buff.array();
+    }
+
+    private static BlockNode decode(long blockId, byte[] content) throws InvalidProtocolBufferException {
+        ByteBuffer buff = ByteBuffer.wrap(content);
+        int version = buff.getInt();
+        byte[] cont = new byte[content.length - 4];
+        System.arraycopy(content, 4, cont, 0, cont.length);
+        MetaInnerNode[] meta = BlockNode.decodeNodeContent(cont);
+        return new BlockNode(version, BlockIdUtil.getFrom(blockId), BlockIdUtil.getTo(blockId), meta);
+    }
+
+    public boolean treeExists(long uid, String user) {
+        MmapDatabase.Stream stream = db.getTree(uid, user);
+        return stream != null && stream.committedSequence >= 0;
+    }
+
+    @Override
+    public BlockTree createTree(long uid, String user, int k, int interval) throws Exception {
+        MmapDatabase.Stream stream = db.createTree(uid, user);
+        if (stream == null)
+            throw new TimeCryptTreeAlreadyExistsException("Stream already exists.", 1);
+        BlockNode newRoot = new BlockNode(0, 0, interval * k, k);
+        MmapNodeManager nodeMan = new MmapNodeManager(user, uid, stream);
+        BlockTree tree = new BlockTree(k, newRoot, nodeMan);
+        nodeMan.commit(List.of(newRoot));
+        treeMap.put(deductKeyTree(uid, user), tree);
+        return tree;
+    }
+
+    @Override
+    public BlockTree fetchNewestTreeAndAwait(long uid, String user) throws Exception {
+        return fetchTree(uid, user);
+    }
+
+    @Override
+    public BlockTree fetchTreeMinVersion(long uid, String user, int minVersion) throws Exception {
+        return fetchTree(uid, user);
+    }
+
+    @Override
+    public BlockTree fetchTree(long uid, String user) throws Exception {
+        String key = deductKeyTree(uid, user);
+        BlockTree tree = treeMap.get(key);
+        if (tree != null)
+            return tree;
+        synchronized (treeMap) {
+            tree = treeMap.get(key);
+            if (tree != null)
+                return tree;
+            MmapDatabase.Stream stream = db.getTree(uid, user);
+            if (stream == null || stream.committedSequence < 0)
+                return null;
+            MmapNodeManager nodeMan = new MmapNodeManager(user, uid, stream);
+            BlockNode root = nodeMan.loadNode(stream.rootId);
+            tree = new BlockTree(root.getK(), root, nodeMan);
+            treeMap.put(key, tree);
+            return tree;
+        }
+    }
+
+    @Override
+    public void invalidateCache() {
+        nodeCache.invalidateAll();
+    }
+
+    @Override
+    public void deleteTree(long uid, String user) throws Exception {
+        BlockTree tree;
+        synchronized (treeMap) {
+            tree = treeMap.remove(deductKeyTree(uid, user));
+            db.dropTree(uid, user);
+        }
+        if (tree != null)
+            nodeCache.asMap().keySet().removeIf(key -> key.tree == tree.man);
+    }
+
+    @Override
+    public CompletableFuture<BlockNode> awaitNodeVersion(long uid, String user, long blockid, int minVersion)
+            throws Exception {
+        BlockTree tree = fetchTree(uid, user);
+        if (tree == null)
+            return CompletableFuture.failedFuture(new RuntimeException("Tree does not exist"));
+        return tree.man.awaitNodeVersion(blockid, minVersion);
+    }
+
+    @Override
+    public CompletableFuture<BlockTree> awaitTreeVersion(long uid, String user, int minVersion) throws Exception {
+        BlockTree tree = fetchTree(uid, user);
+        if (tree == null)
+            return CompletableFuture.failedFuture(new RuntimeException("Tree does not exist"));
+        return tree.man.awaitTreeVersion(minVersion).thenApply(root -> tree);
+    }
+
+    private static class NodeKey {
+        private final MmapNodeManager tree;
+        private final long blockId;
+
+        NodeKey(MmapNodeManager tree, long blockId) {
+            this.tree = tree;
+            this.blockId = blockId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof NodeKey))
+                return false;
+            NodeKey other = (NodeKey) obj;
+            return other.tree == this.tree && other.blockId == this.blockId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(tree) + Long.hashCode(blockId);
+        }
+    }
+
+    private static long[] ids(List<BlockNode> nodes) {
+        long[] ids = new long[nodes.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = nodes.get(i).getId();
+        }
+        return ids;
+    }
+
+    private static List<byte[]> encodeAll(List<BlockNode> nodes) {
+        List<byte[]> encoded = new ArrayList<>(nodes.size());
+        for (BlockNode node : nodes) {
+            encoded.add(encode(node));
+        }
+        return encoded;
+    }
+
+    public class MmapNodeManager implements INodeManager {
+
+        private final String user;
+        private final long id;
+        private final MmapDatabase.Stream stream;
+        private final VersionWaiters<BlockNode> nodeWaiters = new VersionWaiters<>(BlockNode::getVersion);
+        private final VersionWaiters<BlockNode> treeWaiters = new VersionWaiters<>(BlockNode::getVersion);
+
+        MmapNodeManager(String user, long id, MmapDatabase.Stream stream) {
+            this.user = user;
+            this.id = id;
+            this.stream = stream;
+        }
+
+        /**
+         * Writes the nodes and commits the last one as the new root.
+         */
+        private void commit(List<BlockNode> nodes) throws IOException {
+            BlockNode root = nodes.get(nodes.size() - 1);
+            db.commitNodes(stream, ids(nodes), encodeAll(nodes), root.getVersion());
+            for (BlockNode node : nodes) {
+                cacheNode(node);
+            }
+        }
+
+        /**
+         * Keeps the newer version if a reader caches a node that it decoded before a writer stored a newer one.
+         */
+        private void cacheNode(BlockNode node) {
+            nodeCache.asMap().merge(new NodeKey(this, node.getId()), node,
+                    (cached, fresh) -> (cached.getVersion() >= fresh.getVersion()) ? cached : fresh);
+        }
+
+        @Override
+        public BlockNode loadNode(long blockId) {
+            BlockNode node = nodeCache.getIfPresent(new NodeKey(this, blockId));
+            if (node != null)
+                return node;
+            byte[] data = db.read(stream, blockId);
+            if (data == null)
+                return null;
+            try {
+                node = decode(blockId, data);
+            } catch (InvalidProtocolBufferException e) {
+                throw new RuntimeException("Could not decode node " + blockId, e);
+            }
+            cacheNode(node);
+            return node;
+        }
+
+        @Override
+        public void pushUpdates(UpdateSummary summary) throws IOException {
+            BlockTree tree = treeMap.get(deductKeyTree(this.id, this.user));
+            if (tree == null)
+                throw new TimeCryptTreeException("Tree does not exists", 1);
+            // the nodes have to be durable before the root that references them
+            List<BlockNode> nodes = new ArrayList<>(summary.getNewNodes().size() + 1);
+            nodes.addAll(summary.getNewNodes());
+            nodes.add(summary.getNewRoot());
+            commit(nodes);
+            tree.root = summary.getNewRoot();
+            for (BlockNode node : nodes) {
+                nodeWaiters.publish(node.getId(), node);
+            }
+            treeWaiters.publish(0, tree.root);
+        }
+
+        @Override
+        public void writeNodes(List<BlockNode> nodes) throws IOException {
+            db.appendNodes(stream, ids(nodes), encodeAll(nodes));
+            for (BlockNode node : nodes) {
+                cacheNode(node);
+                nodeWaiters.publish(node.getId(), node);
+            }
+        }
+
+        @Override
+        public void updateToLatest(BlockTree tree) {
+            BlockTree actualTree = treeMap.get(deductKeyTree(this.id, this.user));
+            tree.root = actualTree.root;
+        }
+
+        @Override
+        public BlockNode loadNodeWithMinVersion(long blockid, int version) {
+            BlockNode node = loadNode(blockid);
+            if (node != null && node.getVersion() < version) {
+                nodeCache.invalidate(new NodeKey(this, blockid));
+                node = loadNode(blockid);
+            }
+            return node;
+        }
+
+        @Override
+        public BlockNode loadNodeWithVersionForInsert(long blockid, int version) {
+            return loadNode(blockid);
+        }
+
+        @Override
+        public void updateToLatest(BlockTree tree, int minVersion) {
+            this.updateToLatest(tree);
+        }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitNodeVersion(long blockid, int minVersion) {
+            return nodeWaiters.await(blockid, minVersion, () -> loadNode(blockid));
+        }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitTreeVersion(int minVersion) {
+            BlockTree tree = treeMap.get(deductKeyTree(this.id, this.user));
+            if (tree == null)
+                return CompletableFuture.failedFuture(new TimeCryptTreeException("Tree does not exists", 1));
+            return treeWaiters.await(0, minVersion, () -> tree.root);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db.mmap;
+
+import ch.ethz.dsg.timecrypt.db.offheap.LongAddressMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Embedded single-node storage for tree nodes and chunks. Nodes and chunks are appended to memory-mapped segment
+ * files, the streams and the committed tree roots are kept in a write-ahead log. On startup the log is replayed and
+ * the segments are scanned to rebuild the in memory indexes. Node records that were written after the last committed
+ * root of their tree are ignored, so a tree always recovers to a consistent version.
+ * <p>
+ * A background task compacts the sealed segments that are mostly garbage by copying their live records to the end of
+ * the log. Without sync, the data survives a crash of the process but not of the machine.
+ */
+public class MmapDatabase implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MmapDatabase.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    private static final long CHECKPOINT_SIZE = 64 << 20;
+    private static final double COMPACTION_LIVE_RATIO = 0.5;
+    private static final long COMPACTION_INTERVAL_SECONDS = 10;
+
+    private static final byte OPEN_TREE = 1;
+    private static final byte OPEN_CHUNKS = 2;
+    private static final byte COMMIT_ROOT = 3;
+    private static final byte DROP = 4;
+
+    private final SegmentLog log;
+    private final TreeLog treeLog;
+    private final boolean sync;
+    private final Map<String, Stream> trees = new ConcurrentHashMap<>();
+    private final Map<String, Stream> chunkStreams = new ConcurrentHashMap<>();
+    private final Map<Long, Stream> streamsByNumber = new ConcurrentHashMap<>();
+    private long nextStreamNumber = 0;
+    private final ScheduledExecutorService compactor;
+
+    static class Stream {
+        final long number;
+        final long uid;
+        final String owner;
+        final boolean tree;
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        final LongAddressMap index = new LongAddressMap();
+        boolean dropped = false;
+        // guarded by the tree log
+        long rootId = -1;
+        int rootVersion = -1;
+        volatile long committedSequence = -1;
+
+        Stream(long number, long uid, String owner, boolean tree) {
+            this.number = number;
+            this.uid = uid;
+            this.owner = owner;
+            this.tree = tree;
+        }
+    }
+
+    public MmapDatabase(Path directory, int segmentSize, boolean sync) throws IOException {
+        this.log = new SegmentLog(directory, segmentSize);
+        this.treeLog = new TreeLog(directory, sync);
+        this.sync = sync;
+        recover();
+        this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "timecrypt-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactQuietly, COMPACTION_INTERVAL_SECONDS,
+                COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public MmapDatabase(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, false);
+    }
+
+    private static String deductKeyStream(long uid, String owner) {
+        return uid + "|" + owner;
+    }
+
+    private void recover() throws IOException {
+        treeLog.replay(body -> {
+            byte type = body.readByte();
+            long number = body.readLong();
+            nextStreamNumber = Math.max(nextStreamNumber, number + 1);
+            switch (type) {
+                case OPEN_TREE:
+                case OPEN_CHUNKS:
+                    register(new Stream(number, body.readLong(), body.readUTF(), type == OPEN_TREE));
+                    break;
+                case COMMIT_ROOT:
+                    Stream stream = streamsByNumber.get(number);
+                    // a log written before drops were ordered after the commits can name a dropped stream
+                    if (stream == null) {
+                        LOGGER.warn("Skipping the commit of the unknown stream " + number);
+                        break;
+                    }
+                    stream.rootId = body.readLong();
+                    stream.rootVersion = body.readInt();
+                    stream.committedSequence = body.readLong();
+                    break;
+                case DROP:
+                    if (streamsByNumber.containsKey(number))
+                        unregister(streamsByNumber.get(number));
+                    break;
+                default:
+                    throw new IOException("Unknown tree log record " + type);
+            }
+        });
+        log.recover((kind, number, key, sequence, address, size) -> {
+            // the numbers of dropped streams are not in the checkpoint but their records can still be in the segments
+            nextStreamNumber = Math.max(nextStreamNumber, number + 1);
+            Stream stream = streamsByNumber.get(number);
+            if (stream == null || (stream.tree && sequence > stream.committedSequence))
+                return;
+            long current = stream.index.get(key);
+            if (current != LongAddressMap.NO_ADDRESS && log.sequenceOf(current) >= sequence)
+                return;
+            stream.index.put(key, address);
+            log.markLive(address);
+            if (current != LongAddressMap.NO_ADDRESS)
+                log.markDead(current);
+        });
+        synchronized (treeLog) {
+            treeLog.checkpoint(snapshot());
+        }
+        LOGGER.info("Recovered " + trees.size() + " trees and " + chunkStreams.size() + " chunk streams from "
+                + log.getNumSegments() + " segments");
+    }
+
+    private void register(Stream stream) {
+        streamsByNumber.put(stream.number, stream);
+        (stream.tree ? trees : chunkStreams).put(deductKeyStream(stream.uid, stream.owner), stream);
+    }
+
+    private void unregister(Stream stream) {
+        streamsByNumber.remove(stream.number);
+        (stream.tree ? trees : chunkStreams).remove(deductKeyStream(stream.uid, stream.owner));
+    }
+
+    private static byte[] openRecord(Stream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(stream.tree ? OPEN_TREE : OPEN_CHUNKS);
+        out.writeLong(stream.number);
+        out.writeLong(stream.uid);
+        out.writeUTF(stream.owner);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] commitRecord(Stream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(COMMIT_ROOT);
+        out.writeLong(stream.number);
+        out.writeLong(stream.rootId);
+        out.writeInt(stream.rootVersion);
+        out.writeLong(stream.committedSequence);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] dropRecord(Stream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(DROP);
+        out.writeLong(stream.number);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The current state of the streams as tree log records, has to be called while holding the tree log.
+     */
+    private List<byte[]> snapshot() throws IOException {
+        List<byte[]> res = new ArrayList<>();
+        for (Stream stream : streamsByNumber.values()) {
+            res.add(openRecord(stream));
+            if (stream.tree && stream.committedSequence >= 0)
+                res.add(commitRecord(stream));
+        }
+        return res;
+    }
+
+    private Stream openStream(long uid, String owner, boolean tree) throws IOException {
+        synchronized (treeLog) {
+            Stream stream = new Stream(nextStreamNumber++, uid, owner, tree);
+            treeLog.append(openRecord(stream));
+            register(stream);
+            return stream;
+        }
+    }
+
+    private void dropStream(Map<String, Stream> streams, long uid, String owner) throws IOException {
+        Stream stream = streams.get(deductKeyStream(uid, owner));
+        if (stream == null)
+            return;
+        // a commit of the stream holds its lock while it appends to the tree log, so it cannot log its root after
+        // the drop
+        stream.lock.writeLock().lock();
+        try {
+            if (stream.dropped)
+                return;
+            synchronized (treeLog) {
+                treeLog.append(dropRecord(stream));
+                unregister(stream);
+            }
+            stream.dropped = true;
+            stream.index.forEachAddress(log::markDead);
+        } finally {
+            stream.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Creates a new tree stream, the root has to be committed before the tree is used. A tree whose root was never
+     * committed is reused.
+     *
+     * @return the stream or null if the tree exists
+     */
+    Stream createTree(long uid, String owner) throws IOException {
+        synchronized (treeLog) {
+            Stream stream = trees.get(deductKeyStream(uid, owner));
+            if (stream != null)
+                return (stream.committedSequence < 0) ? stream : null;
+            return openStream(uid, owner, true);
+        }
+    }
+
+    Stream getTree(long uid, String owner) {
+        return trees.get(deductKeyStream(uid, owner));
+    }
+
+    void dropTree(long uid, String owner) throws IOException {
+        dropStream(trees, uid, owner);
+    }
+
+    private void appendLocked(Stream stream, byte kind, long key, ByteBuffer data) throws IOException {
+        if (stream.dropped)
+            throw new IOException("Stream was deleted");
+        long address = log.append(kind, stream.number, key, log.newSequence(), data);
+        long before = stream.index.put(key, address);
+        log.markLive(address);
+        if (before != LongAddressMap.NO_ADDRESS)
+            log.markDead(before);
+    }
+
+    /**
+     * Writes nodes that only become part of the tree with a later commit.
+     */
+    void appendNodes(Stream stream, long[] ids, List<byte[]> nodes) throws IOException {
+        stream.lock.writeLock().lock();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                appendLocked(stream, SegmentLog.NODE, ids[i], ByteBuffer.wrap(nodes.get(i)));
+            }
+        } finally {
+            stream.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the nodes and commits the new root, which has to be the last node.
+     */
+    void commitNodes(Stream stream, long[] ids, List<byte[]> nodes, int rootVersion) throws IOException {
+        stream.lock.writeLock().lock();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                appendLocked(stream, SegmentLog.NODE, ids[i], ByteBuffer.wrap(nodes.get(i)));
+            }
+            if (sync)
+                log.force();
+            synchronized (treeLog) {
+                stream.rootId = ids[ids.length - 1];
+                stream.rootVersion = rootVersion;
+                stream.committedSequence = log.sequenceOf(stream.index.get(stream.rootId));
+                treeLog.append(commitRecord(stream));
+                if (treeLog.size() > CHECKPOINT_SIZE)
+                    treeLog.checkpoint(snapshot());
+            }
+        } finally {
+            stream.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the data or null if the key does not exist or was deleted
+     */
+    byte[] read(Stream stream, long key) {
+        stream.lock.readLock().lock();
+        try {
+            long address = stream.index.get(key);
+            return (address == LongAddressMap.NO_ADDRESS) ? null : log.read(address);
+        } finally {
+            stream.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends the remaining bytes of the data as the chunk, they are copied straight into the segment.
+     */
+    void putChunk(long uid, String owner, int key, ByteBuffer data) throws IOException {
+        Stream stream = chunkStreams.get(deductKeyStream(uid, owner));
+        if (stream == null) {
+            synchronized (treeLog) {
+                stream = chunkStreams.get(deductKeyStream(uid, owner));
+                if (stream == null)
+                    stream = openStream(uid, owner, false);
+            }
+        }
+        stream.lock.writeLock().lock();
+        try {
+            appendLocked(stream, SegmentLog.CHUNK, key, data);
+            if (sync)
+                log.force();
+        } finally {
+            stream.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the chunk stream or null
+     */
+    Stream getChunks(long uid, String owner) {
+        return chunkStreams.get(deductKeyStream(uid, owner));
+    }
+
+    /**
+     * Writes a tombstone, it is kept in the index and survives compaction, so an older record of the chunk is not
+     * found again by the recovery.
+     */
+    boolean deleteChunk(long uid, String owner, int key) throws IOException {
+        Stream stream = chunkStreams.get(deductKeyStream(uid, owner));
+        if (stream == null)
+            return false;
+        stream.lock.writeLock().lock();
+        try {
+            long address = stream.index.get(key);
+            if (address == LongAddressMap.NO_ADDRESS || log.read(address) == null)
+                return false;
+            appendLocked(stream, SegmentLog.CHUNK, key, null);
+            return true;
+        } finally {
+            stream.lock.writeLock().unlock();
+        }
+    }
+
+    void dropChunks(long uid, String owner) throws IOException {
+        dropStream(chunkStreams, uid, owner);
+    }
+
+    /**
+     * Copies the live records of sparse sealed segments to the end of the log and deletes the segments.
+     */
+    public void compact() throws IOException {
+        for (int id : log.compactionCandidates(COMPACTION_LIVE_RATIO)) {
+            log.forEachRecord(id, (kind, number, key, sequence, address, size) -> {
+                Stream stream = streamsByNumber.get(number);
+                if (stream == null)
+                    return;
+                stream.lock.writeLock().lock();
+                try {
+                    long current = stream.index.get(key);
+                    if (stream.dropped)
+                        return;
+                    if (current == address) {
+                        long copy = log.copy(address);
+                        stream.index.put(key, copy);
+                        log.markLive(copy);
+                    } else if (stream.tree && current != LongAddressMap.NO_ADDRESS
+                            && log.sequenceOf(current) > stream.committedSequence) {
+                        // the replacement is not committed yet, the recovery could still need this version
+                        log.copy(address);
+                    }
+                } finally {
+                    stream.lock.writeLock().unlock();
+                }
+            });
+            if (sync)
+                log.force();
+            log.dropSegment(id);
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (Exception e) {
+            LOGGER.error("Segment compaction failed", e);
+        }
+    }
+
+    public int getNumSegments() {
+        return log.getNumSegments();
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+        treeLog.close();
+    }
+}
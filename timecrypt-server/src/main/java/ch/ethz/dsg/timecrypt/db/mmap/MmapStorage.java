@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db.mmap;
+
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptStorageException;
+import ch.ethz.dsg.timecrypt.index.Chunk;
+import ch.ethz.dsg.timecrypt.index.IStorage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores the chunks in the segments of a memory-mapped database.
+ */
+public class MmapStorage implements IStorage {
+
+    private final MmapDatabase db;
+
+    public MmapStorage(MmapDatabase db) {
+        this.db = db;
+    }
+
+    @Override
+    public Chunk getChunk(long uid, String owner, int key) throws TimeCryptStorageException {
+        MmapDatabase.Stream stream = db.getChunks(uid, owner);
+        if (stream == null)
+            return null;
+        byte[] data = db.read(stream, key);
+        return (data == null) ? null : new Chunk(key, data);
+    }
+
+    @Override
+    public List<Chunk> getChunks(long uid, String owner, int from, int to) throws TimeCryptStorageException {
+        MmapDatabase.Stream stream = db.getChunks(uid, owner);
+        if (stream == null)
+            throw new TimeCryptStorageException("No Chunk found", 1);
+        List<Chunk> chunks = new ArrayList<>(Math.max(0, to - from));
+        for (int key = from; key < to; key++) {
+            byte[] data = db.read(stream, key);
+            if (data != null)
+                chunks.add(new Chunk(key, data));
+        }
+        return chunks;
+    }
+
+    @Override
+    public boolean putChunk(long uid, String owner, Chunk chunk) throws TimeCryptStorageException {
+        try {
+            db.putChunk(uid, owner, chunk.getStorageKey(), chunk.getBuffer());
+        } catch (IOException e) {
+            throw new TimeCryptStorageException("Could not write chunk: " + e.getMessage(), 1);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean deleteChunk(long uid, String owner, int key) throws TimeCryptStorageException {
+        try {
+            return db.deleteChunk(uid, owner, key);
+        } catch (IOException e) {
+            throw new TimeCryptStorageException("Could not delete chunk: " + e.getMessage(), 1);
+        }
+    }
+
+    @Override
+    public boolean deleteALL(long uid, String owner) throws TimeCryptStorageException {
+        try {
+            db.dropChunks(uid, owner);
+        } catch (IOException e) {
+            throw new TimeCryptStorageException("Could not delete chunks: " + e.getMessage(), 1);
+        }
+        return true;
+    }
+}
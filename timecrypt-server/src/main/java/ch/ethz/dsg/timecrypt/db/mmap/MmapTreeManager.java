@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db.mmap;
+
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeAlreadyExistsException;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
+import ch.ethz.dsg.timecrypt.index.ITreeManager;
+import ch.ethz.dsg.timecrypt.index.IndexType;
+import ch.ethz.dsg.timecrypt.index.UserStreamTree;
+import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
+
+public class MmapTreeManager implements ITreeManager {
+
+    private final int k;
+    private final MmapBlockTreeManager blockTree;
+
+    public MmapTreeManager(MmapBlockTreeManager blockTree) {
+        this(blockTree, 64);
+    }
+
+    public MmapTreeManager(MmapBlockTreeManager blockTree, int k) {
+        this.blockTree = blockTree;
+        this.k = k;
+    }
+
+    @Override
+    public UserStreamTree createTree(long uid, String user) throws TimeCryptTreeException {
+        return createTree(uid, user, IndexType.BLOCK_TREE);
+    }
+
+    @Override
+    public UserStreamTree createTree(long uid, String user, IndexType indexType) throws TimeCryptTreeException {
+        if (indexType != IndexType.BLOCK_TREE)
+            throw new TimeCryptTreeException("Index type " + indexType + " is not supported with mmap", 1);
+        UserStreamTree result = null;
+        try {
+            if (blockTree.treeExists(uid, user))
+                throw new TimeCryptTreeAlreadyExistsException("Stream already exists.", 1);
+            BlockTree tree = blockTree.createTree(uid, user, k, 1);
+            result = new UserStreamTree(user, uid, tree);
+        } catch (Exception e) {
+            throw new TimeCryptTreeException(e.getMessage(), 1);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean deleteTree(long uid, String user) throws TimeCryptTreeException {
+        try {
+            blockTree.deleteTree(uid, user);
+        } catch (Exception e) {
+            throw new TimeCryptTreeException(e.getMessage(), 1);
+        }
+        return true;
+    }
+
+    @Override
+    public UserStreamTree getTreeForUser(long uid, String user) throws TimeCryptTreeException {
+        BlockTree tree;
+        try {
+            tree = blockTree.fetchTree(uid, user);
+        } catch (Exception e) {
+            throw new TimeCryptTreeException(e.getMessage(), 1);
+        }
+        if (tree == null)
+            throw new TimeCryptTreeException("Tree does not exists", 1);
+        return new UserStreamTree(user, uid, tree);
+    }
+
+    @Override
+    public UserStreamTree getTreeForUser(long uid, String user, int minVersion) throws TimeCryptTreeException {
+        return getTreeForUser(uid, user);
+    }
+
+    @Override
+    public void invalidateCache() {
+        blockTree.invalidateCache();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db.mmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An append-only segment file that is mapped into memory. The file has a fixed size and is zero filled, a record
+ * with length 0 marks the end of the written part.
+ */
+class Segment {
+
+    final int id;
+    final Path path;
+    final int capacity;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private volatile int writePosition = 0;
+    final AtomicLong liveBytes = new AtomicLong(0);
+
+    private Segment(int id, Path path, FileChannel channel, int capacity) throws IOException {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.capacity = capacity;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    static Segment create(Path path, int id, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new Segment(id, path, channel, capacity);
+    }
+
+    static Segment open(Path path, int id) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, path, channel, (int) channel.size());
+    }
+
+    int getWritePosition() {
+        return writePosition;
+    }
+
+    void setWritePosition(int writePosition) {
+        this.writePosition = writePosition;
+    }
+
+    boolean hasSpace(int length) {
+        return writePosition + length <= capacity;
+    }
+
+    /**
+     * Appends the record, the caller has to check for space and must hold the append lock of the log.
+     *
+     * @return the offset of the record
+     */
+    int append(ByteBuffer record) {
+        int offset = writePosition;
+        ByteBuffer buff = buffer.duplicate();
+        buff.position(offset);
+        buff.put(record);
+        writePosition = buff.position();
+        return offset;
+    }
+
+    /**
+     * A view of the segment starting at the given offset.
+     */
+    ByteBuffer view(int offset) {
+        ByteBuffer buff = buffer.duplicate();
+        buff.position(offset);
+        return buff;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void closeAndDelete() throws IOException {
+        channel.close();
+        // the mapping stays valid until the buffer is collected, so late readers do not fault
+        Files.deleteIfExists(path);
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+}
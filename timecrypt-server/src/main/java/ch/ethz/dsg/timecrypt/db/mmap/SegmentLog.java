@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db.mmap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Log of records in memory-mapped segment files. A record is addressed by the segment id in the upper and the offset
+ * in the lower 32 bits. Records are never changed, a newer record of the same key has a higher sequence number.
+ * <p>
+ * Record layout: int body length, int crc32 of the body, body: byte kind, long stream, long key, long sequence,
+ * int data length (-1 for a tombstone), data.
+ */
+class SegmentLog implements Closeable {
+
+    static final byte NODE = 1;
+    static final byte CHUNK = 2;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER = 2 * Integer.BYTES;
+    private static final int BODY_HEADER = 1 + 3 * Long.BYTES + Integer.BYTES;
+    private static final int SEQUENCE_OFFSET = HEADER + 1 + 2 * Long.BYTES;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private final List<Segment> unsynced = new ArrayList<>();
+    private Segment active = null;
+    private int nextId = 0;
+    private long nextSequence = 0;
+
+    interface RecordVisitor {
+        void visit(byte kind, long stream, long key, long sequence, long address, int size) throws IOException;
+    }
+
+    SegmentLog(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(id, Segment.open(file, id));
+                nextId = Math.max(nextId, id + 1);
+            }
+        }
+    }
+
+    static long addressOf(int segment, int offset) {
+        return (((long) segment) << 32) | offset;
+    }
+
+    static int segmentOf(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    /**
+     * Scans all records of the existing segments in segment order and finds the end of every segment. A record with
+     * a wrong checksum ends a segment, it is the torn tail of a write that did not complete.
+     */
+    void recover(RecordVisitor visitor) throws IOException {
+        List<Integer> ids = new ArrayList<>(segments.keySet());
+        Collections.sort(ids);
+        for (int id : ids) {
+            Segment segment = segments.get(id);
+            segment.setWritePosition(scan(segment, 0, visitor));
+        }
+    }
+
+    /**
+     * Visits the records of a segment.
+     */
+    void forEachRecord(int id, RecordVisitor visitor) throws IOException {
+        Segment segment = segments.get(id);
+        if (segment != null)
+            scan(segment, 0, visitor);
+    }
+
+    private int scan(Segment segment, int offset, RecordVisitor visitor) throws IOException {
+        CRC32 crc = new CRC32();
+        while (offset + HEADER + BODY_HEADER <= segment.capacity) {
+            ByteBuffer buff = segment.view(offset);
+            int length = buff.getInt();
+            int checksum = buff.getInt();
+            if (length < BODY_HEADER || offset + HEADER + length > segment.capacity)
+                break;
+            ByteBuffer body = buff.slice();
+            body.limit(length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum)
+                break;
+            byte kind = body.get();
+            long stream = body.getLong();
+            long key = body.getLong();
+            long sequence = body.getLong();
+            synchronized (this) {
+                nextSequence = Math.max(nextSequence, sequence + 1);
+            }
+            visitor.visit(kind, stream, key, sequence, addressOf(segment.id, offset), HEADER + length);
+            offset += HEADER + length;
+        }
+        return offset;
+    }
+
+    synchronized long newSequence() {
+        return nextSequence++;
+    }
+
+    /**
+     * Appends a record with the given sequence number.
+     *
+     * @param data the data or null for a tombstone
+     * @return the address of the record
+     */
+    long append(byte kind, long stream, long key, long sequence, byte[] data) throws IOException {
+        return append(kind, stream, key, sequence, (data == null) ? null : ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Appends a record with the given sequence number. The remaining bytes of the data are copied straight into the
+     * segment, the position of the data is not changed.
+     *
+     * @param data the data or null for a tombstone
+     * @return the address of the record
+     */
+    synchronized long append(byte kind, long stream, long key, long sequence, ByteBuffer data) throws IOException {
+        int dataLength = (data == null) ? -1 : data.remaining();
+        int length = BODY_HEADER + Math.max(0, dataLength);
+        ByteBuffer header = ByteBuffer.allocate(HEADER + BODY_HEADER);
+        header.position(HEADER);
+        header.put(kind).putLong(stream).putLong(key).putLong(sequence).putInt(dataLength);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), HEADER, BODY_HEADER);
+        if (data != null)
+            crc.update(data.duplicate());
+        header.putInt(0, length);
+        header.putInt(Integer.BYTES, (int) crc.getValue());
+        header.flip();
+
+        if (active == null || !active.hasSpace(HEADER + length)) {
+            if (active != null && !unsynced.contains(active))
+                unsynced.add(active);
+            int id = nextId++;
+            active = Segment.create(directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)),
+                    id, Math.max(segmentSize, HEADER + length + HEADER));
+            segments.put(id, active);
+        }
+        int offset = active.append(header);
+        if (data != null)
+            active.append(data.duplicate());
+        return addressOf(active.id, offset);
+    }
+
+    /**
+     * Copies a record to the active segment with its original sequence number.
+     */
+    long copy(long address) throws IOException {
+        ByteBuffer body = segments.get(segmentOf(address)).view(offsetOf(address) + HEADER);
+        byte kind = body.get();
+        long stream = body.getLong();
+        long key = body.getLong();
+        long sequence = body.getLong();
+        return append(kind, stream, key, sequence, read(address));
+    }
+
+    /**
+     * @return the data of the record or null for a tombstone
+     */
+    byte[] read(long address) {
+        ByteBuffer buff = segments.get(segmentOf(address)).view(offsetOf(address) + HEADER + BODY_HEADER
+                - Integer.BYTES);
+        int length = buff.getInt();
+        if (length < 0)
+            return null;
+        byte[] data = new byte[length];
+        buff.get(data);
+        return data;
+    }
+
+    long sequenceOf(long address) {
+        return segments.get(segmentOf(address)).view(offsetOf(address) + SEQUENCE_OFFSET).getLong();
+    }
+
+    int sizeOf(long address) {
+        return HEADER + segments.get(segmentOf(address)).view(offsetOf(address)).getInt();
+    }
+
+    void markLive(long address) {
+        segments.get(segmentOf(address)).liveBytes.addAndGet(sizeOf(address));
+    }
+
+    void markDead(long address) {
+        segments.get(segmentOf(address)).liveBytes.addAndGet(-sizeOf(address));
+    }
+
+    /**
+     * The sealed segments that have less than the given ratio of live records.
+     */
+    synchronized List<Integer> compactionCandidates(double maxLiveRatio) {
+        List<Integer> res = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.liveBytes.get() < segment.capacity * maxLiveRatio)
+                res.add(segment.id);
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    void dropSegment(int id) throws IOException {
+        Segment segment;
+        synchronized (this) {
+            segment = segments.remove(id);
+            unsynced.remove(segment);
+        }
+        if (segment != null)
+            segment.closeAndDelete();
+    }
+
+    int getNumSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Writes the appended records to the disk.
+     */
+    synchronized void force() {
+        for (Segment segment : unsynced) {
+            segment.force();
+        }
+        unsynced.clear();
+        if (active != null)
+            active.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db.mmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the stream metadata: which streams exist and the committed root of every tree. A root record
+ * commits all node records of the tree up to its sequence number.
+ * <p>
+ * Record layout: int body length, int crc32 of the body, body. The log is rewritten as a checkpoint of the current
+ * state when it grows too large.
+ */
+class TreeLog implements Closeable {
+
+    private static final String LOG_FILE = "trees.wal";
+    private static final String CHECKPOINT_FILE = "trees.wal.tmp";
+    private static final int HEADER = 2 * Integer.BYTES;
+
+    interface RecordReader {
+        void read(DataInputStream body) throws IOException;
+    }
+
+    private final Path directory;
+    private final boolean sync;
+    private FileChannel channel;
+
+    TreeLog(Path directory, boolean sync) {
+        this.directory = directory;
+        this.sync = sync;
+    }
+
+    /**
+     * Reads all complete records, a torn record at the end is cut off.
+     */
+    void replay(RecordReader reader) throws IOException {
+        Path file = directory.resolve(LOG_FILE);
+        long end = 0;
+        if (Files.exists(file)) {
+            ByteBuffer buff = ByteBuffer.wrap(Files.readAllBytes(file));
+            CRC32 crc = new CRC32();
+            while (buff.remaining() >= HEADER) {
+                int length = buff.getInt();
+                int checksum = buff.getInt();
+                if (length <= 0 || length > buff.remaining())
+                    break;
+                crc.reset();
+                crc.update(buff.array(), buff.position(), length);
+                if ((int) crc.getValue() != checksum)
+                    break;
+                reader.read(new DataInputStream(new ByteArrayInputStream(buff.array(), buff.position(), length)));
+                buff.position(buff.position() + length);
+                end = buff.position();
+            }
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(end);
+        channel.position(end);
+    }
+
+    synchronized void append(byte[] body) throws IOException {
+        channel.write(frame(body));
+        if (sync)
+            channel.force(false);
+    }
+
+    synchronized long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Replaces the log with the given records.
+     */
+    synchronized void checkpoint(List<byte[]> bodies) throws IOException {
+        Path tmp = directory.resolve(CHECKPOINT_FILE);
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (byte[] body : bodies) {
+                out.write(frame(body));
+            }
+            out.force(true);
+        }
+        if (channel != null)
+            channel.close();
+        Files.move(tmp, directory.resolve(LOG_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    private static ByteBuffer frame(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer buff = ByteBuffer.allocate(HEADER + body.length);
+        buff.putInt(body.length).putInt((int) crc.getValue()).put(body);
+        buff.flip();
+        return buff;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.force(true);
+            channel.close();
+        }
+    }
+}
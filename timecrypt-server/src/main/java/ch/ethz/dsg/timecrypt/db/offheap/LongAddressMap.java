@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db.offheap;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Open-addressing hash map from long keys to arena addresses, stored in two primitive arrays. Long.MIN_VALUE is not
+ * a valid key. Not thread safe.
+ */
+public class LongAddressMap {
+
+    public static final long NO_ADDRESS = -1;
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private long[] addresses;
+    private int size = 0;
+
+    public LongAddressMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3L < expectedSize * 4L)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    public LongAddressMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long get(long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return addresses[i];
+        }
+        return NO_ADDRESS;
+    }
+
+    /**
+     * @return the previous address of the key or NO_ADDRESS
+     */
+    public long put(long key, long address) {
+        if (key == EMPTY)
+            throw new IllegalArgumentException("Invalid key");
+        if ((size + 1) * 4L > keys.length * 3L)
+            resize(keys.length * 2);
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                long before = addresses[i];
+                addresses[i] = address;
+                return before;
+            }
+        }
+        keys[i] = key;
+        addresses[i] = address;
+        size++;
+        return NO_ADDRESS;
+    }
+
+    /**
+     * @return the removed address of the key or NO_ADDRESS
+     */
+    public long remove(long key) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                break;
+        }
+        if (keys[i] == EMPTY)
+            return NO_ADDRESS;
+        long before = addresses[i];
+        size--;
+        // backward shift deletion keeps the probe sequences intact without tombstones
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                addresses[hole] = addresses[j];
+                hole = j;
+            }
+        }
+        keys[hole] = EMPTY;
+        return before;
+    }
+
+    public void forEachAddress(LongConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY)
+                consumer.accept(addresses[i]);
+        }
+    }
+
+    /**
+     * Heap bytes of the two arrays.
+     */
+    public long getFootprint() {
+        return 2L * Long.BYTES * keys.length;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        addresses = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys, oldAddresses = addresses;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY)
+                continue;
+            int j = slot(oldKeys[i], mask);
+            while (keys[j] != EMPTY)
+                j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            addresses[j] = oldAddresses[i];
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db.offheap;
+
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
+import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
+import ch.ethz.dsg.timecrypt.index.blockindex.IBlockTreeFetcher;
+import ch.ethz.dsg.timecrypt.index.blockindex.INodeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.UpdateSummary;
+import ch.ethz.dsg.timecrypt.index.blockindex.VersionWaiters;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockIdUtil;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.MetaInnerNode;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Implements the tree in memory like the InMemoryCacheBlockTreeManager, but the encoded nodes are kept in slots of a
+ * slab arena outside of the heap. Only the roots and a bounded cache of decoded nodes are on the heap.
+ */
+public class OffHeapBlockTreeManager implements IBlockTreeFetcher {
+
+    private final SlabArena arena;
+    private final Map<String, BlockTree> treeMap = new ConcurrentHashMap<>();
+    private final Cache<NodeKey, BlockNode> nodeCache;
+
+    public OffHeapBlockTreeManager(SlabArena arena, int cacheSize) {
+        this.arena = arena;
+        this.nodeCache = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .build();
+    }
+
+    public OffHeapBlockTreeManager(int cacheSize) {
+        this(new SlabArena(), cacheSize);
+    }
+
+    private static String deductKeyTree(long uid, String user) {
+        return String.format("%d|%s", uid, user);
+    }
+
+    private static byte[] encode(BlockNode node) {
+        byte[] meta = node.encodeContent();
+        ByteBuffer buff = ByteBuffer.allocate(meta.length + 4);
+        buff.putInt(node.getVersion());
+        buff.put(meta);
+        return buff.array();
+    }
+
+    private static BlockNode decode(long blockId, byte[] content) throws InvalidProtocolBufferException {
+        ByteBuffer buff = ByteBuffer.wrap(content);
+        int version = buff.getInt();
+        byte[] cont = new byte[content.length - 4];
+        System.arraycopy(content, 4, cont, 0, cont.length);
+        MetaInnerNode[] meta = BlockNode.decodeNodeContent(cont);
+        return new BlockNode(version, BlockIdUtil.getFrom(blockId), BlockIdUtil.getTo(blockId), meta);
+    }
+
+    public SlabArena getArena() {
+        return arena;
+    }
+
+    @Override
+    public BlockTree createTree(long uid, String user, int k, int interval) throws Exception {
+        BlockNode newRoot = new BlockNode(0, 0, interval * k, k);
+        OffHeapNodeManager nodeMan = new OffHeapNodeManager(user, uid);
+        BlockTree tree = new BlockTree(k, newRoot, nodeMan);
+        treeMap.put(deductKeyTree(uid, user), tree);
+        nodeMan.store(List.of(newRoot));
+        return tree;
+    }
+
+    @Override
+    public BlockTree fetchNewestTreeAndAwait(long uid, String user) {
+        return treeMap.get(deductKeyTree(uid, user));
+    }
+
+    @Override
+    public BlockTree fetchTreeMinVersion(long uid, String user, int minVersion) {
+        return treeMap.get(deductKeyTree(uid, user));
+    }
+
+    @Override
+    public BlockTree fetchTree(long uid, String user) {
+        return treeMap.get(deductKeyTree(uid, user));
+    }
+
+    @Override
+    public void invalidateCache() {
+        nodeCache.invalidateAll();
+    }
+
+    @Override
+    public void deleteTree(long uid, String user) {
+        BlockTree tree = treeMap.remove(deductKeyTree(uid, user));
+        if (tree != null && tree.man instanceof OffHeapNodeManager)
+            ((OffHeapNodeManager) tree.man).release();
+    }
+
+    @Override
+    public CompletableFuture<BlockNode> awaitNodeVersion(long uid, String user, long blockid, int minVersion) {
+        BlockTree tree = treeMap.get(deductKeyTree(uid, user));
+        if (tree == null)
+            return CompletableFuture.failedFuture(new RuntimeException("Tree does not exist"));
+        return tree.man.awaitNodeVersion(blockid, minVersion);
+    }
+
+    @Override
+    public CompletableFuture<BlockTree> awaitTreeVersion(long uid, String user, int minVersion) {
+        BlockTree tree = treeMap.get(deductKeyTree(uid, user));
+        if (tree == null)
+            return CompletableFuture.failedFuture(new RuntimeException("Tree does not exist"));
+        return tree.man.awaitTreeVersion(minVersion).thenApply(root -> tree);
+    }
+
+    private static class NodeKey {
+        private final OffHeapNodeManager tree;
+        private final long blockId;
+
+        NodeKey(OffHeapNodeManager tree, long blockId) {
+            this.tree = tree;
+            this.blockId = blockId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof NodeKey))
+                return false;
+            NodeKey other = (NodeKey) obj;
+            return other.tree == this.tree && other.blockId == this.blockId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(tree) + Long.hashCode(blockId);
+        }
+    }
+
+    public class OffHeapNodeManager implements INodeManager {
+
+        private final String user;
+        private final long id;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private LongAddressMap slots = new LongAddressMap();
+        private boolean released = false;
+        private final VersionWaiters<BlockNode> nodeWaiters = new VersionWaiters<>(BlockNode::getVersion);
+        private final VersionWaiters<BlockNode> treeWaiters = new VersionWaiters<>(BlockNode::getVersion);
+
+        public OffHeapNodeManager(String user, long id) {
+            this.user = user;
+            this.id = id;
+        }
+
+        /**
+         * Writes the nodes to their slots, a slot is overwritten in place if the new version has the same size class.
+         */
+        private void store(List<BlockNode> nodes) {
+            List<byte[]> encoded = new ArrayList<>(nodes.size());
+            for (BlockNode node : nodes) {
+                encoded.add(encode(node));
+            }
+            lock.writeLock().lock();
+            try {
+                if (released)
+                    throw new IllegalStateException("Tree was deleted");
+                for (int i = 0; i < nodes.size(); i++) {
+                    byte[] data = encoded.get(i);
+                    long blockId = nodes.get(i).getId();
+                    long address = slots.get(blockId);
+                    if (address != LongAddressMap.NO_ADDRESS && arena.fits(address, data.length)) {
+                        arena.write(address, data);
+                        continue;
+                    }
+                    long newAddress = arena.allocate(data.length);
+                    arena.write(newAddress, data);
+                    slots.put(blockId, newAddress);
+                    if (address != LongAddressMap.NO_ADDRESS)
+                        arena.free(address);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            for (BlockNode node : nodes) {
+                cacheNode(node);
+            }
+        }
+
+        private void release() {
+            lock.writeLock().lock();
+            try {
+                slots.forEachAddress(arena::free);
+                slots = new LongAddressMap();
+                released = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            nodeCache.asMap().keySet().removeIf(key -> key.tree == this);
+        }
+
+        /**
+         * Keeps the newer version if a reader caches a node that it decoded before a writer stored a newer one.
+         */
+        private void cacheNode(BlockNode node) {
+            nodeCache.asMap().merge(new NodeKey(this, node.getId()), node,
+                    (cached, fresh) -> (cached.getVersion() >= fresh.getVersion()) ? cached : fresh);
+        }
+
+        @Override
+        public BlockNode loadNode(long blockId) {
+            BlockNode node = nodeCache.getIfPresent(new NodeKey(this, blockId));
+            if (node != null)
+                return node;
+            byte[] data;
+            lock.readLock().lock();
+            try {
+                long address = slots.get(blockId);
+                if (address == LongAddressMap.NO_ADDRESS)
+                    return null;
+                data = arena.read(address);
+            } finally {
+                lock.readLock().unlock();
+            }
+            try {
+                node = decode(blockId, data);
+            } catch (InvalidProtocolBufferException e) {
+                throw new RuntimeException("Could not decode node " + blockId, e);
+            }
+            cacheNode(node);
+            return node;
+        }
+
+        @Override
+        public void pushUpdates(UpdateSummary summary) {
+            BlockTree tree = treeMap.get(deductKeyTree(this.id, this.user));
+            if (tree == null)
+                throw new TimeCryptTreeException("Tree does not exists", 1);
+            // the nodes have to be visible before the root that references them
+            List<BlockNode> nodes = new ArrayList<>(summary.getNewNodes().size() + 1);
+            nodes.addAll(summary.getNewNodes());
+            nodes.add(summary.getNewRoot());
+            store(nodes);
+            tree.root = summary.getNewRoot();
+            for (BlockNode node : nodes) {
+                nodeWaiters.publish(node.getId(), node);
+            }
+            treeWaiters.publish(0, tree.root);
+        }
+
+        @Override
+        public void writeNodes(List<BlockNode> nodes) {
+            store(nodes);
+            for (BlockNode node : nodes) {
+                nodeWaiters.publish(node.getId(), node);
+            }
+        }
+
+        @Override
+        public void updateToLatest(BlockTree tree) {
+            BlockTree actualTree = treeMap.get(deductKeyTree(this.id, this.user));
+            tree.root = actualTree.root;
+        }
+
+        @Override
+        public BlockNode loadNodeWithMinVersion(long blockid, int version) {
+            BlockNode node = loadNode(blockid);
+            if (node != null && node.getVersion() < version) {
+                nodeCache.invalidate(new NodeKey(this, blockid));
+                node = loadNode(blockid);
+            }
+            return node;
+        }
+
+        @Override
+        public BlockNode loadNodeWithVersionForInsert(long blockid, int version) {
+            return loadNode(blockid);
+        }
+
+        @Override
+        public void updateToLatest(BlockTree tree, int minVersion) {
+            this.updateToLatest(tree);
+        }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitNodeVersion(long blockid, int minVersion) {
+            return nodeWaiters.await(blockid, minVersion, () -> loadNode(blockid));
+        }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitTreeVersion(int minVersion) {
+            BlockTree tree = treeMap.get(deductKeyTree(this.id, this.user));
+            if (tree == null)
+                return CompletableFuture.failedFuture(new TimeCryptTreeException("Tree does not exists", 1));
+            return treeWaiters.await(0, minVersion, () -> tree.root);
+        }
+    }
+}
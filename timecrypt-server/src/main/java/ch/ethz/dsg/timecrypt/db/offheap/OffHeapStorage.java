@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db.offheap;
+
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptStorageException;
+import ch.ethz.dsg.timecrypt.index.Chunk;
+import ch.ethz.dsg.timecrypt.index.IStorage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Stores the chunks in memory but outside of the heap, as length-prefixed blobs in a slab arena. Every stream has its
+ * own primitive index from the chunk key to the address of the blob.
+ */
+public class OffHeapStorage implements IStorage {
+
+    private final SlabArena arena;
+    private final Map<String, StreamChunks> streams = new ConcurrentHashMap<>();
+
+    public OffHeapStorage(SlabArena arena) {
+        this.arena = arena;
+    }
+
+    public OffHeapStorage() {
+        this(new SlabArena());
+    }
+
+    private static String deductKeyStream(long uid, String owner) {
+        return uid + "|" + owner;
+    }
+
+    public SlabArena getArena() {
+        return arena;
+    }
+
+    @Override
+    public Chunk getChunk(long uid, String owner, int key) throws TimeCryptStorageException {
+        StreamChunks stream = streams.get(deductKeyStream(uid, owner));
+        if (stream == null)
+            return null;
+        stream.lock.readLock().lock();
+        try {
+            long address = stream.index.get(key);
+            if (address == LongAddressMap.NO_ADDRESS)
+                return null;
+            return new Chunk(key, arena.read(address));
+        } finally {
+            stream.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Chunk> getChunks(long uid, String owner, int from, int to) throws TimeCryptStorageException {
+        StreamChunks stream = streams.get(deductKeyStream(uid, owner));
+        if (stream == null)
+            throw new TimeCryptStorageException("No Chunk found", 1);
+        List<Chunk> chunks = new ArrayList<>(Math.max(0, to - from));
+        stream.lock.readLock().lock();
+        try {
+            for (int key = from; key < to; key++) {
+                long address = stream.index.get(key);
+                if (address != LongAddressMap.NO_ADDRESS)
+                    chunks.add(new Chunk(key, arena.read(address)));
+            }
+        } finally {
+            stream.lock.readLock().unlock();
+        }
+        return chunks;
+    }
+
+    @Override
+    public boolean putChunk(long uid, String owner, Chunk chunk) throws TimeCryptStorageException {
+        StreamChunks stream = streams.computeIfAbsent(deductKeyStream(uid, owner), key -> new StreamChunks());
+        ByteBuffer data = chunk.getBuffer();
+        stream.lock.writeLock().lock();
+        try {
+            if (stream.deleted)
+                throw new TimeCryptStorageException("Stream was deleted", 1);
+            long address = stream.index.get(chunk.getStorageKey());
+            if (address == LongAddressMap.NO_ADDRESS || !arena.fits(address, data.remaining())) {
+                long newAddress = arena.allocate(data.remaining());
+                arena.write(newAddress, data);
+                stream.index.put(chunk.getStorageKey(), newAddress);
+                if (address != LongAddressMap.NO_ADDRESS)
+                    arena.free(address);
+            } else {
+                arena.write(address, data);
+            }
+        } finally {
+            stream.lock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean deleteChunk(long uid, String owner, int key) throws TimeCryptStorageException {
+        StreamChunks stream = streams.get(deductKeyStream(uid, owner));
+        if (stream == null)
+            return false;
+        stream.lock.writeLock().lock();
+        try {
+            long address = stream.index.remove(key);
+            if (address == LongAddressMap.NO_ADDRESS)
+                return false;
+            arena.free(address);
+            return true;
+        } finally {
+            stream.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean deleteALL(long uid, String owner) throws TimeCryptStorageException {
+        StreamChunks stream = streams.remove(deductKeyStream(uid, owner));
+        if (stream == null)
+            return true;
+        stream.lock.writeLock().lock();
+        try {
+            // the blobs go to the free list of the arena and are reused by other streams
+            stream.index.forEachAddress(arena::free);
+            stream.index = new LongAddressMap();
+            stream.deleted = true;
+        } finally {
+            stream.lock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Heap bytes of the chunk indexes.
+     */
+    public long getIndexFootprint() {
+        long res = 0;
+        for (StreamChunks stream : streams.values()) {
+            stream.lock.readLock().lock();
+            try {
+                res += stream.index.getFootprint();
+            } finally {
+                stream.lock.readLock().unlock();
+            }
+        }
+        return res;
+    }
+
+    private static class StreamChunks {
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private LongAddressMap index = new LongAddressMap();
+        private boolean deleted = false;
+    }
+}
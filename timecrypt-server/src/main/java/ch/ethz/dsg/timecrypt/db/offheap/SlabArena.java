@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.db.offheap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Allocates length-prefixed memory regions in large direct ByteBuffer slabs, so the stored data is not seen by the
+ * garbage collector. An address is the slab index in the upper and the offset in the lower 32 bits. Freed regions are
+ * kept in a free list per size class and are reused by the next allocation of the same class.
+ * <p>
+ * Allocation is thread safe. Reading and writing a region is not synchronized, the owner of an address has to make
+ * sure that a region is not freed while it is read.
+ */
+public class SlabArena {
+
+    public static final int DEFAULT_SLAB_SIZE = 64 << 20;
+    private static final int ALIGNMENT = 16;
+
+    private final int slabSize;
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private int currentSlab = -1;
+    private int position;
+    private final Map<Integer, LongStack> freeLists = new HashMap<>();
+    private long reservedBytes = 0;
+    private long usedBytes = 0;
+
+    public SlabArena(int slabSize) {
+        this.slabSize = slabSize;
+        this.position = slabSize;
+    }
+
+    public SlabArena() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * The size of the region that is reserved for data of the given length.
+     */
+    public static int sizeClass(int length) {
+        return (length + Integer.BYTES + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    /**
+     * Reserves a region for data of the given length, the region has to be written before it is freed.
+     */
+    public synchronized long allocate(int length) {
+        int sizeClass = sizeClass(length);
+        usedBytes += sizeClass;
+        LongStack free = freeLists.get(sizeClass);
+        if (free != null && !free.isEmpty())
+            return free.pop();
+        if (sizeClass > slabSize)
+            return addressOf(addSlab(sizeClass), 0);
+        if (position + sizeClass > slabSize) {
+            currentSlab = addSlab(slabSize);
+            position = 0;
+        }
+        long address = addressOf(currentSlab, position);
+        position += sizeClass;
+        return address;
+    }
+
+    public synchronized void free(long address) {
+        int sizeClass = sizeClass(readLength(address));
+        usedBytes -= sizeClass;
+        freeLists.computeIfAbsent(sizeClass, s -> new LongStack()).push(address);
+    }
+
+    public void write(long address, byte[] data) {
+        write(address, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Copies the remaining bytes of the data straight into the region, the position of the data is not changed.
+     */
+    public void write(long address, ByteBuffer data) {
+        ByteBuffer buff = slabs[slabIndex(address)].duplicate();
+        buff.position(offset(address));
+        buff.putInt(data.remaining());
+        buff.put(data.duplicate());
+    }
+
+    /**
+     * Checks if data of the given length can be written to the region of the address.
+     */
+    public boolean fits(long address, int length) {
+        return sizeClass(readLength(address)) == sizeClass(length);
+    }
+
+    public int readLength(long address) {
+        return slabs[slabIndex(address)].getInt(offset(address));
+    }
+
+    public byte[] read(long address) {
+        ByteBuffer buff = slabs[slabIndex(address)].duplicate();
+        buff.position(offset(address));
+        byte[] data = new byte[buff.getInt()];
+        buff.get(data);
+        return data;
+    }
+
+    /**
+     * Bytes of the direct memory that is allocated for slabs.
+     */
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * Bytes of the slabs that are in use (not free).
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private int addSlab(int size) {
+        ByteBuffer[] newSlabs = Arrays.copyOf(slabs, slabs.length + 1);
+        newSlabs[slabs.length] = ByteBuffer.allocateDirect(size);
+        reservedBytes += size;
+        slabs = newSlabs;
+        return slabs.length - 1;
+    }
+
+    private static long addressOf(int slab, int offset) {
+        return (((long) slab) << 32) | offset;
+    }
+
+    private static int slabIndex(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    private static class LongStack {
+        private long[] elements = new long[16];
+        private int size = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void push(long value) {
+            if (size == elements.length)
+                elements = Arrays.copyOf(elements, size * 2);
+            elements[size++] = value;
+        }
+
+        long pop() {
+            return elements[--size];
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.exceptions;
+
+/**
+ * The request was rejected without being sent to the storage because too many requests are waiting for it.
+ */
+public class TimeCryptOverloadedException extends TimeCryptStorageException {
+    public TimeCryptOverloadedException(String message, int id) {
+        super(message, id);
+    }
+
+    /**
+     * @return the overload exception in the causes of the throwable or null if there is none
+     */
+    public static TimeCryptOverloadedException findIn(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeCryptOverloadedException)
+                return (TimeCryptOverloadedException) cause;
+        }
+        return null;
+    }
+}
@@ -5,13 +5,23 @@
 
 package ch.ethz.dsg.timecrypt.index;
 
+import java.nio.ByteBuffer;
+
+/**
+ * A chunk as it is stored. The data is kept in the buffer it was received in (e.g. the buffer of a protobuf message),
+ * so it is only copied where it is stored. The data must not be modified.
+ */
 public class Chunk {
 
     private int storageKey;
 
-    private byte[] data;
+    private ByteBuffer data;
 
     public Chunk(int storageKey, byte[] data) {
+        this(storageKey, (data == null) ? null : ByteBuffer.wrap(data));
+    }
+
+    public Chunk(int storageKey, ByteBuffer data) {
         this.storageKey = storageKey;
         this.data = data;
     }
@@ -20,7 +30,24 @@ public class Chunk {
         return storageKey;
     }
 
+    /**
+     * @return the data, a copy only if it is not backed by a whole array
+     */
     public byte[] getData() {
-        return data;
+        if (data == null)
+            return null;
+        if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0
+                && data.remaining() == data.array().length)
+            return data.array();
+        byte[] copy = new byte[data.remaining()];
+        data.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * @return a view of the data without copying it, or null if the chunk has no data
+     */
+    public ByteBuffer getBuffer() {
+        return (data == null) ? null : data.duplicate();
     }
 }
@@ -7,7 +7,12 @@ package ch.ethz.dsg.timecrypt.index;
 
 import ch.ethz.dsg.timecrypt.exceptions.TimeCryptStorageException;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 public interface IStorage {
 
@@ -15,8 +20,64 @@ public interface IStorage {
 
     List<Chunk> getChunks(long uid, String owner, int from, int to) throws TimeCryptStorageException;
 
+    /**
+     * Iterates over the existing chunks in [fromChunk, toChunk) in key order, missing chunks are skipped. The chunks
+     * are read while iterating, by default one by one with getChunk.
+     */
+    default Iterator<Chunk> getChunkRange(long uid, String owner, int fromChunk, int toChunk)
+            throws TimeCryptStorageException {
+        return new Iterator<Chunk>() {
+            private int key = fromChunk;
+            private Chunk next = null;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && key < toChunk) {
+                    Chunk chunk = getChunk(uid, owner, key++);
+                    if (chunk != null && chunk.getBuffer() != null)
+                        next = chunk;
+                }
+                return next != null;
+            }
+
+            @Override
+            public Chunk next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Chunk res = next;
+                next = null;
+                return res;
+            }
+        };
+    }
+
+    /**
+     * Reads the existing chunks in [fromChunk, toChunk) in key order, missing chunks are skipped. By default the
+     * chunks are read on the calling thread with getChunkRange.
+     */
+    default CompletionStage<List<Chunk>> getChunksAsync(long uid, String owner, int fromChunk, int toChunk) {
+        try {
+            List<Chunk> chunks = new ArrayList<>();
+            getChunkRange(uid, owner, fromChunk, toChunk).forEachRemaining(chunks::add);
+            return CompletableFuture.completedFuture(chunks);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     boolean putChunk(long uid, String owner, Chunk chunk) throws TimeCryptStorageException;
 
+    /**
+     * Writes the chunks of one stream, a failure may leave a part of them written. By default the chunks are written
+     * one by one with putChunk.
+     */
+    default boolean putChunks(long uid, String owner, List<Chunk> chunks) throws TimeCryptStorageException {
+        for (Chunk chunk : chunks) {
+            putChunk(uid, owner, chunk);
+        }
+        return true;
+    }
+
     boolean deleteChunk(long uid, String owner, int key) throws TimeCryptStorageException;
 
     boolean deleteALL(long uid, String owner) throws TimeCryptStorageException;
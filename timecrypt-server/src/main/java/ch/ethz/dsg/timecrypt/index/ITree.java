@@ -8,6 +8,8 @@ package ch.ethz.dsg.timecrypt.index;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Implements the digest aggregation tree.
@@ -16,6 +18,14 @@ public interface ITree {
 
     void insert(int key, NodeContent[] contentData, long from, long to) throws Exception;
 
+    /**
+     * Inserts the digests of consecutive chunks in one update of the tree.
+     *
+     * @param firstChunk the id of the first chunk, has to be the next chunk of the tree
+     * @param contents   the digests of the chunks firstChunk, firstChunk + 1, ...
+     */
+    void insertBatch(long firstChunk, List<NodeContent[]> contents) throws Exception;
+
     int getLastWrittenChunk();
 
     List<Integer> getRange(long from, long to) throws IllegalArgumentException;
@@ -26,6 +36,37 @@ public interface ITree {
 
     NodeContent[] getAggregation(long from, long to, int[] ids) throws Exception;
 
+    /**
+     * Asynchronous variant of getAggregation, by default computed on the calling thread.
+     */
+    default CompletionStage<NodeContent[]> getAggregationAsync(long from, long to, int[] ids) {
+        try {
+            return CompletableFuture.completedFuture(getAggregation(from, to, ids));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Aggregates the windows [from, from + granularity), [from + granularity, from + 2 * granularity), ... up to to
+     * in one traversal of the tree.
+     *
+     * @return one aggregate per window in order, null for windows without data
+     */
+    List<NodeContent[]> getAggregationSeries(long from, long to, long granularity, int[] ids) throws Exception;
+
+    /**
+     * Asynchronous variant of getAggregationSeries, by default computed on the calling thread.
+     */
+    default CompletionStage<List<NodeContent[]>> getAggregationSeriesAsync(long from, long to, long granularity,
+                                                                            int[] ids) {
+        try {
+            return CompletableFuture.completedFuture(getAggregationSeries(from, to, granularity, ids));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     String toString();
 
     int getLeavesCount();
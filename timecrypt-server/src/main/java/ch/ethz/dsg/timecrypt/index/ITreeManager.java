@@ -7,6 +7,9 @@ package ch.ethz.dsg.timecrypt.index;
 
 import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 /**
  * manages trees (tree metadata) and allows to get it
  */
@@ -14,12 +17,27 @@ public interface ITreeManager {
 
     UserStreamTree createTree(long uid, String user) throws TimeCryptTreeException;
 
+    UserStreamTree createTree(long uid, String user, IndexType indexType) throws TimeCryptTreeException;
+
     boolean deleteTree(long uid, String user) throws TimeCryptTreeException;
 
     UserStreamTree getTreeForUser(long uid, String user) throws TimeCryptTreeException;
 
     UserStreamTree getTreeForUser(long uid, String user, int minVersion) throws TimeCryptTreeException;
 
+    /**
+     * Asynchronous variant of getTreeForUser, by default the tree is looked up on the calling thread.
+     *
+     * @return fails with a TimeCryptTreeException if there is no such tree
+     */
+    default CompletionStage<UserStreamTree> getTreeForUserAsync(long uid, String user, int minVersion) {
+        try {
+            return CompletableFuture.completedFuture(getTreeForUser(uid, user, minVersion));
+        } catch (TimeCryptTreeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     void invalidateCache();
 
 }
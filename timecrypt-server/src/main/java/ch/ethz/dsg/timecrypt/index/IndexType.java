@@ -0,0 +1,20 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.index;
+
+/**
+ * The index structure used for the digests of a stream.
+ */
+public enum IndexType {
+    /**
+     * k-ary aggregation tree, supports all digest types.
+     */
+    BLOCK_TREE,
+    /**
+     * Prefix sums over the digests, only for additive digests without MACs (in memory only).
+     */
+    PREFIX_SUM,
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.index;
+
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalesces concurrent digest inserts into the same stream. The first request thread that finds no running flush
+ * applies all queued inserts of the stream with ITree.insertBatch, the other request threads wait for the result of
+ * their insert. Inserts that do not form a consecutive run with the other queued inserts are applied on their own and
+ * fail like an out of order insert would. Every insert is applied to the tree that its request loaded.
+ * <p>
+ * Inserts are idempotent by chunk ID: an insert of a chunk that the tree already holds, or that is queued twice,
+ * succeeds without a second insert, so a client can retry an insert whose response it did not get. The callers
+ * check a retry against the committed chunk before they write its payload (see CommittedChunks), so a different
+ * chunk with a committed ID does not get here.
+ */
+public class InsertBatcher {
+
+    private final Map<String, StreamQueue> queues = new ConcurrentHashMap<>();
+
+    private static String deductKey(long uid, String owner) {
+        return owner + "|" + uid;
+    }
+
+    public void insert(long uid, String owner, ITree tree, long from, NodeContent[] content) throws Exception {
+        PendingInsert pending = new PendingInsert(tree, from, content);
+        enqueue(uid, owner, List.of(pending)).drain();
+        try {
+            pending.result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Inserts the consecutive contents starting at from. They are queued at once, so they are applied with a single
+     * ITree.insertBatch unless inserts of other requests are queued in between.
+     */
+    public void insertAll(long uid, String owner, ITree tree, long from, List<NodeContent[]> contents)
+            throws Exception {
+        List<PendingInsert> run = new ArrayList<>(contents.size());
+        for (NodeContent[] content : contents) {
+            run.add(new PendingInsert(tree, from + run.size(), content));
+        }
+        enqueue(uid, owner, run).drain();
+        try {
+            for (PendingInsert pending : run) {
+                pending.result.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    private StreamQueue enqueue(long uid, String owner, List<PendingInsert> inserts) {
+        while (true) {
+            StreamQueue queue = queues.computeIfAbsent(deductKey(uid, owner), key -> new StreamQueue());
+            // a closed queue was removed with its stream, the next one belongs to a new stream with the same ID
+            if (queue.addAll(inserts))
+                return queue;
+        }
+    }
+
+    /**
+     * Closes the queue of the stream. Waits until a running flush of the queue is done, the inserts that are still
+     * queued fail, so no insert of the removed stream is applied after this returns.
+     */
+    public void removeStream(long uid, String owner) {
+        StreamQueue queue = queues.remove(deductKey(uid, owner));
+        if (queue == null)
+            return;
+        try {
+            queue.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TimeCryptTreeException("Interrupted while waiting for the inserts of the stream", 1);
+        }
+    }
+
+    private static class PendingInsert {
+        private final ITree tree;
+        private final long from;
+        private final NodeContent[] content;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        PendingInsert(ITree tree, long from, NodeContent[] content) {
+            this.tree = tree;
+            this.from = from;
+            this.content = content;
+        }
+    }
+
+    private static class StreamQueue {
+        private List<PendingInsert> pending = new ArrayList<>();
+        private boolean flushing = false;
+        private boolean closed = false;
+
+        /**
+         * @return false if the queue is closed, the inserts are not queued then
+         */
+        synchronized boolean addAll(List<PendingInsert> inserts) {
+            if (closed)
+                return false;
+            pending.addAll(inserts);
+            return true;
+        }
+
+        void drain() {
+            synchronized (this) {
+                if (flushing)
+                    return;
+                flushing = true;
+            }
+            while (true) {
+                List<PendingInsert> batch;
+                synchronized (this) {
+                    if (pending.isEmpty() || closed) {
+                        flushing = false;
+                        notifyAll();
+                        return;
+                    }
+                    batch = pending;
+                    pending = new ArrayList<>();
+                }
+                // the requests of a batch may have loaded different trees, e.g. around a reload of the stream
+                Map<ITree, List<PendingInsert>> byTree = new IdentityHashMap<>();
+                for (PendingInsert insert : batch) {
+                    byTree.computeIfAbsent(insert.tree, tree -> new ArrayList<>()).add(insert);
+                }
+                for (Map.Entry<ITree, List<PendingInsert>> entry : byTree.entrySet()) {
+                    apply(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        synchronized void close() throws InterruptedException {
+            closed = true;
+            while (flushing) {
+                wait();
+            }
+            for (PendingInsert insert : pending) {
+                insert.result.completeExceptionally(new TimeCryptTreeException("Tree does not exists", 1));
+            }
+            pending.clear();
+        }
+
+        private static void apply(ITree tree, List<PendingInsert> batch) {
+            batch.sort(Comparator.comparingLong(insert -> insert.from));
+            batch = withoutRetries(tree, batch);
+            int start = 0;
+            while (start < batch.size()) {
+                int end = start + 1;
+                while (end < batch.size() && batch.get(end).from == batch.get(end - 1).from + 1) {
+                    end++;
+                }
+                List<PendingInsert> run = batch.subList(start, end);
+                List<NodeContent[]> contents = new ArrayList<>(run.size());
+                for (PendingInsert insert : run) {
+                    contents.add(insert.content);
+                }
+                try {
+                    tree.insertBatch(run.get(0).from, contents);
+                    for (PendingInsert insert : run) {
+                        insert.result.complete(null);
+                    }
+                } catch (Throwable e) {
+                    for (PendingInsert insert : run) {
+                        insert.result.completeExceptionally(e);
+                    }
+                }
+                start = end;
+            }
+        }
+
+        /**
+         * Completes the inserts of chunks that are in the tree, a chunk that is queued twice completes with the
+         * result of its first insert.
+         *
+         * @return the sorted inserts of the chunks that are not in the tree, every chunk once
+         */
+        private static List<PendingInsert> withoutRetries(ITree tree, List<PendingInsert> batch) {
+            long lastWritten = tree.getLastWrittenChunk();
+            List<PendingInsert> fresh = new ArrayList<>(batch.size());
+            for (PendingInsert insert : batch) {
+                if (insert.from <= lastWritten) {
+                    insert.result.complete(null);
+                } else if (!fresh.isEmpty() && fresh.get(fresh.size() - 1).from == insert.from) {
+                    fresh.get(fresh.size() - 1).result.whenComplete((ignored, e) -> {
+                        if (e == null)
+                            insert.result.complete(null);
+                        else
+                            insert.result.completeExceptionally(e);
+                    });
+                } else {
+                    fresh.add(insert);
+                }
+            }
+            return fresh;
+        }
+    }
+}
@@ -7,6 +7,7 @@ package ch.ethz.dsg.timecrypt.index;
 
 import ch.ethz.dsg.timecrypt.index.blockindex.IBlockTreeFetcher;
 import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
+import ch.ethz.dsg.timecrypt.index.prefixindex.PrefixSumTree;
 
 import java.util.*;
 
@@ -28,6 +29,11 @@ public class MemoryTreeManager implements ITreeManager {
 
     @Override
     public UserStreamTree createTree(long uid, String user) throws TimeCryptTreeException {
+        return createTree(uid, user, IndexType.BLOCK_TREE);
+    }
+
+    @Override
+    public UserStreamTree createTree(long uid, String user, IndexType indexType) throws TimeCryptTreeException {
         Set<Long> cur = userToStreams.get(user);
         if (cur == null) {
             cur = new HashSet<Long>();
@@ -39,7 +45,10 @@ public class MemoryTreeManager implements ITreeManager {
 
         UserStreamTree tree = null;
         try {
-            tree = new UserStreamTree(user, uid, treeFetcher.createTree(uid, user, k, 1));
+            if (indexType == IndexType.PREFIX_SUM)
+                tree = new UserStreamTree(user, uid, new PrefixSumTree());
+            else
+                tree = new UserStreamTree(user, uid, treeFetcher.createTree(uid, user, k, 1));
         } catch (Exception e) {
             throw new TimeCryptTreeException(e.getMessage(), 1);
         }
@@ -57,6 +66,11 @@ public class MemoryTreeManager implements ITreeManager {
         }
         cur.remove(uid);
         userAndUidToTree.remove(String.format("%s%d", user, uid));
+        try {
+            treeFetcher.deleteTree(uid, user);
+        } catch (Exception e) {
+            throw new TimeCryptTreeException(e.getMessage(), 1);
+        }
         return true;
     }
 
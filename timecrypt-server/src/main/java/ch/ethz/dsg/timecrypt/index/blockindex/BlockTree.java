@@ -5,30 +5,58 @@
 
 package ch.ethz.dsg.timecrypt.index.blockindex;
 
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
 import ch.ethz.dsg.timecrypt.index.ITree;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockIdUtil;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.MetaInnerNode;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContentColumns;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class BlockTree implements ITree {
 
-    private static final int RETRY_AWAIT_TIME = 1;
-    private static final int MAX_RETRY = 3;
+    private static final int VERSION_AWAIT_TIME = 3;
+    private static final int BULK_WRITE_BATCH = 256;
+
+    /**
+     * How an insert updates the aggregates of the nodes along its path.
+     */
+    public enum AggregateUpdate {
+        /** adds the new leaf to the aggregate of every node on the path */
+        INCREMENTAL,
+        /** merges all children of every node on the path again, the update before the incremental one */
+        RECOMPUTE,
+        /** incremental, every aggregate is checked against the merged children (for testing only) */
+        VERIFY
+    }
 
 
     public int k;
 
     public int interval = 1;
 
-    public BlockNode root;
+    public volatile BlockNode root;
     public INodeManager man;
 
+    private AggregateUpdate aggregateUpdate = AggregateUpdate.INCREMENTAL;
+    private boolean columnarAggregation = true;
+
     public BlockTree(int k, BlockNode root, INodeManager man) {
         this.k = k;
         this.root = root;
@@ -41,6 +69,19 @@ public class BlockTree implements ITree {
         this.man = null;
     }
 
+    public void setAggregateUpdate(AggregateUpdate aggregateUpdate) {
+        this.aggregateUpdate = aggregateUpdate;
+    }
+
+    /**
+     * If disabled, the aggregations create and merge NodeContent objects for the children instead of summing the
+     * columns of the nodes, e.g. to compare the two paths. Enabled by default, see benchmarkColumnarAggregation in
+     * TestBlockTree.
+     */
+    public void setColumnarAggregation(boolean columnarAggregation) {
+        this.columnarAggregation = columnarAggregation;
+    }
+
     public void setRoot(BlockNode root) {
         this.root = root;
     }
@@ -53,47 +94,91 @@ public class BlockTree implements ITree {
         this.man.updateToLatest(this);
     }
 
-    public void buildFrom(List<NodeContent[]> contents) {
-        // TODO
-        ArrayList<BlockNode> upperLeveL = new ArrayList<>();
-        ArrayList<BlockNode> lowerLevel = new ArrayList<>();
-
-        BlockNode cur = new BlockNode(contents.size(), 0, k * interval, k);
-        int curFrom = 0;
-        for (NodeContent[] cont : contents) {
-            if (!cur.hasSpace()) {
-                lowerLevel.add(cur);
-                cur = new BlockNode(contents.size(), cur.to, cur.to + (k * interval), k);
-                cur.insert(new MetaInnerNode(cont), curFrom, curFrom + interval);
+    /**
+     * Bulk loads an empty tree bottom-up from the digests of the chunks 0, 1, 2, ... Only one partial node per level is
+     * kept in memory, every node is written to the node manager once it is sealed (full) and the remaining right
+     * edge is pushed together with the new root at the end.
+     *
+     * @param contents the digests of the chunks in order
+     */
+    public void buildFrom(Iterator<NodeContent[]> contents) throws Exception {
+        if (root.getVersion() != 0 || !root.hasNoChilds())
+            throw new RuntimeException("Bulk load requires an empty tree");
+
+        ArrayList<BlockNode> levels = new ArrayList<>();
+        ArrayList<BlockNode> sealed = new ArrayList<>(BULK_WRITE_BATCH);
+        int numLeaves = 0;
+        while (contents.hasNext()) {
+            int from = numLeaves * interval;
+            addToLevel(levels, sealed, 0, new MetaInnerNode(contents.next()), from, from + interval);
+            numLeaves++;
+        }
+        if (numLeaves == 0)
+            return;
+
+        // close the right edge - a full node that is not the root is complete and written as sealed node
+        ArrayList<BlockNode> rightEdge = new ArrayList<>();
+        for (int level = 0; level < levels.size() - 1; level++) {
+            BlockNode node = levels.get(level);
+            if (node.hasSpace()) {
+                node.setNewVersion(numLeaves);
+                rightEdge.add(node);
+            } else {
+                node.setNewVersion(node.to / interval);
+                sealed.add(node);
             }
-            cur.insert(new MetaInnerNode(cont), curFrom, curFrom + interval);
+            addToLevel(levels, sealed, level + 1, aggregateOf(node), node.from, node.to);
         }
-        lowerLevel.add(cur);
+        if (!sealed.isEmpty())
+            this.man.writeNodes(sealed);
+
+        BlockNode newRoot = levels.get(levels.size() - 1);
+        newRoot.setNewVersion(numLeaves);
+        UpdateSummary summary = new UpdateSummary(numLeaves, numLeaves * interval, k);
+        summary.pushNewRoot(newRoot, true);
+        for (BlockNode node : rightEdge) {
+            summary.pushUpdate(node, true);
+        }
+        this.man.pushUpdates(summary);
+        this.root = newRoot;
+    }
 
-        while (lowerLevel.size() > 1) {
-            cur = new BlockNode(contents.size(), lowerLevel.get(0).from, lowerLevel.get(0).to * k * interval, k);
-            for (BlockNode blockNode : lowerLevel) {
-                if (!cur.hasSpace()) {
-                    lowerLevel.add(cur);
-                    cur = new BlockNode(contents.size(), cur.to, cur.to + (k * interval), k);
-                    //cur.insert(new MetaInnerNode(cont), curFrom, curFrom + interval);
-                }
-                //cur.insert(new MetaInnerNode(cont), curFrom, curFrom + interval);
+    private void addToLevel(ArrayList<BlockNode> levels, ArrayList<BlockNode> sealed, int level, MetaInnerNode meta,
+                            int from, int to) throws Exception {
+        BlockNode node = (level < levels.size()) ? levels.get(level) : null;
+        if (node != null && !node.hasSpace()) {
+            // a new child arrives at a full node - the node is sealed
+            node.setNewVersion(node.to / interval);
+            sealed.add(node);
+            if (sealed.size() >= BULK_WRITE_BATCH) {
+                this.man.writeNodes(sealed);
+                sealed.clear();
             }
+            addToLevel(levels, sealed, level + 1, aggregateOf(node), node.from, node.to);
+            node = null;
+        }
+        if (node == null) {
+            int span = (to - from) * k;
+            int nodeFrom = (from / span) * span;
+            node = new BlockNode(0, nodeFrom, nodeFrom + span, k);
+            if (level < levels.size())
+                levels.set(level, node);
+            else
+                levels.add(node);
         }
+        node.insert(meta, from, to);
     }
 
     @Override
     public void insert(int key, NodeContent[] contentData, long fromL, long toL) throws Exception {
+        int from = (int) fromL, to = (int) toL;
+        updateToNeededVersion(from);
         if (fromL != root.getVersion())
             throw new RuntimeException("Not in order Insert!");
-        int from = (int) fromL, to = (int) toL;
-        int maxRetry = 5;
         MetaInnerNode meta = new MetaInnerNode(contentData);
         assert (to - from == interval);
 
-        updateToNeededVersion(from, maxRetry);
-
+        // copy-on-write: the nodes of the insert path are copied, readers keep using the published nodes
         BlockNode curNode = root;
 
         ArrayList<BlockNode> nodePath = new ArrayList<>();
@@ -104,12 +189,14 @@ public class BlockTree implements ITree {
 
         // do we require a new root?
         if (curNode.containsInterval(from, to)) {
+            curNode = curNode.copyForUpdate();
             if (curNode.isLeaf(interval)) {
                 curNode.insert(meta, from, to);
                 summary.pushNewRoot(curNode, false);
                 //done
                 curNode.setNewVersion(newVersion);
                 this.man.pushUpdates(summary);
+                this.root = curNode;
                 return;
             } else {
                 summary.pushNewRoot(curNode, false);
@@ -117,7 +204,7 @@ public class BlockTree implements ITree {
         } else {
             //create new root
             BlockNode newRoot = new BlockNode(newVersion, curNode.from, curNode.to * k, k);
-            newRoot.insert(new MetaInnerNode(curNode.getAggregatedNodeContent()), curNode.from, curNode.to);
+            newRoot.insert(aggregateOf(curNode), curNode.from, curNode.to);
             summary.pushNewRoot(newRoot, true);
             summary.pushUpdate(curNode, false);
             curNode = newRoot;
@@ -130,7 +217,7 @@ public class BlockTree implements ITree {
             if (curNode.hasMetaForInterval(from, to)) {
                 // load existing child content
                 long blockid = curNode.getPointerMetaInfoIndexForLeaf(from, to);
-                curNode = man.loadNodeWithVersionForInsert(blockid, newVersion - 1);
+                curNode = man.loadNodeWithVersionForInsert(blockid, newVersion - 1).copyForUpdate();
                 summary.pushUpdate(curNode, false);
             } else {
                 // create new content
@@ -148,16 +235,122 @@ public class BlockTree implements ITree {
             }
         }
 
-        // update ranges;
+        // update ranges, by default only the new leaf is added to the aggregates along the path
         for (int i = nodePath.size() - 2; i >= 0; i--) {
             BlockNode upperNode = nodePath.get(i);
             BlockNode lowerNode = nodePath.get(i + 1);
 
-            upperNode.insert(new MetaInnerNode(lowerNode.getAggregatedNodeContent()), lowerNode.from, lowerNode.to);
+            if (aggregateUpdate == AggregateUpdate.RECOMPUTE) {
+                upperNode.insert(aggregateOf(lowerNode), lowerNode.from, lowerNode.to);
+            } else {
+                upperNode.mergeIntoChild(contentData, lowerNode.from, lowerNode.to);
+                if (aggregateUpdate == AggregateUpdate.VERIFY)
+                    verifyAggregate(upperNode, lowerNode);
+            }
             upperNode.setNewVersion(newVersion);
             lowerNode.setNewVersion(newVersion);
         }
         this.man.pushUpdates(summary);
+        this.root = nodePath.get(0);
+    }
+
+    @Override
+    public void insertBatch(long firstChunk, List<NodeContent[]> contents) throws Exception {
+        if (contents.isEmpty())
+            return;
+        if (contents.size() == 1) {
+            insert((int) firstChunk, contents.get(0), firstChunk, firstChunk + interval);
+            return;
+        }
+        int first = (int) firstChunk;
+        updateToNeededVersion(first);
+        if (firstChunk != root.getVersion())
+            throw new RuntimeException("Not in order Insert!");
+
+        int oldVersion = root.getVersion();
+        int newVersion = oldVersion + contents.size();
+        UpdateSummary summary = new UpdateSummary(newVersion, first + contents.size() * interval, k);
+
+        // the nodes of the current root-to-leaf path, every touched node is collected once
+        ArrayList<BlockNode> path = new ArrayList<>();
+        Map<Long, BlockNode> touched = new LinkedHashMap<>();
+        // copy-on-write as in insert
+        path.add(root.copyForUpdate());
+
+        int from = first;
+        for (NodeContent[] content : contents) {
+            int to = from + interval;
+
+            if (!path.get(0).containsInterval(from, to)) {
+                // the batch grows the tree, close the old root and put it below a new one
+                closePath(path, 0);
+                BlockNode oldRoot = path.get(0);
+                BlockNode newRoot = new BlockNode(newVersion, oldRoot.from, oldRoot.to * k, k);
+                newRoot.insert(aggregateOf(oldRoot), oldRoot.from, oldRoot.to);
+                touched.put(oldRoot.getId(), oldRoot);
+                path.clear();
+                path.add(newRoot);
+            }
+
+            BlockNode curNode = path.get(0);
+            int depth = 0;
+            while (!curNode.isLeaf(interval)) {
+                long blockid = curNode.getPointerMetaInfoIndexForLeaf(from, to);
+                if (path.size() > depth + 1 && path.get(depth + 1).getId() == blockid) {
+                    curNode = path.get(depth + 1);
+                } else {
+                    // the previous child is complete for this batch
+                    closePath(path, depth);
+                    if (curNode.hasMetaForInterval(from, to)) {
+                        curNode = man.loadNodeWithVersionForInsert(blockid, oldVersion).copyForUpdate();
+                    } else {
+                        curNode = curNode.createChildNodeForInterval(from, k);
+                    }
+                    path.add(curNode);
+                    touched.put(curNode.getId(), curNode);
+                }
+                depth++;
+            }
+            curNode.insert(new MetaInnerNode(content), from, to);
+            from = to;
+        }
+        closePath(path, 0);
+
+        BlockNode newRoot = path.get(0);
+        newRoot.setNewVersion(newVersion);
+        summary.pushNewRoot(newRoot, newRoot.getId() != root.getId());
+        touched.remove(newRoot.getId());
+        for (BlockNode node : touched.values()) {
+            node.setNewVersion(newVersion);
+            summary.pushUpdate(node, false);
+        }
+        this.man.pushUpdates(summary);
+        this.root = newRoot;
+    }
+
+    private static void verifyAggregate(BlockNode upperNode, BlockNode lowerNode) {
+        NodeContent[] expected = lowerNode.getAggregatedNodeContent();
+        NodeContent[] actual = upperNode.getMetaAtIndex((lowerNode.from - upperNode.from) / upperNode.metaInterval)
+                .metaInformation;
+        for (int i = 0; i < expected.length; i++) {
+            if (!Arrays.equals(expected[i].encode(), actual[i].encode()))
+                throw new RuntimeException("Aggregate of node " + lowerNode + " does not match its children");
+        }
+    }
+
+    private MetaInnerNode aggregateOf(BlockNode node) {
+        return new MetaInnerNode(node.getAggregatedNodeContent(columnarAggregation));
+    }
+
+    /**
+     * Writes the aggregates of all nodes below the given depth of the path into their parents and removes them from
+     * the path.
+     */
+    private void closePath(ArrayList<BlockNode> path, int depth) {
+        for (int i = path.size() - 1; i > depth; i--) {
+            BlockNode lowerNode = path.remove(i);
+            path.get(i - 1).insert(aggregateOf(lowerNode), lowerNode.from, lowerNode.to);
+        }
     }
 
     @Override
@@ -181,110 +374,460 @@ public class BlockTree implements ITree {
         if (to <= from) {
             throw new IllegalArgumentException();
         }
+        return aggregate(from, to, null);
+    }
+
+    private void updateToNeededVersion(int to) {
+        if (root.getVersion() < to)
+            awaitRoot(to);
+    }
+
+    /**
+     * Waits until the tree has the given version, at most VERSION_AWAIT_TIME ms. The wait ends as soon as the node
+     * manager publishes the version.
+     *
+     * @return the newest known root
+     */
+    private BlockNode awaitRoot(int minVersion) {
+        BlockNode newest = await(man.awaitTreeVersion(minVersion));
+        if (newest != null && newest.getVersion() > root.getVersion())
+            this.root = newest;
+        return root;
+    }
+
+    private static BlockNode await(CompletableFuture<BlockNode> future) {
+        try {
+            return future.get(VERSION_AWAIT_TIME, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // use what we have
+        }
+        return null;
+    }
 
-        updateToNeededVersion(to, MAX_RETRY);
+    /**
+     * @return the indexes of the existing children of the node that contain a border of [from, to) without being
+     * fully contained
+     */
+    private static List<Integer> borderChildren(BlockNode current, int from, int to) {
+        List<Integer> children = new ArrayList<>(2);
+        int indLeft = current.getLeftNodeDepper(from);
+        if (indLeft != -1 && current.hasChild(indLeft))
+            children.add(indLeft);
+        int indRight = current.getRigthNodeDepper(to);
+        if (indRight != -1 && indRight != indLeft && current.hasChild(indRight))
+            children.add(indRight);
+        return children;
+    }
+
+    private static int minVersionOf(long id, int to) {
+        return (BlockIdUtil.getTo(id) < to) ? BlockIdUtil.getTo(id) : to;
+    }
+
+    private BlockNode loadChild(BlockNode current, int index, int to) throws Exception {
+        long id = current.getPointerMetaInfoIndex(index);
+        int minVersion = minVersionOf(id, to);
+        BlockNode node = man.loadNodeWithMinVersion(id, minVersion);
+        if (node == null || node.getVersion() < minVersion) {
+            BlockNode newer = await(man.awaitNodeVersion(id, minVersion));
+            if (newer != null)
+                node = newer;
+        }
+        if (node == null)
+            throw missingNode(id);
+        return node;
+    }
+
+    private static TimeCryptTreeException missingNode(long id) {
+        return new TimeCryptTreeException("Node " + id + " [" + BlockIdUtil.getFrom(id) + ", "
+                + BlockIdUtil.getTo(id) + ") of the tree is missing", 1);
+    }
+
+    /**
+     * Pins the root for a read. Nodes are copy-on-write and the leaves are append-only, so no node that is reached
+     * for a range up to the version of the pinned root changes anymore. A reader never waits for a writer, only a
+     * range that is newer than the current root waits (bounded) for the version to be published.
+     */
+    private BlockNode pinSnapshot(int to) {
+        BlockNode snapshot = root;
+        if (snapshot.getVersion() < to)
+            snapshot = awaitRoot(to);
+        return snapshot;
+    }
+
+    @Override
+    public NodeContent[] getAggregation(long fromL, long toL, int[] ids) throws Exception {
+        int from = (int) fromL, to = (int) toL;
+        if (to <= from) {
+            throw new IllegalArgumentException("From (" + from + ") has to be greater then to (" + to + ")");
+        }
+        return aggregate(from, to, ids);
+    }
 
-        NodeContent[] res = null;
+    /**
+     * Aggregates the metadata in [from, to).
+     *
+     * @param ids the metadata slots to aggregate, null for all slots
+     */
+    private NodeContent[] aggregate(int from, int to, int[] ids) throws Exception {
+        BlockNode snapshot = pinSnapshot(to);
+        to = Math.min(to, snapshot.getVersion() * interval);
+        if (to <= from)
+            return null;
+
+        Accumulator res = new Accumulator(ids, columnarAggregation);
 
         Queue<BlockNode> queue = new ArrayDeque<>();
-        queue.add(root);
+        queue.add(snapshot);
 
         while (queue.size() != 0) {
             BlockNode current = queue.poll();
 
-            for (MetaInnerNode meta : current.getMetaFullyContained(from, to)) {
-                if (res == null) {
-                    res = meta.getContentCopy();
-                } else {
-                    for (int i = 0; i < res.length; i++) {
-                        res[i].mergeOther(meta.metaInformation[i]);
-                    }
-                }
+            res.addFullyContained(current, from, to);
+            for (int child : borderChildren(current, from, to)) {
+                queue.add(loadChild(current, child, to));
             }
+        }
+
+        return res.getResult();
+    }
+
+    @Override
+    public List<NodeContent[]> getAggregationSeries(long fromL, long toL, long granularityL, int[] ids)
+            throws Exception {
+        int from = (int) fromL, granularity = (int) granularityL;
+        if (toL <= fromL) {
+            throw new IllegalArgumentException("From (" + fromL + ") has to be greater then to (" + toL + ")");
+        }
+        if (granularity < 1) {
+            throw new IllegalArgumentException("Invalid granularity " + granularity);
+        }
+        int numWindows = (int) ((toL - fromL) / granularity);
+        int to = from + numWindows * granularity;
+
+        List<NodeContent[]> result = new ArrayList<>(numWindows);
+        if (numWindows == 0)
+            return result;
 
-            int indLeft = current.getLeftNodeDepper(from);
-            addNotContainedNodes(queue, current, indLeft, to);
+        BlockNode snapshot = pinSnapshot(to);
+        int snapshotTo = Math.min(to, snapshot.getVersion() * interval);
 
-            int indRight = current.getRigthNodeDepper(to);
-            if (indRight != indLeft)
-                addNotContainedNodes(queue, current, indRight, to);
+        Accumulator[] windows = new Accumulator[numWindows];
+        for (int i = 0; i < numWindows; i++) {
+            windows[i] = new Accumulator(ids, columnarAggregation);
         }
+        if (from < snapshotTo)
+            aggregateSeries(snapshot, from, snapshotTo, granularity, windows);
 
-        return res;
+        for (Accumulator window : windows) {
+            result.add(window.getResult());
+        }
+        return result;
     }
 
-    private void updateToNeededVersion(int to, int maxRetry) throws InterruptedException {
-        for (int count = 0; root.getVersion() < to && count < maxRetry; count++) {
-            if (count > 1)
-                Thread.sleep(RETRY_AWAIT_TIME);
-            try {
-                this.man.updateToLatest(this, to);
-            } catch (Exception e) {
-                continue;
-            }
+    /**
+     * Depth first sweep for the series aggregation. Runs of children that lie in the same window are added to the
+     * window in one step, a child is only loaded if it crosses a window or the query border. Every node is therefore
+     * loaded at most once for all windows.
+     */
+    private void aggregateSeries(BlockNode node, int from, int to, int granularity, Accumulator[] windows)
+            throws Exception {
+        for (int child : addSeriesRuns(node, from, to, granularity, windows)) {
+            aggregateSeries(loadChild(node, child, to), from, to, granularity, windows);
         }
     }
 
-    private void addNotContainedNodes(Queue<BlockNode> queue, BlockNode current, int indRight, int to) throws Exception {
-        int maxRetry = 3;
-        if (indRight != -1) {
-            if (current.metaInnerNode[indRight] != null) {
-                BlockNode node = null;
-                long id = current.getPointerMetaInfoIndex(indRight);
-                //TODO Check consistency
-                int minVersion = (BlockIdUtil.getTo(id) < to) ? BlockIdUtil.getTo(id) : to;
-                for (int count = 0; node == null || (node.getVersion() < minVersion || count > maxRetry); count++) {
-                    if (count > 1)
-                        Thread.sleep(RETRY_AWAIT_TIME);
-                    try {
-                        node = man.loadNodeWithMinVersion(id, minVersion);
-                    } catch (Exception e) {
-                        continue;
-                    }
+    /**
+     * Adds the runs of children of the node that lie in one window to the windows.
+     *
+     * @return the indexes of the children that cross a window or the query border and have to be loaded
+     */
+    private List<Integer> addSeriesRuns(BlockNode node, int from, int to, int granularity, Accumulator[] windows) {
+        List<Integer> descend = new ArrayList<>();
+        int firstChild = (from <= node.from) ? 0 : (from - node.from) / node.metaInterval;
+        int lastChild = (to >= node.to) ? node.getK() - 1 : (to - 1 - node.from) / node.metaInterval;
+
+        int runStart = -1, runWindow = -1;
+        for (int child = firstChild; child <= lastChild; child++) {
+            if (!node.hasChild(child))
+                continue;
+            int childFrom = node.from + child * node.metaInterval;
+            int childTo = childFrom + node.metaInterval;
+            int window = (childFrom - from) / granularity;
+            boolean inOneWindow = childFrom >= from && childTo <= to
+                    && window == (childTo - 1 - from) / granularity;
 
-                }
-                node = man.loadNodeWithMinVersion(id, minVersion);
-                queue.add(node);
+            if (inOneWindow && runStart != -1 && runWindow == window)
+                continue;
+            if (runStart != -1)
+                windows[runWindow].addChildren(node, runStart, child);
+            if (inOneWindow) {
+                runStart = child;
+                runWindow = window;
+            } else {
+                runStart = -1;
+                descend.add(child);
             }
         }
+        if (runStart != -1)
+            windows[runWindow].addChildren(node, runStart, lastChild + 1);
+        return descend;
     }
 
+    /**
+     * Asynchronous range aggregation. The tree is traversed level by level, the loads of all nodes of a level are
+     * issued together and the nodes on the paths to both borders of the range are prefetched at the start. No
+     * thread waits for the node manager.
+     */
     @Override
-    public NodeContent[] getAggregation(long fromL, long toL, int[] ids) throws Exception {
+    public CompletionStage<NodeContent[]> getAggregationAsync(long fromL, long toL, int[] ids) {
         int from = (int) fromL, to = (int) toL;
         if (to <= from) {
-            throw new IllegalArgumentException("From (" + from + ") has to be greater then to (" + to + ")");
+            return CompletableFuture.failedFuture(
+                    new IllegalArgumentException("From (" + from + ") has to be greater then to (" + to + ")"));
         }
+        return pinSnapshotAsync(to).thenCompose(snapshot -> {
+            int snapshotTo = Math.min(to, snapshot.getVersion() * interval);
+            if (snapshotTo <= from)
+                return CompletableFuture.completedFuture(null);
+
+            Accumulator res = new Accumulator(ids, columnarAggregation);
+            Map<Long, CompletableFuture<BlockNode>> prefetched = prefetchBorders(snapshot, from, snapshotTo);
+            return traverseAsync(Collections.singletonList(snapshot), snapshotTo, prefetched, node -> {
+                res.addFullyContained(node, from, snapshotTo);
+                return borderChildren(node, from, snapshotTo);
+            }).thenApply(done -> res.getResult());
+        });
+    }
 
-        updateToNeededVersion(to, MAX_RETRY);
+    /**
+     * Asynchronous series aggregation, loads the nodes that cross a window of a level together.
+     */
+    @Override
+    public CompletionStage<List<NodeContent[]>> getAggregationSeriesAsync(long fromL, long toL, long granularityL,
+                                                                          int[] ids) {
+        int from = (int) fromL, granularity = (int) granularityL;
+        if (toL <= fromL) {
+            return CompletableFuture.failedFuture(
+                    new IllegalArgumentException("From (" + fromL + ") has to be greater then to (" + toL + ")"));
+        }
+        if (granularity < 1) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Invalid granularity " + granularity));
+        }
+        int numWindows = (int) ((toL - fromL) / granularity);
+        int to = from + numWindows * granularity;
+        if (numWindows == 0)
+            return CompletableFuture.completedFuture(new ArrayList<>());
+
+        Accumulator[] windows = new Accumulator[numWindows];
+        for (int i = 0; i < numWindows; i++) {
+            windows[i] = new Accumulator(ids, columnarAggregation);
+        }
+        return pinSnapshotAsync(to).thenCompose(snapshot -> {
+            int snapshotTo = Math.min(to, snapshot.getVersion() * interval);
+            if (from >= snapshotTo)
+                return CompletableFuture.completedFuture(null);
+            Map<Long, CompletableFuture<BlockNode>> prefetched = prefetchBorders(snapshot, from, snapshotTo);
+            return traverseAsync(Collections.singletonList(snapshot), snapshotTo, prefetched,
+                    node -> addSeriesRuns(node, from, snapshotTo, granularity, windows));
+        }).thenApply(done -> {
+            List<NodeContent[]> result = new ArrayList<>(numWindows);
+            for (Accumulator window : windows) {
+                result.add(window.getResult());
+            }
+            return result;
+        });
+    }
 
-        NodeContent[] res = null;
+    private interface NodeVisitor {
+        /**
+         * Adds the node to the result.
+         *
+         * @return the indexes of the children of the node that have to be visited
+         */
+        List<Integer> visit(BlockNode node);
+    }
 
-        Queue<BlockNode> queue = new ArrayDeque<>();
-        queue.add(root);
+    /**
+     * Visits the nodes of a level and then the children they return, the children of a level are loaded
+     * concurrently. The visitor is called by one thread at a time.
+     */
+    private CompletableFuture<Void> traverseAsync(List<BlockNode> level, int to,
+                                                  Map<Long, CompletableFuture<BlockNode>> prefetched,
+                                                  NodeVisitor visitor) {
+        List<CompletableFuture<BlockNode>> next = new ArrayList<>();
+        for (BlockNode node : level) {
+            for (int child : visitor.visit(node)) {
+                next.add(loadChildAsync(node, child, to, prefetched));
+            }
+        }
+        if (next.isEmpty())
+            return CompletableFuture.completedFuture(null);
+        return CompletableFuture.allOf(next.toArray(new CompletableFuture<?>[0])).thenCompose(done -> {
+            List<BlockNode> nodes = new ArrayList<>(next.size());
+            for (CompletableFuture<BlockNode> node : next) {
+                nodes.add(node.join());
+            }
+            return traverseAsync(nodes, to, prefetched, visitor);
+        });
+    }
 
-        while (queue.size() != 0) {
-            BlockNode current = queue.poll();
+    /**
+     * Starts the loads of all nodes on the paths from the root to the two borders of the range. The ids of the nodes
+     * follow from their intervals, so the loads of a lower level do not wait for the nodes above.
+     */
+    private Map<Long, CompletableFuture<BlockNode>> prefetchBorders(BlockNode snapshot, int from, int to) {
+        Map<Long, CompletableFuture<BlockNode>> prefetched = new HashMap<>();
+        prefetchPath(snapshot, from, to, prefetched);
+        prefetchPath(snapshot, to, to, prefetched);
+        return prefetched;
+    }
 
-            for (MetaInnerNode meta : current.getMetaFullyContained(from, to)) {
-                if (res == null) {
-                    res = meta.getContentCopy();
-                } else {
-                    for (int i : ids) {
-                        res[i].mergeOther(meta.metaInformation[i]);
-                    }
+    private void prefetchPath(BlockNode snapshot, int border, int to,
+                              Map<Long, CompletableFuture<BlockNode>> prefetched) {
+        if (border <= snapshot.from || border >= snapshot.to)
+            return;
+        int offset = border - snapshot.from;
+        // the children of the leaves are chunks, a border on the edge of a node is not descended into
+        for (int size = snapshot.metaInterval; size > interval && offset % size != 0; size /= k) {
+            int nodeFrom = snapshot.from + offset / size * size;
+            long id = BlockIdUtil.getID(nodeFrom, nodeFrom + size);
+            prefetched.computeIfAbsent(id, key -> man.loadNodeWithMinVersionAsync(key, minVersionOf(key, to))
+                    .toCompletableFuture());
+        }
+    }
+
+    private CompletableFuture<BlockNode> loadChildAsync(BlockNode current, int index, int to,
+                                                        Map<Long, CompletableFuture<BlockNode>> prefetched) {
+        long id = current.getPointerMetaInfoIndex(index);
+        int minVersion = minVersionOf(id, to);
+        CompletableFuture<BlockNode> load = prefetched.get(id);
+        if (load == null)
+            load = man.loadNodeWithMinVersionAsync(id, minVersion).toCompletableFuture();
+        return load.thenCompose(node -> {
+            if (node != null && node.getVersion() >= minVersion)
+                return CompletableFuture.completedFuture(node);
+            return awaitAsync(man.awaitNodeVersion(id, minVersion)).thenApply(newer -> {
+                if (newer != null)
+                    return newer;
+                if (node == null)
+                    throw missingNode(id);
+                return node;
+            });
+        });
+    }
+
+    private CompletableFuture<BlockNode> pinSnapshotAsync(int to) {
+        BlockNode snapshot = root;
+        if (snapshot.getVersion() >= to)
+            return CompletableFuture.completedFuture(snapshot);
+        return awaitAsync(man.awaitTreeVersion(to)).thenApply(newest -> {
+            if (newest != null && newest.getVersion() > root.getVersion())
+                this.root = newest;
+            return root;
+        });
+    }
+
+    /**
+     * Like await, completes with null if the version is not published within VERSION_AWAIT_TIME ms.
+     */
+    private static CompletableFuture<BlockNode> awaitAsync(CompletableFuture<BlockNode> future) {
+        return future.completeOnTimeout(null, VERSION_AWAIT_TIME, TimeUnit.MILLISECONDS)
+                .exceptionally(e -> null);
+    }
+
+    /**
+     * Collects the aggregate of one range. The columns of the nodes are summed into a primitive accumulator, without
+     * columnar aggregation the NodeContent objects of the children are created and merged.
+     */
+    private static class Accumulator {
+        private final int[] ids;
+        private final boolean columnar;
+        private NodeContent[] res = null;
+        // the columns of the first summed node, they convert the accumulator
+        private NodeContentColumns schema = null;
+        private long[] acc = null;
+        private boolean accUsed = false;
+
+        Accumulator(int[] ids, boolean columnar) {
+            this.ids = ids;
+            this.columnar = columnar;
+        }
+
+        private NodeContentColumns columnsOf(BlockNode node) {
+            NodeContentColumns columns = columnar ? node.getColumns() : null;
+            if (columns == null)
+                return null;
+            if (schema == null) {
+                schema = columns;
+                acc = new long[columns.getNumWords()];
+            } else if (!schema.hasSameSchema(columns)) {
+                throw new RuntimeException("Merge Failed, inconsistent Node Contents");
+            }
+            return columns;
+        }
+
+        void addFullyContained(BlockNode node, int from, int to) {
+            NodeContentColumns columns = columnsOf(node);
+            if (columns != null) {
+                accUsed |= node.sumFullyContained(from, to, ids, acc);
+            } else {
+                for (MetaInnerNode meta : node.getMetaFullyContained(from, to)) {
+                    addMeta(meta);
                 }
             }
+        }
 
-            int indLeft = current.getLeftNodeDepper(from);
-            addNotContainedNodes(queue, current, indLeft, to);
+        void addChildren(BlockNode node, int fromInd, int toInd) {
+            NodeContentColumns columns = columnsOf(node);
+            if (columns != null) {
+                if (ids == null)
+                    columns.sum(fromInd, toInd, acc);
+                else
+                    columns.sum(fromInd, toInd, ids, acc);
+                accUsed = true;
+            } else {
+                for (int i = fromInd; i < toInd; i++) {
+                    if (node.hasChild(i))
+                        addMeta(node.getMetaAtIndex(i));
+                }
+            }
+        }
 
-            int indRight = current.getRigthNodeDepper(to);
-            if (indRight != indLeft)
-                addNotContainedNodes(queue, current, indRight, to);
+        // the MetaInnerNodes are created for the accumulator, their contents can be merged into
+        private void addMeta(MetaInnerNode meta) {
+            if (res == null) {
+                res = meta.metaInformation;
+            } else {
+                mergeInto(res, meta.metaInformation, ids);
+            }
         }
 
-        return res;
+        NodeContent[] getResult() {
+            if (accUsed) {
+                NodeContent[] accContent = schema.toNodeContents(acc);
+                if (res == null)
+                    return accContent;
+                mergeInto(res, accContent, ids);
+            }
+            return res;
+        }
+    }
+
+    private static void mergeInto(NodeContent[] res, NodeContent[] other, int[] ids) {
+        if (ids == null) {
+            for (int i = 0; i < res.length; i++) {
+                res[i].mergeOther(other[i]);
+            }
+        } else {
+            for (int i : ids) {
+                res[i].mergeOther(other[i]);
+            }
+        }
     }
 
     @Override
@@ -297,8 +840,8 @@ public class BlockTree implements ITree {
         s.append(ind).append(n.toString()).append("\n");
         if (n.isLeaf(interval))
             return s;
-        for (int i = 0; i < n.metaInnerNode.length; i++) {
-            if (n.metaInnerNode[i] == null)
+        for (int i = 0; i < n.getK(); i++) {
+            if (!n.hasChild(i))
                 break;
             BlockNode child = man.loadNode(n.getPointerMetaInfoIndex(i));
             s.append(toStringHelper(child, ind + "  "));
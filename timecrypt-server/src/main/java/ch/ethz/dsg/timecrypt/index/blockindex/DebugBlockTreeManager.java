@@ -5,11 +5,14 @@
 
 package ch.ethz.dsg.timecrypt.index.blockindex;
 
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class DebugBlockTreeManager implements IBlockTreeFetcher {
 
@@ -55,11 +58,36 @@ public class DebugBlockTreeManager implements IBlockTreeFetcher {
 
     }
 
+    @Override
+    public void deleteTree(long uid, String user) {
+        treeMap.remove(deductKeyTree(uid, user));
+        String prefix = deductKeyTree(uid, user) + "|";
+        blockMap.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    @Override
+    public CompletableFuture<BlockNode> awaitNodeVersion(long uid, String user, long blockid, int minVersion) {
+        BlockTree tree = treeMap.get(deductKeyTree(uid, user));
+        if (tree == null)
+            return CompletableFuture.failedFuture(new RuntimeException("Tree does not exist"));
+        return tree.man.awaitNodeVersion(blockid, minVersion);
+    }
+
+    @Override
+    public CompletableFuture<BlockTree> awaitTreeVersion(long uid, String user, int minVersion) {
+        BlockTree tree = treeMap.get(deductKeyTree(uid, user));
+        if (tree == null)
+            return CompletableFuture.failedFuture(new RuntimeException("Tree does not exist"));
+        return tree.man.awaitTreeVersion(minVersion).thenApply(root -> tree);
+    }
+
     public class DebufgNodeManager implements INodeManager {
 
         BlockTree tree;
         private String user;
         private long id;
+        private final VersionWaiters<BlockNode> nodeWaiters = new VersionWaiters<>(BlockNode::getVersion);
+        private final VersionWaiters<BlockNode> treeWaiters = new VersionWaiters<>(BlockNode::getVersion);
 
         public DebufgNodeManager(String user, long id) {
             this.user = user;
@@ -74,10 +102,24 @@ public class DebugBlockTreeManager implements IBlockTreeFetcher {
         @Override
         public void pushUpdates(UpdateSummary summary) {
             BlockTree tree = treeMap.get(deductKeyTree(this.id, this.user));
+            // the nodes have to be visible before the root that references them
+            for (BlockNode node : summary.getNewNodes()) {
+                blockMap.put(deductKey(id, user, node.getId()), node);
+            }
+            blockMap.put(deductKey(id, user, summary.getNewRoot().getId()), summary.getNewRoot());
             tree.root = summary.getNewRoot();
-            blockMap.put(deductKey(id, user, tree.root.getId()), tree.root);
             for (BlockNode node : summary.getNewNodes()) {
+                nodeWaiters.publish(node.getId(), node);
+            }
+            nodeWaiters.publish(tree.root.getId(), tree.root);
+            treeWaiters.publish(0, tree.root);
+        }
+
+        @Override
+        public void writeNodes(List<BlockNode> nodes) {
+            for (BlockNode node : nodes) {
                 blockMap.put(deductKey(id, user, node.getId()), node);
+                nodeWaiters.publish(node.getId(), node);
             }
         }
 
@@ -101,5 +143,18 @@ public class DebugBlockTreeManager implements IBlockTreeFetcher {
         public void updateToLatest(BlockTree tree, int minVersion) throws Exception {
             this.updateToLatest(tree);
         }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitNodeVersion(long blockid, int minVersion) {
+            return nodeWaiters.await(blockid, minVersion, () -> loadNode(blockid));
+        }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitTreeVersion(int minVersion) {
+            BlockTree tree = treeMap.get(deductKeyTree(this.id, this.user));
+            if (tree == null)
+                return CompletableFuture.failedFuture(new TimeCryptTreeException("Tree does not exists", 1));
+            return treeWaiters.await(0, minVersion, () -> tree.root);
+        }
     }
 }
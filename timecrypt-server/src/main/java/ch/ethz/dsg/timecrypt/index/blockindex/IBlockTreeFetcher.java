@@ -5,6 +5,11 @@
 
 package ch.ethz.dsg.timecrypt.index.blockindex;
 
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 public interface IBlockTreeFetcher {
 
     BlockTree createTree(long uid, String user, int k, int interval) throws Exception;
@@ -13,8 +18,35 @@ public interface IBlockTreeFetcher {
 
     BlockTree fetchTreeMinVersion(long uid, String user, int minVersion) throws Exception;
 
+    /**
+     * Asynchronous variant of fetchTreeMinVersion, by default the tree is fetched on the calling thread.
+     */
+    default CompletionStage<BlockTree> fetchTreeMinVersionAsync(long uid, String user, int minVersion) {
+        try {
+            return CompletableFuture.completedFuture(fetchTreeMinVersion(uid, user, minVersion));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     BlockTree fetchTree(long uid, String user) throws Exception;
 
     void invalidateCache();
 
+    /**
+     * Drops the tree and its nodes from the memory of the fetcher.
+     */
+    void deleteTree(long uid, String user) throws Exception;
+
+    /**
+     * Completes as soon as the node of the tree with at least the given version is published.
+     */
+    CompletableFuture<BlockNode> awaitNodeVersion(long uid, String user, long blockid, int minVersion)
+            throws Exception;
+
+    /**
+     * Completes as soon as the tree has at least the given version.
+     */
+    CompletableFuture<BlockTree> awaitTreeVersion(long uid, String user, int minVersion) throws Exception;
+
 }
@@ -7,19 +7,59 @@ package ch.ethz.dsg.timecrypt.index.blockindex;
 
 import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 public interface INodeManager {
 
     BlockNode loadNode(long id) throws Exception;
 
+    /**
+     * Asynchronous variant of loadNode, by default the node is loaded on the calling thread.
+     */
+    default CompletionStage<BlockNode> loadNodeAsync(long id) {
+        try {
+            return CompletableFuture.completedFuture(loadNode(id));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     void pushUpdates(UpdateSummary summary) throws Exception;
 
+    /**
+     * Writes nodes that are not part of the current tree root (e.g. sealed nodes of a bulk load).
+     */
+    void writeNodes(List<BlockNode> nodes) throws Exception;
+
     void updateToLatest(BlockTree tree) throws Exception;
 
     BlockNode loadNodeWithMinVersion(long blockid, int version) throws Exception;
 
+    /**
+     * Asynchronous variant of loadNodeWithMinVersion, by default the node is loaded on the calling thread.
+     */
+    default CompletionStage<BlockNode> loadNodeWithMinVersionAsync(long blockid, int version) {
+        try {
+            return CompletableFuture.completedFuture(loadNodeWithMinVersion(blockid, version));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     BlockNode loadNodeWithVersionForInsert(long blockid, int version) throws Exception;
 
     void updateToLatest(BlockTree tree, int minVersion) throws Exception;
 
+    /**
+     * Completes as soon as the node with at least the given version is published.
+     */
+    CompletableFuture<BlockNode> awaitNodeVersion(long blockid, int minVersion);
+
+    /**
+     * Completes with the root as soon as the tree has at least the given version.
+     */
+    CompletableFuture<BlockNode> awaitTreeVersion(int minVersion);
 
 }
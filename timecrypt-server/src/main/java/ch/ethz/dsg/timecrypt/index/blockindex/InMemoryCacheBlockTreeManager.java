@@ -5,35 +5,45 @@
 
 package ch.ethz.dsg.timecrypt.index.blockindex;
 
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockIdUtil;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.MetaInnerNode;
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Implements the tree in memory - no cassandra needed
+ * Implements the tree in memory - no cassandra needed. The sealed nodes are stored encoded and never evicted, the
+ * block map caches the decoded nodes within its budget.
  */
 public class InMemoryCacheBlockTreeManager implements IBlockTreeFetcher {
 
     Map<String, BlockTree> treeMap = Collections.synchronizedMap(new HashMap<>());
 
-    Cache<String, BlockNode> blockMap = null;
+    NodeCache<String, BlockNode> blockMap = null;
 
+    // the storage of this manager, the block map may evict a node at any time
+    private final Map<String, byte[]> nodeStore = new ConcurrentHashMap<>();
 
-    public InMemoryCacheBlockTreeManager(int size) {
-        blockMap = Caffeine.newBuilder()
-                .maximumSize(size)
-                .build();
+    /**
+     * @param cacheBytes      the estimated heap size of the decoded sealed nodes of all users
+     * @param ownerQuotaBytes the soft limit of the decoded sealed nodes of one user
+     */
+    public InMemoryCacheBlockTreeManager(long cacheBytes, long ownerQuotaBytes) {
+        blockMap = new NodeCache<>(cacheBytes, ownerQuotaBytes, InMemoryCacheBlockTreeManager::ownerOf,
+                BlockNode::retainedSize);
     }
 
     public InMemoryCacheBlockTreeManager() {
-        this(Integer.MAX_VALUE);
+        this(Long.MAX_VALUE, Long.MAX_VALUE);
     }
 
     private static String deductKey(long uid, String user, long blockid) {
@@ -44,6 +54,10 @@ public class InMemoryCacheBlockTreeManager implements IBlockTreeFetcher {
         return String.format("%d|%s", uid, user);
     }
 
+    private static String ownerOf(String key) {
+        return key.substring(key.indexOf('|') + 1, key.lastIndexOf('|'));
+    }
+
     private static byte[] encode(BlockNode node) {
         byte[] meta = node.encodeContent();
         ByteBuffer buff = ByteBuffer.allocate(meta.length + 4);
@@ -66,9 +80,10 @@ public class InMemoryCacheBlockTreeManager implements IBlockTreeFetcher {
     @Override
     public BlockTree createTree(long uid, String user, int k, int interval) {
         BlockNode newRoot = new BlockNode(0, 0, interval * k, k);
-        BlockTree tree = new BlockTree(k, newRoot, new DebufgNodeManager(user, uid));
+        DebufgNodeManager nodeMan = new DebufgNodeManager(user, uid);
+        nodeMan.rightEdge.set(newRoot, new ArrayList<>());
+        BlockTree tree = new BlockTree(k, newRoot, nodeMan);
         treeMap.put(deductKeyTree(uid, user), tree);
-        blockMap.put(deductKey(uid, user, newRoot.getId()), newRoot);
         return tree;
     }
 
@@ -92,11 +107,39 @@ public class InMemoryCacheBlockTreeManager implements IBlockTreeFetcher {
 
     }
 
+    @Override
+    public void deleteTree(long uid, String user) {
+        treeMap.remove(deductKeyTree(uid, user));
+        String prefix = deductKeyTree(uid, user) + "|";
+        blockMap.removeIf(key -> key.startsWith(prefix));
+        nodeStore.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    @Override
+    public CompletableFuture<BlockNode> awaitNodeVersion(long uid, String user, long blockid, int minVersion) {
+        BlockTree tree = treeMap.get(deductKeyTree(uid, user));
+        if (tree == null)
+            return CompletableFuture.failedFuture(new RuntimeException("Tree does not exist"));
+        return tree.man.awaitNodeVersion(blockid, minVersion);
+    }
+
+    @Override
+    public CompletableFuture<BlockTree> awaitTreeVersion(long uid, String user, int minVersion) {
+        BlockTree tree = treeMap.get(deductKeyTree(uid, user));
+        if (tree == null)
+            return CompletableFuture.failedFuture(new RuntimeException("Tree does not exist"));
+        return tree.man.awaitTreeVersion(minVersion).thenApply(root -> tree);
+    }
+
     public class DebufgNodeManager implements INodeManager {
 
         BlockTree tree;
         private String user;
         private long id;
+        private final VersionWaiters<BlockNode> nodeWaiters = new VersionWaiters<>(BlockNode::getVersion);
+        private final VersionWaiters<BlockNode> treeWaiters = new VersionWaiters<>(BlockNode::getVersion);
+        // only the sealed nodes go to the block map, a full map can not evict the nodes of the next insert
+        private final RightEdge rightEdge = new RightEdge();
 
         public DebufgNodeManager(String user, long id) {
             this.user = user;
@@ -105,28 +148,56 @@ public class InMemoryCacheBlockTreeManager implements IBlockTreeFetcher {
 
         @Override
         public BlockNode loadNode(long blockId) {
+            BlockNode held = rightEdge.get(blockId);
+            if (held != null)
+                return held;
+            String key = deductKey(this.id, this.user, blockId);
+            BlockNode cached = blockMap.getIfPresent(key);
+            if (cached != null)
+                return cached;
+            byte[] stored = nodeStore.get(key);
+            if (stored == null)
+                return null;
             try {
-                /*return decode(BlockIdUtil.getFrom(blockId),
-                        BlockIdUtil.getTo(blockId),
-                        blockMap.getIfPresent(deductKey(this.id, this.user, blockId)));*/
-                return blockMap.getIfPresent(deductKey(this.id, this.user, blockId));
-            } catch (Exception e) {
-                e.printStackTrace();
+                BlockNode node = decode(BlockIdUtil.getFrom(blockId), BlockIdUtil.getTo(blockId), stored);
+                blockMap.put(key, node);
+                return node;
+            } catch (InvalidProtocolBufferException e) {
+                throw new TimeCryptTreeException("Could not decode node " + blockId + ": " + e.getMessage(), 1);
             }
-            return null;
+        }
+
+        private void store(BlockNode node) {
+            String key = deductKey(id, user, node.getId());
+            nodeStore.put(key, encode(node));
+            blockMap.put(key, node);
         }
 
         @Override
         public void pushUpdates(UpdateSummary summary) {
             BlockTree tree = treeMap.get(deductKeyTree(this.id, this.user));
+            // the nodes have to be visible before the root that references them
+            for (BlockNode node : RightEdge.sealedNodes(summary)) {
+                store(node);
+            }
+            rightEdge.update(summary);
             tree.root = summary.getNewRoot();
-            blockMap.put(deductKey(id, user, tree.root.getId()), tree.root);
             for (BlockNode node : summary.getNewNodes()) {
-                blockMap.put(deductKey(id, user, node.getId()), node);
+                nodeWaiters.publish(node.getId(), node);
             }
+            nodeWaiters.publish(tree.root.getId(), tree.root);
+            treeWaiters.publish(0, tree.root);
             //System.out.println(blockMap.estimatedSize());
         }
 
+        @Override
+        public void writeNodes(List<BlockNode> nodes) {
+            for (BlockNode node : nodes) {
+                store(node);
+                nodeWaiters.publish(node.getId(), node);
+            }
+        }
+
         @Override
         public void updateToLatest(BlockTree tree) {
             BlockTree actualTree = treeMap.get(deductKeyTree(this.id, this.user));
@@ -147,6 +218,19 @@ public class InMemoryCacheBlockTreeManager implements IBlockTreeFetcher {
         public void updateToLatest(BlockTree tree, int minVersion) throws Exception {
             this.updateToLatest(tree);
         }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitNodeVersion(long blockid, int minVersion) {
+            return nodeWaiters.await(blockid, minVersion, () -> loadNode(blockid));
+        }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitTreeVersion(int minVersion) {
+            BlockTree tree = treeMap.get(deductKeyTree(this.id, this.user));
+            if (tree == null)
+                return CompletableFuture.failedFuture(new TimeCryptTreeException("Tree does not exists", 1));
+            return treeWaiters.await(0, minVersion, () -> tree.root);
+        }
     }
 }
 
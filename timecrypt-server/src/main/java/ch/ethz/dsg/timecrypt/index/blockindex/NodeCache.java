@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.index.blockindex;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * A cache of tree nodes that is bounded by the estimated heap size of its entries instead of their number. One
+ * budget is shared by all owners (the users of the streams). An owner may use more than its soft quota as long as the
+ * cache has room, once the cache is nearly full an owner above its quota evicts its own entries first, so a single
+ * heavy owner can not flush the hot nodes of everyone else.
+ * <p>
+ * Every entry is weighed once when it is stored, the weight is kept with the entry so the usage of the owners stays
+ * consistent even if the value changes afterwards.
+ *
+ * @param <K> the key, it names the owner of the entry
+ * @param <V> the cached value
+ */
+public class NodeCache<K, V> {
+
+    public static final long DEFAULT_BUDGET = 256L << 20;
+    public static final int DEFAULT_OWNER_QUOTA_PERCENT = 25;
+    // the keys, the entry and the internal node of the cache
+    public static final int ENTRY_OVERHEAD = 160;
+    // share of the budget from which on the owners are held to their quotas
+    private static final double SOFT_LIMIT = 0.9;
+
+    private final Cache<K, Weighted<V>> cache;
+    private final Function<K, String> ownerOf;
+    private final ToLongFunction<V> sizeOf;
+    private final long budget;
+    private final long ownerQuota;
+    private final Map<String, Owner<K>> owners = new ConcurrentHashMap<>();
+    private final AtomicLong used = new AtomicLong(0);
+
+    private static class Weighted<V> {
+        private final V value;
+        private final int weight;
+
+        Weighted(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private static class Owner<K> {
+        private final AtomicLong used = new AtomicLong(0);
+        private final Set<K> keys = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * @param budget     the estimated heap size of all entries in bytes
+     * @param ownerQuota the soft limit of the entries of one owner in bytes
+     * @param ownerOf    the owner of a key
+     * @param sizeOf     the estimated heap size of a value without {@link #ENTRY_OVERHEAD}
+     */
+    public NodeCache(long budget, long ownerQuota, Function<K, String> ownerOf, ToLongFunction<V> sizeOf) {
+        this.budget = budget;
+        this.ownerQuota = ownerQuota;
+        this.ownerOf = ownerOf;
+        this.sizeOf = sizeOf;
+        // the removals are accounted on the calling thread, the usage is up to date when a put returns
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(budget)
+                .weigher((K key, Weighted<V> entry) -> entry.weight)
+                .executor(Runnable::run)
+                .removalListener((K key, Weighted<V> entry, RemovalCause cause) -> released(key, entry, cause))
+                .build();
+    }
+
+    public static long ownerQuota(long budget, int ownerQuotaPercent) {
+        return budget / 100 * ownerQuotaPercent;
+    }
+
+    private Weighted<V> weigh(V value) {
+        return new Weighted<>(value, (int) Math.min(Integer.MAX_VALUE, ENTRY_OVERHEAD + sizeOf.applyAsLong(value)));
+    }
+
+    private Owner<K> ownerFor(K key) {
+        return owners.computeIfAbsent(ownerOf.apply(key), name -> new Owner<>());
+    }
+
+    private void charged(K key, Weighted<V> entry) {
+        Owner<K> owner = ownerFor(key);
+        owner.keys.add(key);
+        owner.used.addAndGet(entry.weight);
+        used.addAndGet(entry.weight);
+    }
+
+    private void released(K key, Weighted<V> entry, RemovalCause cause) {
+        if (key == null || entry == null)
+            return;
+        Owner<K> owner = ownerFor(key);
+        // a replaced key is still in the cache with its new value
+        if (cause != RemovalCause.REPLACED)
+            owner.keys.remove(key);
+        owner.used.addAndGet(-entry.weight);
+        used.addAndGet(-entry.weight);
+    }
+
+    /**
+     * Evicts entries of the owner of the key until it is within its quota, the key itself is kept.
+     */
+    private void enforceQuota(K key) {
+        Owner<K> owner = ownerFor(key);
+        if (owner.used.get() <= ownerQuota || used.get() <= budget * SOFT_LIMIT)
+            return;
+        Iterator<K> keys = owner.keys.iterator();
+        while (owner.used.get() > ownerQuota && keys.hasNext()) {
+            K victim = keys.next();
+            if (victim.equals(key))
+                continue;
+            keys.remove();
+            cache.invalidate(victim);
+        }
+    }
+
+    public V getIfPresent(K key) {
+        Weighted<V> entry = cache.getIfPresent(key);
+        return (entry == null) ? null : entry.value;
+    }
+
+    public void put(K key, V value) {
+        Weighted<V> entry = weigh(value);
+        charged(key, entry);
+        cache.put(key, entry);
+        enforceQuota(key);
+    }
+
+    /**
+     * Computes the value of the key atomically, a result that is the current value is not weighed again.
+     */
+    public V compute(K key, BiFunction<K, V, V> remapping) {
+        Weighted<V> res = cache.asMap().compute(key, (k, current) -> {
+            V value = remapping.apply(k, (current == null) ? null : current.value);
+            if (value == null)
+                return null;
+            if (current != null && current.value == value)
+                return current;
+            Weighted<V> entry = weigh(value);
+            charged(k, entry);
+            return entry;
+        });
+        enforceQuota(key);
+        return (res == null) ? null : res.value;
+    }
+
+    public void invalidate(K key) {
+        cache.invalidate(key);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public void removeIf(Predicate<K> filter) {
+        cache.asMap().keySet().removeIf(filter);
+    }
+
+    /**
+     * @return the estimated heap size of all entries in bytes
+     */
+    public long weightedSize() {
+        return used.get();
+    }
+
+    /**
+     * @return the estimated heap size of the entries of the owner in bytes
+     */
+    public long ownerSize(String owner) {
+        Owner<K> res = owners.get(owner);
+        return (res == null) ? 0 : res.used.get();
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getOwnerQuota() {
+        return ownerQuota;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.index.blockindex;
+
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The root and the unsealed nodes of a tree, the only nodes an insert reads. A node is sealed once the tree covers its
+ * whole interval, it never changes afterwards. The unsealed nodes are the path of the last insert, so the edge holds
+ * at most height nodes and every update summary contains the complete new edge.
+ * <p>
+ * The node managers keep the edge outside of their block caches, so queries over old data can not evict the nodes
+ * of the next insert. Readers see a consistent snapshot without locking.
+ */
+public class RightEdge {
+
+    private static class Snapshot {
+        private final BlockNode root;
+        private final Map<Long, BlockNode> nodes;
+
+        Snapshot(BlockNode root, Map<Long, BlockNode> nodes) {
+            this.root = root;
+            this.nodes = nodes;
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(null, Collections.emptyMap());
+
+    public static boolean isSealed(BlockNode node, UpdateSummary summary) {
+        return node.to <= summary.newTime;
+    }
+
+    /**
+     * @return the nodes of the summary that are sealed, they leave the edge with the summary
+     */
+    public static List<BlockNode> sealedNodes(UpdateSummary summary) {
+        List<BlockNode> sealed = new ArrayList<>();
+        for (BlockNode node : summary.getNewNodes()) {
+            if (isSealed(node, summary))
+                sealed.add(node);
+        }
+        return sealed;
+    }
+
+    /**
+     * Replaces the edge with the one of the summary. A cache of the sealed nodes has to get them before the edge
+     * is replaced, otherwise a reader can miss a node in between.
+     *
+     * @return the nodes of the summary that are sealed, they left the edge
+     */
+    public List<BlockNode> update(UpdateSummary summary) {
+        List<BlockNode> sealed = new ArrayList<>();
+        Map<Long, BlockNode> unsealed = new HashMap<>();
+        for (BlockNode node : summary.getNewNodes()) {
+            if (isSealed(node, summary))
+                sealed.add(node);
+            else
+                unsealed.put(node.getId(), node);
+        }
+        snapshot = new Snapshot(summary.getNewRoot(), unsealed);
+        return sealed;
+    }
+
+    public void set(BlockNode root, Collection<BlockNode> nodes) {
+        Map<Long, BlockNode> unsealed = new HashMap<>();
+        for (BlockNode node : nodes) {
+            unsealed.put(node.getId(), node);
+        }
+        snapshot = new Snapshot(root, unsealed);
+    }
+
+    /**
+     * @return the node if it is the root or an unsealed node of the edge, otherwise null
+     */
+    public BlockNode get(long id) {
+        Snapshot current = snapshot;
+        if (current.root != null && current.root.getId() == id)
+            return current.root;
+        return current.nodes.get(id);
+    }
+
+    public BlockNode getRoot() {
+        return snapshot.root;
+    }
+
+    /**
+     * @return the unsealed nodes below the root
+     */
+    public Collection<BlockNode> getNodes() {
+        return snapshot.nodes.values();
+    }
+
+    public int size() {
+        Snapshot current = snapshot;
+        return current.nodes.size() + ((current.root == null) ? 0 : 1);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.index.blockindex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Futures that are completed as soon as a node or tree with a minimal version is published. Node managers register
+ * a waiter if the current value is too old and complete the waiters of a key from pushUpdates. A waiter whose future
+ * is completed otherwise, e.g. cancelled or completed on a timeout, is removed at once.
+ *
+ * @param <T> the published value (a node or a tree)
+ */
+public class VersionWaiters<T> {
+
+    private final ToIntFunction<T> versionOf;
+    private final Map<Long, List<Waiter<T>>> waiters = new HashMap<>();
+    private volatile int numWaiters = 0;
+
+    public VersionWaiters(ToIntFunction<T> versionOf) {
+        this.versionOf = versionOf;
+    }
+
+    /**
+     * Returns a future for the first value of the key with at least the given version.
+     *
+     * @param current supplies the currently published value (may return null), it is checked while holding the
+     *                lock of the waiters, so a value that is published concurrently can not be missed
+     */
+    public CompletableFuture<T> await(long key, int minVersion, Supplier<T> current) {
+        synchronized (this) {
+            T value = current.get();
+            if (value != null && versionOf.applyAsInt(value) >= minVersion)
+                return CompletableFuture.completedFuture(value);
+            Waiter<T> waiter = new Waiter<>(minVersion);
+            waiters.computeIfAbsent(key, id -> new ArrayList<>()).add(waiter);
+            numWaiters++;
+            waiter.future.whenComplete((res, throwable) -> remove(key, waiter));
+            return waiter.future;
+        }
+    }
+
+    private synchronized void remove(long key, Waiter<T> waiter) {
+        List<Waiter<T>> list = waiters.get(key);
+        // a published waiter is already removed
+        if (list == null || !list.remove(waiter))
+            return;
+        numWaiters--;
+        if (list.isEmpty())
+            waiters.remove(key);
+    }
+
+    /**
+     * @return the number of registered waiters
+     */
+    public int getNumWaiters() {
+        return numWaiters;
+    }
+
+    /**
+     * Completes all waiters of the key that are satisfied by the given value. Has to be called after the value is
+     * visible to the supplier of await.
+     */
+    public void publish(long key, T value) {
+        if (numWaiters == 0)
+            return;
+        int version = versionOf.applyAsInt(value);
+        List<Waiter<T>> ready = null;
+        synchronized (this) {
+            List<Waiter<T>> list = waiters.get(key);
+            if (list == null)
+                return;
+            Iterator<Waiter<T>> iter = list.iterator();
+            while (iter.hasNext()) {
+                Waiter<T> waiter = iter.next();
+                if (waiter.minVersion <= version || waiter.future.isDone()) {
+                    iter.remove();
+                    numWaiters--;
+                    if (ready == null)
+                        ready = new ArrayList<>();
+                    ready.add(waiter);
+                }
+            }
+            if (list.isEmpty())
+                waiters.remove(key);
+        }
+        // complete outside of the lock, the dependent actions run on this thread
+        if (ready != null) {
+            for (Waiter<T> waiter : ready) {
+                waiter.future.complete(value);
+            }
+        }
+    }
+
+    private static class Waiter<T> {
+        private final int minVersion;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Waiter(int minVersion) {
+            this.minVersion = minVersion;
+        }
+    }
+}
@@ -11,30 +11,50 @@ import ch.ethz.dsg.timecrypt.crypto.CryptoContentFactory;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * A node of the block tree. The metadata of the children is stored in {@link NodeContentColumns}, the MetaInnerNode
+ * objects of the children are only created for the encoding and for callers that ask for a single child.
+ */
 public class BlockNode {
 
     public int from;
     public int to;
-    public MetaInnerNode[] metaInnerNode;
     public int metaInterval;
     private int version;
-
+    // marks the children that have metadata
+    private final boolean[] present;
+    // null until the first child is inserted
+    private NodeContentColumns columns;
+
+    /**
+     * @throws IllegalArgumentException if a content type has no column layout
+     * @throws RuntimeException         if the children have different schemas
+     */
     public BlockNode(int version, int from, int to, MetaInnerNode[] metaInnerNode) {
-        this.from = from;
-        this.to = to;
-        this.metaInnerNode = metaInnerNode;
-        this.metaInterval = (to - from) / metaInnerNode.length;
-        this.version = version;
+        this(version, from, to, metaInnerNode.length);
+        for (int iter = 0; iter < metaInnerNode.length; iter++) {
+            if (metaInnerNode[iter] != null)
+                setChild(iter, metaInnerNode[iter].metaInformation);
+        }
+    }
+
+    private BlockNode(BlockNode other) {
+        this.from = other.from;
+        this.to = other.to;
+        this.present = other.present.clone();
+        this.metaInterval = other.metaInterval;
+        this.version = other.version;
+        this.columns = (other.columns == null) ? null : other.columns.copy();
     }
 
     public BlockNode(int version, int from, int to, int k) {
         this.from = from;
         this.to = to;
-        this.metaInterval = to - from;
-        this.metaInnerNode = new MetaInnerNode[k];
+        this.present = new boolean[k];
         this.metaInterval = (to - from) / k;
         this.version = version;
     }
@@ -43,8 +63,26 @@ public class BlockNode {
         return BlockIdUtil.getID(from, to);
     }
 
+    /**
+     * Decodes the children of {@link #encodeContent()}, in the binary format or in the protobuf format of older
+     * versions.
+     */
     public static MetaInnerNode[] decodeNodeContent(byte[] data) throws InvalidProtocolBufferException {
-        BinBlockNodeContent content = BinBlockNodeContent.parseFrom(data);
+        if (BlockNodeCodec.isBinary(data))
+            return BlockNodeCodec.decode(ByteBuffer.wrap(data));
+        return fromProtobuf(BinBlockNodeContent.parseFrom(data));
+    }
+
+    /**
+     * Decodes the children from the remaining bytes of the buffer, without copying them first.
+     */
+    public static MetaInnerNode[] decodeNodeContent(ByteBuffer data) throws InvalidProtocolBufferException {
+        if (BlockNodeCodec.isBinary(data))
+            return BlockNodeCodec.decode(data);
+        return fromProtobuf(BinBlockNodeContent.parseFrom(data.duplicate()));
+    }
+
+    private static MetaInnerNode[] fromProtobuf(BinBlockNodeContent content) {
         int numMeta = content.getContentsCount();
         MetaInnerNode[] res = new MetaInnerNode[numMeta];
         for (int iter = 0; iter < res.length; iter++) {
@@ -64,10 +102,17 @@ public class BlockNode {
         return version;
     }
 
+    /**
+     * @return the number of children the node can have
+     */
+    public int getK() {
+        return present.length;
+    }
+
     public int getNextEmpty() {
         int count = 0;
-        for (MetaInnerNode meta : metaInnerNode) {
-            if (meta == null)
+        for (boolean child : present) {
+            if (!child)
                 break;
             count++;
         }
@@ -86,51 +131,111 @@ public class BlockNode {
         return getNextEmpty() == 0;
     }
 
+    public boolean hasChild(int i) {
+        return present[i];
+    }
+
+    /**
+     * @return a new MetaInnerNode with the metadata of the child or null if the child does not exist
+     */
     public MetaInnerNode getMetaAtIndex(int i) {
-        return metaInnerNode[i];
+        return present[i] ? new MetaInnerNode(columns.get(i)) : null;
+    }
+
+    /**
+     * @return new MetaInnerNode objects for the children, with null entries for the missing children
+     */
+    public MetaInnerNode[] getChildren() {
+        MetaInnerNode[] res = new MetaInnerNode[present.length];
+        for (int iter = 0; iter < res.length; iter++) {
+            res[iter] = getMetaAtIndex(iter);
+        }
+        return res;
+    }
+
+    private void setChild(int index, NodeContent[] contents) {
+        if (columns == null)
+            columns = NodeContentColumns.forSchema(contents, present.length);
+        columns.set(index, contents);
+        present[index] = true;
     }
 
     public void insert(MetaInnerNode newMeta, int from, int to) {
         assert (to - from == metaInterval);
         int next = ((from - this.from) / metaInterval);
-        if (next >= metaInnerNode.length)
+        if (next >= present.length)
             throw new RuntimeException("Already Full");
-        metaInnerNode[next] = newMeta;
+        setChild(next, newMeta.metaInformation);
+    }
+
+    /**
+     * Adds the metadata of a newly inserted leaf to the aggregate of the child [from, to). The node has to be a copy
+     * of the copy-on-write insert path, readers of the original never see the update. A new child gets the leaf
+     * metadata as its aggregate.
+     */
+    public void mergeIntoChild(NodeContent[] leafContent, int from, int to) {
+        int index = (from - this.from) / metaInterval;
+        NodeContent[] updated = NodeContentUtil.createCopy(leafContent);
+        if (present[index]) {
+            NodeContent[] old = columns.get(index);
+            for (int i = 0; i < updated.length; i++) {
+                old[i].mergeOther(updated[i]);
+            }
+            updated = old;
+        }
+        insert(new MetaInnerNode(updated), from, to);
+    }
+
+    public NodeContentColumns getColumns() {
+        return columns;
     }
 
     public BlockNode createCopy() {
-        MetaInnerNode[] tmp = new MetaInnerNode[metaInnerNode.length];
-        for (int iter = 0; iter < tmp.length; iter++)
-            tmp[iter] = metaInnerNode[iter].createCopy();
-        return new BlockNode(this.version, this.from, this.to, tmp);
+        return new BlockNode(this);
+    }
+
+    /**
+     * Copy for the copy-on-write insert path, the columns are copied so the original node is never modified.
+     */
+    public BlockNode copyForUpdate() {
+        return new BlockNode(this);
     }
 
     public boolean hasSpace() {
-        return getNextEmpty() < metaInnerNode.length;
+        return getNextEmpty() < present.length;
     }
 
     public NodeContent[] getAggregatedNodeContent() {
+        return getAggregatedNodeContent(true);
+    }
+
+    /**
+     * @param useColumns false to merge NodeContent objects created for the children instead of summing the columns
+     */
+    public NodeContent[] getAggregatedNodeContent(boolean useColumns) {
         int nextEmpty = getNextEmpty();
         NodeContent[] res = null;
         if (nextEmpty == 0) {
             return null;
         }
 
-        boolean isFirst = true;
-        for (MetaInnerNode meta : metaInnerNode) {
-            if (meta == null)
+        if (useColumns) {
+            long[] acc = new long[columns.getNumWords()];
+            columns.sum(0, present.length, acc);
+            return columns.toNodeContents(acc);
+        }
+
+        for (int iter = 0; iter < present.length; iter++) {
+            if (!present[iter])
                 continue;
-            if (isFirst) {
-                res = new NodeContent[meta.metaInformation.length];
-            }
-            for (int i = 0; i < res.length; i++) {
-                if (isFirst) {
-                    res[i] = meta.metaInformation[i].copy();
-                } else {
-                    res[i].mergeOther(meta.metaInformation[i]);
+            NodeContent[] contents = columns.get(iter);
+            if (res == null) {
+                res = contents;
+            } else {
+                for (int i = 0; i < res.length; i++) {
+                    res[i].mergeOther(contents[i]);
                 }
             }
-            isFirst = false;
         }
         return res;
     }
@@ -138,7 +243,7 @@ public class BlockNode {
     public boolean hasMetaForInterval(int from, int to) {
         assert (containsInterval(from, to));
         int id = (from - this.from) / metaInterval;
-        return metaInnerNode[id] != null;
+        return present[id];
     }
 
     public BlockNode createChildNodeForInterval(int from, int k) {
@@ -150,6 +255,17 @@ public class BlockNode {
         return computeID(this.from, this.to);
     }
 
+    /**
+     * @return the estimated heap size of the node with its children and their contents in bytes, see {@link HeapSize}
+     */
+    public long retainedSize() {
+        long size = HeapSize.object(4 * Integer.BYTES + 2 * HeapSize.REFERENCE)
+                + HeapSize.array(present.length, 1);
+        if (columns != null)
+            size += columns.retainedSize();
+        return size;
+    }
+
     public boolean containsInterval(int from, int to) {
         return this.from <= from && this.to >= to;
     }
@@ -168,30 +284,64 @@ public class BlockNode {
         return metaInterval == interval;
     }
 
+    private int getFullyContainedFromIndex(int from) {
+        if (from <= this.from)
+            return 0;
+        int fromInd = (from - this.from) / metaInterval;
+        return ((from - this.from) % metaInterval == 0) ? fromInd : fromInd + 1;
+    }
+
+    private int getFullyContainedToIndex(int to) {
+        if (to >= this.to)
+            return present.length;
+        return (to - this.from) / metaInterval;
+    }
+
+    /**
+     * @return new MetaInnerNode objects for the children that are fully contained in [from, to)
+     */
     public List<MetaInnerNode> getMetaFullyContained(int from, int to) {
-        ArrayList<MetaInnerNode> results = new ArrayList<>(metaInnerNode.length);
+        ArrayList<MetaInnerNode> results = new ArrayList<>(present.length);
         if (from >= this.to)
             return results;
-        int fromInd, toInd;
-        if (from <= this.from) {
-            fromInd = 0;
-        } else {
-            fromInd = (from - this.from) / metaInterval;
-            fromInd = ((from - this.from) % metaInterval == 0) ? fromInd : ++fromInd;
-        }
+        int fromInd = getFullyContainedFromIndex(from);
+        int toInd = getFullyContainedToIndex(to);
 
-        if (to >= this.to) {
-            toInd = metaInnerNode.length;
-        } else {
-            toInd = (to - this.from) / metaInterval;
+        for (int i = fromInd; i < toInd; i++) {
+            if (present[i]) {
+                results.add(getMetaAtIndex(i));
+            }
         }
+        return results;
+    }
 
+    /**
+     * Adds the metadata of all children that are fully contained in [from, to) to the accumulator.
+     *
+     * @param ids the metadata slots to aggregate, null for all slots
+     * @param acc the accumulator with one entry per word of the columns
+     * @return true if at least one child was contained
+     */
+    public boolean sumFullyContained(int from, int to, int[] ids, long[] acc) {
+        if (from >= this.to)
+            return false;
+        int fromInd = getFullyContainedFromIndex(from);
+        int toInd = getFullyContainedToIndex(to);
+
+        boolean found = false;
         for (int i = fromInd; i < toInd; i++) {
-            if (this.metaInnerNode[i] != null) {
-                results.add(metaInnerNode[i]);
+            if (present[i]) {
+                found = true;
+                break;
             }
         }
-        return results;
+        if (!found)
+            return false;
+        if (ids == null)
+            columns.sum(fromInd, toInd, acc);
+        else
+            columns.sum(fromInd, toInd, ids, acc);
+        return true;
     }
 
     public int getLeftNodeDepper(int from) {
@@ -223,10 +373,10 @@ public class BlockNode {
     }
 
     public String toString() {
-        StringBuilder buff = new StringBuilder(this.metaInnerNode.length * 2);
+        StringBuilder buff = new StringBuilder(present.length * 2);
         buff.append("|").append(from).append("-").append(to).append("|");
-        for (MetaInnerNode child : this.metaInnerNode) {
-            if (child == null)
+        for (boolean child : present) {
+            if (!child)
                 buff.append("O|");
             else
                 buff.append("X|");
@@ -237,9 +387,23 @@ public class BlockNode {
         return buff.toString();
     }
 
+    /**
+     * Encodes the children in the fixed-width format of {@link BlockNodeCodec} if it is enabled and the contents fit,
+     * else with protobuf.
+     */
     public byte[] encodeContent() {
+        MetaInnerNode[] children = getChildren();
+        if (BlockNodeCodec.isEnabled()) {
+            byte[] res = BlockNodeCodec.encode(children);
+            if (res != null)
+                return res;
+        }
+        return encodeProtobuf(children);
+    }
+
+    private static byte[] encodeProtobuf(MetaInnerNode[] children) {
         BinBlockNodeContent.Builder binBuild = BinBlockNodeContent.newBuilder();
-        for (MetaInnerNode meta : metaInnerNode) {
+        for (MetaInnerNode meta : children) {
             if (meta == null) {
                 binBuild.addContents(BinMetaNode.newBuilder()
                         .setIsNull(true));
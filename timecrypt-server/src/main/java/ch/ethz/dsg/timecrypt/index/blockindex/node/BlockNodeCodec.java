@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.index.blockindex.node;
+
+import ch.ethz.dsg.timecrypt.crypto.BigintMacNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.BigintNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.CryptoContentFactory;
+import ch.ethz.dsg.timecrypt.crypto.LongMacNodeNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed-width binary format of the children of a block node. Every child takes the same number of bytes, so a child
+ * and a slot are found by their offset and {@link BlockNodeView} can aggregate from the bytes without decoding.
+ * <p>
+ * Layout, little-endian: byte magic, byte version, short k, short number of slots, per slot byte content type, a
+ * bitmap of the present children (k bits, rounded up to bytes), then per child (absent ones are zero) per slot the
+ * values of its type: a long for {@link CryptoContentFactory#LONG_TYPE}, a 128 bit value as low and high long for
+ * {@link CryptoContentFactory#CASTELLUCIA_TYPE}, the content and the mac for the types with a mac. The ciphertext of
+ * {@link CryptoContentFactory#CASTELLUCIA_MAC_TYPE} is not reduced and takes three longs, version 1 stored it reduced
+ * modulo 2^128 in two longs and is still read.
+ * <p>
+ * The magic tells the format apart from the protobuf encoding of the older versions, which starts with the tag of
+ * its first field. Children with different schemas are encoded with protobuf.
+ */
+public class BlockNodeCodec {
+
+    public static final byte MAGIC = (byte) 0xC7;
+    public static final byte VERSION = 2;
+    public static final byte VERSION_REDUCED_MAC_CONTENT = 1;
+
+    static final int SLOTS_OFFSET = 6;
+
+    private static volatile boolean enabled = true;
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Write the protobuf encoding instead, e.g. while servers of an older version read the same storage.
+     */
+    public static void setEnabled(boolean enabled) {
+        BlockNodeCodec.enabled = enabled;
+    }
+
+    /**
+     * @return the bytes of one value of the content type, -1 if the type is not supported
+     */
+    public static int width(byte type) {
+        return width(type, VERSION);
+    }
+
+    /**
+     * @return the bytes of one value of the content type in the format version, -1 if the type is not supported
+     */
+    public static int width(byte type, byte version) {
+        switch (type) {
+            case CryptoContentFactory.LONG_TYPE:
+                return Long.BYTES;
+            case CryptoContentFactory.CASTELLUCIA_TYPE:
+                return 2 * Long.BYTES;
+            case CryptoContentFactory.LONG_MAC_TYPE:
+                return 3 * Long.BYTES;
+            case CryptoContentFactory.CASTELLUCIA_MAC_TYPE:
+                return (version == VERSION_REDUCED_MAC_CONTENT ? 4 : 5) * Long.BYTES;
+            default:
+                return -1;
+        }
+    }
+
+    private static byte typeOf(NodeContent content) {
+        Class<?> type = content.getClass();
+        if (type == LongNodeContent.class)
+            return CryptoContentFactory.LONG_TYPE;
+        if (type == BigintNodeContent.class)
+            return CryptoContentFactory.CASTELLUCIA_TYPE;
+        if (type == LongMacNodeNodeContent.class)
+            return CryptoContentFactory.LONG_MAC_TYPE;
+        if (type == BigintMacNodeContent.class)
+            return CryptoContentFactory.CASTELLUCIA_MAC_TYPE;
+        return -1;
+    }
+
+    static int bitmapBytes(int k) {
+        return (k + 7) / 8;
+    }
+
+    public static boolean isBinary(byte[] data) {
+        return data.length > 0 && data[0] == MAGIC;
+    }
+
+    public static boolean isBinary(ByteBuffer data) {
+        return data.remaining() > 0 && data.get(data.position()) == MAGIC;
+    }
+
+    /**
+     * @return the encoded children or null if they do not fit the format
+     */
+    public static byte[] encode(MetaInnerNode[] children) {
+        byte[] types = null;
+        for (MetaInnerNode child : children) {
+            if (child == null)
+                continue;
+            NodeContent[] contents = child.metaInformation;
+            if (types == null) {
+                types = new byte[contents.length];
+                for (int slot = 0; slot < contents.length; slot++) {
+                    types[slot] = typeOf(contents[slot]);
+                    if (types[slot] < 0)
+                        return null;
+                }
+            }
+            if (!matches(types, contents))
+                return null;
+        }
+        if (types == null)
+            types = new byte[0];
+        if (children.length > 0xFFFF || types.length > 0xFFFF)
+            return null;
+
+        int record = recordWidth(types);
+        int header = SLOTS_OFFSET + types.length + bitmapBytes(children.length);
+        ByteBuffer out = ByteBuffer.allocate(header + children.length * record).order(ByteOrder.LITTLE_ENDIAN);
+        out.put(MAGIC).put(VERSION).putShort((short) children.length).putShort((short) types.length).put(types);
+        for (int i = 0; i < children.length; i += 8) {
+            int bits = 0;
+            for (int bit = 0; bit < 8 && i + bit < children.length; bit++) {
+                if (children[i + bit] != null)
+                    bits |= 1 << bit;
+            }
+            out.put((byte) bits);
+        }
+        for (MetaInnerNode child : children) {
+            if (child == null) {
+                out.position(out.position() + record);
+                continue;
+            }
+            for (NodeContent content : child.metaInformation) {
+                writeContent(out, content);
+            }
+        }
+        return out.array();
+    }
+
+    private static boolean matches(byte[] types, NodeContent[] contents) {
+        if (contents.length != types.length)
+            return false;
+        for (int slot = 0; slot < contents.length; slot++) {
+            if (typeOf(contents[slot]) != types[slot])
+                return false;
+        }
+        return true;
+    }
+
+    static int recordWidth(byte[] types) {
+        int width = 0;
+        for (byte type : types) {
+            width += width(type);
+        }
+        return width;
+    }
+
+    private static void writeContent(ByteBuffer out, NodeContent content) {
+        if (content instanceof BigintMacNodeContent) {
+            BigintMacNodeContent value = (BigintMacNodeContent) content;
+            out.putLong(value.getLow()).putLong(value.getHigh()).putLong(value.getTop())
+                    .putLong(value.getMacLow()).putLong(value.getMacHigh());
+        } else if (content instanceof BigintNodeContent) {
+            BigintNodeContent value = (BigintNodeContent) content;
+            out.putLong(value.getLow()).putLong(value.getHigh());
+        } else if (content instanceof LongMacNodeNodeContent) {
+            LongMacNodeNodeContent value = (LongMacNodeNodeContent) content;
+            out.putLong(value.getLong()).putLong(value.getMacLow()).putLong(value.getMacHigh());
+        } else {
+            out.putLong(((LongNodeContent) content).getLong());
+        }
+    }
+
+    /**
+     * Decodes the children of the binary format, the buffer is not modified.
+     */
+    public static MetaInnerNode[] decode(ByteBuffer data) {
+        BlockNodeView view = new BlockNodeView(data);
+        MetaInnerNode[] res = new MetaInnerNode[view.getK()];
+        for (int child = 0; child < res.length; child++) {
+            if (!view.isPresent(child))
+                continue;
+            NodeContent[] contents = new NodeContent[view.getNumSlots()];
+            for (int slot = 0; slot < contents.length; slot++) {
+                contents[slot] = view.getContent(child, slot);
+            }
+            res[child] = new MetaInnerNode(contents);
+        }
+        return res;
+    }
+}
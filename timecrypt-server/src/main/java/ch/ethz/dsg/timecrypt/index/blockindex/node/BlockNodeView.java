@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.index.blockindex.node;
+
+import ch.ethz.dsg.timecrypt.crypto.BigintMacNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.BigintNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.CryptoContentFactory;
+import ch.ethz.dsg.timecrypt.crypto.LongMacNodeNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.UInt128;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptStorageException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the children of a node in the {@link BlockNodeCodec} format directly from the bytes. The view does not copy
+ * the buffer and only creates objects for the values that are asked for, an aggregation over a range of children
+ * creates the resulting contents only.
+ */
+public class BlockNodeView {
+
+    private final ByteBuffer data;
+    // the format of version 1 has no top word in the ciphertexts of CASTELLUCIA_MAC_TYPE
+    private final boolean macContentHasTop;
+    private final int k;
+    private final byte[] types;
+    // offset of the slot within a record
+    private final int[] slotOffsets;
+    private final int bitmapOffset;
+    private final int recordsOffset;
+    private final int recordWidth;
+
+    /**
+     * @param data the encoded node from its position on, the position and limit of the buffer are not changed
+     */
+    public BlockNodeView(ByteBuffer data) {
+        this.data = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (this.data.remaining() < BlockNodeCodec.SLOTS_OFFSET || this.data.get(0) != BlockNodeCodec.MAGIC)
+            throw new TimeCryptStorageException("Node is not in the binary format", 1);
+        byte version = this.data.get(1);
+        if (version != BlockNodeCodec.VERSION && version != BlockNodeCodec.VERSION_REDUCED_MAC_CONTENT)
+            throw new TimeCryptStorageException("Unsupported node format version " + version, 1);
+        this.macContentHasTop = version != BlockNodeCodec.VERSION_REDUCED_MAC_CONTENT;
+        this.k = Short.toUnsignedInt(this.data.getShort(2));
+        int numSlots = Short.toUnsignedInt(this.data.getShort(4));
+        this.types = new byte[numSlots];
+        this.slotOffsets = new int[numSlots];
+        int offset = 0;
+        for (int slot = 0; slot < numSlots; slot++) {
+            types[slot] = this.data.get(BlockNodeCodec.SLOTS_OFFSET + slot);
+            int width = BlockNodeCodec.width(types[slot], version);
+            if (width < 0)
+                throw new TimeCryptStorageException("Unknown content type " + types[slot], 1);
+            slotOffsets[slot] = offset;
+            offset += width;
+        }
+        this.recordWidth = offset;
+        this.bitmapOffset = BlockNodeCodec.SLOTS_OFFSET + numSlots;
+        this.recordsOffset = bitmapOffset + BlockNodeCodec.bitmapBytes(k);
+        if (this.data.remaining() < recordsOffset + k * recordWidth)
+            throw new TimeCryptStorageException("Node is truncated", 1);
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int getNumSlots() {
+        return types.length;
+    }
+
+    public byte getType(int slot) {
+        return types[slot];
+    }
+
+    public boolean isPresent(int child) {
+        return (data.get(bitmapOffset + child / 8) & (1 << (child % 8))) != 0;
+    }
+
+    private int offset(int child, int slot) {
+        return recordsOffset + child * recordWidth + slotOffsets[slot];
+    }
+
+    /**
+     * @return the first long of the slot, the value of a long content or the low bits of a 128 bit one
+     */
+    public long getLong(int child, int slot) {
+        return data.getLong(offset(child, slot));
+    }
+
+    public NodeContent getContent(int child, int slot) {
+        int offset = offset(child, slot);
+        switch (types[slot]) {
+            case CryptoContentFactory.LONG_TYPE:
+                return new LongNodeContent(data.getLong(offset));
+            case CryptoContentFactory.CASTELLUCIA_TYPE:
+                return new BigintNodeContent(data.getLong(offset), data.getLong(offset + Long.BYTES));
+            case CryptoContentFactory.LONG_MAC_TYPE:
+                return new LongMacNodeNodeContent(data.getLong(offset), macLow(offset + Long.BYTES),
+                        macHigh(offset + Long.BYTES));
+            default:
+                int macOffset = macOffset(offset);
+                return new BigintMacNodeContent(data.getLong(offset), data.getLong(offset + Long.BYTES), top(offset),
+                        macLow(macOffset), macHigh(macOffset));
+        }
+    }
+
+    private long top(int offset) {
+        return macContentHasTop ? data.getLong(offset + 2 * Long.BYTES) : 0;
+    }
+
+    // the MAC of a CASTELLUCIA_MAC_TYPE slot
+    private int macOffset(int offset) {
+        return offset + (macContentHasTop ? 3 : 2) * Long.BYTES;
+    }
+
+    // a stored MAC of the prime or above is reduced, 128 bits hold less than two times the prime
+    private boolean isReduced(int offset) {
+        return UInt128.compare(data.getLong(offset), data.getLong(offset + Long.BYTES), UInt128.PRIME_LOW,
+                UInt128.PRIME_HIGH) < 0;
+    }
+
+    private long macLow(int offset) {
+        long low = data.getLong(offset);
+        return isReduced(offset) ? low : UInt128.addModPrimeLow(low, data.getLong(offset + Long.BYTES), 0, 0);
+    }
+
+    private long macHigh(int offset) {
+        long high = data.getLong(offset + Long.BYTES);
+        return isReduced(offset) ? high : UInt128.addModPrimeHigh(data.getLong(offset), high, 0, 0);
+    }
+
+    /**
+     * Adds the long values of the present children in [from, to) to the accumulator, with the same overflow as
+     * {@link LongNodeContent#mergeOther}. Requires all slots to be of {@link CryptoContentFactory#LONG_TYPE}.
+     *
+     * @param acc the accumulator with one entry per slot
+     */
+    public void sumLongs(int from, int to, long[] acc) {
+        for (int child = from; child < to; child++) {
+            if (!isPresent(child))
+                continue;
+            int offset = recordsOffset + child * recordWidth;
+            for (int slot = 0; slot < acc.length; slot++) {
+                acc[slot] += data.getLong(offset + slot * Long.BYTES);
+            }
+        }
+    }
+
+    /**
+     * Aggregates the present children in [from, to) with the arithmetic of the contents: ciphertexts modulo 2^64 or
+     * 2^128 and unreduced if they carry a 128 bit MAC, MACs modulo {@link UInt128#PRIME}.
+     *
+     * @return the merged contents or null if no child is present
+     */
+    public NodeContent[] aggregate(int from, int to) {
+        // per slot the ciphertext as low, high and top word and the MAC as low and high word
+        long[][] acc = new long[types.length][5];
+        boolean found = false;
+        for (int child = from; child < to; child++) {
+            if (!isPresent(child))
+                continue;
+            found = true;
+            for (int slot = 0; slot < types.length; slot++) {
+                int offset = offset(child, slot);
+                long[] sum = acc[slot];
+                switch (types[slot]) {
+                    case CryptoContentFactory.LONG_TYPE:
+                        sum[0] += data.getLong(offset);
+                        break;
+                    case CryptoContentFactory.CASTELLUCIA_TYPE:
+                        add128(sum, offset);
+                        break;
+                    case CryptoContentFactory.LONG_MAC_TYPE:
+                        sum[0] += data.getLong(offset);
+                        addMac(sum, offset + Long.BYTES);
+                        break;
+                    default:
+                        add192(sum, offset);
+                        addMac(sum, macOffset(offset));
+                }
+            }
+        }
+        if (!found)
+            return null;
+
+        NodeContent[] res = new NodeContent[types.length];
+        for (int slot = 0; slot < types.length; slot++) {
+            long[] sum = acc[slot];
+            switch (types[slot]) {
+                case CryptoContentFactory.LONG_TYPE:
+                    res[slot] = new LongNodeContent(sum[0]);
+                    break;
+                case CryptoContentFactory.CASTELLUCIA_TYPE:
+                    res[slot] = new BigintNodeContent(sum[0], sum[1]);
+                    break;
+                case CryptoContentFactory.LONG_MAC_TYPE:
+                    res[slot] = new LongMacNodeNodeContent(sum[0], sum[3], sum[4]);
+                    break;
+                default:
+                    res[slot] = new BigintMacNodeContent(sum[0], sum[1], sum[2], sum[3], sum[4]);
+            }
+        }
+        return res;
+    }
+
+    private void add128(long[] sum, int offset) {
+        long low = data.getLong(offset);
+        long newLow = sum[0] + low;
+        sum[1] += data.getLong(offset + Long.BYTES) + UInt128.carry(newLow, low);
+        sum[0] = newLow;
+    }
+
+    private void add192(long[] sum, int offset) {
+        long low = data.getLong(offset), high = data.getLong(offset + Long.BYTES);
+        long newLow = sum[0] + low;
+        long carry = UInt128.carry(newLow, low);
+        long newHigh = sum[1] + high + carry;
+        sum[2] += top(offset) + UInt128.carry(newHigh, high, carry);
+        sum[1] = newHigh;
+        sum[0] = newLow;
+    }
+
+    private void addMac(long[] sum, int offset) {
+        long low = macLow(offset), high = macHigh(offset);
+        long newLow = UInt128.addModPrimeLow(sum[3], sum[4], low, high);
+        sum[4] = UInt128.addModPrimeHigh(sum[3], sum[4], low, high);
+        sum[3] = newLow;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.index.blockindex.node;
+
+import java.math.BigInteger;
+
+/**
+ * Estimates the heap size of objects for the layout of a 64 bit HotSpot JVM with compressed references, the default
+ * for heaps below 32 GB: 12 byte object headers, 16 byte array headers, 4 byte references and every object aligned
+ * to 8 bytes.
+ */
+public class HeapSize {
+
+    public static final int OBJECT_HEADER = 12;
+    public static final int ARRAY_HEADER = 16;
+    public static final int REFERENCE = 4;
+
+    // signum, four cached ints and the reference to the magnitude
+    private static final long BIG_INTEGER = align(OBJECT_HEADER + 5 * Integer.BYTES + REFERENCE);
+
+    public static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * @param fields the bytes of the fields of the object and its super classes
+     */
+    public static long object(int fields) {
+        return align(OBJECT_HEADER + fields);
+    }
+
+    public static long array(int length, int elementSize) {
+        return align(ARRAY_HEADER + (long) length * elementSize);
+    }
+
+    public static long referenceArray(int length) {
+        return array(length, REFERENCE);
+    }
+
+    public static long bigInteger(BigInteger value) {
+        // the magnitude holds the 32 bit words of the absolute value, zero has an empty one
+        return BIG_INTEGER + array((value.bitLength() + 31) / 32, Integer.BYTES);
+    }
+}
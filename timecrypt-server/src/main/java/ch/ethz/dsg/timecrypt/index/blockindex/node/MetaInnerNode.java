@@ -20,4 +20,13 @@ public class MetaInnerNode {
     public MetaInnerNode createCopy() {
         return new MetaInnerNode(NodeContentUtil.createCopy(metaInformation));
     }
+
+    public long retainedSize() {
+        long size = HeapSize.object(HeapSize.REFERENCE) + HeapSize.referenceArray(metaInformation.length);
+        for (NodeContent content : metaInformation) {
+            if (content != null)
+                size += content.retainedSize();
+        }
+        return size;
+    }
 }
@@ -17,4 +17,9 @@ public interface NodeContent {
 
     String getStringRepresentation();
 
+    /**
+     * @return the estimated heap size of the content in bytes, see {@link HeapSize}
+     */
+    long retainedSize();
+
 }
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.index.blockindex.node;
+
+import ch.ethz.dsg.timecrypt.crypto.BigintMacNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.BigintNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.LongMacNodeNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.UInt128;
+
+import java.util.Arrays;
+
+/**
+ * Columnar view of the metadata of the children of a block node. Every long word of a metadata slot is stored as one
+ * primitive array indexed by the child position, so aggregations can sum over the arrays without touching
+ * NodeContent objects. A slot of LongNodeContent has one word, a 128 bit BigintNodeContent two and a MAC adds two
+ * more. The ciphertext of a BigintMacNodeContent takes a third word, it is summed without reduction. The accumulators
+ * of the sums have one entry per word, see {@link #getNumWords()}.
+ */
+public class NodeContentColumns {
+
+    /**
+     * The content types that are stored in columns.
+     */
+    private enum Kind {
+        LONG(1),
+        LONG_MAC(3),
+        BIGINT(2),
+        BIGINT_MAC(5);
+
+        private final int words;
+
+        Kind(int words) {
+            this.words = words;
+        }
+
+        private static Kind of(NodeContent content) {
+            if (content == null)
+                throw new IllegalArgumentException("Metadata slot without content");
+            // the exact classes, the MAC contents extend the plain ones
+            Class<?> type = content.getClass();
+            if (type == LongNodeContent.class)
+                return LONG;
+            if (type == LongMacNodeNodeContent.class)
+                return LONG_MAC;
+            if (type == BigintNodeContent.class)
+                return BIGINT;
+            if (type == BigintMacNodeContent.class)
+                return BIGINT_MAC;
+            throw new IllegalArgumentException("No column layout for " + type.getName());
+        }
+    }
+
+    private final Kind[] kinds;
+    // the first word of every slot
+    private final int[] offsets;
+    private final long[][] columns;
+
+    private NodeContentColumns(Kind[] kinds, int[] offsets, long[][] columns) {
+        this.kinds = kinds;
+        this.offsets = offsets;
+        this.columns = columns;
+    }
+
+    private NodeContentColumns(NodeContent[] schema, int k) {
+        this.kinds = new Kind[schema.length];
+        this.offsets = new int[schema.length];
+        int numWords = 0;
+        for (int slot = 0; slot < schema.length; slot++) {
+            kinds[slot] = Kind.of(schema[slot]);
+            offsets[slot] = numWords;
+            numWords += kinds[slot].words;
+        }
+        this.columns = new long[numWords][k];
+    }
+
+    /**
+     * Creates empty columns for children with the schema of the given metadata vector.
+     *
+     * @param schema the metadata vector of one child
+     * @param k      the number of children
+     * @throws IllegalArgumentException if a content type has no column layout
+     */
+    public static NodeContentColumns forSchema(NodeContent[] schema, int k) {
+        return new NodeContentColumns(schema, k);
+    }
+
+    public NodeContentColumns copy() {
+        long[][] copied = new long[columns.length][];
+        for (int word = 0; word < columns.length; word++) {
+            copied[word] = columns[word].clone();
+        }
+        return new NodeContentColumns(kinds, offsets, copied);
+    }
+
+    public int getNumSlots() {
+        return kinds.length;
+    }
+
+    /**
+     * @return the size of the accumulators of the sums
+     */
+    public int getNumWords() {
+        return columns.length;
+    }
+
+    /**
+     * @return true if the sums of the other columns can be added to the same accumulator
+     */
+    public boolean hasSameSchema(NodeContentColumns other) {
+        return Arrays.equals(kinds, other.kinds);
+    }
+
+    public long retainedSize() {
+        long size = HeapSize.object(3 * HeapSize.REFERENCE) + HeapSize.referenceArray(kinds.length)
+                + HeapSize.array(offsets.length, Integer.BYTES) + HeapSize.referenceArray(columns.length);
+        for (long[] column : columns) {
+            size += HeapSize.array(column.length, Long.BYTES);
+        }
+        return size;
+    }
+
+    /**
+     * Stores the metadata vector of a child in the columns.
+     *
+     * @param index    the position of the child
+     * @param contents the metadata vector of the child
+     * @throws RuntimeException if the vector does not match the schema of the columns
+     */
+    public void set(int index, NodeContent[] contents) {
+        if (contents.length != kinds.length)
+            throw new RuntimeException("Merge Failed, inconsistent Node Contents");
+        for (int slot = 0; slot < kinds.length; slot++) {
+            if (Kind.of(contents[slot]) != kinds[slot])
+                throw new RuntimeException("Merge Failed, inconsistent Node Contents");
+            int word = offsets[slot];
+            switch (kinds[slot]) {
+                case LONG:
+                    columns[word][index] = ((LongNodeContent) contents[slot]).i;
+                    break;
+                case LONG_MAC:
+                    LongMacNodeNodeContent longMac = (LongMacNodeNodeContent) contents[slot];
+                    columns[word][index] = longMac.i;
+                    columns[word + 1][index] = longMac.getMacLow();
+                    columns[word + 2][index] = longMac.getMacHigh();
+                    break;
+                case BIGINT:
+                    BigintNodeContent bigint = (BigintNodeContent) contents[slot];
+                    columns[word][index] = bigint.getLow();
+                    columns[word + 1][index] = bigint.getHigh();
+                    break;
+                default:
+                    BigintMacNodeContent bigintMac = (BigintMacNodeContent) contents[slot];
+                    columns[word][index] = bigintMac.getLow();
+                    columns[word + 1][index] = bigintMac.getHigh();
+                    columns[word + 2][index] = bigintMac.getTop();
+                    columns[word + 3][index] = bigintMac.getMacLow();
+                    columns[word + 4][index] = bigintMac.getMacHigh();
+            }
+        }
+    }
+
+    /**
+     * @return new NodeContent objects with the metadata vector of the child at the position
+     */
+    public NodeContent[] get(int index) {
+        long[] words = new long[columns.length];
+        for (int word = 0; word < columns.length; word++) {
+            words[word] = columns[word][index];
+        }
+        return toNodeContents(words);
+    }
+
+    /**
+     * Adds the children in [fromInd, toInd) of every slot to the accumulator.
+     */
+    public void sum(int fromInd, int toInd, long[] acc) {
+        for (int slot = 0; slot < kinds.length; slot++) {
+            sumSlot(slot, fromInd, toInd, acc);
+        }
+    }
+
+    /**
+     * Adds the children in [fromInd, toInd) of the requested slots to the accumulator.
+     */
+    public void sum(int fromInd, int toInd, int[] ids, long[] acc) {
+        for (int slot : ids) {
+            sumSlot(slot, fromInd, toInd, acc);
+        }
+    }
+
+    private void sumSlot(int slot, int fromInd, int toInd, long[] acc) {
+        int word = offsets[slot];
+        switch (kinds[slot]) {
+            case LONG:
+                acc[word] += sumColumn(columns[word], fromInd, toInd);
+                break;
+            case LONG_MAC:
+                acc[word] += sumColumn(columns[word], fromInd, toInd);
+                sumModPrime(word + 1, fromInd, toInd, acc);
+                break;
+            case BIGINT:
+                sum128(word, fromInd, toInd, acc);
+                break;
+            default:
+                sum192(word, fromInd, toInd, acc);
+                sumModPrime(word + 3, fromInd, toInd, acc);
+        }
+    }
+
+    private static long sumColumn(long[] column, int fromInd, int toInd) {
+        long sum = 0;
+        for (int i = fromInd; i < toInd; i++) {
+            sum += column[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Adds the 128 bit values in the columns word and word + 1 modulo 2^128, like BigintNodeContent.mergeOther.
+     */
+    private void sum128(int word, int fromInd, int toInd, long[] acc) {
+        long[] lows = columns[word];
+        long[] highs = columns[word + 1];
+        long low = acc[word];
+        long high = acc[word + 1];
+        for (int i = fromInd; i < toInd; i++) {
+            long sum = low + lows[i];
+            high += highs[i] + UInt128.carry(sum, lows[i]);
+            low = sum;
+        }
+        acc[word] = low;
+        acc[word + 1] = high;
+    }
+
+    /**
+     * Adds the values in the columns word to word + 2 without reduction, like BigintMacNodeContent.mergeOther.
+     */
+    private void sum192(int word, int fromInd, int toInd, long[] acc) {
+        long[] lows = columns[word];
+        long[] highs = columns[word + 1];
+        long[] tops = columns[word + 2];
+        long low = acc[word];
+        long high = acc[word + 1];
+        long top = acc[word + 2];
+        for (int i = fromInd; i < toInd; i++) {
+            long sum = low + lows[i];
+            long carry = UInt128.carry(sum, lows[i]);
+            long sumHigh = high + highs[i] + carry;
+            top += tops[i] + UInt128.carry(sumHigh, highs[i], carry);
+            low = sum;
+            high = sumHigh;
+        }
+        acc[word] = low;
+        acc[word + 1] = high;
+        acc[word + 2] = top;
+    }
+
+    /**
+     * Adds the MACs in the columns word and word + 1 modulo {@link UInt128#PRIME}.
+     */
+    private void sumModPrime(int word, int fromInd, int toInd, long[] acc) {
+        long[] lows = columns[word];
+        long[] highs = columns[word + 1];
+        long low = acc[word];
+        long high = acc[word + 1];
+        for (int i = fromInd; i < toInd; i++) {
+            long sumLow = UInt128.addModPrimeLow(low, high, lows[i], highs[i]);
+            high = UInt128.addModPrimeHigh(low, high, lows[i], highs[i]);
+            low = sumLow;
+        }
+        acc[word] = low;
+        acc[word + 1] = high;
+    }
+
+    /**
+     * @param acc an accumulator of sums of these columns
+     */
+    public NodeContent[] toNodeContents(long[] acc) {
+        NodeContent[] res = new NodeContent[kinds.length];
+        for (int slot = 0; slot < kinds.length; slot++) {
+            int word = offsets[slot];
+            switch (kinds[slot]) {
+                case LONG:
+                    res[slot] = new LongNodeContent(acc[word]);
+                    break;
+                case LONG_MAC:
+                    res[slot] = new LongMacNodeNodeContent(acc[word], acc[word + 1], acc[word + 2]);
+                    break;
+                case BIGINT:
+                    res[slot] = new BigintNodeContent(acc[word], acc[word + 1]);
+                    break;
+                default:
+                    res[slot] = new BigintMacNodeContent(acc[word], acc[word + 1], acc[word + 2], acc[word + 3],
+                            acc[word + 4]);
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.index.prefixindex;
+
+import ch.ethz.dsg.timecrypt.crypto.BigintNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
+import ch.ethz.dsg.timecrypt.index.ITree;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Index for additive digests that stores the running sum of the digests instead of a tree. The aggregate of
+ * [from, to) is P(to) - P(from) where P(i) is the sum of the first i chunks, so every range query needs two lookups.
+ * <p>
+ * LongNodeContent slots are summed mod 2^64 (one word per slot), BigintNodeContent slots mod 2^128 (two words per
+ * slot). The latter is only correct for HEAC ciphertexts with a modulus 2^m, m <= 128. Digests with MACs are not
+ * supported. The prefix sums are kept in an append-only store of fixed size segments, readers do not lock and only
+ * see prefix sums that have been published by updating the number of leaves.
+ */
+public class PrefixSumTree implements ITree {
+
+    private static final int SEGMENT_BITS = 14;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    /**
+     * Number of words per prefix sum and the word offset / width of every slot, set by the first insert.
+     */
+    private int stride = 0;
+    private int[] slotOffset;
+    private boolean[] slotWide;
+
+    private volatile long[][] segments = new long[0][];
+    private volatile int leaves = 0;
+
+    /**
+     * Checks if a metadata vector can be indexed with prefix sums.
+     *
+     * @param contents the metadata vector of one chunk
+     * @return true if every slot is a plain LongNodeContent or BigintNodeContent
+     */
+    public static boolean supportsSchema(NodeContent[] contents) {
+        if (contents == null || contents.length == 0)
+            return false;
+        for (NodeContent content : contents) {
+            if (content == null)
+                return false;
+            if (content.getClass() != LongNodeContent.class && content.getClass() != BigintNodeContent.class)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void insert(int key, NodeContent[] contentData, long from, long to) throws Exception {
+        insertBatch(from, Collections.singletonList(contentData));
+    }
+
+    @Override
+    public synchronized void insertBatch(long firstChunk, List<NodeContent[]> contents) throws Exception {
+        if (firstChunk != leaves)
+            throw new RuntimeException("Not in order Insert!");
+        if (contents.isEmpty())
+            return;
+        if (stride == 0)
+            initSchema(contents.get(0));
+
+        int count = leaves;
+        for (NodeContent[] content : contents) {
+            checkSchema(content);
+            long[] prevSegment = segments[count >>> SEGMENT_BITS];
+            int prevOffset = (count & SEGMENT_MASK) * stride;
+            ensureCapacity(count + 1);
+            long[] segment = segments[(count + 1) >>> SEGMENT_BITS];
+            int offset = ((count + 1) & SEGMENT_MASK) * stride;
+
+            for (int slot = 0; slot < content.length; slot++) {
+                int word = slotOffset[slot];
+                if (slotWide[slot]) {
+                    long lo = ((BigintNodeContent) content[slot]).getLow();
+                    long hi = ((BigintNodeContent) content[slot]).getHigh();
+                    long prevLo = prevSegment[prevOffset + word];
+                    long sumLo = prevLo + lo;
+                    long carry = Long.compareUnsigned(sumLo, prevLo) < 0 ? 1 : 0;
+                    segment[offset + word] = sumLo;
+                    segment[offset + word + 1] = prevSegment[prevOffset + word + 1] + hi + carry;
+                } else {
+                    segment[offset + word] = prevSegment[prevOffset + word] + ((LongNodeContent) content[slot]).i;
+                }
+            }
+            count++;
+        }
+        // publishes the new prefix sums to the readers
+        leaves = count;
+    }
+
+    private void initSchema(NodeContent[] schema) throws TimeCryptTreeException {
+        if (!supportsSchema(schema))
+            throw new TimeCryptTreeException("Prefix sum index does not support the metadata schema", 1);
+        slotOffset = new int[schema.length];
+        slotWide = new boolean[schema.length];
+        int words = 0;
+        for (int slot = 0; slot < schema.length; slot++) {
+            slotOffset[slot] = words;
+            slotWide[slot] = schema[slot].getClass() == BigintNodeContent.class;
+            words += slotWide[slot] ? 2 : 1;
+        }
+        stride = words;
+        ensureCapacity(0);
+    }
+
+    private void checkSchema(NodeContent[] content) throws TimeCryptTreeException {
+        if (content.length != slotOffset.length)
+            throw new TimeCryptTreeException("Metadata vector has " + content.length + " slots, expected "
+                    + slotOffset.length, 1);
+        for (int slot = 0; slot < content.length; slot++) {
+            Class<?> expected = slotWide[slot] ? BigintNodeContent.class : LongNodeContent.class;
+            if (content[slot] == null || content[slot].getClass() != expected)
+                throw new TimeCryptTreeException("Metadata slot " + slot + " does not match the schema of the index",
+                        1);
+        }
+    }
+
+    private void ensureCapacity(int prefix) {
+        int segment = prefix >>> SEGMENT_BITS;
+        if (segment < segments.length)
+            return;
+        long[][] newSegments = new long[segment + 1][];
+        System.arraycopy(segments, 0, newSegments, 0, segments.length);
+        for (int i = segments.length; i < newSegments.length; i++) {
+            newSegments[i] = new long[SEGMENT_SIZE * stride];
+        }
+        segments = newSegments;
+    }
+
+    @Override
+    public int getLastWrittenChunk() {
+        return leaves - 1;
+    }
+
+    @Override
+    public List<Integer> getRange(long from, long to) throws IllegalArgumentException {
+        return null;
+    }
+
+    @Override
+    public List<Integer> getAllKeysOfChunkNodes() throws IllegalArgumentException {
+        return null;
+    }
+
+    @Override
+    public NodeContent[] getAggregation(long from, long to) throws Exception {
+        if (to <= from) {
+            throw new IllegalArgumentException();
+        }
+        return aggregate(from, to, null);
+    }
+
+    @Override
+    public NodeContent[] getAggregation(long from, long to, int[] ids) throws Exception {
+        if (to <= from) {
+            throw new IllegalArgumentException("From (" + from + ") has to be greater then to (" + to + ")");
+        }
+        return aggregate(from, to, ids);
+    }
+
+    @Override
+    public List<NodeContent[]> getAggregationSeries(long from, long to, long granularity, int[] ids)
+            throws Exception {
+        if (to <= from) {
+            throw new IllegalArgumentException("From (" + from + ") has to be greater then to (" + to + ")");
+        }
+        if (granularity < 1) {
+            throw new IllegalArgumentException("Invalid granularity " + granularity);
+        }
+        int numWindows = (int) ((to - from) / granularity);
+        List<NodeContent[]> result = new ArrayList<>(numWindows);
+        int count = leaves;
+        long[][] segs = segments;
+        for (int window = 0; window < numWindows; window++) {
+            long start = from + window * granularity;
+            result.add(difference(segs, count, start, start + granularity, ids));
+        }
+        return result;
+    }
+
+    private NodeContent[] aggregate(long from, long to, int[] ids) {
+        int count = leaves;
+        return difference(segments, count, from, to, ids);
+    }
+
+    /**
+     * Computes P(to) - P(from) with to clipped to the published leaves.
+     *
+     * @return the aggregate or null if the range does not contain any chunk
+     */
+    private NodeContent[] difference(long[][] segs, int count, long fromL, long toL, int[] ids) {
+        int from = (int) Math.max(fromL, 0);
+        int to = (int) Math.min(toL, count);
+        if (from >= to)
+            return null;
+        long[] fromSegment = segs[from >>> SEGMENT_BITS];
+        int fromOffset = (from & SEGMENT_MASK) * stride;
+        long[] toSegment = segs[to >>> SEGMENT_BITS];
+        int toOffset = (to & SEGMENT_MASK) * stride;
+
+        NodeContent[] res = new NodeContent[slotOffset.length];
+        if (ids == null) {
+            for (int slot = 0; slot < res.length; slot++) {
+                res[slot] = slotDifference(slot, fromSegment, fromOffset, toSegment, toOffset);
+            }
+        } else {
+            for (int slot : ids) {
+                res[slot] = slotDifference(slot, fromSegment, fromOffset, toSegment, toOffset);
+            }
+        }
+        return res;
+    }
+
+    private NodeContent slotDifference(int slot, long[] fromSegment, int fromOffset, long[] toSegment, int toOffset) {
+        int word = slotOffset[slot];
+        if (!slotWide[slot])
+            return new LongNodeContent(toSegment[toOffset + word] - fromSegment[fromOffset + word]);
+        long toLo = toSegment[toOffset + word], fromLo = fromSegment[fromOffset + word];
+        long borrow = Long.compareUnsigned(toLo, fromLo) < 0 ? 1 : 0;
+        long hi = toSegment[toOffset + word + 1] - fromSegment[fromOffset + word + 1] - borrow;
+        return new BigintNodeContent(toLo - fromLo, hi);
+    }
+
+    @Override
+    public int getLeavesCount() {
+        return leaves;
+    }
+
+    @Override
+    public String toString() {
+        return "PrefixSumTree{leaves=" + leaves + ", stride=" + stride + "}";
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.server;
+
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptRequestException;
+import ch.ethz.dsg.timecrypt.index.Chunk;
+import ch.ethz.dsg.timecrypt.index.IStorage;
+import ch.ethz.dsg.timecrypt.index.ITreeManager;
+import ch.ethz.dsg.timecrypt.index.InsertBatcher;
+import ch.ethz.dsg.timecrypt.index.UserStreamTree;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inserts the consecutive chunks of one stream that arrive with one request. The tree is looked up and the order is
+ * checked against the last written chunk once, at the first chunk, every further chunk has to follow its
+ * predecessor. The chunks are committed in runs: the payloads with one IStorage.putChunks, then the digests with
+ * one insert into the tree. A retried request may start with chunks that are already written, they are skipped if
+ * their payload is the committed one and rejected otherwise.
+ * <p>
+ * Not thread safe, the chunks of a request are added by one thread at a time.
+ */
+public class BulkInsert {
+
+    public static final int DEFAULT_RUN_LENGTH = 256;
+
+    private final ITreeManager treeManager;
+    private final IStorage storage;
+    private final InsertBatcher insertBatcher;
+    private final long uid;
+    private final String owner;
+    private final int runLength;
+
+    private final List<Chunk> chunks;
+    private final List<NodeContent[]> digests;
+    private UserStreamTree userTree = null;
+    private long firstPending = -1;
+    private long lastAdded = -1;
+    private long lastCommitted = -1;
+
+    public BulkInsert(ITreeManager treeManager, IStorage storage, InsertBatcher insertBatcher, long uid, String owner,
+                      int runLength) {
+        if (runLength < 1)
+            throw new IllegalArgumentException("The run length has to be positive");
+        this.treeManager = treeManager;
+        this.storage = storage;
+        this.insertBatcher = insertBatcher;
+        this.uid = uid;
+        this.owner = owner;
+        this.runLength = runLength;
+        this.chunks = new ArrayList<>(runLength);
+        this.digests = new ArrayList<>(runLength);
+    }
+
+    public long getUid() {
+        return uid;
+    }
+
+    /**
+     * @return the last chunk of the stream that is in the storage and the tree, -1 before the first chunk
+     */
+    public long getLastCommitted() {
+        return lastCommitted;
+    }
+
+    /**
+     * Adds the next chunk, a full run is committed before this method returns.
+     */
+    public void add(long chunkId, Chunk chunk, NodeContent[] digest) throws Exception {
+        if (userTree == null) {
+            //TODO: This should really not be int ...
+            userTree = treeManager.getTreeForUser(uid, owner, (int) chunkId);
+            lastCommitted = userTree.getTree().getLastWrittenChunk();
+            if (chunkId > lastCommitted + 1)
+                throw new TimeCryptRequestException("Bulk insert has to start with chunk " + (lastCommitted + 1)
+                        + " not " + chunkId, 1);
+        } else if (chunkId != lastAdded + 1) {
+            throw new TimeCryptRequestException("Bulk insert expected chunk " + (lastAdded + 1) + " not " + chunkId,
+                    1);
+        }
+        lastAdded = chunkId;
+        if (CommittedChunks.isRetry(storage, lastCommitted, uid, owner, chunkId, chunk))
+            return;
+        if (chunks.isEmpty())
+            firstPending = chunkId;
+        chunks.add(chunk);
+        digests.add(digest);
+        if (chunks.size() >= runLength)
+            flush();
+    }
+
+    /**
+     * Commits the pending chunks.
+     */
+    public void flush() throws Exception {
+        if (chunks.isEmpty())
+            return;
+        storage.putChunks(uid, owner, chunks);
+        insertBatcher.insertAll(uid, owner, userTree.getTree(), firstPending, digests);
+        lastCommitted = firstPending + chunks.size() - 1;
+        chunks.clear();
+        digests.clear();
+        firstPending = -1;
+    }
+
+    /**
+     * Commits the pending chunks.
+     *
+     * @return the last committed chunk, -1 if the request held no chunk
+     */
+    public long finish() throws Exception {
+        flush();
+        return lastCommitted;
+    }
+}
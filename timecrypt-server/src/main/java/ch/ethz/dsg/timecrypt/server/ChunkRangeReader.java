@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.server;
+
+import ch.ethz.dsg.timecrypt.index.Chunk;
+import ch.ethz.dsg.timecrypt.index.IStorage;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Reads a chunk range window by window with IStorage.getChunksAsync and hands every key of the range to a consumer,
+ * no thread waits for the storage. The next window is requested before the current one is handed over, so reading
+ * and sending overlap while at most two windows are held in memory.
+ */
+public class ChunkRangeReader {
+
+    public static final int DEFAULT_WINDOW = 1024;
+
+    public interface ChunkConsumer {
+        /**
+         * Called for the keys of the range in order.
+         *
+         * @param chunk the chunk of the key, null if the storage has no chunk for it
+         * @return false to stop reading
+         */
+        boolean onChunk(long key, Chunk chunk);
+
+        /**
+         * Called instead of onCompleted if a window could not be read.
+         *
+         * @param nextKey the first key that was not handed to onChunk
+         */
+        void onError(long nextKey, Throwable error);
+
+        void onCompleted();
+    }
+
+    private final IStorage storage;
+    private final long uid;
+    private final String owner;
+    private final long to;
+    private final int window;
+    private final ChunkConsumer consumer;
+
+    private ChunkRangeReader(IStorage storage, long uid, String owner, long to, int window, ChunkConsumer consumer) {
+        this.storage = storage;
+        this.uid = uid;
+        this.owner = owner;
+        this.to = to;
+        this.window = window;
+        this.consumer = consumer;
+    }
+
+    public static void read(IStorage storage, long uid, String owner, long from, long to, ChunkConsumer consumer) {
+        read(storage, uid, owner, from, to, DEFAULT_WINDOW, consumer);
+    }
+
+    public static void read(IStorage storage, long uid, String owner, long from, long to, int window,
+                            ChunkConsumer consumer) {
+        if (from >= to) {
+            consumer.onCompleted();
+            return;
+        }
+        ChunkRangeReader reader = new ChunkRangeReader(storage, uid, owner, to, window, consumer);
+        CompletableFuture<List<Chunk>> first = reader.readWindow(from);
+        first.whenComplete((chunks, throwable) -> reader.send(from, first));
+    }
+
+    private CompletableFuture<List<Chunk>> readWindow(long from) {
+        //TODO: This should really not be int ...
+        int windowTo = (int) Math.min(to, from + window);
+        try {
+            return storage.getChunksAsync(uid, owner, (int) from, windowTo).toCompletableFuture();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Hands over the completed windows starting at from. Windows that are already read are sent in a loop, so a
+     * storage that answers synchronously does not grow the stack.
+     */
+    private void send(long from, CompletableFuture<List<Chunk>> current) {
+        while (true) {
+            List<Chunk> chunks;
+            try {
+                chunks = current.join();
+            } catch (CompletionException e) {
+                consumer.onError(from, (e.getCause() != null) ? e.getCause() : e);
+                return;
+            }
+
+            long windowTo = Math.min(to, from + window);
+            CompletableFuture<List<Chunk>> next = (windowTo < to) ? readWindow(windowTo) : null;
+
+            Iterator<Chunk> iter = chunks.iterator();
+            Chunk chunk = iter.hasNext() ? iter.next() : null;
+            for (long key = from; key < windowTo; key++) {
+                Chunk found = null;
+                if (chunk != null && chunk.getStorageKey() == key) {
+                    found = chunk;
+                    chunk = iter.hasNext() ? iter.next() : null;
+                }
+                if (!consumer.onChunk(key, found))
+                    return;
+            }
+
+            if (next == null) {
+                consumer.onCompleted();
+                return;
+            }
+            if (!next.isDone()) {
+                long nextFrom = windowTo;
+                next.whenComplete((result, throwable) -> send(nextFrom, next));
+                return;
+            }
+            from = windowTo;
+            current = next;
+        }
+    }
+}
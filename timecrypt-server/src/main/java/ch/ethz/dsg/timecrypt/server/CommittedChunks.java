@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.server;
+
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptRequestException;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptStorageException;
+import ch.ethz.dsg.timecrypt.index.Chunk;
+import ch.ethz.dsg.timecrypt.index.IStorage;
+
+/**
+ * Checks an insert against the chunks that are committed to the storage and the tree before its chunk is written. A
+ * retry of a committed chunk must not be written again, and a different chunk must not replace a committed one: the
+ * tree keeps the digest of the committed chunk.
+ */
+public final class CommittedChunks {
+
+    private CommittedChunks() {
+    }
+
+    /**
+     * @param lastCommitted the last chunk in the tree of the stream
+     * @return true if the chunk is committed with the same payload, false if it is not committed yet
+     * @throws TimeCryptRequestException if a different payload is committed with the chunk ID
+     */
+    public static boolean isRetry(IStorage storage, long lastCommitted, long uid, String owner, long chunkId,
+                                  Chunk chunk) throws TimeCryptStorageException {
+        if (chunkId > lastCommitted)
+            return false;
+        //TODO: This should really not be int ...
+        Chunk committed = storage.getChunk(uid, owner, (int) chunkId);
+        if (committed == null || committed.getBuffer() == null || !committed.getBuffer().equals(chunk.getBuffer()))
+            throw new TimeCryptRequestException("Chunk " + chunkId + " is already committed with a different "
+                    + "payload, the last committed chunk is " + lastCommitted, 1);
+        return true;
+    }
+}
@@ -5,21 +5,24 @@
 
 package ch.ethz.dsg.timecrypt.server;
 
+import ch.ethz.dsg.timecrypt.crypto.CryptoContentFactory;
 import ch.ethz.dsg.timecrypt.exceptions.TimeCryptRequestException;
 import ch.ethz.dsg.timecrypt.index.Chunk;
 import ch.ethz.dsg.timecrypt.index.IStorage;
+import ch.ethz.dsg.timecrypt.index.InsertBatcher;
 import ch.ethz.dsg.timecrypt.index.ITreeManager;
 import ch.ethz.dsg.timecrypt.index.UserStreamTree;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
 import ch.ethz.dsg.timecrypt.protocol.TimeCryptNettyProtocol.*;
 import com.google.protobuf.ByteString;
-import io.netty.channel.ChannelHandlerContext;
+import com.google.protobuf.UnsafeByteOperations;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletionException;
 
 public class NettyRequestManager {
 
@@ -27,6 +30,7 @@ public class NettyRequestManager {
 
     private ITreeManager treeManager;
     private IStorage storage;
+    private InsertBatcher insertBatcher = new InsertBatcher();
 
     public NettyRequestManager(ITreeManager treeManager, IStorage storage) {
         this.treeManager = treeManager;
@@ -59,34 +63,32 @@ public class NettyRequestManager {
         return storage;
     }
 
-    public void createStream(ChannelHandlerContext ctx, long uid, String owner) throws TimeCryptRequestException {
+    public void createStream(ResponseWriter writer, long uid, String owner) throws TimeCryptRequestException {
         try {
             treeManager.createTree(uid, owner);
-            ctx.writeAndFlush(createSuccessResponse("Success Create", 1));
+            writer.writeAndFlush(createSuccessResponse("Success Create", 1));
         } catch (Exception e) {
             LOGGER.error("Exception caught - while processing create stream request {uid " + uid +
                     " owner " + owner + " }", e);
-            ctx.write(createErrorResponse("Message: " + e.getMessage(), 1));
+            writer.writeAndFlush(createErrorResponse("Message: " + e.getMessage(), 1));
         }
     }
 
-    public void deleteStream(ChannelHandlerContext ctx, long uid, String owner) throws TimeCryptRequestException {
+    public void deleteStream(ResponseWriter writer, long uid, String owner) throws TimeCryptRequestException {
         try {
             treeManager.deleteTree(uid, owner);
+            insertBatcher.removeStream(uid, owner);
             storage.deleteALL(uid, owner);
-            ctx.writeAndFlush(createSuccessResponse("Success Delete", 1));
+            writer.writeAndFlush(createSuccessResponse("Success Delete", 1));
         } catch (Exception e) {
             LOGGER.error("Exception caught - while processing delete stream request {uid " + uid +
                     " owner " + owner + " }", e);
-            ctx.write(createErrorResponse("Message: " + e.getMessage(), 1));
+            writer.writeAndFlush(createErrorResponse("Message: " + e.getMessage(), 1));
         }
     }
 
-    public void getStatistics(ChannelHandlerContext ctx, long uid, String owner, long from, long to,
+    public void getStatistics(ResponseWriter writer, long uid, String owner, long from, long to,
                               long granularity, int[] ids) throws TimeCryptRequestException {
-        UserStreamTree userTree = treeManager.getTreeForUser(uid, owner, (int) to);
-        long fromIter = from;
-        long toIter = from + granularity;
         int numIter = (int) ((to - from) / granularity);
 
         if (numIter > 1) {
@@ -97,51 +99,59 @@ public class NettyRequestManager {
                             .setNumTransfers(numIter)
                             .build())
                     .build();
-            ctx.write(multiTransfer);
+            writer.write(multiTransfer);
         }
 
-        NodeContent[] content;
-        while (toIter <= to) {
-            try {
-                content = userTree.getTree().getAggregation(fromIter, toIter, ids);
-
-                if (content == null) {
-                    LOGGER.warn("Could not find any statistics data for the given request {uid " + uid +
-                            " owner " + owner + " from " + from + " to " + to + " granularity " + granularity +
-                                    " ids " + Arrays.toString(ids) + " }");
-                    ctx.write(createErrorResponse("Could not find any statistics data for the given request "
-                            , 1));
-                }
-
-                List<Metadata> metadata = new ArrayList<>(content.length);
-                for (int iter : ids) {
-                    metadata.add(Metadata.newBuilder()
-                            .setDigestid(iter)
-                            .setData(ByteString.copyFrom(content[iter].encode()))
-                            .build());
-                }
-
+        // the responses are written from the callback of the aggregation
+        treeManager.getTreeForUserAsync(uid, owner, (int) to)
+                .thenCompose(userTree -> userTree.getTree().getAggregationSeriesAsync(from, to, granularity, ids))
+                .whenComplete((series, throwable) -> {
+                    if (throwable != null) {
+                        Throwable e = (throwable instanceof CompletionException && throwable.getCause() != null)
+                                ? throwable.getCause() : throwable;
+                        LOGGER.error("Exception caught - while processing node content of statistic request {uid "
+                                + uid + " owner " + owner + " from " + from + " to " + to + " granularity "
+                                + granularity + " ids " + Arrays.toString(ids) + " }", e);
+                        for (int i = 0; i < Math.max(numIter, 1); i++) {
+                            writer.write(createErrorResponse("Message: " + e.getMessage(), 1));
+                        }
+                        writer.flush();
+                        return;
+                    }
+                    writeStatistics(writer, uid, owner, from, to, granularity, ids, series);
+                });
+    }
 
-                ResponseMessage response = ResponseMessage.newBuilder()
-                        .setType(MessageResponseType.STATISTICS_RESPONSE)
-                        .setStatisticsResponse(StatisticsResponse.newBuilder().addAllData(metadata))
-                        .build();
-                ctx.write(response);
-            } catch (Exception e) {
-                LOGGER.error("Exception caught - while processing node content of statistic request {uid " + uid +
+    private void writeStatistics(ResponseWriter writer, long uid, String owner, long from, long to,
+                                 long granularity, int[] ids, List<NodeContent[]> series) {
+        for (NodeContent[] content : series) {
+            if (content == null) {
+                LOGGER.warn("Could not find any statistics data for the given request {uid " + uid +
                         " owner " + owner + " from " + from + " to " + to + " granularity " + granularity +
-                        " ids " + Arrays.toString(ids) + " }", e);
-                ctx.write(createErrorResponse("Message: " + e.getMessage(), 1));
+                        " ids " + Arrays.toString(ids) + " }");
+                writer.write(createErrorResponse("Could not find any statistics data for the given request "
+                        , 1));
+                continue;
             }
 
-            toIter += granularity;
-            fromIter += granularity;
+            List<Metadata> metadata = new ArrayList<>(content.length);
+            for (int iter : ids) {
+                metadata.add(Metadata.newBuilder()
+                        .setDigestid(iter)
+                        .setData(ByteString.copyFrom(content[iter].encode()))
+                        .build());
+            }
 
+            ResponseMessage response = ResponseMessage.newBuilder()
+                    .setType(MessageResponseType.STATISTICS_RESPONSE)
+                    .setStatisticsResponse(StatisticsResponse.newBuilder().addAllData(metadata))
+                    .build();
+            writer.write(response);
         }
-        ctx.flush();
+        writer.flush();
     }
 
-    public void getStatisticsMulti(ChannelHandlerContext ctx, long uidFrom, long uidTo, String owner, long from, long to,
+    public void getStatisticsMulti(ResponseWriter writer, long uidFrom, long uidTo, String owner, long from, long to,
                                    long granularity, int[] ids) throws TimeCryptRequestException {
         //TODO: This method is a hack for benchmarks
         int numStreams = (int) (uidTo - uidFrom) + 1;
@@ -163,7 +173,7 @@ public class NettyRequestManager {
                             .setNumTransfers(numIter)
                             .build())
                     .build();
-            ctx.write(multiTransfer);
+            writer.write(multiTransfer);
         }
 
         NodeContent[] content = null;
@@ -185,7 +195,7 @@ public class NettyRequestManager {
                     LOGGER.warn("Could not find any statistics data for the given request {uidFrom "
                                     + uidFrom + " uidTo " + uidTo + " owner " + owner + " from " + from + " to " + to +
                                     " granularity " + granularity + " ids " + Arrays.toString(ids) + "}");
-                    ctx.write(createErrorResponse("Could not find any statistics data for the given request "
+                    writer.write(createErrorResponse("Could not find any statistics data for the given request "
                             , 1));
                 }
 
@@ -202,75 +212,88 @@ public class NettyRequestManager {
                         .setType(MessageResponseType.STATISTICS_RESPONSE)
                         .setStatisticsResponse(StatisticsResponse.newBuilder().addAllData(metadata))
                         .build();
-                ctx.write(response);
+                writer.write(response);
             } catch (Exception e) {
                 LOGGER.error("Exception caught - while processing node content of statistic multi request {uidFrom "
                         + uidFrom + " uidTo " + uidTo + " owner " + owner + " from " + from + " to " + to +
                         " granularity " + granularity + " ids " + Arrays.toString(ids) + "}", e);
-                ctx.write(createErrorResponse("Message: " + e.getMessage(), 1));
+                writer.write(createErrorResponse("Message: " + e.getMessage(), 1));
             }
 
             toIter += granularity;
             fromIter += granularity;
 
         }
-        ctx.flush();
+        writer.flush();
     }
 
-    public void getChunks(ChannelHandlerContext ctx, long uid, String owner, long from,
+    public void getChunks(ResponseWriter writer, long uid, String owner, long from,
                           long to) throws TimeCryptRequestException {
-        /*
-        UserStreamTree userTree = treeManager.getTreeForUser(uid, owner);
-        List<Integer> getKeys = userTree.getTree().getRange(from, to);*/
-        List<Integer> getKeys = new ArrayList<>();
-        for (int i = (int) from; i < to; i++) {
-            getKeys.add(i);
-        }
-        if (getKeys.size() > 1) {
+        int numKeys = (int) Math.max(0, to - from);
+        if (numKeys > 1) {
             ResponseMessage multiTransfer = ResponseMessage.newBuilder()
                     .setType(MessageResponseType.MULTIRESPONSE)
                     .setMultiTransfer(MultiDataTransfer.newBuilder()
                             .setMessageType(MessageResponseType.DATA_RESPONSE)
-                            .setNumTransfers(getKeys.size())
+                            .setNumTransfers(numKeys)
                             .build())
                     .build();
-            ctx.write(multiTransfer);
+            writer.write(multiTransfer);
         }
 
-        for (int key : getKeys) {
-            try {
-                Chunk curChunk = storage.getChunk(uid, owner, key);
-                if (curChunk == null) {
-                    LOGGER.warn("Could not find any chunks data for the given request {uid " + uid +
-                            " owner " + owner + " from " + from + " to " + to + "}");
-                    ctx.write(createErrorResponse("Could not find any chunks data for the given request "
-                            , 1));
+        // one response per key of the range, a missing chunk is answered with an error
+        ChunkRangeReader.read(storage, uid, owner, from, to, new ChunkRangeReader.ChunkConsumer() {
+            @Override
+            public boolean onChunk(long key, Chunk chunk) {
+                if (chunk == null) {
+                    writeMissingChunk(writer, uid, owner, from, to);
+                    return true;
                 }
                 ResponseMessage chunkResponse = ResponseMessage.newBuilder()
                         .setType(MessageResponseType.DATA_RESPONSE)
                         .setDataResponse(DataResponse.newBuilder()
-                                .setKey(curChunk.getStorageKey())
-                                .setData(ByteString.copyFrom(curChunk.getData())))
+                                .setKey(chunk.getStorageKey())
+                                .setData(UnsafeByteOperations.unsafeWrap(chunk.getBuffer())))
                         .build();
-                ctx.write(chunkResponse);
-            } catch (Exception e) {
+                writer.write(chunkResponse);
+                return true;
+            }
+
+            @Override
+            public void onError(long nextKey, Throwable error) {
                 LOGGER.error("Exception caught - while processing chunks of get chunk request {uid "
-                        + uid + " owner " + owner + " from " + from + " to " + to + "}", e);
-                ctx.write(createErrorResponse("Message: " + e.getMessage(), 1));
+                        + uid + " owner " + owner + " from " + from + " to " + to + "}", error);
+                for (long key = nextKey; key < to; key++) {
+                    writer.write(createErrorResponse("Message: " + error.getMessage(), 1));
+                }
+                writer.flush();
             }
-        }
-        ctx.flush();
+
+            @Override
+            public void onCompleted() {
+                writer.flush();
+            }
+        });
+    }
+
+    private void writeMissingChunk(ResponseWriter writer, long uid, String owner, long from, long to) {
+        LOGGER.warn("Could not find any chunks data for the given request {uid " + uid +
+                " owner " + owner + " from " + from + " to " + to + "}");
+        writer.write(createErrorResponse("Could not find any chunks data for the given request ", 1));
     }
 
-    public void insertChunk(ChannelHandlerContext ctx, long uid, String owner, long from, long to, NodeContent[] metadata,
+    public void insertChunk(ResponseWriter writer, long uid, String owner, long from, long to, NodeContent[] metadata,
                             Chunk chunk) throws TimeCryptRequestException {
 
         try {
             UserStreamTree userTree = treeManager.getTreeForUser(uid, owner, (int) from);
 
-            storage.putChunk(uid, owner, chunk);
-            userTree.getTree().insert(chunk.getStorageKey(), metadata, from, to);
-            ctx.writeAndFlush(createSuccessResponse("Success Insert", 1));
+            // a retry of a committed chunk is answered without writing it again
+            if (!CommittedChunks.isRetry(storage, userTree.getTree().getLastWrittenChunk(), uid, owner, from, chunk)) {
+                storage.putChunk(uid, owner, chunk);
+                insertBatcher.insert(uid, owner, userTree.getTree(), from, metadata);
+            }
+            writer.writeAndFlush(createSuccessResponse("Success Insert", 1));
         } catch (Exception e) {
             LOGGER.error("Exception caught - while processing insert chunk request {uid "
                     + uid + " owner " + owner + " from " + from + " to " + to + " metadata " + Arrays.toString(metadata)
@@ -278,8 +301,38 @@ public class NettyRequestManager {
             throw new TimeCryptRequestException(e.getMessage(), e.hashCode());
         }
     }
+    public void insertChunks(ResponseWriter writer, long uid, String owner, List<MultiInsertChunk> chunks) {
+        BulkInsert bulkInsert = new BulkInsert(treeManager, storage, insertBatcher, uid, owner,
+                BulkInsert.DEFAULT_RUN_LENGTH);
+        try {
+            for (MultiInsertChunk msg : chunks) {
+                bulkInsert.add(msg.getFrom(), new Chunk(msg.getKey(), msg.getChunk().asReadOnlyByteBuffer()),
+                        CryptoContentFactory.createNodeContentsForRequest(msg.getMetadataList()));
+            }
+            long lastChunk = bulkInsert.finish();
+            writer.writeAndFlush(ResponseMessage.newBuilder()
+                    .setType(MessageResponseType.SUCCESS_RESPONSE)
+                    .setSuccessResponse(SuccessResponse.newBuilder()
+                            .setId(1)
+                            .setMessage("Success Insert")
+                            .setLastChunk(lastChunk))
+                    .build());
+        } catch (Exception e) {
+            LOGGER.error("Exception caught - while processing multi insert request {uid " + uid + " owner " + owner
+                    + " chunks " + chunks.size() + " last committed " + bulkInsert.getLastCommitted() + "}", e);
+            // the client continues after the last committed chunk
+            writer.writeAndFlush(ResponseMessage.newBuilder()
+                    .setType(MessageResponseType.ERROR_RESPONSE)
+                    .setErrorResponse(ErrorResponse.newBuilder()
+                            .setId(1)
+                            .setMessage("Message: " + e.getMessage())
+                            .setLastChunk(bulkInsert.getLastCommitted()))
+                    .build());
+        }
+    }
+
     /*
-    public void getMetaconfigurationForStream(ChannelHandlerContext ctx, long uid, String owner) {
+    public void getMetaconfigurationForStream(ResponseWriter writer, long uid, String owner) {
         try {
             UserStreamTree userTree = treeManager.getTreeForUser(uid, owner);
             ITreeMetaInfo metainfo = userTree.getInfo();
@@ -292,7 +345,7 @@ public class NettyRequestManager {
                     .setType(MessageResponseType.META_CONFIG_RESPONSE)
                     .setMetConfigResponse(mrMsgB)
                     .build();
-            ctx.writeAndFlush(metaResponse);
+            writer.writeAndFlush(metaResponse);
         } catch (Exception e) {
             throw new TimeCryptRequestException(e.getMessage(), e.hashCode());
         }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.server;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that handle the requests. The requests that change a stream run one after the other in the order in
+ * which they were dispatched, they are spread over a fixed number of stripes by their stream. The reads run on any
+ * thread. Every stripe queues a bounded number of requests, a request that does not fit is rejected with a
+ * RejectedExecutionException and has to be answered with an error, it never runs on the thread that dispatched it.
+ * <ul>
+ * <li>SHARED: inserts and reads share one pool, a blocking insert can starve the reads.</li>
+ * <li>SPLIT: inserts and reads have their own pools. The query pool queues a bounded number of reads and rejects the
+ * others.</li>
+ * <li>VIRTUAL: every request runs on its own virtual thread, the inserts are still limited to one thread per stripe.
+ * Needs JDK 21.</li>
+ * </ul>
+ */
+public class RequestExecutors implements Closeable {
+
+    public static final int DEFAULT_INSERT_THREADS = 8;
+    public static final int DEFAULT_QUERY_THREADS = 32;
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    public enum Mode {
+        SHARED,
+        SPLIT,
+        VIRTUAL
+    }
+
+    private final Mode mode;
+    private final Executor inserts;
+    private final Executor queries;
+    private final SerialExecutor[] stripes;
+    // the pools that were created for this instance and are shut down with it
+    private final List<ExecutorService> pools;
+
+    private RequestExecutors(Mode mode, Executor inserts, Executor queries, int numStripes, int queueSize,
+                             List<ExecutorService> pools) {
+        if (numStripes < 1)
+            throw new IllegalArgumentException("At least one stripe is needed");
+        this.mode = mode;
+        this.inserts = inserts;
+        this.queries = queries;
+        this.pools = pools;
+        this.stripes = new SerialExecutor[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            stripes[i] = new SerialExecutor(inserts, queueSize);
+        }
+    }
+
+    /**
+     * Inserts and reads run on the given pool, e.g. the event executor group of the Netty handlers. The pool is not
+     * shut down with this instance.
+     */
+    public static RequestExecutors shared(Executor pool, int numStripes) {
+        return new RequestExecutors(Mode.SHARED, pool, pool, numStripes, DEFAULT_QUEUE_SIZE, new ArrayList<>());
+    }
+
+    /**
+     * Inserts and reads run on their own pools with the given number of threads. Every stripe of the inserts and the
+     * query pool queue up to queueSize requests.
+     */
+    public static RequestExecutors split(int insertThreads, int queryThreads, int queueSize) {
+        // the stripes are bounded, there is at most one task per stripe in the queue of the insert pool
+        ExecutorService inserts = pool("timecrypt-insert-", insertThreads, new LinkedBlockingQueue<>());
+        ExecutorService queries = pool("timecrypt-query-", queryThreads, new ArrayBlockingQueue<>(queueSize));
+        List<ExecutorService> pools = new ArrayList<>();
+        pools.add(inserts);
+        pools.add(queries);
+        return new RequestExecutors(Mode.SPLIT, inserts, queries, insertThreads, queueSize, pools);
+    }
+
+    /**
+     * Every request runs on its own virtual thread, at most numStripes inserts run at the same time and every stripe
+     * queues up to queueSize inserts.
+     *
+     * @throws UnsupportedOperationException if the JDK has no virtual threads
+     */
+    public static RequestExecutors virtual(int numStripes, int queueSize) {
+        ExecutorService threads = VirtualThreads.newThreadPerTaskExecutor();
+        List<ExecutorService> pools = new ArrayList<>();
+        pools.add(threads);
+        return new RequestExecutors(Mode.VIRTUAL, threads, threads, numStripes, queueSize, pools);
+    }
+
+    private static ExecutorService pool(String name, int threads, BlockingQueue<Runnable> queue) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = task -> new Thread(task, name + count.getAndIncrement());
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, factory,
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the executor of the requests that change the stream, it runs them in order and rejects them when its
+     * queue is full
+     */
+    public Executor forStream(long uid, String owner) {
+        int hash = 31 * owner.hashCode() + Long.hashCode(uid);
+        return stripes[Math.floorMod(hash, stripes.length)];
+    }
+
+    /**
+     * @return the pool of the inserts, it does not keep the order of the tasks
+     */
+    public Executor forInserts() {
+        return inserts;
+    }
+
+    /**
+     * @return the pool of the reads, it may reject them when it is overloaded
+     */
+    public Executor forQueries() {
+        return queries;
+    }
+
+    /**
+     * Stops the pools that were created for this instance, the queued requests still run.
+     */
+    @Override
+    public void close() {
+        for (ExecutorService pool : pools) {
+            pool.shutdown();
+        }
+    }
+}
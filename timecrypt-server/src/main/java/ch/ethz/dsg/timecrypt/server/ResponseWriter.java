@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.server;
+
+import ch.ethz.dsg.timecrypt.protocol.TimeCryptNettyProtocol.RequestMessage;
+import ch.ethz.dsg.timecrypt.protocol.TimeCryptNettyProtocol.ResponseMessage;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+
+/**
+ * Writes the responses of one request to its channel. If the request has a request ID every response is stamped
+ * with it, so the responses of the concurrent requests of a connection can be written in any order. The writes can
+ * happen from any thread, the responses of one request keep the order in which they are written.
+ */
+public class ResponseWriter {
+
+    private final Channel channel;
+    private final boolean stamped;
+    private final long requestId;
+
+    public ResponseWriter(Channel channel, RequestMessage request) {
+        this.channel = channel;
+        this.stamped = request.hasRequestId();
+        this.requestId = request.getRequestId();
+    }
+
+    private ResponseMessage stamp(ResponseMessage response) {
+        if (!stamped)
+            return response;
+        return response.toBuilder().setRequestId(requestId).build();
+    }
+
+    public ChannelFuture write(ResponseMessage response) {
+        return channel.write(stamp(response));
+    }
+
+    public ChannelFuture writeAndFlush(ResponseMessage response) {
+        return channel.writeAndFlush(stamp(response));
+    }
+
+    public void flush() {
+        channel.flush();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs its tasks one after the other in the order in which they were submitted, on the threads of the given executor.
+ * A task is rejected with a RejectedExecutionException when the given number of tasks is already waiting, or when the
+ * executor rejects the task that runs the queue, then the tasks that are waiting are dropped as well.
+ */
+public class SerialExecutor implements Executor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SerialExecutor.class);
+
+    private final Executor executor;
+    private final int maxQueued;
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private boolean running = false;
+
+    public SerialExecutor(Executor executor) {
+        this(executor, Integer.MAX_VALUE);
+    }
+
+    public SerialExecutor(Executor executor, int maxQueued) {
+        this.executor = executor;
+        this.maxQueued = maxQueued;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (tasks) {
+            if (tasks.size() >= maxQueued)
+                throw new RejectedExecutionException("More than " + maxQueued + " tasks are waiting");
+            tasks.add(task);
+            if (running)
+                return;
+            running = true;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            synchronized (tasks) {
+                if (tasks.size() > 1)
+                    LOGGER.error("Dropping " + (tasks.size() - 1) + " tasks, the executor rejected them");
+                tasks.clear();
+                running = false;
+            }
+            throw e;
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task;
+            synchronized (tasks) {
+                task = tasks.poll();
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("Task failed", e);
+            }
+        }
+    }
+}
@@ -7,6 +7,7 @@ package ch.ethz.dsg.timecrypt.server;
 
 import ch.ethz.dsg.timecrypt.crypto.CryptoContentFactory;
 import ch.ethz.dsg.timecrypt.index.Chunk;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptOverloadedException;
 import ch.ethz.dsg.timecrypt.exceptions.TimeCryptRequestException;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
 import ch.ethz.dsg.timecrypt.protocol.TimeCryptNettyProtocol.*;
@@ -15,59 +16,150 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Handles the requests of one channel on the request executors: reads go to the query executor, the requests that
+ * change a stream go to the executor of the stream, so the inserts of a stream keep the order in which they arrived.
+ * Requests with a request ID are answered as they complete. Requests without a request ID are handled one after the
+ * other and answered in order, a request starts when the one before it is answered. A request that the executors
+ * reject because their queues are full is answered with an error.
+ */
 public class TimeCryptRequestHandler extends SimpleChannelInboundHandler<RequestMessage> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TimeCryptRequestHandler.class);
 
     private NettyRequestManager manager;
+    private RequestExecutors executors;
+    // completes when the last request without a request ID is answered, only used by the thread of the channel
+    private CompletableFuture<Void> inOrder = CompletableFuture.completedFuture(null);
 
-    public TimeCryptRequestHandler(NettyRequestManager manager) {
+    public TimeCryptRequestHandler(NettyRequestManager manager, RequestExecutors executors) {
         super();
         this.manager = manager;
+        this.executors = executors;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, RequestMessage msg) throws Exception {
+        if (!msg.hasRequestId()) {
+            CompletableFuture<Void> answered = new CompletableFuture<>();
+            inOrder.thenRun(() -> dispatch(ctx, msg, () -> answered.complete(null)));
+            inOrder = answered;
+            return;
+        }
+        dispatch(ctx, msg, () -> {});
+    }
+
+    /**
+     * Runs the request on its executor, or answers it with an error if the executor rejects it.
+     *
+     * @param done runs when the request is answered
+     */
+    private void dispatch(ChannelHandlerContext ctx, RequestMessage msg, Runnable done) {
+        try {
+            executorFor(msg).execute(() -> {
+                try {
+                    handleQuietly(ctx, msg);
+                } finally {
+                    done.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            TimeCryptOverloadedException overloaded = new TimeCryptOverloadedException("Server overloaded, "
+                    + e.getMessage(), 1);
+            LOGGER.warn("Rejected request of type " + msg.getType() + ": " + e.getMessage());
+            new ResponseWriter(ctx.channel(), msg).writeAndFlush(ResponseMessage.newBuilder()
+                    .setType(MessageResponseType.ERROR_RESPONSE)
+                    .setErrorResponse(overloaded.getErrorRespons())
+                    .build());
+            done.run();
+        }
+    }
+
+    private void handleQuietly(ChannelHandlerContext ctx, RequestMessage msg) {
+        try {
+            handle(ctx, msg);
+        } catch (Exception e) {
+            exceptionCaught(ctx, e);
+        }
+    }
+
+    private Executor executorFor(RequestMessage msg) {
+        long uid;
+        String owner;
+        switch (msg.getType()) {
+            case CREATE_STREAM:
+                uid = msg.getCreateStream().getUid();
+                owner = msg.getCreateStream().getOwner();
+                break;
+            case DELETE_STREAM:
+                uid = msg.getDeleteStream().getUid();
+                owner = msg.getDeleteStream().getOwner();
+                break;
+            case INSERT_CHUNK:
+                uid = msg.getInsertChunk().getUid();
+                owner = msg.getInsertChunk().getOwner();
+                break;
+            case MULTI_INSERT:
+                uid = msg.getMultiInsert().getUid();
+                owner = msg.getMultiInsert().getOwner();
+                break;
+            default:
+                return executors.forQueries();
+        }
+        return executors.forStream(uid, owner);
+    }
+
+    private void handle(ChannelHandlerContext ctx, RequestMessage msg) throws Exception {
+        ResponseWriter writer = new ResponseWriter(ctx.channel(), msg);
         try {
             MessageRequestType type = msg.getType();
             switch (type) {
                 case CREATE_STREAM:
                     CreateStream msgC = msg.getCreateStream();
-                    manager.createStream(ctx, msgC.getUid(), msgC.getOwner());
+                    manager.createStream(writer, msgC.getUid(), msgC.getOwner());
                     break;
                 case DELETE_STREAM:
                     DeleteStream msgD = msg.getDeleteStream();
-                    manager.deleteStream(ctx, msgD.getUid(), msgD.getOwner());
+                    manager.deleteStream(writer, msgD.getUid(), msgD.getOwner());
                     break;
                 case GET_CHUNKS:
                     GetChunks msgG = msg.getGetChunks();
-                    manager.getChunks(ctx, msgG.getUid(), msgG.getOwner(), msgG.getFrom(), msgG.getTo());
+                    manager.getChunks(writer, msgG.getUid(), msgG.getOwner(), msgG.getFrom(), msgG.getTo());
                     break;
                 case INSERT_CHUNK:
                     InsertChunk msgI = msg.getInsertChunk();
-                    Chunk chunk = new Chunk(msgI.getKey(), msgI.getChunk().toByteArray());
+                    Chunk chunk = new Chunk(msgI.getKey(), msgI.getChunk().asReadOnlyByteBuffer());
                     NodeContent[] meta = CryptoContentFactory.createNodeContentsForRequest(msgI.getMetadataList());
-                    manager.insertChunk(ctx, msgI.getUid(), msgI.getOwner(), msgI.getFrom(), msgI.getTo(), meta, chunk);
+                    manager.insertChunk(writer, msgI.getUid(), msgI.getOwner(), msgI.getFrom(), msgI.getTo(), meta,
+                            chunk);
+                    break;
+                case MULTI_INSERT:
+                    MultiInsert msgMI = msg.getMultiInsert();
+                    manager.insertChunks(writer, msgMI.getUid(), msgMI.getOwner(), msgMI.getChunksList());
                     break;
                 case GET_STATISTICS:
                     GetStatistics msgS = msg.getGetStatistics();
-                    manager.getStatistics(ctx, msgS.getUid(), msgS.getOwner(), msgS.getFrom(),
+                    manager.getStatistics(writer, msgS.getUid(), msgS.getOwner(), msgS.getFrom(),
                             msgS.getTo(), msgS.getGranularity(), msgS.getDigestidList().stream().mapToInt(i->i).toArray());
                     break;
                 case GET_MULTI:
                     GetStatisticsMulti msgSM = msg.getGetStatisticsMulti();
-                    manager.getStatisticsMulti(ctx, msgSM.getUidFrom(), msgSM.getUidTo(), msgSM.getOwner(), msgSM.getFrom(),
+                    manager.getStatisticsMulti(writer, msgSM.getUidFrom(), msgSM.getUidTo(), msgSM.getOwner(), msgSM.getFrom(),
                             msgSM.getTo(), msgSM.getGranularity(), msgSM.getDigestidList().stream().mapToInt(i->i).toArray());
                     break;
                 case GET_METAINFO:
                     GetMetaConfiguration getMetaMsg = msg.getGetMetaConfig();
-                    //manager.getMetaconfigurationForStream(ctx, getMetaMsg.getUid(), getMetaMsg.getOwner());
+                    //manager.getMetaconfigurationForStream(writer, getMetaMsg.getUid(), getMetaMsg.getOwner());
                     throw new RuntimeException("Not supported");
                     //break;
             }
         } catch (TimeCryptRequestException r) {
             LOGGER.error("Exception during message Processing. Msg: " + msg, r);
-            ctx.writeAndFlush(ResponseMessage.newBuilder()
+            writer.writeAndFlush(ResponseMessage.newBuilder()
                     .setType(MessageResponseType.ERROR_RESPONSE)
                     .setErrorResponse(r.getErrorRespons())
                     .build());
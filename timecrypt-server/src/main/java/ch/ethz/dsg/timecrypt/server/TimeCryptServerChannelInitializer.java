@@ -13,16 +13,36 @@ import io.netty.handler.codec.protobuf.ProtobufDecoder;
 import io.netty.handler.codec.protobuf.ProtobufEncoder;
 import io.netty.handler.codec.protobuf.ProtobufVarint32FrameDecoder;
 import io.netty.handler.codec.protobuf.ProtobufVarint32LengthFieldPrepender;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.EventExecutorGroup;
 
 public class TimeCryptServerChannelInitializer extends ChannelInitializer<SocketChannel> {
 
     private NettyRequestManager manager;
     private EventExecutorGroup dbHandlerPool;
+    // the requests are dispatched to them
+    private RequestExecutors executors;
 
+    /**
+     * The requests are dispatched to the pool of the handlers as well.
+     */
     public TimeCryptServerChannelInitializer(NettyRequestManager manager, EventExecutorGroup dbHandlerPool) {
+        this(manager, dbHandlerPool, RequestExecutors.shared(dbHandlerPool, size(dbHandlerPool)));
+    }
+
+    public TimeCryptServerChannelInitializer(NettyRequestManager manager, EventExecutorGroup dbHandlerPool,
+                                             RequestExecutors executors) {
         this.manager = manager;
         this.dbHandlerPool = dbHandlerPool;
+        this.executors = executors;
+    }
+
+    private static int size(EventExecutorGroup group) {
+        int size = 0;
+        for (EventExecutor ignored : group) {
+            size++;
+        }
+        return size;
     }
 
     @Override
@@ -34,6 +54,6 @@ public class TimeCryptServerChannelInitializer extends ChannelInitializer<Socket
 
         p.addLast(new ProtobufVarint32LengthFieldPrepender());
         p.addLast(new ProtobufEncoder());
-        p.addLast(dbHandlerPool, new TimeCryptRequestHandler(manager));
+        p.addLast(dbHandlerPool, new TimeCryptRequestHandler(manager, executors));
     }
 }
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.server;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Virtual threads need JDK 21. This is the version for older JDKs, the server jar contains the version of
+ * src/main/java21 as a multi-release class when it was built with JDK 21 or newer.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isAvailable() {
+        return false;
+    }
+
+    /**
+     * @return an executor that starts a virtual thread per task
+     */
+    public static ExecutorService newThreadPerTaskExecutor() {
+        throw new UnsupportedOperationException("Virtual threads need JDK 21 and a server built with it");
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.server.grpc;
+
+import ch.ethz.dsg.timecrypt.protocol.TimecryptGrpc;
+import ch.ethz.dsg.timecrypt.protocol.chunkCreationMessage;
+import ch.ethz.dsg.timecrypt.protocol.streamId;
+import ch.ethz.dsg.timecrypt.server.RequestExecutors;
+import ch.ethz.dsg.timecrypt.server.SerialExecutor;
+import io.grpc.Grpc;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Moves the calls from the threads of the transport to the request executors: the calls that change an existing stream
+ * to the executor of the stream, so the inserts of a stream are applied in the order in which they arrived, the
+ * creation of a stream to the insert pool and the others to the query pool. The stream of a call is only known with its
+ * first message, the events before it wait for it. The events of a call are handled one after the other. A call whose
+ * first event is rejected because the queues are full is closed with RESOURCE_EXHAUSTED, a later event of a running
+ * call waits until it fits. Has to be the outermost interceptor and the server has to run its calls on the direct
+ * executor.
+ * <p>
+ * The transport delivers the messages and half-closes of pipelined calls not in the order in which the calls started,
+ * e.g. a later unary insert may be complete before an earlier one. So the unary calls that change a stream start on
+ * their executor in the order in which they started on their connection: a complete call waits until the earlier calls
+ * of the connection are complete as well. The calls of a connection share the thread of its transport.
+ */
+public class ExecutorServerInterceptor implements ServerInterceptor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExecutorServerInterceptor.class);
+
+    private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_WAIT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static final Set<String> INSERT_METHODS = Set.of(
+            TimecryptGrpc.getCreateStreamMethod().getFullMethodName());
+
+    // the stream ID of the first message of the calls that change a stream
+    private static final Map<String, ToLongFunction<Object>> STREAM_METHODS = Map.of(
+            TimecryptGrpc.getDeleteStreamMethod().getFullMethodName(),
+            message -> ((streamId) message).getStreamId(),
+            TimecryptGrpc.getInsertChunkMethod().getFullMethodName(),
+            message -> ((chunkCreationMessage) message).getChunk().getStreamId().getStreamId(),
+            TimecryptGrpc.getInsertChunksMethod().getFullMethodName(),
+            message -> ((chunkCreationMessage) message).getChunk().getStreamId().getStreamId());
+
+    // the calls of STREAM_METHODS with a single message, they start in the order of the calls
+    private static final Set<String> ORDERED_METHODS = Set.of(
+            TimecryptGrpc.getDeleteStreamMethod().getFullMethodName(),
+            TimecryptGrpc.getInsertChunkMethod().getFullMethodName());
+
+    private final RequestExecutors executors;
+    // by remote address of the connection
+    private final Map<Object, CallOrder> callOrders = new ConcurrentHashMap<>();
+
+    public ExecutorServerInterceptor(RequestExecutors executors) {
+        this.executors = executors;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> serverCall, Metadata metadata,
+                                                                 ServerCallHandler<ReqT, RespT> serverCallHandler) {
+        String method = serverCall.getMethodDescriptor().getFullMethodName();
+        ServerCall.Listener<ReqT> delegate = serverCallHandler.startCall(serverCall, metadata);
+        ToLongFunction<Object> streamOf = STREAM_METHODS.get(method);
+        if (streamOf != null) {
+            // the auth interceptor rejects the calls without a user before they reach the service
+            String owner = metadata.get(GrpcAuthConstants.AUTH_USER_METADATA_KEY);
+            SerialListener<ReqT> listener = new SerialListener<>(serverCall, delegate, message -> executors.forStream(
+                    streamOf.applyAsLong(message), (owner == null) ? "" : owner));
+            if (ORDERED_METHODS.contains(method))
+                listener.order = enqueue(serverCall, listener);
+            return listener;
+        }
+        Executor executor = new SerialExecutor(INSERT_METHODS.contains(method) ? executors.forInserts()
+                : executors.forQueries());
+        return new SerialListener<>(serverCall, delegate, message -> executor);
+    }
+
+    private CallOrder enqueue(ServerCall<?, ?> call, SerialListener<?> listener) {
+        Object connection = call.getAttributes().get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR);
+        Object key = (connection == null) ? "" : connection;
+        while (true) {
+            CallOrder order = callOrders.computeIfAbsent(key, CallOrder::new);
+            // an empty order was removed, the next one is created with the next call
+            if (order.add(listener))
+                return order;
+        }
+    }
+
+    /**
+     * The ordered calls of a connection that did not start yet, in the order in which they started on the connection.
+     */
+    private class CallOrder {
+        private final Object connection;
+        private final Queue<SerialListener<?>> calls = new ArrayDeque<>();
+        private boolean removed = false;
+
+        CallOrder(Object connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * @return false if the order was removed, the call is not queued then
+         */
+        synchronized boolean add(SerialListener<?> call) {
+            if (removed)
+                return false;
+            calls.add(call);
+            return true;
+        }
+
+        /**
+         * Starts the calls that are complete, up to the first one that still waits for an event of the client.
+         */
+        synchronized void startReady() {
+            while (!calls.isEmpty() && calls.peek().complete) {
+                SerialListener<?> call = calls.poll();
+                call.start(call.chosen);
+            }
+            if (calls.isEmpty()) {
+                removed = true;
+                callOrders.remove(connection, this);
+            }
+        }
+    }
+
+    /**
+     * Runs the events of a call one after the other on the executor that is chosen by its first message. The events of
+     * the transport are not concurrent, so the listener needs no locking.
+     */
+    private class SerialListener<ReqT> extends ServerCall.Listener<ReqT> {
+        private final ServerCall<ReqT, ?> call;
+        private final ServerCall.Listener<ReqT> delegate;
+        private final Function<ReqT, Executor> executorOf;
+        private final List<Runnable> beforeFirstMessage = new ArrayList<>();
+        // the calls of the connection that have to start before this one, null if the call is not ordered
+        private CallOrder order = null;
+        // the executor of the call, it runs the events once the call started
+        private Executor chosen = null;
+        // the client half-closed or cancelled the call, an ordered call can start
+        private boolean complete = false;
+        private Executor executor = null;
+        // an event of the call was accepted by the executor, so the call runs and its events must not be lost
+        private boolean accepted = false;
+        // the call was closed because its first event was rejected, the delegate sees none of its events
+        private boolean rejected = false;
+
+        SerialListener(ServerCall<ReqT, ?> call, ServerCall.Listener<ReqT> delegate,
+                       Function<ReqT, Executor> executorOf) {
+            this.call = call;
+            this.delegate = delegate;
+            this.executorOf = executorOf;
+        }
+
+        private void start(Executor chosen) {
+            executor = chosen;
+            for (Runnable event : beforeFirstMessage) {
+                dispatch(event);
+            }
+            beforeFirstMessage.clear();
+        }
+
+        private void dispatch(Runnable event) {
+            long waitingSince = System.nanoTime();
+            while (!rejected) {
+                try {
+                    executor.execute(event);
+                    accepted = true;
+                    return;
+                } catch (RejectedExecutionException e) {
+                    if (!accepted) {
+                        rejected = true;
+                        LOGGER.warn("Rejected call of " + call.getMethodDescriptor().getFullMethodName() + ": "
+                                + e.getMessage());
+                        call.close(Status.RESOURCE_EXHAUSTED.withDescription("Server overloaded, " + e.getMessage()),
+                                new Metadata());
+                    } else if (System.nanoTime() - waitingSince > MAX_WAIT_NANOS) {
+                        // the executors were shut down
+                        LOGGER.error("Dropping an event of a call of "
+                                + call.getMethodDescriptor().getFullMethodName(), e);
+                        return;
+                    } else {
+                        LockSupport.parkNanos(RETRY_NANOS);
+                    }
+                }
+            }
+        }
+
+        private void execute(Runnable event) {
+            if (executor == null)
+                beforeFirstMessage.add(event);
+            else
+                dispatch(event);
+        }
+
+        /**
+         * Runs the event even if no message arrived, e.g. when the call is cancelled before it.
+         */
+        private void executeLast(Runnable event) {
+            execute(event);
+            if (chosen == null)
+                chosen = new SerialExecutor(executors.forInserts());
+            if (order == null) {
+                if (executor == null)
+                    start(chosen);
+            } else if (!complete) {
+                complete = true;
+                order.startReady();
+            }
+        }
+
+        @Override
+        public void onMessage(ReqT message) {
+            execute(() -> delegate.onMessage(message));
+            if (chosen == null) {
+                chosen = executorOf.apply(message);
+                if (order == null)
+                    start(chosen);
+            }
+        }
+
+        @Override
+        public void onHalfClose() {
+            executeLast(delegate::onHalfClose);
+        }
+
+        @Override
+        public void onCancel() {
+            executeLast(delegate::onCancel);
+        }
+
+        @Override
+        public void onComplete() {
+            executeLast(delegate::onComplete);
+        }
+
+        @Override
+        public void onReady() {
+            execute(delegate::onReady);
+        }
+    }
+}
@@ -10,26 +10,34 @@ import ch.ethz.dsg.timecrypt.crypto.BigintMacNodeContent;
 import ch.ethz.dsg.timecrypt.crypto.BigintNodeContent;
 import ch.ethz.dsg.timecrypt.crypto.LongMacNodeNodeContent;
 import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptOverloadedException;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptRequestException;
 import ch.ethz.dsg.timecrypt.exceptions.TimeCryptStorageException;
 import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeAlreadyExistsException;
 import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
 import ch.ethz.dsg.timecrypt.index.Chunk;
 import ch.ethz.dsg.timecrypt.index.IStorage;
+import ch.ethz.dsg.timecrypt.index.InsertBatcher;
 import ch.ethz.dsg.timecrypt.index.ITreeManager;
+import ch.ethz.dsg.timecrypt.index.IndexType;
 import ch.ethz.dsg.timecrypt.index.UserStreamTree;
 import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
 import ch.ethz.dsg.timecrypt.protocol.*;
+import ch.ethz.dsg.timecrypt.server.BulkInsert;
+import ch.ethz.dsg.timecrypt.server.ChunkRangeReader;
+import ch.ethz.dsg.timecrypt.server.CommittedChunks;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletionException;
 
 public class TimeCryptGRPCServer extends TimecryptGrpc.TimecryptImplBase {
 
@@ -37,10 +45,30 @@ public class TimeCryptGRPCServer extends TimecryptGrpc.TimecryptImplBase {
     private final Random rand = new Random();
     private final ITreeManager treeManager;
     private final IStorage storage;
+    private final InsertBatcher insertBatcher = new InsertBatcher();
+    private final boolean prefixSumIndex;
 
     public TimeCryptGRPCServer(ITreeManager treeManager, IStorage storage) {
+        this(treeManager, storage, false);
+    }
+
+    /**
+     * @param prefixSumIndex use a prefix sum index for streams that only have additive digests without MACs
+     */
+    public TimeCryptGRPCServer(ITreeManager treeManager, IStorage storage, boolean prefixSumIndex) {
         this.treeManager = treeManager;
         this.storage = storage;
+        this.prefixSumIndex = prefixSumIndex;
+    }
+
+    private IndexType selectIndexType(metadataConfig[] configs) {
+        if (!prefixSumIndex || configs.length == 0)
+            return IndexType.BLOCK_TREE;
+        for (metadataConfig config : configs) {
+            if (config.getSchema() != EncryptionSchema.LONG && config.getSchema() != EncryptionSchema.BIG_INT)
+                return IndexType.BLOCK_TREE;
+        }
+        return IndexType.PREFIX_SUM;
     }
 
     @Override
@@ -77,18 +105,19 @@ public class TimeCryptGRPCServer extends TimecryptGrpc.TimecryptImplBase {
         String owner = GrpcAuthConstants.USER_INFO_KEY.get();
 
         // TODO: Do something with the stream meta data .. Arrays.asList(validationArray)
+        IndexType indexType = selectIndexType(validationArray);
 
         // TODO: This should come from the Database... trying 3 times should be okay for now ...
         long streamId = rand.nextLong();
 
         try {
-            treeManager.createTree(streamId, owner);
+            treeManager.createTree(streamId, owner, indexType);
         } catch (TimeCryptTreeAlreadyExistsException e) {
             streamId = rand.nextLong();
             try {
-                treeManager.createTree(streamId, owner);
+                treeManager.createTree(streamId, owner, indexType);
             } catch (TimeCryptTreeAlreadyExistsException e1) {
-                treeManager.createTree(streamId, owner);
+                treeManager.createTree(streamId, owner, indexType);
             }
         } catch (TimeCryptTreeException e2) {
             LOGGER.error("Error crating stream", e2);
@@ -101,7 +130,7 @@ public class TimeCryptGRPCServer extends TimecryptGrpc.TimecryptImplBase {
 
         responseObserver.onNext(ch.ethz.dsg.timecrypt.protocol.streamId.newBuilder().setStreamId(streamId).build());
         responseObserver.onCompleted();
-        LOGGER.info("Created stream with id " + streamId + " for user: " + owner);
+        LOGGER.info("Created stream with id " + streamId + " for user: " + owner + " index: " + indexType);
     }
 
     @Override
@@ -125,6 +154,7 @@ public class TimeCryptGRPCServer extends TimecryptGrpc.TimecryptImplBase {
 
         try {
             treeManager.deleteTree(streamId, owner);
+            insertBatcher.removeStream(streamId, owner);
         } catch (TimeCryptTreeException e) {
             String msg = "Could not delete stream with id " + streamId + " for owner: " + owner;
             LOGGER.error(msg, e);
@@ -140,7 +170,7 @@ public class TimeCryptGRPCServer extends TimecryptGrpc.TimecryptImplBase {
         } catch (TimeCryptStorageException e) {
             String msg = "Could not delete stream with id " + streamId + " for owner: " + owner;
             LOGGER.error(msg, e);
-            responseObserver.onError(Status.INTERNAL
+            responseObserver.onError(storageErrorStatus(e)
                     .withDescription(msg)
                     .withCause(e)
                     .asRuntimeException());
@@ -152,15 +182,12 @@ public class TimeCryptGRPCServer extends TimecryptGrpc.TimecryptImplBase {
         LOGGER.info("Deleted stream with id " + streamId + " for user: " + owner);
     }
 
-    @Override
-    public void insertChunk(chunkCreationMessage request, StreamObserver<chunkId> responseObserver) {
-        String owner = GrpcAuthConstants.USER_INFO_KEY.get();
-        long streamId = request.getChunk().getStreamId().getStreamId();
-        long chunkId = request.getChunk().getChunkId().getId();
-
-        //TODO: This should really not be int ...
-        Chunk chunk = new Chunk((int) chunkId, request.getChunk().getChunkContent().toByteArray());
-        List<metadataContent> requestMetadataList = request.getDigest().getMetadataContentList();
+    /**
+     * @return the node contents of the digest at the ids of their configs
+     * @throws IllegalArgumentException if the payload type of a content is unknown
+     */
+    private static NodeContent[] toNodeContents(digest requestDigest) {
+        List<metadataContent> requestMetadataList = requestDigest.getMetadataContentList();
         NodeContent[] metadata = new NodeContent[requestMetadataList.size()];
 
         // TODO: The provided meta data should match the meta data of the
@@ -186,15 +213,32 @@ public class TimeCryptGRPCServer extends TimecryptGrpc.TimecryptImplBase {
                                     new BigInteger(content.getBigIntMacPayload().getAuthCode().toByteArray()));
                     break;
                 default:
-                    String msg = "Unknown metadata content payload type " + content.getPayloadCase().getNumber();
-                    LOGGER.error(msg);
-                    responseObserver.onError(Status.INTERNAL
-                            .withDescription(msg)
-                            .asRuntimeException());
-                    return;
+                    throw new IllegalArgumentException("Unknown metadata content payload type "
+                            + content.getPayloadCase().getNumber());
             }
             metadata[config.getId()] = node;
         }
+        return metadata;
+    }
+
+    @Override
+    public void insertChunk(chunkCreationMessage request, StreamObserver<chunkId> responseObserver) {
+        String owner = GrpcAuthConstants.USER_INFO_KEY.get();
+        long streamId = request.getChunk().getStreamId().getStreamId();
+        long chunkId = request.getChunk().getChunkId().getId();
+
+        //TODO: This should really not be int ...
+        Chunk chunk = new Chunk((int) chunkId, request.getChunk().getChunkContent().asReadOnlyByteBuffer());
+        NodeContent[] metadata;
+        try {
+            metadata = toNodeContents(request.getDigest());
+        } catch (IllegalArgumentException e) {
+            LOGGER.error(e.getMessage());
+            responseObserver.onError(Status.INTERNAL
+                    .withDescription(e.getMessage())
+                    .asRuntimeException());
+            return;
+        }
 
         UserStreamTree userTree;
         try {
@@ -212,21 +256,34 @@ public class TimeCryptGRPCServer extends TimecryptGrpc.TimecryptImplBase {
         }
 
         try {
+            // a retry of a committed chunk is answered without writing it again
+            if (CommittedChunks.isRetry(storage, userTree.getTree().getLastWrittenChunk(), streamId, owner, chunkId,
+                    chunk)) {
+                responseObserver.onNext(ch.ethz.dsg.timecrypt.protocol.chunkId.newBuilder().setId(chunkId).build());
+                responseObserver.onCompleted();
+                return;
+            }
             storage.putChunk(streamId, owner, chunk);
         } catch (TimeCryptStorageException e) {
             String msg = "Could not put chunk to  stream with id " + streamId + " for owner: " + owner +
                     " at chunk id " + chunkId;
             LOGGER.error(msg, e);
-            responseObserver.onError(Status.INTERNAL
+            responseObserver.onError(storageErrorStatus(e)
                     .withDescription(msg)
                     .withCause(e)
                     .asRuntimeException());
             return;
+        } catch (TimeCryptRequestException e) {
+            LOGGER.error(e.getMessage());
+            responseObserver.onError(Status.ALREADY_EXISTS
+                    .withDescription(e.getMessage())
+                    .asRuntimeException());
+            return;
         }
 
         try {
             //TODO: This should really not be int ...
-            userTree.getTree().insert((int) chunkId, metadata, chunkId, chunkId + 1);
+            insertBatcher.insert(streamId, owner, userTree.getTree(), chunkId, metadata);
         } catch (Exception e) {
             String msg = "Could not insert digest to stream with id " + streamId + " for owner: " + owner +
                     " at chunk id " + chunkId;
@@ -243,6 +300,89 @@ public class TimeCryptGRPCServer extends TimecryptGrpc.TimecryptImplBase {
         LOGGER.info("Inserted chunk with id " + chunkId + " to stream with id " + streamId + " for owner: " + owner);
     }
 
+    @Override
+    public StreamObserver<chunkCreationMessage> insertChunks(StreamObserver<chunkId> responseObserver) {
+        String owner = GrpcAuthConstants.USER_INFO_KEY.get();
+
+        return new StreamObserver<chunkCreationMessage>() {
+            private BulkInsert bulkInsert = null;
+            private boolean failed = false;
+
+            @Override
+            public void onNext(chunkCreationMessage request) {
+                if (failed)
+                    return;
+                long streamId = request.getChunk().getStreamId().getStreamId();
+                long chunkId = request.getChunk().getChunkId().getId();
+                if (bulkInsert == null) {
+                    bulkInsert = new BulkInsert(treeManager, storage, insertBatcher, streamId, owner,
+                            BulkInsert.DEFAULT_RUN_LENGTH);
+                } else if (streamId != bulkInsert.getUid()) {
+                    fail(new IllegalArgumentException("Bulk insert to stream " + bulkInsert.getUid()
+                            + " got a chunk of stream " + streamId));
+                    return;
+                }
+
+                try {
+                    //TODO: This should really not be int ...
+                    Chunk chunk = new Chunk((int) chunkId,
+                            request.getChunk().getChunkContent().asReadOnlyByteBuffer());
+                    bulkInsert.add(chunkId, chunk, toNodeContents(request.getDigest()));
+                } catch (Exception e) {
+                    fail(e);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                // the pending chunks are dropped, the committed ones stay
+                failed = true;
+                LOGGER.warn("Bulk insert for owner " + owner + " was cancelled by the client after chunk "
+                        + ((bulkInsert == null) ? -1 : bulkInsert.getLastCommitted()), t);
+            }
+
+            @Override
+            public void onCompleted() {
+                if (failed)
+                    return;
+                long lastChunk;
+                try {
+                    lastChunk = (bulkInsert == null) ? -1 : bulkInsert.finish();
+                } catch (Exception e) {
+                    fail(e);
+                    return;
+                }
+                responseObserver.onNext(chunkId.newBuilder().setId(lastChunk).build());
+                responseObserver.onCompleted();
+                LOGGER.info("Inserted chunks up to id " + lastChunk + " to stream with id "
+                        + ((bulkInsert == null) ? -1 : bulkInsert.getUid()) + " for owner: " + owner);
+            }
+
+            private void fail(Exception e) {
+                failed = true;
+                long streamId = (bulkInsert == null) ? -1 : bulkInsert.getUid();
+                long lastChunk = (bulkInsert == null) ? -1 : bulkInsert.getLastCommitted();
+                String msg = "Could not insert chunks to stream with id " + streamId + " for owner: " + owner +
+                        " after the last committed chunk id " + lastChunk + ": " + e.getMessage();
+                LOGGER.error(msg, e);
+                responseObserver.onError(bulkInsertErrorStatus(e)
+                        .withDescription(msg)
+                        .withCause(e)
+                        .asRuntimeException());
+            }
+        };
+    }
+
+    private static Status bulkInsertErrorStatus(Exception e) {
+        if (e instanceof TimeCryptRequestException || e instanceof IllegalArgumentException)
+            return Status.INVALID_ARGUMENT;
+        if (e instanceof TimeCryptTreeException)
+            return Status.NOT_FOUND;
+        if (e instanceof TimeCryptStorageException)
+            return storageErrorStatus((TimeCryptStorageException) e);
+        return Status.INTERNAL;
+    }
+
     @Override
     public void getLastWrittenChunk(streamId request, StreamObserver<chunkId> responseObserver) {
         String owner = GrpcAuthConstants.USER_INFO_KEY.get();
@@ -255,6 +395,18 @@ public class TimeCryptGRPCServer extends TimecryptGrpc.TimecryptImplBase {
         responseObserver.onCompleted();
     }
 
+    private static Throwable unwrap(Throwable throwable) {
+        return (throwable instanceof CompletionException && throwable.getCause() != null)
+                ? throwable.getCause() : throwable;
+    }
+
+    /**
+     * Requests that were shed by the storage can be retried later.
+     */
+    private static Status storageErrorStatus(TimeCryptStorageException e) {
+        return (e instanceof TimeCryptOverloadedException) ? Status.RESOURCE_EXHAUSTED : Status.INTERNAL;
+    }
+
     @Override
     public void getRawData(chunkRequestMessage request, StreamObserver<chunk> responseObserver) {
         String owner = GrpcAuthConstants.USER_INFO_KEY.get();
@@ -281,29 +433,26 @@ public class TimeCryptGRPCServer extends TimecryptGrpc.TimecryptImplBase {
             return;
         }
 
-        // Check tree existence
-        try {
-            //TODO: This should really not be int ...
-            treeManager.getTreeForUser(streamId, owner, (int) chunkIdTo);
-        } catch (TimeCryptTreeException e) {
-            String msg = "Could not get stream tree with id " + streamId + " for owner: " + owner;
-            LOGGER.error(msg);
-            responseObserver.onError(Status.NOT_FOUND
-                    .withDescription(msg)
-                    .withCause(e)
-                    .asRuntimeException());
-            return;
-        }
-
-        List<Long> getKeys = new ArrayList<>();
-        for (long i = chunkIdFrom; i < chunkIdTo; i++) {
-            getKeys.add(i);
-        }
+        // Check tree existence, the chunks are sent from the callbacks of the storage
+        treeManager.getTreeForUserAsync(streamId, owner, (int) chunkIdTo).whenComplete((userTree, throwable) -> {
+            if (throwable != null) {
+                String msg = "Could not get stream tree with id " + streamId + " for owner: " + owner;
+                LOGGER.error(msg);
+                responseObserver.onError(Status.NOT_FOUND
+                        .withDescription(msg)
+                        .withCause(unwrap(throwable))
+                        .asRuntimeException());
+                return;
+            }
+            sendChunks(streamId, owner, chunkIdFrom, chunkIdTo, responseObserver);
+        });
+    }
 
-        for (long key : getKeys) {
-            try {
-                //TODO: This should really not be int ...
-                Chunk curChunk = storage.getChunk(streamId, owner, (int) key);
+    private void sendChunks(long streamId, String owner, long chunkIdFrom, long chunkIdTo,
+                            StreamObserver<chunk> responseObserver) {
+        ChunkRangeReader.read(storage, streamId, owner, chunkIdFrom, chunkIdTo, new ChunkRangeReader.ChunkConsumer() {
+            @Override
+            public boolean onChunk(long key, Chunk curChunk) {
                 if (curChunk == null) {
                     String msg = "Could not find any chunks data for the given request {streamId " + streamId +
                             " owner " + owner + " from " + chunkIdFrom + " to " + chunkIdTo + "}";
@@ -311,26 +460,36 @@ public class TimeCryptGRPCServer extends TimecryptGrpc.TimecryptImplBase {
                     responseObserver.onError(Status.INVALID_ARGUMENT
                             .withDescription(msg)
                             .asRuntimeException());
+                    return false;
                 }
                 responseObserver.onNext(chunk.newBuilder()
                         .setChunkId(chunkId.newBuilder().setId(key).build())
                         .setStreamId(ch.ethz.dsg.timecrypt.protocol.streamId.newBuilder().setStreamId(streamId).build())
-                        .setChunkContent(ByteString.copyFrom(curChunk.getData()))
+                        .setChunkContent(UnsafeByteOperations.unsafeWrap(curChunk.getBuffer()))
                         .build());
-            } catch (TimeCryptStorageException e) {
+                return true;
+            }
+
+            @Override
+            public void onError(long nextKey, Throwable error) {
                 String msg = "Exception caught - while processing chunks of get chunk request {uid "
                         + streamId + " owner " + owner + " from " + chunkIdFrom + " to " + chunkIdTo + "}";
-                LOGGER.error(msg, e);
-                responseObserver.onError(Status.INTERNAL
+                LOGGER.error(msg, error);
+                Status status = (error instanceof TimeCryptStorageException)
+                        ? storageErrorStatus((TimeCryptStorageException) error) : Status.INTERNAL;
+                responseObserver.onError(status
                         .withDescription(msg)
-                        .withCause(e)
+                        .withCause(error)
                         .asRuntimeException());
-                return;
             }
-        }
-        responseObserver.onCompleted();
-        LOGGER.info("finished sending chunks of get chunk request {uid " + streamId + " owner " + owner +
-                " from " + chunkIdFrom + " to " + chunkIdTo + "}");
+
+            @Override
+            public void onCompleted() {
+                responseObserver.onCompleted();
+                LOGGER.info("finished sending chunks of get chunk request {uid " + streamId + " owner " + owner +
+                        " from " + chunkIdFrom + " to " + chunkIdTo + "}");
+            }
+        });
     }
 
     @Override
@@ -340,8 +499,26 @@ public class TimeCryptGRPCServer extends TimecryptGrpc.TimecryptImplBase {
 
         String owner = GrpcAuthConstants.USER_INFO_KEY.get();
         long streamId = request.getStreamId().getStreamId();
+        long chunkIdTo = request.getEnd().getId();
 
-        UserStreamTree userTree = treeManager.getTreeForUser(streamId, owner);
+        // the response is completed from the callbacks of the tree lookup and of the aggregation
+        treeManager.getTreeForUserAsync(streamId, owner, (int) chunkIdTo).whenComplete((userTree, throwable) -> {
+            if (throwable != null) {
+                String msg = "Could not get stream tree with id " + streamId + " for owner: " + owner;
+                LOGGER.error(msg);
+                responseObserver.onError(Status.NOT_FOUND
+                        .withDescription(msg)
+                        .withCause(unwrap(throwable))
+                        .asRuntimeException());
+                return;
+            }
+            answerStatisticalData(request, owner, userTree, responseObserver);
+        });
+    }
+
+    private void answerStatisticalData(statisticRequestMessage request, String owner, UserStreamTree userTree,
+                                       StreamObserver<digest> responseObserver) {
+        long streamId = request.getStreamId().getStreamId();
         long maxChunkId = userTree.getTree().getLastWrittenChunk();
 
         long chunkIdFrom = request.getStart().getId();
@@ -441,14 +618,30 @@ public class TimeCryptGRPCServer extends TimecryptGrpc.TimecryptImplBase {
             ids[i] = id;
         }
 
+        userTree.getTree().getAggregationSeriesAsync(chunkIdFrom, chunkIdTo, granularity, ids)
+                .whenComplete((series, throwable) -> {
+                    if (throwable != null) {
+                        String msg = "Exception caught - while processing node content of statistic request {uid "
+                                + streamId + " owner " + owner + " from " + chunkIdFrom + " to " + chunkIdTo
+                                + " granularity " + granularity + " ids " + Arrays.toString(ids) + " }";
+                        Throwable e = unwrap(throwable);
+                        LOGGER.error(msg, e);
+                        responseObserver.onError(Status.INTERNAL
+                                .withDescription(msg)
+                                .withCause(e)
+                                .asRuntimeException());
+                        return;
+                    }
+                    sendDigests(streamId, owner, chunkIdFrom, chunkIdTo, granularity, ids, series, responseObserver);
+                });
+    }
+
+    private void sendDigests(long streamId, String owner, long chunkIdFrom, long chunkIdTo, long granularity,
+                             int[] ids, List<NodeContent[]> series, StreamObserver<digest> responseObserver) {
         long fromIter = chunkIdFrom;
         long toIter = chunkIdFrom + granularity;
-        userTree = treeManager.getTreeForUser(streamId, owner, (int) chunkIdTo);
-
-        NodeContent[] content;
-        while (toIter <= chunkIdTo) {
+        for (NodeContent[] content : series) {
             try {
-                content = userTree.getTree().getAggregation(fromIter, toIter, ids);
                 if (content == null) {
                     String msg = "Could not find any statistics data for the given request {uid " + streamId +
                             " owner " + owner + " from " + chunkIdFrom + " to " + chunkIdTo + " granularity " +
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+package ch.ethz.dsg.timecrypt.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The JDK 21 version of VirtualThreads, it is packaged as a multi-release class.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * @return an executor that starts a virtual thread per task
+     */
+    public static ExecutorService newThreadPerTaskExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("timecrypt-virtual-", 0).factory());
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The benchmarks take long and only log their results, so they are skipped unless the tests run with
+ * -Dtimecrypt.benchmark=true.
+ */
+final class Benchmarks {
+
+    static final String PROPERTY = "timecrypt.benchmark";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Benchmarks.class);
+
+    private Benchmarks() {
+    }
+
+    static void assumeEnabled() {
+        boolean enabled = Boolean.getBoolean(PROPERTY);
+        if (!enabled)
+            LOGGER.info("Skipping a benchmark, run it with -D" + PROPERTY + "=true");
+        assumeTrue(enabled);
+    }
+}
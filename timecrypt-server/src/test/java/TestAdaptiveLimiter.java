@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.db.AdaptiveLimiter;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptOverloadedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestAdaptiveLimiter {
+
+    private static final int CAPACITY = 8;
+    private static final long SERVICE_MICROS = 5000;
+    private static final double CAPACITY_PER_SECOND = CAPACITY * 1e6 / SERVICE_MICROS;
+
+    private ScheduledExecutorService timer;
+
+    /**
+     * Stands in for the cassandra session: serves a fixed number of requests at a time, the others wait in an
+     * unbounded queue, so the latency grows with the requests in flight.
+     */
+    private static class SlowSession {
+        private final ScheduledExecutorService timer;
+        private final Deque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+        private int busy = 0;
+        private int inFlight = 0;
+        private int maxInFlight = 0;
+
+        SlowSession(ScheduledExecutorService timer) {
+            this.timer = timer;
+        }
+
+        synchronized CompletionStage<Void> execute() {
+            CompletableFuture<Void> res = new CompletableFuture<>();
+            inFlight++;
+            maxInFlight = Math.max(maxInFlight, inFlight);
+            if (busy < CAPACITY) {
+                busy++;
+                serve(res);
+            } else {
+                waiting.addLast(res);
+            }
+            return res;
+        }
+
+        private void serve(CompletableFuture<Void> request) {
+            timer.schedule(() -> {
+                CompletableFuture<Void> next;
+                synchronized (this) {
+                    inFlight--;
+                    next = waiting.pollFirst();
+                    if (next == null)
+                        busy--;
+                }
+                if (next != null)
+                    serve(next);
+                request.complete(null);
+            }, SERVICE_MICROS, TimeUnit.MICROSECONDS);
+        }
+
+        synchronized int getMaxInFlight() {
+            return maxInFlight;
+        }
+    }
+
+    private static class Result {
+        int completed = 0;
+        int rejected = 0;
+        long elapsedNanos = 0;
+        List<Long> latencies = new ArrayList<>();
+
+        long percentile(int p) {
+            Collections.sort(latencies);
+            return latencies.isEmpty() ? 0 : latencies.get(Math.min(latencies.size() - 1, latencies.size() * p / 100));
+        }
+    }
+
+    @Before
+    public void setUp() {
+        timer = Executors.newScheduledThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Offers the load for the duration, spread over the streams, and waits for the answers.
+     */
+    private Result offer(AdaptiveLimiter limiter, SlowSession session, double perSecond, int numStreams,
+                         long durationMillis) throws Exception {
+        Result result = new Result();
+        List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger sent = new AtomicInteger(0);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        ScheduledFuture<?> generator = timer.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            if (now > end)
+                return;
+            long due = (long) ((now - start) / 1e9 * perSecond);
+            while (sent.get() < due) {
+                int request = sent.getAndIncrement();
+                long submitted = System.nanoTime();
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                futures.add(future);
+                limiter.submit(request % numStreams, session::execute).whenComplete((res, throwable) -> {
+                    synchronized (result) {
+                        if (throwable != null) {
+                            assertTrue(throwable instanceof TimeCryptOverloadedException);
+                            result.rejected++;
+                        } else {
+                            result.completed++;
+                            result.latencies.add(System.nanoTime() - submitted);
+                        }
+                    }
+                    future.complete(null);
+                });
+            }
+        }, 0, 1, TimeUnit.MILLISECONDS);
+        Thread.sleep(durationMillis);
+        generator.cancel(false);
+        Thread.sleep(10);
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    @Test
+    public void testRequestsAreLimitedAndShed() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(4, 4, 4, 2, 100);
+        List<CompletableFuture<Void>> blocked = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            CompletableFuture<Void> request = new CompletableFuture<>();
+            blocked.add(request);
+            limiter.submit("stream", () -> request);
+        }
+        assertEquals(4, limiter.getInFlight());
+
+        AtomicInteger started = new AtomicInteger(0);
+        List<CompletableFuture<Void>> queued = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            queued.add(limiter.submit("stream", () -> {
+                started.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }));
+        }
+        assertEquals(0, started.get());
+        assertEquals(2, limiter.getQueued());
+
+        // the queue of the stream is full, other streams still have room
+        CompletableFuture<Void> shed = limiter.submit("stream", () -> CompletableFuture.completedFuture(null));
+        try {
+            shed.get();
+            throw new AssertionError("The request should be shed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeCryptOverloadedException);
+        }
+        CompletableFuture<Void> other = limiter.submit("other", () -> CompletableFuture.completedFuture(null));
+
+        for (CompletableFuture<Void> request : blocked) {
+            request.complete(null);
+        }
+        CompletableFuture.allOf(queued.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.SECONDS);
+        other.get(1, TimeUnit.SECONDS);
+        assertEquals(2, started.get());
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getQueued());
+    }
+
+    @Test
+    public void testStreamsAreServedRoundRobin() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1, 100, 1000);
+        CompletableFuture<Void> blocker = new CompletableFuture<>();
+        limiter.submit("busy", () -> blocker);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(limiter.submit("busy", () -> {
+                order.add("busy");
+                return CompletableFuture.completedFuture(null);
+            }));
+        }
+        futures.add(limiter.submit("quiet", () -> {
+            order.add("quiet");
+            return CompletableFuture.completedFuture(null);
+        }));
+        blocker.complete(null);
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.SECONDS);
+        // the quiet stream does not wait behind the whole queue of the busy one
+        assertEquals("quiet", order.get(1));
+    }
+
+    @Test
+    public void testLatencyStaysBoundedUnderOverload() throws Exception {
+        SlowSession session = new SlowSession(timer);
+        AdaptiveLimiter limiter = new AdaptiveLimiter(CAPACITY * 2, 1, 1024, 16, 1024);
+        int numStreams = 64;
+        double[] loads = new double[]{0.5, 1, 2, 5, 10};
+        double[] goodput = new double[loads.length];
+        long[] p99 = new long[loads.length];
+        for (int i = 0; i < loads.length; i++) {
+            long durationMillis = 1500;
+            Result result = offer(limiter, session, loads[i] * CAPACITY_PER_SECOND, numStreams, durationMillis);
+            goodput[i] = result.completed / (result.elapsedNanos / 1e9);
+            p99[i] = result.percentile(99);
+            System.out.format("offered %4.1fx: %6.0f ok/s, %6d shed, p50 %6.1f ms, p99 %6.1f ms, limit %d%n",
+                    loads[i], goodput[i], result.rejected, result.percentile(50) / 1e6, p99[i] / 1e6,
+                    limiter.getLimit());
+        }
+        System.out.format("most requests in flight at the session: %d%n", session.getMaxInFlight());
+
+        // the storage stays busy
+        assertTrue(goodput[loads.length - 1] > 0.7 * CAPACITY_PER_SECOND);
+        // the limit stays near the capacity of the session instead of growing with the offered load
+        assertTrue("limit " + limiter.getLimit(), limiter.getLimit() < 8 * CAPACITY);
+        // the latency is bounded by the queues of the limiter: 1024 requests at the capacity of the session
+        long queueBound = (long) (1024 / CAPACITY_PER_SECOND * 1e9);
+        assertTrue("p99 " + p99[loads.length - 1], p99[loads.length - 1] < 2 * queueBound);
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+import ch.ethz.dsg.timecrypt.db.debug.DebugStorage;
+import ch.ethz.dsg.timecrypt.index.Chunk;
+import ch.ethz.dsg.timecrypt.index.IStorage;
+import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
+import ch.ethz.dsg.timecrypt.index.blockindex.DebugBlockTreeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.INodeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.UpdateSummary;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+import ch.ethz.dsg.timecrypt.server.ChunkRangeReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestAsyncQueries {
+
+    private static final long LOAD_MICROS = 1000;
+
+    private ScheduledExecutorService timer;
+
+    /**
+     * Stands in for a node manager on a remote storage: every load takes a round trip. The synchronous loads sleep,
+     * the asynchronous ones complete from a timer thread.
+     */
+    private static class SlowNodeManager implements INodeManager {
+        private final INodeManager delegate;
+        private final ScheduledExecutorService timer;
+        private final AtomicInteger loads = new AtomicInteger(0);
+
+        SlowNodeManager(INodeManager delegate, ScheduledExecutorService timer) {
+            this.delegate = delegate;
+            this.timer = timer;
+        }
+
+        private static void roundTrip() throws InterruptedException {
+            TimeUnit.MICROSECONDS.sleep(LOAD_MICROS);
+        }
+
+        @Override
+        public BlockNode loadNode(long id) throws Exception {
+            loads.incrementAndGet();
+            roundTrip();
+            return delegate.loadNode(id);
+        }
+
+        @Override
+        public BlockNode loadNodeWithMinVersion(long blockid, int version) throws Exception {
+            loads.incrementAndGet();
+            roundTrip();
+            return delegate.loadNodeWithMinVersion(blockid, version);
+        }
+
+        @Override
+        public CompletionStage<BlockNode> loadNodeWithMinVersionAsync(long blockid, int version) {
+            loads.incrementAndGet();
+            CompletableFuture<BlockNode> res = new CompletableFuture<>();
+            timer.schedule(() -> {
+                try {
+                    res.complete(delegate.loadNodeWithMinVersion(blockid, version));
+                } catch (Exception e) {
+                    res.completeExceptionally(e);
+                }
+            }, LOAD_MICROS, TimeUnit.MICROSECONDS);
+            return res;
+        }
+
+        @Override
+        public void pushUpdates(UpdateSummary summary) throws Exception {
+            delegate.pushUpdates(summary);
+        }
+
+        @Override
+        public void writeNodes(List<BlockNode> nodes) throws Exception {
+            delegate.writeNodes(nodes);
+        }
+
+        @Override
+        public void updateToLatest(BlockTree tree) throws Exception {
+            delegate.updateToLatest(tree);
+        }
+
+        @Override
+        public BlockNode loadNodeWithVersionForInsert(long blockid, int version) throws Exception {
+            return delegate.loadNodeWithVersionForInsert(blockid, version);
+        }
+
+        @Override
+        public void updateToLatest(BlockTree tree, int minVersion) throws Exception {
+            delegate.updateToLatest(tree, minVersion);
+        }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitNodeVersion(long blockid, int minVersion) {
+            return delegate.awaitNodeVersion(blockid, minVersion);
+        }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitTreeVersion(int minVersion) {
+            return delegate.awaitTreeVersion(minVersion);
+        }
+    }
+
+    /**
+     * A storage that answers the asynchronous reads after a round trip.
+     */
+    private static class SlowStorage extends DebugStorage {
+        private final ScheduledExecutorService timer;
+
+        SlowStorage(ScheduledExecutorService timer) {
+            this.timer = timer;
+        }
+
+        @Override
+        public CompletionStage<List<Chunk>> getChunksAsync(long uid, String owner, int fromChunk, int toChunk) {
+            CompletableFuture<List<Chunk>> res = new CompletableFuture<>();
+            timer.schedule(() -> super.getChunksAsync(uid, owner, fromChunk, toChunk).whenComplete((chunks, e) -> {
+                if (e != null)
+                    res.completeExceptionally(e);
+                else
+                    res.complete(chunks);
+            }), LOAD_MICROS, TimeUnit.MICROSECONDS);
+            return res;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        timer = Executors.newScheduledThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    private static BlockTree buildTree(int k, int numLeaves, int numSlots, long seed) throws Exception {
+        Random rand = new Random(seed);
+        DebugBlockTreeManager man = new DebugBlockTreeManager();
+        BlockTree tree = man.createTree(1, "1", k, 1);
+        for (int i = 0; i < numLeaves; i++) {
+            NodeContent[] content = new NodeContent[numSlots];
+            for (int slot = 0; slot < numSlots; slot++) {
+                content[slot] = new LongNodeContent(rand.nextLong());
+            }
+            tree.insert(i, content, i, i + 1);
+            tree.updateToLatest();
+        }
+        return tree;
+    }
+
+    private static void assertSameContent(NodeContent[] expected, NodeContent[] actual, int[] ids) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        for (int id : ids) {
+            assertArrayEquals(expected[id].encode(), actual[id].encode());
+        }
+    }
+
+    @Test
+    public void testAsyncAggregationMatchesSync() throws Exception {
+        int numLeaves = 3000;
+        BlockTree tree = buildTree(4, numLeaves, 3, 7);
+        BlockTree slow = new BlockTree(tree.k, tree.root, new SlowNodeManager(tree.man, timer));
+        int[] ids = new int[]{0, 2};
+        Random rand = new Random(3);
+        for (int i = 0; i < 300; i++) {
+            int from = rand.nextInt(numLeaves - 1);
+            int to = from + 1 + rand.nextInt(numLeaves - from);
+            NodeContent[] expected = tree.getAggregation(from, to, ids);
+            assertSameContent(expected, tree.getAggregationAsync(from, to, ids).toCompletableFuture().get(), ids);
+            if (i % 10 == 0)
+                assertSameContent(expected, slow.getAggregationAsync(from, to, ids).toCompletableFuture().get(), ids);
+
+            int granularity = 1 + rand.nextInt(200);
+            List<NodeContent[]> series = tree.getAggregationSeries(from, to, granularity, ids);
+            List<NodeContent[]> seriesAsync = (i % 10 == 0)
+                    ? slow.getAggregationSeriesAsync(from, to, granularity, ids).toCompletableFuture().get()
+                    : tree.getAggregationSeriesAsync(from, to, granularity, ids).toCompletableFuture().get();
+            assertEquals(series.size(), seriesAsync.size());
+            for (int window = 0; window < series.size(); window++) {
+                assertSameContent(series.get(window), seriesAsync.get(window), ids);
+            }
+        }
+        // ranges past the last chunk are cut to the tree
+        assertSameContent(tree.getAggregation(10, numLeaves + 10, ids),
+                tree.getAggregationAsync(10, numLeaves + 10, ids).toCompletableFuture().get(), ids);
+    }
+
+    @Test
+    public void benchmarkRangeQueryLatency() throws Exception {
+        int k = 4, numLeaves = 4 * 4 * 4 * 4 * 4 * 4 * 4;
+        BlockTree tree = buildTree(k, numLeaves, 3, 11);
+        SlowNodeManager man = new SlowNodeManager(tree.man, timer);
+        BlockTree slow = new BlockTree(tree.k, tree.root, man);
+        int[] ids = new int[]{0, 1, 2};
+        int numQueries = 200;
+
+        Random rand = new Random(5);
+        int[][] ranges = new int[numQueries][];
+        for (int i = 0; i < numQueries; i++) {
+            int from = rand.nextInt(numLeaves - 1);
+            ranges[i] = new int[]{from, from + 1 + rand.nextInt(numLeaves - from)};
+        }
+
+        List<Long> syncLatencies = new ArrayList<>();
+        man.loads.set(0);
+        for (int[] range : ranges) {
+            long start = System.nanoTime();
+            slow.getAggregation(range[0], range[1], ids);
+            syncLatencies.add(System.nanoTime() - start);
+        }
+        int syncLoads = man.loads.get();
+
+        List<Long> asyncLatencies = new ArrayList<>();
+        man.loads.set(0);
+        for (int[] range : ranges) {
+            long start = System.nanoTime();
+            slow.getAggregationAsync(range[0], range[1], ids).toCompletableFuture().get();
+            asyncLatencies.add(System.nanoTime() - start);
+        }
+        int asyncLoads = man.loads.get();
+
+        Collections.sort(syncLatencies);
+        Collections.sort(asyncLatencies);
+        long syncMedian = syncLatencies.get(numQueries / 2), asyncMedian = asyncLatencies.get(numQueries / 2);
+        System.out.format("%d us per load, %d leaves: median %.2f ms (%d loads) sync, %.2f ms (%d loads) async%n",
+                LOAD_MICROS, numLeaves, syncMedian / 1e6, syncLoads, asyncMedian / 1e6, asyncLoads);
+        // the loads of both border paths are issued at once instead of one after the other
+        assertTrue(asyncMedian * 2 < syncMedian);
+        assertTrue(asyncLoads <= syncLoads);
+    }
+
+    private static class Collected {
+        final List<Long> keys = Collections.synchronizedList(new ArrayList<>());
+        final List<Chunk> chunks = Collections.synchronizedList(new ArrayList<>());
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final AtomicReference<Long> errorAt = new AtomicReference<>();
+    }
+
+    private static Collected read(IStorage storage, long from, long to, int window) throws Exception {
+        Collected collected = new Collected();
+        ChunkRangeReader.read(storage, 1, "1", from, to, window, new ChunkRangeReader.ChunkConsumer() {
+            @Override
+            public boolean onChunk(long key, Chunk chunk) {
+                collected.keys.add(key);
+                collected.chunks.add(chunk);
+                return true;
+            }
+
+            @Override
+            public void onError(long nextKey, Throwable error) {
+                collected.errorAt.set(nextKey);
+                collected.done.complete(null);
+            }
+
+            @Override
+            public void onCompleted() {
+                collected.done.complete(null);
+            }
+        });
+        collected.done.get(30, TimeUnit.SECONDS);
+        return collected;
+    }
+
+    @Test
+    public void testChunkRangeReaderHandsOverEveryKey() throws Exception {
+        int numChunks = 5000;
+        SlowStorage slow = new SlowStorage(timer);
+        DebugStorage fast = new DebugStorage();
+        for (int key = 0; key < numChunks; key++) {
+            // every 7th chunk is missing
+            if (key % 7 == 3)
+                continue;
+            Chunk chunk = new Chunk(key, new byte[]{(byte) key, (byte) (key >> 8)});
+            slow.putChunk(1, "1", chunk);
+            fast.putChunk(1, "1", chunk);
+        }
+
+        for (IStorage storage : new IStorage[]{slow, fast}) {
+            Collected collected = read(storage, 10, numChunks + 20, 128);
+            assertNull(collected.errorAt.get());
+            assertEquals(numChunks + 10, collected.keys.size());
+            for (int i = 0; i < collected.keys.size(); i++) {
+                long key = 10 + i;
+                assertEquals(key, (long) collected.keys.get(i));
+                Chunk chunk = collected.chunks.get(i);
+                if (key % 7 == 3 || key >= numChunks) {
+                    assertNull(chunk);
+                } else {
+                    assertEquals(key, chunk.getStorageKey());
+                    assertArrayEquals(new byte[]{(byte) key, (byte) (key >> 8)}, chunk.getData());
+                }
+            }
+        }
+
+        // a storage that answers synchronously is read in a loop, not in a recursion per window
+        assertEquals(numChunks, read(fast, 0, numChunks, 1).keys.size());
+    }
+}
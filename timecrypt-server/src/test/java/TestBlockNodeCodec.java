@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.crypto.BigintMacNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.BigintNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.LongMacNodeNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNodeCodec;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNodeView;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.MetaInnerNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+import org.junit.After;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestBlockNodeCodec {
+
+    private static BlockNode node(int k, int slots, int present, Function<Random, NodeContent> content, Random rand) {
+        MetaInnerNode[] children = new MetaInnerNode[k];
+        for (int i = 0; i < present; i++) {
+            NodeContent[] contents = new NodeContent[slots];
+            for (int slot = 0; slot < slots; slot++) {
+                contents[slot] = content.apply(rand);
+            }
+            children[i] = new MetaInnerNode(contents);
+        }
+        return new BlockNode(1, 0, k, children);
+    }
+
+    private static BigInteger value(Random rand, int bits) {
+        return new BigInteger(bits, rand);
+    }
+
+    private static Function<Random, NodeContent> longs() {
+        return rand -> new LongNodeContent(rand.nextLong());
+    }
+
+    private static Function<Random, NodeContent> bigints(int bits) {
+        return rand -> new BigintNodeContent(value(rand, bits));
+    }
+
+    private static Function<Random, NodeContent> longsWithMac() {
+        return rand -> new LongMacNodeNodeContent(rand.nextLong(), value(rand, 128));
+    }
+
+    private static Function<Random, NodeContent> bigintsWithMac() {
+        return rand -> new BigintMacNodeContent(value(rand, 128), value(rand, 128));
+    }
+
+    private static void assertSameContents(NodeContent[] expected, NodeContent[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].getClass(), actual[i].getClass());
+            assertEquals(expected[i].getStringRepresentation(), actual[i].getStringRepresentation());
+            if (expected[i] instanceof BigintMacNodeContent)
+                assertEquals(((BigintMacNodeContent) expected[i]).getMac(), ((BigintMacNodeContent) actual[i]).getMac());
+            if (expected[i] instanceof LongMacNodeNodeContent)
+                assertEquals(((LongMacNodeNodeContent) expected[i]).getMac(),
+                        ((LongMacNodeNodeContent) actual[i]).getMac());
+        }
+    }
+
+    private static void assertSameChildren(MetaInnerNode[] expected, MetaInnerNode[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] == null)
+                assertNull(actual[i]);
+            else
+                assertSameContents(expected[i].metaInformation, actual[i].metaInformation);
+        }
+    }
+
+    @After
+    public void enable() {
+        BlockNodeCodec.setEnabled(true);
+    }
+
+    private static void assertRoundTrip(BlockNode node) throws Exception {
+        byte[] data = node.encodeContent();
+        assertTrue(BlockNodeCodec.isBinary(data));
+        assertSameChildren(node.getChildren(), BlockNode.decodeNodeContent(data));
+
+        // from a buffer that starts within a larger array
+        ByteBuffer buffer = ByteBuffer.allocate(data.length + 10);
+        buffer.position(7);
+        buffer.put(data).flip().position(7);
+        assertSameChildren(node.getChildren(), BlockNode.decodeNodeContent(buffer));
+        assertEquals(7, buffer.position());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Random rand = new Random(1);
+        assertRoundTrip(node(8, 3, 8, longs(), rand));
+        assertRoundTrip(node(16, 4, 5, longsWithMac(), rand));
+        assertRoundTrip(node(13, 2, 13, bigints(128), rand));
+        assertRoundTrip(node(64, 10, 33, bigintsWithMac(), rand));
+        assertRoundTrip(node(4, 2, 0, longs(), rand));
+
+        // a gap and the largest values
+        MetaInnerNode[] children = node(9, 1, 9, bigints(128), rand).getChildren();
+        children[3] = null;
+        children[8] = new MetaInnerNode(new NodeContent[]{
+                new BigintNodeContent(BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE))});
+        children[0] = new MetaInnerNode(new NodeContent[]{new BigintNodeContent(BigInteger.ZERO)});
+        assertRoundTrip(new BlockNode(1, 0, 9, children));
+    }
+
+    @Test
+    public void testReadsTheProtobufFormat() throws Exception {
+        Random rand = new Random(2);
+        BlockNodeCodec.setEnabled(false);
+        BlockNode node = node(8, 3, 6, longs(), rand);
+        BlockNode withMac = node(8, 2, 8, longsWithMac(), rand);
+        byte[] data = node.encodeContent();
+        byte[] withMacData = withMac.encodeContent();
+        assertFalse(BlockNodeCodec.isBinary(data));
+        BlockNodeCodec.setEnabled(true);
+        assertSameChildren(node.getChildren(), BlockNode.decodeNodeContent(data));
+        assertSameChildren(node.getChildren(), BlockNode.decodeNodeContent(ByteBuffer.wrap(data)));
+        assertSameChildren(withMac.getChildren(), BlockNode.decodeNodeContent(withMacData));
+    }
+
+    @Test
+    public void testFallsBackToProtobuf() throws Exception {
+        Random rand = new Random(3);
+        MetaInnerNode[] mixed = node(4, 1, 2, longs(), rand).getChildren();
+        mixed[1] = new MetaInnerNode(new NodeContent[]{new BigintNodeContent(BigInteger.ONE)});
+        assertNull(BlockNodeCodec.encode(mixed));
+    }
+
+    private static void assertAggregatesLikeTheNode(BlockNode node) {
+        BlockNodeView view = new BlockNodeView(ByteBuffer.wrap(node.encodeContent()));
+        assertSameContents(node.getAggregatedNodeContent(), view.aggregate(0, view.getK()));
+        MetaInnerNode[] children = node.getChildren();
+        for (int from = 0; from < view.getK(); from += 3) {
+            int to = Math.min(view.getK(), from + 5);
+            NodeContent[] expected = null;
+            for (int i = from; i < to; i++) {
+                if (children[i] == null)
+                    continue;
+                if (expected == null) {
+                    expected = new NodeContent[children[i].metaInformation.length];
+                    for (int slot = 0; slot < expected.length; slot++)
+                        expected[slot] = children[i].metaInformation[slot].copy();
+                } else {
+                    for (int slot = 0; slot < expected.length; slot++)
+                        expected[slot].mergeOther(children[i].metaInformation[slot]);
+                }
+            }
+            if (expected == null)
+                assertNull(view.aggregate(from, to));
+            else
+                assertSameContents(expected, view.aggregate(from, to));
+        }
+    }
+
+    @Test
+    public void testAggregatesFromTheBytes() {
+        Random rand = new Random(4);
+        assertAggregatesLikeTheNode(node(16, 3, 11, longs(), rand));
+        assertAggregatesLikeTheNode(node(16, 2, 16, longsWithMac(), rand));
+        assertAggregatesLikeTheNode(node(32, 3, 20, bigints(128), rand));
+        assertAggregatesLikeTheNode(node(64, 4, 64, bigintsWithMac(), rand));
+
+        // carries into the high word and wraps around 2^128
+        BigInteger max = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+        BlockNode node = node(8, 1, 8, rand1 -> new BigintNodeContent(max), rand);
+        assertAggregatesLikeTheNode(node);
+        BlockNodeView view = new BlockNodeView(ByteBuffer.wrap(node.encodeContent()));
+        assertEquals(max.multiply(BigInteger.valueOf(8)).mod(BigInteger.ONE.shiftLeft(128)),
+                ((BigintNodeContent) view.aggregate(0, 8)[0]).getContent());
+        BigInteger maxLow = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        BlockNode low = node(8, 1, 8, rand1 -> new BigintNodeContent(maxLow), rand);
+        assertAggregatesLikeTheNode(low);
+
+        long[] acc = new long[3];
+        BlockNode longs = node(16, 3, 10, longs(), rand);
+        new BlockNodeView(ByteBuffer.wrap(longs.encodeContent())).sumLongs(0, 16, acc);
+        NodeContent[] expected = longs.getAggregatedNodeContent();
+        for (int slot = 0; slot < acc.length; slot++)
+            assertEquals(((LongNodeContent) expected[slot]).getLong(), acc[slot]);
+    }
+
+    private static double perSecond(int ops, long start) {
+        return ops / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static void benchmark(String name, BlockNode node, int iterations) throws Exception {
+        long sink = 0;
+        double[] res = new double[6];
+        for (int round = 0; round < 3; round++) {
+            for (int binary = 0; binary < 2; binary++) {
+                BlockNodeCodec.setEnabled(binary == 1);
+                long start = System.nanoTime();
+                byte[] data = null;
+                for (int i = 0; i < iterations; i++) {
+                    data = node.encodeContent();
+                    sink += data.length;
+                }
+                res[binary * 3] = perSecond(iterations, start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    sink += BlockNode.decodeNodeContent(data).length;
+                }
+                res[binary * 3 + 1] = perSecond(iterations, start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    NodeContent[] sum = (binary == 1)
+                            ? new BlockNodeView(ByteBuffer.wrap(data)).aggregate(0, node.getK())
+                            : new BlockNode(1, node.from, node.to, BlockNode.decodeNodeContent(data))
+                            .getAggregatedNodeContent();
+                    sink += sum.length;
+                }
+                res[binary * 3 + 2] = perSecond(iterations, start);
+                if (round == 2)
+                    System.out.format("%s %s: %d bytes, encode %.0f/s, decode %.0f/s, aggregate %.0f/s%n", name,
+                            (binary == 1) ? "binary  " : "protobuf", data.length, res[binary * 3],
+                            res[binary * 3 + 1], res[binary * 3 + 2]);
+            }
+        }
+        assertTrue(sink > 0);
+    }
+
+    @Test
+    public void benchmarkEncodeDecodeAggregate() throws Exception {
+        Random rand = new Random(5);
+        benchmark("k=16, 4 longs", node(16, 4, 16, longs(), rand), 20000);
+        benchmark("k=64, 4 longs with mac", node(64, 4, 64, longsWithMac(), rand), 2000);
+        benchmark("k=64, 10 bigints with mac", node(64, 10, 64, bigintsWithMac(), rand), 1000);
+    }
+}
@@ -0,0 +1,705 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.crypto.BigintMacNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.BigintNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.LongMacNodeNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
+import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
+import ch.ethz.dsg.timecrypt.index.blockindex.DebugBlockTreeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.INodeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.InMemoryCacheBlockTreeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.UpdateSummary;
+import ch.ethz.dsg.timecrypt.index.blockindex.VersionWaiters;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.MetaInnerNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestBlockTree {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestBlockTree.class);
+
+    private static final int BENCH_K = 64;
+    private static final int BENCH_LEAVES = 64 * 64 * 4;
+    private static final int BENCH_QUERIES = 20000;
+
+    private static NodeContent[] createContent(Random rand, int numSlots) {
+        NodeContent[] res = new NodeContent[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            res[i] = new LongNodeContent(rand.nextLong());
+        }
+        return res;
+    }
+
+    private static BlockTree buildTree(int k, int numLeaves, int numSlots, long seed) throws Exception {
+        return buildTree(k, numLeaves, numSlots, seed, tree -> {
+        });
+    }
+
+    /**
+     * @param options sets the options of the tree before the first insert
+     */
+    private static BlockTree buildTree(int k, int numLeaves, int numSlots, long seed, Consumer<BlockTree> options)
+            throws Exception {
+        return buildTree(k, numLeaves, seed, rand -> createContent(rand, numSlots), options);
+    }
+
+    private static BlockTree buildTree(int k, int numLeaves, long seed, Function<Random, NodeContent[]> contents,
+                                       Consumer<BlockTree> options) throws Exception {
+        Random rand = new Random(seed);
+        DebugBlockTreeManager man = new DebugBlockTreeManager();
+        BlockTree tree = man.createTree(1, "1", k, 1);
+        options.accept(tree);
+        for (int i = 0; i < numLeaves; i++) {
+            tree.insert(i, contents.apply(rand), i, i + 1);
+            tree.updateToLatest();
+        }
+        return tree;
+    }
+
+    private static long[] generateValues(int numLeaves, int numSlots, long seed) {
+        Random rand = new Random(seed);
+        long[] values = new long[numLeaves * numSlots];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rand.nextLong();
+        }
+        return values;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void testColumnarAggregationSum() throws Exception {
+        int numLeaves = 300, numSlots = 3;
+        long seed = 42;
+        BlockTree tree = buildTree(4, numLeaves, numSlots, seed);
+        long[] values = generateValues(numLeaves, numSlots, seed);
+        assertNotNull(tree.root.getColumns());
+
+        for (int from = 0; from < numLeaves; from += 7) {
+            for (int to = from + 1; to <= numLeaves; to += 5) {
+                NodeContent[] res = tree.getAggregation(from, to);
+                for (int slot = 0; slot < numSlots; slot++) {
+                    long expected = 0;
+                    for (int i = from; i < to; i++) {
+                        expected += values[i * numSlots + slot];
+                    }
+                    assertEquals(expected, ((LongNodeContent) res[slot]).getLong());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testColumnarMatchesObjectLayout() throws Exception {
+        int numLeaves = 1000, numSlots = 5;
+        BlockTree columnar = buildTree(16, numLeaves, numSlots, 7);
+        BlockTree objects = buildTree(16, numLeaves, numSlots, 7, tree -> tree.setColumnarAggregation(false));
+
+        Random rand = new Random(3);
+        int[] ids = new int[]{1, 4};
+        for (int i = 0; i < 2000; i++) {
+            int from = rand.nextInt(numLeaves - 1);
+            int to = from + 1 + rand.nextInt(numLeaves - from);
+            NodeContent[] a = columnar.getAggregation(from, to);
+            NodeContent[] b = objects.getAggregation(from, to);
+            for (int slot = 0; slot < numSlots; slot++) {
+                assertEquals(b[slot].getStringRepresentation(), a[slot].getStringRepresentation());
+            }
+            a = columnar.getAggregation(from, to, ids);
+            b = objects.getAggregation(from, to, ids);
+            for (int id : ids) {
+                assertEquals(b[id].getStringRepresentation(), a[id].getStringRepresentation());
+            }
+        }
+    }
+
+    private static NodeContent[] createMixedContent(Random rand) {
+        return new NodeContent[]{
+                new LongNodeContent(rand.nextLong()),
+                new LongMacNodeNodeContent(rand.nextLong(), new BigInteger(128, rand)),
+                new BigintNodeContent(new BigInteger(128, rand)),
+                new BigintMacNodeContent(new BigInteger(128, rand), new BigInteger(128, rand))};
+    }
+
+    @Test
+    public void testColumnarMatchesObjectLayoutForAllContentTypes() throws Exception {
+        int numLeaves = 1000;
+        BlockTree columnar = buildTree(8, numLeaves, 7, TestBlockTree::createMixedContent, tree -> {
+        });
+        BlockTree objects = buildTree(8, numLeaves, 7, TestBlockTree::createMixedContent,
+                tree -> tree.setColumnarAggregation(false));
+        assertNotNull(columnar.root.getColumns());
+        assertEquals(4, columnar.root.getColumns().getNumSlots());
+        assertEquals(11, columnar.root.getColumns().getNumWords());
+
+        Random rand = new Random(3);
+        int[] ids = new int[]{1, 3};
+        for (int i = 0; i < 2000; i++) {
+            int from = rand.nextInt(numLeaves - 1);
+            int to = from + 1 + rand.nextInt(numLeaves - from);
+            NodeContent[] a = columnar.getAggregation(from, to);
+            NodeContent[] b = objects.getAggregation(from, to);
+            for (int slot = 0; slot < a.length; slot++) {
+                assertEquals(b[slot].getClass(), a[slot].getClass());
+                assertArrayEquals(b[slot].encode(), a[slot].encode());
+            }
+            a = columnar.getAggregation(from, to, ids);
+            b = objects.getAggregation(from, to, ids);
+            for (int id : ids) {
+                assertArrayEquals(b[id].encode(), a[id].encode());
+            }
+        }
+    }
+
+    @Test
+    public void testColumnsRejectUnsupportedContents() {
+        MetaInnerNode[] unknown = new MetaInnerNode[]{new MetaInnerNode(new NodeContent[]{new LongNodeContent(1) {
+        }})};
+        try {
+            new BlockNode(1, 0, 1, unknown);
+            fail("The content type has no column layout");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        MetaInnerNode[] inconsistent = new MetaInnerNode[]{
+                new MetaInnerNode(new NodeContent[]{new LongNodeContent(1)}),
+                new MetaInnerNode(new NodeContent[]{new BigintNodeContent(1, 0)})};
+        try {
+            new BlockNode(1, 0, 2, inconsistent);
+            fail("The children have different schemas");
+        } catch (RuntimeException e) {
+            assertEquals("Merge Failed, inconsistent Node Contents", e.getMessage());
+        }
+    }
+
+    private static double runAggregationBenchmark(String name, BlockTree tree) throws Exception {
+        Random rand = new Random(11);
+        // warm up
+        for (int i = 0; i < BENCH_QUERIES; i++) {
+            int from = rand.nextInt(BENCH_LEAVES - 1);
+            tree.getAggregation(from, from + 1 + rand.nextInt(BENCH_LEAVES - from));
+        }
+        long allocBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCH_QUERIES; i++) {
+            int from = rand.nextInt(BENCH_LEAVES - 1);
+            tree.getAggregation(from, from + 1 + rand.nextInt(BENCH_LEAVES - from));
+        }
+        long time = System.nanoTime() - start;
+        long alloc = allocatedBytes() - allocBefore;
+        double queriesPerSecond = BENCH_QUERIES / (time / 1e9);
+        LOGGER.info(String.format("%s: %.0f queries/s, %d bytes allocated per query", name, queriesPerSecond,
+                alloc / BENCH_QUERIES));
+        return queriesPerSecond;
+    }
+
+    @Test
+    public void benchmarkColumnarAggregation() throws Exception {
+        Benchmarks.assumeEnabled();
+        for (int numSlots : new int[]{3, 10}) {
+            BlockTree columnar = buildTree(BENCH_K, BENCH_LEAVES, numSlots, 1);
+            BlockTree objects = buildTree(BENCH_K, BENCH_LEAVES, numSlots, 1,
+                    tree -> tree.setColumnarAggregation(false));
+            double withObjects = runAggregationBenchmark("k=" + BENCH_K + " slots=" + numSlots + " objects ",
+                    objects);
+            double withColumns = runAggregationBenchmark("k=" + BENCH_K + " slots=" + numSlots + " columnar",
+                    columnar);
+            assertTrue(withColumns > withObjects);
+        }
+        BlockTree columnar = buildTree(BENCH_K, BENCH_LEAVES, 1, TestBlockTree::createMixedContent, tree -> {
+        });
+        BlockTree objects = buildTree(BENCH_K, BENCH_LEAVES, 1, TestBlockTree::createMixedContent,
+                tree -> tree.setColumnarAggregation(false));
+        double withObjects = runAggregationBenchmark("k=" + BENCH_K + " all content types objects ", objects);
+        double withColumns = runAggregationBenchmark("k=" + BENCH_K + " all content types columnar", columnar);
+        assertTrue(withColumns > withObjects);
+    }
+
+    @Test
+    public void testInsertBatchMatchesInsert() throws Exception {
+        int numLeaves = 5000, numSlots = 2, k = 8;
+        BlockTree sequential = buildTree(k, numLeaves, numSlots, 5);
+        CountingNodeManager sequentialCounter = new CountingNodeManager(sequential.man);
+        sequential.setMan(sequentialCounter);
+
+        Random rand = new Random(5);
+        DebugBlockTreeManager man = new DebugBlockTreeManager();
+        BlockTree batched = man.createTree(1, "1", k, 1);
+        CountingNodeManager batchCounter = new CountingNodeManager(batched.man);
+        batched.setMan(batchCounter);
+        Random batchSizes = new Random(9);
+        int inserted = 0;
+        while (inserted < numLeaves) {
+            int size = Math.min(1 + batchSizes.nextInt(700), numLeaves - inserted);
+            List<NodeContent[]> batch = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                batch.add(createContent(rand, numSlots));
+            }
+            batched.insertBatch(inserted, batch);
+            batched.updateToLatest();
+            inserted += size;
+        }
+        assertEquals(numLeaves, batched.getLeavesCount());
+
+        Random queries = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            int from = queries.nextInt(numLeaves - 1);
+            int to = from + 1 + queries.nextInt(numLeaves - from);
+            NodeContent[] a = sequential.getAggregation(from, to);
+            NodeContent[] b = batched.getAggregation(from, to);
+            for (int slot = 0; slot < numSlots; slot++) {
+                assertEquals(a[slot].getStringRepresentation(), b[slot].getStringRepresentation());
+            }
+        }
+
+        // one more backfill of 4096 chunks on both trees
+        List<NodeContent[]> backfill = new ArrayList<>();
+        for (int i = 0; i < 4096; i++) {
+            backfill.add(createContent(rand, numSlots));
+        }
+        sequentialCounter.nodeWrites = 0;
+        for (int i = 0; i < backfill.size(); i++) {
+            sequential.insert(numLeaves + i, backfill.get(i), numLeaves + i, numLeaves + i + 1);
+        }
+        batchCounter.nodeWrites = 0;
+        batched.insertBatch(numLeaves, backfill);
+        LOGGER.info(String.format("Backfill of %d chunks: %d node writes with insert, %d node writes with insertBatch",
+                backfill.size(), sequentialCounter.nodeWrites, batchCounter.nodeWrites));
+        assertTrue(batchCounter.nodeWrites < sequentialCounter.nodeWrites / k);
+        assertEquals(sequential.getAggregation(0, numLeaves + backfill.size())[0].getStringRepresentation(),
+                batched.getAggregation(0, numLeaves + backfill.size())[0].getStringRepresentation());
+    }
+
+    /**
+     * Loads the same leaves with insert and with buildFrom and compares the aggregations of the two trees.
+     */
+    private static void assertBuildFromMatchesInsert(int numLeaves, int k) throws Exception {
+        int numSlots = 2;
+        long start = System.nanoTime();
+        BlockTree inserted = buildTree(k, numLeaves, numSlots, 21);
+        long insertTime = System.nanoTime() - start;
+
+        Random rand = new Random(21);
+        DebugBlockTreeManager man = new DebugBlockTreeManager();
+        BlockTree bulk = man.createTree(1, "1", k, 1);
+        CountingNodeManager counter = new CountingNodeManager(bulk.man);
+        bulk.setMan(counter);
+        Iterator<NodeContent[]> contents = new Iterator<NodeContent[]>() {
+            int count = 0;
+
+            @Override
+            public boolean hasNext() {
+                return count < numLeaves;
+            }
+
+            @Override
+            public NodeContent[] next() {
+                count++;
+                return createContent(rand, numSlots);
+            }
+        };
+        start = System.nanoTime();
+        bulk.buildFrom(contents);
+        long bulkTime = System.nanoTime() - start;
+        LOGGER.info(String.format("Loading %d leaves: %d ms with insert, %d ms with buildFrom (%d node writes)",
+                numLeaves, insertTime / 1000000, bulkTime / 1000000, counter.nodeWrites));
+
+        assertEquals(numLeaves, bulk.root.getVersion());
+        assertEquals(inserted.root.getId(), bulk.root.getId());
+
+        Random queries = new Random(2);
+        int[] ids = new int[]{1};
+        for (int i = 0; i < 5000; i++) {
+            int from = queries.nextInt(numLeaves - 1);
+            int to = from + 1 + queries.nextInt(numLeaves - from);
+            NodeContent[] a = inserted.getAggregation(from, to);
+            NodeContent[] b = bulk.getAggregation(from, to);
+            for (int slot = 0; slot < numSlots; slot++) {
+                assertArrayEquals(a[slot].encode(), b[slot].encode());
+            }
+            a = inserted.getAggregation(from, to, ids);
+            b = bulk.getAggregation(from, to, ids);
+            assertArrayEquals(a[1].encode(), b[1].encode());
+        }
+    }
+
+    @Test
+    public void testBuildFromMatchesInsert() throws Exception {
+        assertBuildFromMatchesInsert(50000, 64);
+        assertBuildFromMatchesInsert(3000, 3);
+    }
+
+    @Test
+    public void benchmarkBuildFrom() throws Exception {
+        Benchmarks.assumeEnabled();
+        assertBuildFromMatchesInsert(1000000, 64);
+    }
+
+    @Test
+    public void testAggregationSeriesMatchesAggregation() throws Exception {
+        int numLeaves = 3000, numSlots = 3;
+        BlockTree tree = buildTree(8, numLeaves, numSlots, 13);
+        int[] ids = new int[]{0, 2};
+        Random rand = new Random(4);
+        for (int i = 0; i < 300; i++) {
+            int from = rand.nextInt(numLeaves - 1);
+            int granularity = 1 + rand.nextInt(200);
+            int to = from + 1 + rand.nextInt(numLeaves - from);
+            List<NodeContent[]> series = tree.getAggregationSeries(from, to, granularity, ids);
+            assertEquals((to - from) / granularity, series.size());
+            for (int window = 0; window < series.size(); window++) {
+                int start = from + window * granularity;
+                NodeContent[] expected = tree.getAggregation(start, start + granularity, ids);
+                for (int id : ids) {
+                    assertArrayEquals(expected[id].encode(), series.get(window)[id].encode());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkAggregationSeries() throws Exception {
+        Benchmarks.assumeEnabled();
+        int numLeaves = 100000;
+        BlockTree tree = buildTree(BENCH_K, numLeaves, 3, 17);
+        int[] ids = new int[]{0, 1, 2};
+        for (int numWindows : new int[]{10, 100, 1000, 10000, 100000}) {
+            int granularity = numLeaves / numWindows;
+            // warm up
+            tree.getAggregationSeries(0, numLeaves, granularity, ids);
+            long start = System.nanoTime();
+            for (int window = 0; window < numWindows; window++) {
+                tree.getAggregation(window * granularity, (window + 1) * granularity, ids);
+            }
+            long loopTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            tree.getAggregationSeries(0, numLeaves, granularity, ids);
+            long seriesTime = System.nanoTime() - start;
+            LOGGER.info(String.format("%d windows: %.2f ms with per window queries, %.2f ms with getAggregationSeries",
+                    numWindows, loopTime / 1e6, seriesTime / 1e6));
+        }
+    }
+
+    @Test
+    public void testIncrementalAggregatesMatchChildren() throws Exception {
+        for (int k : new int[]{2, 3, 16}) {
+            Random rand = new Random(k);
+            BlockTree tree = new DebugBlockTreeManager().createTree(1, "1", k, 1);
+            tree.setAggregateUpdate(BlockTree.AggregateUpdate.VERIFY);
+            for (int i = 0; i < 2000; i++) {
+                NodeContent[] content = new NodeContent[]{new LongNodeContent(rand.nextLong()),
+                        new LongMacNodeNodeContent(rand.nextLong(), BigInteger.valueOf(rand.nextInt(1000)))};
+                tree.insert(i, content, i, i + 1);
+                tree.updateToLatest();
+            }
+            NodeContent[] total = tree.getAggregation(0, 2000);
+            NodeContent[] expected = tree.getAggregation(0, 1000);
+            expected[0].mergeOther(tree.getAggregation(1000, 2000)[0]);
+            expected[1].mergeOther(tree.getAggregation(1000, 2000)[1]);
+            assertArrayEquals(expected[0].encode(), total[0].encode());
+            assertArrayEquals(expected[1].encode(), total[1].encode());
+        }
+    }
+
+    @Test
+    public void benchmarkIncrementalInsert() throws Exception {
+        Benchmarks.assumeEnabled();
+        int numLeaves = 100000, numSlots = 5;
+        // object layout, the columns make a full recomputation of LongNodeContent aggregates cheap
+        Consumer<BlockTree> incremental = tree -> tree.setColumnarAggregation(false);
+        Consumer<BlockTree> recompute = tree -> {
+            tree.setColumnarAggregation(false);
+            tree.setAggregateUpdate(BlockTree.AggregateUpdate.RECOMPUTE);
+        };
+        // warm up
+        buildTree(16, numLeaves, numSlots, 1, incremental);
+        buildTree(16, numLeaves, numSlots, 1, recompute);
+        for (int k : new int[]{2, 16, 64, 256}) {
+            long start = System.nanoTime();
+            buildTree(k, numLeaves, numSlots, 1, incremental);
+            long incrementalTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            buildTree(k, numLeaves, numSlots, 1, recompute);
+            long recomputeTime = System.nanoTime() - start;
+            LOGGER.info(String.format("k=%d: %.0f inserts/s incremental, %.0f inserts/s with full recomputation", k,
+                    numLeaves / (incrementalTime / 1e9), numLeaves / (recomputeTime / 1e9)));
+        }
+    }
+
+    /**
+     * Queries the tree from the readers while one writer inserts the leaves and checks every aggregate of a published
+     * version.
+     */
+    private static void runSnapshotReads(int numLeaves, int numReaders) throws Exception {
+        int k = 16;
+        long[] prefix = new long[numLeaves + 1];
+        Random values = new Random(12);
+        List<NodeContent[]> contents = new ArrayList<>(numLeaves);
+        for (int i = 0; i < numLeaves; i++) {
+            long value = values.nextInt(1000);
+            prefix[i + 1] = prefix[i] + value;
+            contents.add(new NodeContent[]{new LongNodeContent(value)});
+        }
+
+        InMemoryCacheBlockTreeManager man = new InMemoryCacheBlockTreeManager();
+        BlockTree tree = man.createTree(1, "1", k, 1);
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<long[]> latencies = Collections.synchronizedList(new ArrayList<>());
+
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < numReaders; r++) {
+            final int seed = r;
+            readers.add(new Thread(() -> {
+                Random rand = new Random(seed);
+                long[] samples = new long[1 << 16];
+                int numSamples = 0;
+                try {
+                    while (!done.get() && numSamples < samples.length) {
+                        int published = tree.getLeavesCount();
+                        if (published < 2)
+                            continue;
+                        int from = rand.nextInt(published - 1);
+                        // every tenth query asks for the chunk that is about to be written
+                        boolean edge = rand.nextInt(10) == 0;
+                        int to = edge ? published + 1 : from + 1 + rand.nextInt(published - from);
+                        long start = System.nanoTime();
+                        NodeContent[] res = tree.getAggregation(from, to);
+                        samples[numSamples++] = System.nanoTime() - start;
+                        if (!edge && ((LongNodeContent) res[0]).getLong() != prefix[to] - prefix[from])
+                            throw new AssertionError("Wrong aggregate for [" + from + ", " + to + ")");
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+                latencies.add(Arrays.copyOf(samples, numSamples));
+            }));
+        }
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < numLeaves; i++) {
+            tree.insert(i, contents.get(i), i, i + 1);
+        }
+        long writeTime = System.nanoTime() - start;
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        LOGGER.info(String.format("1 writer, %d readers: %.0f inserts/s, %d queries, p50 %.1f us, p99 %.1f us, " +
+                        "max %.1f us", numReaders, numLeaves / (writeTime / 1e9), all.length,
+                all[all.length / 2] / 1e3, all[(int) (all.length * 0.99)] / 1e3, all[all.length - 1] / 1e3));
+    }
+
+    @Test
+    public void testSnapshotReads() throws Exception {
+        runSnapshotReads(2000, 4);
+    }
+
+    @Test
+    public void stressSnapshotReads() throws Exception {
+        Benchmarks.assumeEnabled();
+        runSnapshotReads(20000, 32);
+    }
+
+    @Test
+    public void benchmarkVersionWakeUp() throws Exception {
+        Benchmarks.assumeEnabled();
+        int numVersions = 5000, numWaiters = 16, k = 16;
+        InMemoryCacheBlockTreeManager man = new InMemoryCacheBlockTreeManager();
+        BlockTree tree = man.createTree(1, "1", k, 1);
+        long[] publishTimes = new long[numVersions + 1];
+        AtomicInteger registered = new AtomicInteger(0);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<long[]> latencies = Collections.synchronizedList(new ArrayList<>());
+
+        List<Thread> waiters = new ArrayList<>();
+        for (int w = 0; w < numWaiters; w++) {
+            waiters.add(new Thread(() -> {
+                long[] samples = new long[numVersions];
+                try {
+                    for (int version = 1; version <= numVersions; version++) {
+                        CompletableFuture<BlockTree> future = man.awaitTreeVersion(1, "1", version);
+                        registered.incrementAndGet();
+                        BlockTree res = future.get(10, TimeUnit.SECONDS);
+                        samples[version - 1] = System.nanoTime() - publishTimes[version];
+                        assertTrue(res.root.getVersion() >= version);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+                latencies.add(samples);
+            }));
+        }
+        for (Thread waiter : waiters) {
+            waiter.start();
+        }
+        Random rand = new Random(13);
+        for (int i = 0; i < numVersions; i++) {
+            // every waiter is registered for the next version before it is published
+            while (registered.get() < numWaiters * (i + 1) && failure.get() == null)
+                Thread.onSpinWait();
+            publishTimes[i + 1] = System.nanoTime();
+            tree.insert(i, createContent(rand, 1), i, i + 1);
+        }
+        for (Thread waiter : waiters) {
+            waiter.join();
+        }
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        LOGGER.info(String.format("%d waiters: %d wake-ups, p50 %.1f us, p99 %.1f us, max %.1f us", numWaiters,
+                all.length, all[all.length / 2] / 1e3, all[(int) (all.length * 0.99)] / 1e3,
+                all[all.length - 1] / 1e3));
+    }
+
+    @Test
+    public void testCompletedWaitersAreRemoved() throws Exception {
+        VersionWaiters<BlockNode> waiters = new VersionWaiters<>(BlockNode::getVersion);
+        CompletableFuture<BlockNode> timedOut = waiters.await(1, 5, () -> null);
+        CompletableFuture<BlockNode> cancelled = waiters.await(1, 6, () -> null);
+        CompletableFuture<BlockNode> waiting = waiters.await(2, 5, () -> null);
+        assertEquals(3, waiters.getNumWaiters());
+
+        timedOut.completeOnTimeout(null, 1, TimeUnit.MILLISECONDS);
+        assertNull(timedOut.get(10, TimeUnit.SECONDS));
+        cancelled.cancel(false);
+        assertEquals(1, waiters.getNumWaiters());
+        waiting.complete(null);
+        assertEquals(0, waiters.getNumWaiters());
+    }
+
+    @Test
+    public void testAwaitVersionOfADeletedTreeFails() throws Exception {
+        InMemoryCacheBlockTreeManager man = new InMemoryCacheBlockTreeManager();
+        BlockTree tree = man.createTree(1, "1", 16, 1);
+        man.deleteTree(1, "1");
+        try {
+            tree.man.awaitTreeVersion(1).get(10, TimeUnit.SECONDS);
+            fail("The tree is deleted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeCryptTreeException);
+        }
+    }
+
+    @Test
+    public void testMissingNodeFailsTheQuery() throws Exception {
+        DebugBlockTreeManager man = new DebugBlockTreeManager();
+        BlockTree tree = man.createTree(1, "1", 4, 1);
+        Random rand = new Random(5);
+        for (int i = 0; i < 100; i++) {
+            tree.insert(i, createContent(rand, 2), i, i + 1);
+            tree.updateToLatest();
+        }
+        // the tree keeps its root, the nodes below are gone
+        man.deleteTree(1, "1");
+        try {
+            tree.getAggregation(1, 99);
+            fail("The nodes are deleted");
+        } catch (TimeCryptTreeException e) {
+            assertTrue(e.getMessage().contains("is missing"));
+        }
+        try {
+            tree.getAggregationAsync(1, 99, new int[]{0}).toCompletableFuture().get(10, TimeUnit.SECONDS);
+            fail("The nodes are deleted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeCryptTreeException);
+        }
+    }
+
+    private static class CountingNodeManager implements INodeManager {
+        private final INodeManager man;
+        private long nodeWrites = 0;
+
+        CountingNodeManager(INodeManager man) {
+            this.man = man;
+        }
+
+        @Override
+        public BlockNode loadNode(long id) throws Exception {
+            return man.loadNode(id);
+        }
+
+        @Override
+        public void pushUpdates(UpdateSummary summary) throws Exception {
+            nodeWrites += summary.getNewNodes().size() + 1;
+            man.pushUpdates(summary);
+        }
+
+        @Override
+        public void writeNodes(List<BlockNode> nodes) throws Exception {
+            nodeWrites += nodes.size();
+            man.writeNodes(nodes);
+        }
+
+        @Override
+        public void updateToLatest(BlockTree tree) throws Exception {
+            man.updateToLatest(tree);
+        }
+
+        @Override
+        public BlockNode loadNodeWithMinVersion(long blockid, int version) throws Exception {
+            return man.loadNodeWithMinVersion(blockid, version);
+        }
+
+        @Override
+        public BlockNode loadNodeWithVersionForInsert(long blockid, int version) throws Exception {
+            return man.loadNodeWithVersionForInsert(blockid, version);
+        }
+
+        @Override
+        public void updateToLatest(BlockTree tree, int minVersion) throws Exception {
+            man.updateToLatest(tree, minVersion);
+        }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitNodeVersion(long blockid, int minVersion) {
+            return man.awaitNodeVersion(blockid, minVersion);
+        }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitTreeVersion(int minVersion) {
+            return man.awaitTreeVersion(minVersion);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.db.Buckets;
+import ch.ethz.dsg.timecrypt.db.PagingIterator;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockIdUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestBuckets {
+
+    private static final int BUCKET_SIZE = 100;
+
+    @Test
+    public void testBucketBoundaries() {
+        Buckets buckets = new Buckets(BUCKET_SIZE);
+        assertEquals(0, buckets.ofChunk(0));
+        assertEquals(0, buckets.ofChunk(99));
+        assertEquals(1, buckets.ofChunk(100));
+        assertEquals(1, buckets.ofChunk(199));
+        assertEquals(2, buckets.ofChunk(200));
+        assertEquals(Integer.MAX_VALUE / BUCKET_SIZE, buckets.ofChunk(Integer.MAX_VALUE));
+
+        // blocks belong to the bucket of their first chunk
+        assertEquals(0, buckets.ofBlock(BlockIdUtil.getID(0, 1 << 20)));
+        assertEquals(0, buckets.ofBlock(BlockIdUtil.getID(96, 112)));
+        assertEquals(1, buckets.ofBlock(BlockIdUtil.getID(112, 128)));
+        assertEquals(1, buckets.ofBlock(BlockIdUtil.getID(100, 101)));
+    }
+
+    @Test
+    public void testSplitCoversTheRange() {
+        Buckets buckets = new Buckets(BUCKET_SIZE);
+        assertTrue(buckets.split(50, 50).isEmpty());
+        assertTrue(buckets.split(60, 50).isEmpty());
+
+        List<Buckets.Range> single = buckets.split(100, 200);
+        assertEquals(1, single.size());
+        assertEquals(1, single.get(0).bucket);
+        assertEquals(100, single.get(0).from);
+        assertEquals(200, single.get(0).to);
+
+        List<Buckets.Range> ranges = buckets.split(99, 301);
+        assertEquals(4, ranges.size());
+        int expectedFrom = 99;
+        for (int i = 0; i < ranges.size(); i++) {
+            Buckets.Range range = ranges.get(i);
+            assertEquals(i, range.bucket);
+            assertEquals(expectedFrom, range.from);
+            assertTrue(range.to > range.from);
+            for (int key = range.from; key < range.to; key++) {
+                assertEquals(range.bucket, buckets.ofChunk(key));
+            }
+            expectedFrom = range.to;
+        }
+        assertEquals(301, expectedFrom);
+
+        List<Buckets.Range> last = buckets.split(Integer.MAX_VALUE - 1, Integer.MAX_VALUE);
+        assertEquals(1, last.size());
+        assertEquals(Integer.MAX_VALUE, last.get(0).to);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBucketSizeMustBePositive() {
+        new Buckets(0);
+    }
+
+    @Test
+    public void testConcatStartsTheNextParts() {
+        Buckets buckets = new Buckets(BUCKET_SIZE);
+        List<Integer> started = new ArrayList<>();
+        List<Supplier<Iterator<Integer>>> parts = new ArrayList<>();
+        for (Buckets.Range range : buckets.split(50, 1050)) {
+            parts.add(() -> {
+                started.add((int) range.bucket);
+                List<Integer> keys = new ArrayList<>();
+                // a bucket without rows in the middle of the range
+                if (range.bucket != 3) {
+                    for (int key = range.from; key < range.to; key++) {
+                        keys.add(key);
+                    }
+                }
+                return keys.iterator();
+            });
+        }
+        Iterator<Integer> keys = PagingIterator.concat(parts, 2);
+        assertEquals(0, started.size());
+        assertEquals(50, (int) keys.next());
+        assertEquals(3, started.size());
+
+        int expected = 51;
+        while (keys.hasNext()) {
+            if (expected == 300)
+                expected = 400;
+            assertEquals(expected++, (int) keys.next());
+        }
+        assertEquals(1050, expected);
+        assertEquals(11, started.size());
+        for (int i = 0; i < started.size(); i++) {
+            assertEquals(i, (int) started.get(i));
+        }
+        assertFalse(PagingIterator.<Integer>concat(new ArrayList<>(), 2).hasNext());
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+import ch.ethz.dsg.timecrypt.db.debug.DebugStorage;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptRequestException;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptStorageException;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
+import ch.ethz.dsg.timecrypt.index.Chunk;
+import ch.ethz.dsg.timecrypt.index.ITree;
+import ch.ethz.dsg.timecrypt.index.InsertBatcher;
+import ch.ethz.dsg.timecrypt.index.MemoryTreeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
+import ch.ethz.dsg.timecrypt.index.blockindex.DebugBlockTreeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+import ch.ethz.dsg.timecrypt.server.BulkInsert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestBulkInsert {
+
+    private static final long UID = 1;
+    private static final String OWNER = "user";
+
+    private MemoryTreeManager treeManager;
+    private CountingStorage storage;
+    private InsertBatcher insertBatcher;
+
+    private static class CountingStorage extends DebugStorage {
+        private int putChunksCalls = 0;
+        private int failAtCall = -1;
+
+        @Override
+        public boolean putChunks(long uid, String owner, List<Chunk> chunks) throws TimeCryptStorageException {
+            if (putChunksCalls++ == failAtCall)
+                throw new TimeCryptStorageException("Write failed", 1);
+            return super.putChunks(uid, owner, chunks);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        treeManager = new MemoryTreeManager(new DebugBlockTreeManager(), 16);
+        treeManager.createTree(UID, OWNER);
+        storage = new CountingStorage();
+        insertBatcher = new InsertBatcher();
+    }
+
+    private BulkInsert bulkInsert(int runLength) {
+        return new BulkInsert(treeManager, storage, insertBatcher, UID, OWNER, runLength);
+    }
+
+    private static NodeContent[] digest(long chunkId) {
+        return new NodeContent[]{new LongNodeContent(chunkId), new LongNodeContent(1)};
+    }
+
+    private static Chunk chunk(long chunkId) {
+        return new Chunk((int) chunkId, new byte[]{(byte) chunkId});
+    }
+
+    private ITree tree() {
+        return treeManager.getTreeForUser(UID, OWNER).getTree();
+    }
+
+    /**
+     * Another tree object of the stream, like a request loads it. The first insert blocks until release is counted
+     * down if a latch is given.
+     */
+    private BlockTree loadedTree(AtomicInteger numInserts, CountDownLatch started, CountDownLatch release) {
+        BlockTree tree = (BlockTree) tree();
+        return new BlockTree(tree.k, tree.root, tree.man) {
+            @Override
+            public void insertBatch(long firstChunk, List<NodeContent[]> contents) throws Exception {
+                if (numInserts.getAndIncrement() == 0 && release != null) {
+                    started.countDown();
+                    release.await();
+                }
+                super.insertBatch(firstChunk, contents);
+            }
+        };
+    }
+
+    private Thread startInsert(ITree tree, long chunkId, AtomicReference<Exception> failure) {
+        Thread thread = new Thread(() -> {
+            try {
+                insertBatcher.insert(UID, OWNER, tree, chunkId, digest(chunkId));
+            } catch (Exception e) {
+                failure.set(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitBlocked(Thread thread) {
+        while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TERMINATED)
+            Thread.onSpinWait();
+    }
+
+    private void addAll(BulkInsert insert, long from, long to) throws Exception {
+        for (long chunkId = from; chunkId < to; chunkId++) {
+            insert.add(chunkId, chunk(chunkId), digest(chunkId));
+        }
+    }
+
+    @Test
+    public void testCommitsInRuns() throws Exception {
+        int num = 1000;
+        BulkInsert insert = bulkInsert(100);
+        addAll(insert, 0, num - 1);
+        assertEquals(899, insert.getLastCommitted());
+        insert.add(num - 1, chunk(num - 1), digest(num - 1));
+        assertEquals(num - 1, insert.finish());
+        assertEquals(10, storage.putChunksCalls);
+
+        assertEquals(num - 1, tree().getLastWrittenChunk());
+        NodeContent[] sum = tree().getAggregation(0, num, new int[]{0, 1});
+        assertEquals((long) num * (num - 1) / 2, ((LongNodeContent) sum[0]).getLong());
+        assertEquals(num, ((LongNodeContent) sum[1]).getLong());
+        for (int chunkId = 0; chunkId < num; chunkId++) {
+            assertNotNull(storage.getChunk(UID, OWNER, chunkId));
+        }
+
+        // a later request continues after the last chunk
+        BulkInsert next = bulkInsert(100);
+        addAll(next, num, num + 10);
+        assertEquals(num + 9, next.finish());
+        assertEquals(num + 9, tree().getLastWrittenChunk());
+    }
+
+    @Test
+    public void testRejectsAWrongStart() throws Exception {
+        bulkInsert(4).add(0, chunk(0), digest(0));
+        try {
+            bulkInsert(4).add(1, chunk(1), digest(1));
+            fail("The first chunk of the stream is 0");
+        } catch (TimeCryptRequestException e) {
+            // expected
+        }
+        assertEquals(-1, tree().getLastWrittenChunk());
+    }
+
+    @Test
+    public void testStopsAtAGap() throws Exception {
+        BulkInsert insert = bulkInsert(4);
+        addAll(insert, 0, 10);
+        try {
+            insert.add(11, chunk(11), digest(11));
+            fail("Chunk 10 is missing");
+        } catch (TimeCryptRequestException e) {
+            // expected
+        }
+        // the pending chunks 8 and 9 are not committed
+        assertEquals(7, insert.getLastCommitted());
+        assertEquals(7, tree().getLastWrittenChunk());
+    }
+
+    @Test
+    public void testStorageFailureCommitsNoDigestOfTheRun() throws Exception {
+        storage.failAtCall = 1;
+        BulkInsert insert = bulkInsert(4);
+        addAll(insert, 0, 4);
+        try {
+            addAll(insert, 4, 8);
+            fail("The second run is not written");
+        } catch (TimeCryptStorageException e) {
+            // expected
+        }
+        assertEquals(3, insert.getLastCommitted());
+        assertEquals(3, tree().getLastWrittenChunk());
+
+        // the stream continues after the last committed chunk
+        BulkInsert retry = bulkInsert(4);
+        addAll(retry, 4, 8);
+        assertEquals(7, retry.finish());
+        assertEquals(7, tree().getLastWrittenChunk());
+    }
+
+    @Test
+    public void testSkipsRetriedChunks() throws Exception {
+        BulkInsert insert = bulkInsert(4);
+        addAll(insert, 0, 10);
+        assertEquals(9, insert.finish());
+
+        // the retry overlaps the written chunks, only the new ones are inserted
+        BulkInsert retry = bulkInsert(4);
+        addAll(retry, 6, 14);
+        assertEquals(13, retry.finish());
+        assertEquals(13, tree().getLastWrittenChunk());
+        NodeContent[] sum = tree().getAggregation(0, 14, new int[]{0, 1});
+        assertEquals(13 * 14 / 2, ((LongNodeContent) sum[0]).getLong());
+        assertEquals(14, ((LongNodeContent) sum[1]).getLong());
+    }
+
+    @Test
+    public void testRejectsADifferentPayloadForACommittedChunk() throws Exception {
+        BulkInsert insert = bulkInsert(4);
+        addAll(insert, 0, 4);
+        assertEquals(3, insert.finish());
+
+        BulkInsert retry = bulkInsert(4);
+        retry.add(2, chunk(2), digest(2));
+        try {
+            retry.add(3, new Chunk(3, new byte[]{42}), digest(3));
+            fail("Chunk 3 is committed with a different payload");
+        } catch (TimeCryptRequestException e) {
+            // expected
+        }
+        assertArrayEquals(new byte[]{3}, storage.getChunk(UID, OWNER, 3).getData());
+        assertEquals(3, tree().getLastWrittenChunk());
+        assertEquals(1, storage.putChunksCalls);
+    }
+
+    @Test
+    public void testIgnoresRetriedInserts() throws Exception {
+        for (long chunkId = 0; chunkId < 8; chunkId++) {
+            insertBatcher.insert(UID, OWNER, tree(), chunkId, digest(chunkId));
+        }
+        insertBatcher.insert(UID, OWNER, tree(), 3, digest(3));
+        insertBatcher.insert(UID, OWNER, tree(), 7, digest(7));
+        insertBatcher.insertAll(UID, OWNER, tree(), 6, List.of(digest(6), digest(7), digest(8)));
+        assertEquals(8, tree().getLastWrittenChunk());
+        NodeContent[] sum = tree().getAggregation(0, 9, new int[]{0, 1});
+        assertEquals(8 * 9 / 2, ((LongNodeContent) sum[0]).getLong());
+        assertEquals(9, ((LongNodeContent) sum[1]).getLong());
+    }
+
+    @Test
+    public void testInsertsUseTheTreeOfTheirRequest() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger firstInserts = new AtomicInteger();
+        AtomicInteger secondInserts = new AtomicInteger();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread first = startInsert(loadedTree(firstInserts, started, release), 0, failure);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // queued while the first request flushes, the first request applies it
+        Thread second = startInsert(loadedTree(secondInserts, null, null), 1, failure);
+        awaitBlocked(second);
+        release.countDown();
+        first.join();
+        second.join();
+        if (failure.get() != null)
+            throw failure.get();
+        assertEquals(1, firstInserts.get());
+        assertEquals(1, secondInserts.get());
+        assertEquals(1, tree().getLastWrittenChunk());
+    }
+
+    @Test
+    public void testRemoveStreamWaitsForTheRunningFlush() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicReference<Exception> firstFailure = new AtomicReference<>();
+        AtomicReference<Exception> queuedFailure = new AtomicReference<>();
+        Thread first = startInsert(loadedTree(new AtomicInteger(), started, release), 0, firstFailure);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Thread queued = startInsert(tree(), 1, queuedFailure);
+        awaitBlocked(queued);
+
+        Thread remove = new Thread(() -> insertBatcher.removeStream(UID, OWNER));
+        remove.start();
+        remove.join(100);
+        assertTrue(remove.isAlive());
+        release.countDown();
+        remove.join();
+        first.join();
+        queued.join();
+
+        // the running insert completes, the queued one is not applied to the removed stream
+        assertEquals(null, firstFailure.get());
+        assertTrue(queuedFailure.get() instanceof TimeCryptTreeException);
+        assertEquals(0, tree().getLastWrittenChunk());
+        // a new queue takes the inserts of the stream
+        insertBatcher.insert(UID, OWNER, tree(), 1, digest(1));
+        assertEquals(1, tree().getLastWrittenChunk());
+    }
+
+    @Test
+    public void testEmptyRequest() throws Exception {
+        assertEquals(-1, bulkInsert(4).finish());
+    }
+}
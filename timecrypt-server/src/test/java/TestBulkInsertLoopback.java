@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.db.debug.DebugStorage;
+import ch.ethz.dsg.timecrypt.index.MemoryTreeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.DebugBlockTreeManager;
+import ch.ethz.dsg.timecrypt.protocol.*;
+import ch.ethz.dsg.timecrypt.server.RequestExecutors;
+import ch.ethz.dsg.timecrypt.server.grpc.AuthServerInterceptor;
+import ch.ethz.dsg.timecrypt.server.grpc.ExecutorServerInterceptor;
+import ch.ethz.dsg.timecrypt.server.grpc.TimeCryptGRPCServer;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares the unary insertChunk with the client-streaming insertChunks over a loopback connection.
+ */
+public class TestBulkInsertLoopback {
+
+    private static final Metadata.Key<String> USER = Metadata.Key.of("User", ASCII_STRING_MARSHALLER);
+    private static final ByteString PAYLOAD = ByteString.copyFrom(new byte[256]);
+
+    private Server server;
+    private ManagedChannel channel;
+    private TimecryptGrpc.TimecryptBlockingStub blockingStub;
+    private TimecryptGrpc.TimecryptStub asyncStub;
+
+    @Before
+    public void start() throws IOException {
+        server = ServerBuilder.forPort(0)
+                .addService(new TimeCryptGRPCServer(new MemoryTreeManager(new DebugBlockTreeManager()),
+                        new DebugStorage()))
+                .intercept(new AuthServerInterceptor())
+                .build()
+                .start();
+        channel = ManagedChannelBuilder.forAddress("localhost", server.getPort())
+                .usePlaintext()
+                .build();
+        Metadata header = new Metadata();
+        header.put(USER, "user");
+        blockingStub = MetadataUtils.attachHeaders(TimecryptGrpc.newBlockingStub(channel), header);
+        asyncStub = MetadataUtils.attachHeaders(TimecryptGrpc.newStub(channel), header);
+    }
+
+    @After
+    public void stop() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private long createStream() {
+        return blockingStub.createStream(streamMessage.newBuilder()
+                .addMetadataConfig(metadataConfig.newBuilder().setId(0).setSchema(EncryptionSchema.LONG))
+                .build()).getStreamId();
+    }
+
+    private long lastWrittenChunk(long stream) {
+        return blockingStub.getLastWrittenChunk(streamId.newBuilder().setStreamId(stream).build()).getId();
+    }
+
+    private static chunkCreationMessage message(long stream, long id) {
+        return chunkCreationMessage.newBuilder()
+                .setChunk(chunk.newBuilder()
+                        .setStreamId(streamId.newBuilder().setStreamId(stream))
+                        .setChunkId(chunkId.newBuilder().setId(id))
+                        .setChunkContent(PAYLOAD))
+                .setDigest(digest.newBuilder()
+                        .setStart(chunkId.newBuilder().setId(id))
+                        .setEnd(chunkId.newBuilder().setId(id + 1))
+                        .addMetadataContent(metadataContent.newBuilder()
+                                .setConfig(metadataConfig.newBuilder().setId(0).setSchema(EncryptionSchema.LONG))
+                                .setLongPayload(longPayload.newBuilder().setEncryptedLong(id))))
+                .build();
+    }
+
+    /**
+     * @return the last committed chunk that the server acknowledged
+     */
+    private long insertChunks(long stream, long from, long to) throws Exception {
+        CompletableFuture<Long> response = new CompletableFuture<>();
+        StreamObserver<chunkCreationMessage> requests = asyncStub.insertChunks(new StreamObserver<chunkId>() {
+            @Override
+            public void onNext(chunkId value) {
+                response.complete(value.getId());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                response.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                response.completeExceptionally(new IllegalStateException("No response"));
+            }
+        });
+        for (long id = from; id < to; id++) {
+            requests.onNext(message(stream, id));
+        }
+        requests.onCompleted();
+        return response.get(60, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testStreamsTheChunks() throws Exception {
+        long stream = createStream();
+        assertEquals(999, insertChunks(stream, 0, 1000));
+        assertEquals(999, lastWrittenChunk(stream));
+        assertEquals(1499, insertChunks(stream, 1000, 1500));
+        assertEquals(1499, lastWrittenChunk(stream));
+    }
+
+    @Test
+    public void testRejectsAGap() throws Exception {
+        long stream = createStream();
+        assertEquals(99, insertChunks(stream, 0, 100));
+        try {
+            insertChunks(stream, 101, 200);
+            fail("Chunk 100 is missing");
+        } catch (ExecutionException e) {
+            assertEquals(Status.Code.INVALID_ARGUMENT, Status.fromThrowable(e.getCause()).getCode());
+        }
+        assertEquals(99, lastWrittenChunk(stream));
+    }
+
+    @Test
+    public void testPipelinedUnaryInsertsKeepTheirOrderWithSplitPools() throws Exception {
+        RequestExecutors executors = RequestExecutors.split(4, 4, RequestExecutors.DEFAULT_QUEUE_SIZE);
+        Server split = ServerBuilder.forPort(0)
+                .directExecutor()
+                .addService(new TimeCryptGRPCServer(new MemoryTreeManager(new DebugBlockTreeManager()),
+                        new DebugStorage()))
+                .intercept(new AuthServerInterceptor())
+                .intercept(new ExecutorServerInterceptor(executors))
+                .build()
+                .start();
+        ManagedChannel splitChannel = ManagedChannelBuilder.forAddress("localhost", split.getPort())
+                .usePlaintext()
+                .build();
+        try {
+            Metadata header = new Metadata();
+            header.put(USER, "user");
+            TimecryptGrpc.TimecryptBlockingStub splitBlocking =
+                    MetadataUtils.attachHeaders(TimecryptGrpc.newBlockingStub(splitChannel), header);
+            TimecryptGrpc.TimecryptFutureStub splitFuture =
+                    MetadataUtils.attachHeaders(TimecryptGrpc.newFutureStub(splitChannel), header);
+            long stream = splitBlocking.createStream(streamMessage.newBuilder()
+                    .addMetadataConfig(metadataConfig.newBuilder().setId(0).setSchema(EncryptionSchema.LONG))
+                    .build()).getStreamId();
+            // the inserts do not wait for each other, the server has to apply them in the order in which they arrived
+            int num = 500;
+            List<ListenableFuture<chunkId>> responses = new ArrayList<>();
+            for (long id = 0; id < num; id++) {
+                responses.add(splitFuture.insertChunk(message(stream, id)));
+            }
+            for (ListenableFuture<chunkId> response : responses) {
+                response.get(60, TimeUnit.SECONDS);
+            }
+            assertEquals(num - 1, splitBlocking.getLastWrittenChunk(streamId.newBuilder().setStreamId(stream).build())
+                    .getId());
+        } finally {
+            splitChannel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            split.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            executors.close();
+        }
+    }
+
+    @Test
+    public void benchmarkUnaryAndStreamingInserts() throws Exception {
+        int num = 20000;
+        double unary = 0, streaming = 0;
+        for (int round = 0; round < 3; round++) {
+            long stream = createStream();
+            long start = System.nanoTime();
+            for (long id = 0; id < num; id++) {
+                blockingStub.insertChunk(message(stream, id));
+            }
+            unary = num / ((System.nanoTime() - start) / 1e9);
+            assertEquals(num - 1, lastWrittenChunk(stream));
+
+            stream = createStream();
+            start = System.nanoTime();
+            assertEquals(num - 1, insertChunks(stream, 0, num));
+            streaming = num / ((System.nanoTime() - start) / 1e9);
+            assertEquals(num - 1, lastWrittenChunk(stream));
+        }
+        System.out.format("loopback inserts of %d chunks: %.0f chunks/s unary, %.0f chunks/s streaming%n", num, unary,
+                streaming);
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.db.CassandraWritePipeline;
+import ch.ethz.dsg.timecrypt.db.CassandraWritePipeline.AckMode;
+import ch.ethz.dsg.timecrypt.db.CassandraWritePipeline.Write;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestCassandraWritePipeline {
+
+    private Path directory;
+
+    /**
+     * Stands in for the cassandra session: applies the batches to maps after a delay, or fails them while down. Like
+     * cassandra, a row is only replaced by a write with a later timestamp.
+     */
+    private static class LocalCassandra implements CassandraWritePipeline.BatchWriter {
+        private final Map<String, ByteBuffer> rows = new ConcurrentHashMap<>();
+        private final Map<String, Long> timestamps = new ConcurrentHashMap<>();
+        private final AtomicInteger batches = new AtomicInteger(0);
+        private final AtomicInteger mixedBatches = new AtomicInteger(0);
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        private final long latencyMillis;
+        private volatile boolean down = false;
+
+        LocalCassandra(long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+        }
+
+        private static String rowKey(Write write) {
+            return write.table + "|" + write.user + "|" + write.uid + "|" + (write.isTree() ? 0 : write.key);
+        }
+
+        @Override
+        public CompletionStage<?> write(List<Write> partition) {
+            batches.incrementAndGet();
+            Write first = partition.get(0);
+            for (Write write : partition) {
+                if (write.table != first.table || write.uid != first.uid || !write.user.equals(first.user))
+                    mixedBatches.incrementAndGet();
+            }
+            CompletableFuture<Void> res = new CompletableFuture<>();
+            executor.schedule(() -> {
+                if (down) {
+                    res.completeExceptionally(new RuntimeException("No node was available"));
+                    return;
+                }
+                for (Write write : partition) {
+                    String key = rowKey(write);
+                    if (write.getTimestamp() >= timestamps.getOrDefault(key, Long.MIN_VALUE)) {
+                        rows.put(key, write.data);
+                        timestamps.put(key, write.getTimestamp());
+                    }
+                }
+                res.complete(null);
+            }, latencyMillis, TimeUnit.MILLISECONDS);
+            return res;
+        }
+
+        byte[] chunk(String user, long uid, int key) {
+            ByteBuffer row = rows.get(rowKey(Write.chunk(user, uid, key, null)));
+            if (row == null)
+                return null;
+            byte[] data = new byte[row.remaining()];
+            row.duplicate().get(data);
+            return data;
+        }
+
+        void shutdown() {
+            executor.shutdownNow();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("timecrypt-pipeline");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private static byte[] data(int value) {
+        return new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16)};
+    }
+
+    private static List<CompletableFuture<Void>> insertConcurrently(CassandraWritePipeline pipeline, int numStreams,
+                                                                   int numChunks) throws InterruptedException {
+        List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int stream = 0; stream < numStreams; stream++) {
+            long uid = stream;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < numChunks; i++) {
+                    futures.add(pipeline.submit(Write.chunk("owner", uid, i, ByteBuffer.wrap(data(i)))));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return futures;
+    }
+
+    @Test
+    public void testCassandraAckWaitsForTheWrite() throws Exception {
+        LocalCassandra cassandra = new LocalCassandra(50);
+        try (CassandraWritePipeline pipeline = new CassandraWritePipeline(cassandra, AckMode.CASSANDRA, null)) {
+            CompletableFuture<Void> future = pipeline.submit(Write.chunk("owner", 1, 0, ByteBuffer.wrap(data(1))));
+            Thread.sleep(10);
+            assertFalse(future.isDone());
+            future.get();
+            assertArrayEquals(data(1), cassandra.chunk("owner", 1, 0));
+
+            cassandra.down = true;
+            CompletableFuture<Void> failed = pipeline.submit(Write.chunk("owner", 1, 1, ByteBuffer.wrap(data(2))));
+            try {
+                failed.get();
+                throw new AssertionError("The write should fail");
+            } catch (ExecutionException e) {
+                assertTrue(failed.isCompletedExceptionally());
+            }
+        } finally {
+            cassandra.shutdown();
+        }
+    }
+
+    @Test
+    public void testMemoryAckDoesNotWait() throws Exception {
+        LocalCassandra cassandra = new LocalCassandra(200);
+        try (CassandraWritePipeline pipeline = new CassandraWritePipeline(cassandra, AckMode.MEMORY, null)) {
+            assertTrue(pipeline.submit(Write.chunk("owner", 1, 0, ByteBuffer.wrap(data(1)))).isDone());
+            pipeline.flush().get();
+            assertArrayEquals(data(1), cassandra.chunk("owner", 1, 0));
+        } finally {
+            cassandra.shutdown();
+        }
+    }
+
+    @Test
+    public void testInsertsAreGroupedByPartition() throws Exception {
+        int numStreams = 50, numChunks = 200;
+        LocalCassandra cassandra = new LocalCassandra(1);
+        try (CassandraWritePipeline pipeline = new CassandraWritePipeline(cassandra, AckMode.CASSANDRA, null,
+                20, 100000, 64)) {
+            List<CompletableFuture<Void>> futures = insertConcurrently(pipeline, numStreams, numChunks);
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+            // a later version of a row in the same group replaces the earlier one
+            pipeline.submit(Write.chunk("owner", 0, 0, ByteBuffer.wrap(data(-1))));
+            pipeline.submit(Write.chunk("owner", 0, 0, ByteBuffer.wrap(data(-2)))).get();
+        } finally {
+            cassandra.shutdown();
+        }
+        assertEquals(0, cassandra.mixedBatches.get());
+        assertTrue("expected far fewer batches than writes, got " + cassandra.batches.get(),
+                cassandra.batches.get() < numStreams * numChunks / 10);
+        for (long uid = 0; uid < numStreams; uid++) {
+            for (int i = (uid == 0) ? 1 : 0; i < numChunks; i++) {
+                assertArrayEquals(data(i), cassandra.chunk("owner", uid, i));
+            }
+        }
+        assertArrayEquals(data(-2), cassandra.chunk("owner", 0, 0));
+    }
+
+    @Test
+    public void testLogAckSurvivesCassandraOutage() throws Exception {
+        int numStreams = 10, numChunks = 500;
+        LocalCassandra unavailable = new LocalCassandra(1);
+        unavailable.down = true;
+        try (CassandraWritePipeline pipeline = new CassandraWritePipeline(unavailable, AckMode.LOG, directory)) {
+            List<CompletableFuture<Void>> futures = insertConcurrently(pipeline, numStreams, numChunks);
+            // acknowledged by the log although cassandra does not answer
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+            pipeline.flush().get();
+        } finally {
+            unavailable.shutdown();
+        }
+        assertEquals(0, unavailable.rows.size());
+
+        LocalCassandra cassandra = new LocalCassandra(1);
+        try (CassandraWritePipeline pipeline = new CassandraWritePipeline(cassandra, AckMode.LOG, directory)) {
+            pipeline.flush().get();
+        } finally {
+            cassandra.shutdown();
+        }
+        for (long uid = 0; uid < numStreams; uid++) {
+            for (int i = 0; i < numChunks; i++) {
+                assertArrayEquals(data(i), cassandra.chunk("owner", uid, i));
+            }
+        }
+        // everything was applied, so the log is gone
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testReplayKeepsTheWriteTimestamps() throws Exception {
+        LocalCassandra unavailable = new LocalCassandra(1);
+        unavailable.down = true;
+        Write logged = Write.chunk("owner", 1, 0, ByteBuffer.wrap(data(1)));
+        try (CassandraWritePipeline pipeline = new CassandraWritePipeline(unavailable, AckMode.LOG, directory)) {
+            pipeline.submit(logged).get();
+            pipeline.flush().get();
+        } finally {
+            unavailable.shutdown();
+        }
+
+        // a newer version of the row reached cassandra before the restart, e.g. from another server
+        LocalCassandra cassandra = new LocalCassandra(1);
+        Write newer = Write.chunk("owner", 1, 0, ByteBuffer.wrap(data(2)));
+        try (CassandraWritePipeline pipeline = new CassandraWritePipeline(cassandra, AckMode.CASSANDRA, null)) {
+            pipeline.submit(newer).get();
+        }
+        assertTrue(newer.getTimestamp() > logged.getTimestamp());
+
+        Write next = Write.chunk("owner", 1, 1, ByteBuffer.wrap(data(3)));
+        try (CassandraWritePipeline pipeline = new CassandraWritePipeline(cassandra, AckMode.LOG, directory)) {
+            pipeline.flush().get();
+            pipeline.submit(next).get();
+            pipeline.flush().get();
+        } finally {
+            cassandra.shutdown();
+        }
+        // the replayed write is older than the applied one
+        assertEquals(newer.getTimestamp(), (long) cassandra.timestamps.get(LocalCassandra.rowKey(newer)));
+        assertArrayEquals(data(2), cassandra.chunk("owner", 1, 0));
+        assertTrue(next.getTimestamp() > logged.getTimestamp());
+    }
+
+    @Test
+    public void benchmarkGroupCommit() throws Exception {
+        int numStreams = 64, numChunks = 2000;
+        for (AckMode mode : AckMode.values()) {
+            LocalCassandra cassandra = new LocalCassandra(1);
+            long start = System.nanoTime();
+            try (CassandraWritePipeline pipeline = new CassandraWritePipeline(cassandra, mode, directory)) {
+                List<CompletableFuture<Void>> futures = insertConcurrently(pipeline, numStreams, numChunks);
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+                pipeline.flush().get();
+            } finally {
+                cassandra.shutdown();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.format("%s: %.0f inserts/s, %.1f inserts per batch%n", mode,
+                    numStreams * numChunks / seconds, (double) numStreams * numChunks / cassandra.batches.get());
+        }
+    }
+}
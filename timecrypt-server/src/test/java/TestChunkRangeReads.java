@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.db.PagingIterator;
+import ch.ethz.dsg.timecrypt.db.debug.DebugStorage;
+import ch.ethz.dsg.timecrypt.db.offheap.OffHeapStorage;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptStorageException;
+import ch.ethz.dsg.timecrypt.index.Chunk;
+import ch.ethz.dsg.timecrypt.index.IStorage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestChunkRangeReads {
+
+    private static final int NUM_CHUNKS = 100000;
+    private static final int PAGE_SIZE = 5000;
+    private static final long ROUND_TRIP_MILLIS = 2;
+
+    /**
+     * Stands in for the paged result sets of the cassandra session: every page arrives after a round trip.
+     */
+    private static class StubbedPage implements PagingIterator.Page<Chunk> {
+        private final ScheduledExecutorService executor;
+        private final AtomicInteger fetches;
+        private final int from;
+        private final int to;
+
+        StubbedPage(ScheduledExecutorService executor, AtomicInteger fetches, int from, int to) {
+            this.executor = executor;
+            this.fetches = fetches;
+            this.from = from;
+            this.to = to;
+        }
+
+        static CompletionStage<StubbedPage> query(ScheduledExecutorService executor, AtomicInteger fetches,
+                                                  int from, int to) {
+            fetches.incrementAndGet();
+            CompletableFuture<StubbedPage> res = new CompletableFuture<>();
+            executor.schedule(() -> res.complete(new StubbedPage(executor, fetches, from, to)),
+                    ROUND_TRIP_MILLIS, TimeUnit.MILLISECONDS);
+            return res;
+        }
+
+        @Override
+        public Iterable<Chunk> currentPage() {
+            List<Chunk> rows = new ArrayList<>(PAGE_SIZE);
+            for (int key = from; key < Math.min(to, from + PAGE_SIZE); key++) {
+                rows.add(new Chunk(key, data(key)));
+            }
+            return rows;
+        }
+
+        @Override
+        public boolean hasMorePages() {
+            return from + PAGE_SIZE < to;
+        }
+
+        @Override
+        public CompletionStage<StubbedPage> fetchNextPage() {
+            return query(executor, fetches, from + PAGE_SIZE, to);
+        }
+    }
+
+    private static byte[] data(int key) {
+        return new byte[]{(byte) key, (byte) (key >> 8), (byte) (key >> 16)};
+    }
+
+    private static void assertRange(Iterator<Chunk> chunks, int from, int to) {
+        for (int key = from; key < to; key++) {
+            Chunk chunk = chunks.next();
+            assertEquals(key, chunk.getStorageKey());
+            assertArrayEquals(data(key), chunk.getData());
+        }
+        assertFalse(chunks.hasNext());
+    }
+
+    @Test
+    public void testAllPagesAreRead() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            AtomicInteger fetches = new AtomicInteger(0);
+            assertRange(new PagingIterator<>(StubbedPage.query(executor, fetches, 0, NUM_CHUNKS)), 0, NUM_CHUNKS);
+            assertEquals(NUM_CHUNKS / PAGE_SIZE, fetches.get());
+
+            assertRange(new PagingIterator<>(StubbedPage.query(executor, fetches, 10, 10)), 10, 10);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = TimeCryptStorageException.class)
+    public void testFailedPageIsReported() {
+        CompletableFuture<PagingIterator.Page<Chunk>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new RuntimeException("No node was available"));
+        new PagingIterator<>(failed).hasNext();
+    }
+
+    @Test
+    public void testStorageRangesSkipMissingChunks() throws Exception {
+        for (IStorage storage : new IStorage[]{new DebugStorage(), new OffHeapStorage()}) {
+            for (int key = 0; key < 100; key++) {
+                if (key % 10 != 3)
+                    storage.putChunk(1, "owner", new Chunk(key, data(key)));
+            }
+            Iterator<Chunk> chunks = storage.getChunkRange(1, "owner", 0, 100);
+            for (int key = 0; key < 100; key++) {
+                if (key % 10 == 3)
+                    continue;
+                assertEquals(key, chunks.next().getStorageKey());
+            }
+            assertFalse(chunks.hasNext());
+            assertFalse(storage.getChunkRange(2, "owner", 0, 100).hasNext());
+        }
+    }
+
+    @Test
+    public void benchmarkRangeReads() {
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+        try {
+            AtomicInteger fetches = new AtomicInteger(0);
+            long start = System.nanoTime();
+            Iterator<Chunk> chunks = new PagingIterator<>(StubbedPage.query(executor, fetches, 0, NUM_CHUNKS));
+            long bytes = 0;
+            while (chunks.hasNext()) {
+                bytes += chunks.next().getData().length;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            assertEquals(3L * NUM_CHUNKS, bytes);
+
+            // a round trip per chunk, as with single-row reads
+            int numSingle = 500;
+            long startSingle = System.nanoTime();
+            for (int key = 0; key < numSingle; key++) {
+                new PagingIterator<>(StubbedPage.query(executor, fetches, key, key + 1)).next();
+            }
+            double secondsSingle = (System.nanoTime() - startSingle) / 1e9;
+            System.out.format("paged range: %.0f chunks/s, single reads: %.0f chunks/s%n", NUM_CHUNKS / seconds,
+                    numSingle / secondsSingle);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+import ch.ethz.dsg.timecrypt.db.DeferredTreeWriter;
+import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
+import ch.ethz.dsg.timecrypt.index.blockindex.INodeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.UpdateSummary;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestDeferredTreeWrites {
+
+    private static final String USER = "user";
+    private static final long UID = 1;
+    private static final int K = 4;
+
+    private Path directory;
+
+    /**
+     * Stands in for the tree tables of cassandra and counts the row writes. While crashed the writes are lost.
+     */
+    private static class CountingStore implements DeferredTreeWriter.TreeStore {
+        private final Map<Long, BlockNode> blocks = new ConcurrentHashMap<>();
+        private final AtomicInteger rowWrites = new AtomicInteger(0);
+        private volatile BlockNode root = null;
+        private volatile boolean crashed = false;
+
+        @Override
+        public CompletionStage<Void> insertTree(String user, long uid, BlockNode rootnode, int verison, int k) {
+            rowWrites.incrementAndGet();
+            if (!crashed)
+                root = rootnode;
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletionStage<Void> insertBlocks(String user, long uid, List<BlockNode> nodes) {
+            rowWrites.addAndGet(nodes.size());
+            if (crashed)
+                return CompletableFuture.completedFuture(null);
+            for (BlockNode node : nodes) {
+                blocks.put(node.getId(), node);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Writes like the cassandra node manager: every node of the update and the root row, or only the sealed nodes
+     * through the deferred writer.
+     */
+    private static class StoreNodeManager implements INodeManager {
+        private final CountingStore store;
+        private final DeferredTreeWriter deferred;
+
+        StoreNodeManager(CountingStore store, DeferredTreeWriter deferred) {
+            this.store = store;
+            this.deferred = deferred;
+        }
+
+        @Override
+        public BlockNode loadNode(long id) {
+            BlockNode node = (deferred == null) ? null : deferred.getNode(USER, UID, id);
+            return (node != null) ? node : store.blocks.get(id);
+        }
+
+        @Override
+        public void pushUpdates(UpdateSummary summary) throws Exception {
+            if (deferred != null) {
+                deferred.push(USER, UID, summary).toCompletableFuture().get();
+                return;
+            }
+            CompletionStage<Void> res = store.insertBlocks(USER, UID, summary.getNewNodes());
+            CompletionStage<Void> resTree = store.insertTree(USER, UID, summary.getNewRoot(), summary.version,
+                    summary.k);
+            CompletableFuture.allOf(res.toCompletableFuture(), resTree.toCompletableFuture()).get();
+        }
+
+        @Override
+        public void writeNodes(List<BlockNode> nodes) {
+            store.insertBlocks(USER, UID, nodes);
+        }
+
+        @Override
+        public void updateToLatest(BlockTree tree) {
+        }
+
+        @Override
+        public BlockNode loadNodeWithMinVersion(long blockid, int version) {
+            return loadNode(blockid);
+        }
+
+        @Override
+        public BlockNode loadNodeWithVersionForInsert(long blockid, int version) {
+            return loadNode(blockid);
+        }
+
+        @Override
+        public void updateToLatest(BlockTree tree, int minVersion) {
+        }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitNodeVersion(long blockid, int minVersion) {
+            return CompletableFuture.completedFuture(loadNode(blockid));
+        }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitTreeVersion(int minVersion) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("timecrypt-tree-log");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static List<NodeContent[]> digests(int count, long seed) {
+        Random rand = new Random(seed);
+        List<NodeContent[]> res = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            res.add(new NodeContent[]{new LongNodeContent(rand.nextInt(1000)), new LongNodeContent(1)});
+        }
+        return res;
+    }
+
+    private static BlockTree createTree(CountingStore store, DeferredTreeWriter deferred) {
+        BlockNode root = new BlockNode(0, 0, K, K);
+        store.insertTree(USER, UID, root, 0, K);
+        if (deferred != null)
+            deferred.created(USER, UID, root, K);
+        return new BlockTree(K, root, new StoreNodeManager(store, deferred));
+    }
+
+    private static void insert(BlockTree tree, List<NodeContent[]> digests, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            tree.insert(i, digests.get(i), i, i + 1);
+        }
+    }
+
+    private static void assertSameAggregates(BlockTree expected, BlockTree actual, int numLeaves) throws Exception {
+        Random rand = new Random(5);
+        for (int i = 0; i < 200; i++) {
+            int from = rand.nextInt(numLeaves - 1);
+            int to = from + 1 + rand.nextInt(numLeaves - from);
+            NodeContent[] exp = expected.getAggregation(from, to);
+            NodeContent[] act = actual.getAggregation(from, to);
+            for (int slot = 0; slot < exp.length; slot++) {
+                assertArrayEquals(exp[slot].encode(), act[slot].encode());
+            }
+        }
+    }
+
+    @Test
+    public void testWritesPerInsert() throws Exception {
+        int numLeaves = 4096;
+        List<NodeContent[]> digests = digests(numLeaves, 1);
+
+        CountingStore immediateStore = new CountingStore();
+        BlockTree immediate = createTree(immediateStore, null);
+        int before = immediateStore.rowWrites.get();
+        insert(immediate, digests, 0, numLeaves);
+        double immediateWrites = (immediateStore.rowWrites.get() - before) / (double) numLeaves;
+
+        CountingStore deferredStore = new CountingStore();
+        DeferredTreeWriter deferred = new DeferredTreeWriter(deferredStore, directory, false, 1024, 3600000,
+                DeferredTreeWriter.DEFAULT_MAX_LOG_SIZE);
+        BlockTree tree = createTree(deferredStore, deferred);
+        before = deferredStore.rowWrites.get();
+        insert(tree, digests, 0, numLeaves);
+        double deferredWrites = (deferredStore.rowWrites.get() - before) / (double) numLeaves;
+        deferred.close();
+
+        System.out.format("row writes per insert: %.2f immediate, %.2f deferred%n", immediateWrites,
+                deferredWrites);
+        // the path and the root row on every insert, about one sealed node per k - 1 inserts
+        assertTrue(immediateWrites > 5);
+        assertTrue(deferredWrites < 0.5);
+        assertSameAggregates(immediate, tree, numLeaves);
+    }
+
+    /**
+     * Inserts into a deferred tree, restarts the writer without a checkpoint and continues on the recovered tree.
+     *
+     * @return the number of chunks that were inserted again from the log
+     */
+    private int crashAndRecover(long maxLogSize) throws Exception {
+        int numLeaves = 1000;
+        List<NodeContent[]> digests = digests(numLeaves, 2);
+        CountingStore reference = new CountingStore();
+        BlockTree expected = createTree(reference, null);
+        insert(expected, digests, 0, numLeaves);
+
+        CountingStore store = new CountingStore();
+        DeferredTreeWriter deferred = new DeferredTreeWriter(store, directory, false, 100, 3600000, maxLogSize);
+        BlockTree tree = createTree(store, deferred);
+        insert(tree, digests, 0, 700);
+        tree.insertBatch(700, digests.subList(700, 750));
+        insert(tree, digests, 750, 777);
+        // the store only holds the last checkpoint
+        assertEquals(700, store.root.getVersion());
+
+        // the checkpoints of the shutdown are lost, the new writer reads the same log
+        store.crashed = true;
+        deferred.close();
+        store.crashed = false;
+        assertEquals(700, store.root.getVersion());
+        DeferredTreeWriter recovered = new DeferredTreeWriter(store, directory, false, 100, 3600000, maxLogSize);
+        AtomicInteger replayed = new AtomicInteger(0);
+        recovered.recover((user, uid, recoveredTree, firstChunk, leaves) -> {
+            recoveredTree.setMan(new StoreNodeManager(store, recovered));
+            recoveredTree.insertBatch(firstChunk, leaves);
+            replayed.addAndGet(leaves.size());
+        });
+        assertEquals(777, store.root.getVersion());
+
+        BlockTree restarted = recovered.getTree(USER, UID);
+        assertEquals(777, restarted.root.getVersion());
+        restarted.setMan(new StoreNodeManager(store, recovered));
+        insert(restarted, digests, 777, numLeaves);
+        assertSameAggregates(expected, restarted, numLeaves);
+
+        // a tree that is read from the store is complete up to the checkpoint
+        recovered.close();
+        BlockTree stored = new BlockTree(K, store.root, new StoreNodeManager(store, null));
+        assertEquals(numLeaves, stored.root.getVersion());
+        assertSameAggregates(expected, stored, numLeaves);
+        return replayed.get();
+    }
+
+    @Test
+    public void testRecoveryReplaysTheDigests() throws Exception {
+        // the log was not compacted, the digests are inserted again from the creation of the tree
+        assertEquals(777, crashAndRecover(DeferredTreeWriter.DEFAULT_MAX_LOG_SIZE));
+    }
+
+    @Test
+    public void testRecoveryAfterCompaction() throws Exception {
+        // the log is compacted while the inserts run, a compaction checkpoints the right edge into the log
+        assertTrue(crashAndRecover(4096) < 777);
+    }
+
+    @Test
+    public void testDroppedTreesAreNotRecovered() throws Exception {
+        CountingStore store = new CountingStore();
+        DeferredTreeWriter deferred = new DeferredTreeWriter(store, directory, false);
+        BlockTree tree = createTree(store, deferred);
+        insert(tree, digests(10, 3), 0, 10);
+        deferred.drop(USER, UID);
+        deferred.close();
+
+        DeferredTreeWriter recovered = new DeferredTreeWriter(store, directory, false);
+        recovered.recover((user, uid, recoveredTree, firstChunk, leaves) -> {
+            throw new AssertionError("The tree was deleted");
+        });
+        assertEquals(null, recovered.getTree(USER, UID));
+        recovered.close();
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.server.RequestExecutors;
+import ch.ethz.dsg.timecrypt.server.VirtualThreads;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs a mixed workload on the request executors: inserts that block like a write to cassandra, and queries of which
+ * some block like a read from cassandra. The requests are dispatched from a single thread, like the handler of a
+ * Netty channel does.
+ */
+public class TestExecutorModes {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestExecutorModes.class);
+
+    private static final int THREADS = 8;
+    private static final String OWNER = "owner";
+
+    private ExecutorService sharedPool;
+    private final List<RequestExecutors> created = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        // stands in for the event executor group of the Netty handlers
+        sharedPool = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        created.forEach(RequestExecutors::close);
+        sharedPool.shutdownNow();
+    }
+
+    private RequestExecutors create(RequestExecutors.Mode mode, int queueSize) {
+        RequestExecutors executors;
+        switch (mode) {
+            case SPLIT:
+                executors = RequestExecutors.split(THREADS / 2, THREADS, queueSize);
+                break;
+            case VIRTUAL:
+                executors = RequestExecutors.virtual(THREADS / 2, queueSize);
+                break;
+            default:
+                executors = RequestExecutors.shared(sharedPool, THREADS);
+        }
+        created.add(executors);
+        return executors;
+    }
+
+    private static List<RequestExecutors.Mode> availableModes() {
+        List<RequestExecutors.Mode> modes = new ArrayList<>(Arrays.asList(RequestExecutors.Mode.values()));
+        if (!VirtualThreads.isAvailable())
+            modes.remove(RequestExecutors.Mode.VIRTUAL);
+        return modes;
+    }
+
+    private static void block(long micros) {
+        if (micros > 0)
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+
+    private static class Result {
+        long nanos;
+        long[] queryLatencies;
+        List<List<Integer>> applied;
+
+        long percentileMicros(double percentile) {
+            long[] sorted = queryLatencies.clone();
+            Arrays.sort(sorted);
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile / 100 * sorted.length) - 1);
+            return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, index)]);
+        }
+    }
+
+    /**
+     * Dispatches numInserts inserts per stream, and a query after every insert of which every blockEvery-th blocks.
+     */
+    private static Result run(RequestExecutors executors, int numStreams, int numInserts, long insertMicros,
+                              long queryMicros, int blockEvery) throws InterruptedException {
+        int numRequests = numStreams * numInserts;
+        CountDownLatch done = new CountDownLatch(2 * numRequests);
+        Result result = new Result();
+        result.queryLatencies = new long[numRequests];
+        result.applied = new ArrayList<>();
+        for (int stream = 0; stream < numStreams; stream++) {
+            result.applied.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < numInserts; i++) {
+            for (int stream = 0; stream < numStreams; stream++) {
+                int key = i;
+                List<Integer> applied = result.applied.get(stream);
+                executors.forStream(stream, OWNER).execute(() -> {
+                    block(insertMicros);
+                    applied.add(key);
+                    done.countDown();
+                });
+
+                int query = i * numStreams + stream;
+                long sent = System.nanoTime();
+                executors.forQueries().execute(() -> {
+                    block((query % blockEvery == 0) ? queryMicros : 0);
+                    result.queryLatencies[query] = System.nanoTime() - sent;
+                    done.countDown();
+                });
+            }
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    @Test
+    public void testInsertsOfAStreamKeepTheirOrder() throws InterruptedException {
+        for (RequestExecutors.Mode mode : availableModes()) {
+            Random rand = new Random(1);
+            RequestExecutors executors = create(mode, RequestExecutors.DEFAULT_QUEUE_SIZE);
+            int numStreams = 5;
+            int numInserts = 200;
+            List<List<Integer>> applied = new ArrayList<>();
+            CountDownLatch done = new CountDownLatch(numStreams * numInserts);
+            for (int stream = 0; stream < numStreams; stream++) {
+                applied.add(Collections.synchronizedList(new ArrayList<>()));
+            }
+            for (int i = 0; i < numInserts; i++) {
+                for (int stream = 0; stream < numStreams; stream++) {
+                    int key = i;
+                    long micros = rand.nextInt(50);
+                    List<Integer> stored = applied.get(stream);
+                    executors.forStream(stream, OWNER).execute(() -> {
+                        block(micros);
+                        stored.add(key);
+                        done.countDown();
+                    });
+                }
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            for (List<Integer> stored : applied) {
+                assertEquals(mode.name(), numInserts, stored.size());
+                for (int i = 0; i < numInserts; i++) {
+                    assertEquals(mode.name(), i, (int) stored.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFullQueuesRejectRequests() throws InterruptedException {
+        RequestExecutors executors = RequestExecutors.split(1, 1, 2);
+        created.add(executors);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+        Runnable blocking = () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        };
+        executors.forStream(1, OWNER).execute(blocking);
+        executors.forQueries().execute(blocking);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // the stripe queues two inserts behind the running one, the query pool one query
+        executors.forStream(1, OWNER).execute(done::countDown);
+        executors.forStream(1, OWNER).execute(done::countDown);
+        assertRejected(executors.forStream(1, OWNER));
+        executors.forQueries().execute(() -> {});
+        executors.forQueries().execute(() -> {});
+        assertRejected(executors.forQueries());
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        // the queued requests ran on the pools, not on this thread, and the queues take requests again
+        CountDownLatch accepted = new CountDownLatch(1);
+        executors.forStream(1, OWNER).execute(accepted::countDown);
+        assertTrue(accepted.await(10, TimeUnit.SECONDS));
+    }
+
+    private static void assertRejected(Executor executor) {
+        Thread dispatcher = Thread.currentThread();
+        try {
+            executor.execute(() -> assertNotSame(dispatcher, Thread.currentThread()));
+            fail("The queue is full");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBlockingInsertsDoNotDelayQueriesWithSplitPools() throws InterruptedException {
+        // the inserts of the shared pool take about 200 ms
+        Result shared = run(create(RequestExecutors.Mode.SHARED, 0), 16, 20, 5000, 0, 1);
+        Result split = run(create(RequestExecutors.Mode.SPLIT, RequestExecutors.DEFAULT_QUEUE_SIZE), 16, 20, 5000, 0,
+                1);
+        assertTrue("shared p99 " + shared.percentileMicros(99) + " us, split p99 " + split.percentileMicros(99)
+                + " us", split.percentileMicros(99) * 4 < shared.percentileMicros(99));
+        assertTrue(split.percentileMicros(99) < TimeUnit.MILLISECONDS.toMicros(50));
+    }
+
+    @Test
+    public void benchmarkMixedBlockingWorkload() throws InterruptedException {
+        Benchmarks.assumeEnabled();
+        int numStreams = 32;
+        int numInserts = 50;
+        long[][] workloads = {
+                // insert micros, query micros, every n-th query blocks
+                {0, 0, 1},
+                {1000, 0, 1},
+                {1000, 2000, 10},
+                {1000, 2000, 2},
+        };
+        LOGGER.info("mode     insert us  query us  blocking   requests/s   query p50 us   query p99 us");
+        for (long[] workload : workloads) {
+            for (RequestExecutors.Mode mode : availableModes()) {
+                // the queues take all requests, none is rejected
+                Result result = run(create(mode, numStreams * numInserts), numStreams, numInserts, workload[0],
+                        workload[1], (int) workload[2]);
+                for (List<Integer> applied : result.applied) {
+                    assertEquals(numInserts, applied.size());
+                }
+                double requestsPerSecond = 2.0 * numStreams * numInserts / (result.nanos / 1e9);
+                LOGGER.info(String.format("%-8s %9d %9d %7s %14.0f %14d %14d", mode, workload[0],
+                        workload[1], "1/" + workload[2], requestsPerSecond, result.percentileMicros(50),
+                        result.percentileMicros(99)));
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.crypto.BigintMacNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.CryptoContentFactory;
+import ch.ethz.dsg.timecrypt.crypto.encryption.MACCheckFailed;
+import ch.ethz.dsg.timecrypt.crypto.encryption.TimeCryptEncryptionBIPlus;
+import ch.ethz.dsg.timecrypt.crypto.encryption.hoMAC.HoMAC;
+import ch.ethz.dsg.timecrypt.crypto.keyRegression.IKeyRegression;
+import ch.ethz.dsg.timecrypt.crypto.keyRegression.TreeKeyRegressionFactory;
+import ch.ethz.dsg.timecrypt.crypto.prf.PRFFactory;
+import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
+import ch.ethz.dsg.timecrypt.index.blockindex.DebugBlockTreeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNodeCodec;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNodeView;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.MetaInnerNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Encrypts with the client library, aggregates on the server and verifies and decrypts the aggregates on the client.
+ */
+public class TestMacAggregation {
+
+    private static final int NUM_CHUNKS = 50;
+
+    private static TimeCryptEncryptionBIPlus encryption(Random rand, int numBits) {
+        IKeyRegression reg = TreeKeyRegressionFactory.getNewDefaultTESTKeyRegression(PRFFactory.getDefaultPRF(), 20);
+        BigInteger macKey = new BigInteger(128, rand).mod(HoMAC.PRIME);
+        return numBits > 0 ? new TimeCryptEncryptionBIPlus(reg, macKey, numBits)
+                : new TimeCryptEncryptionBIPlus(reg, macKey);
+    }
+
+    private static BigintMacNodeContent encrypt(TimeCryptEncryptionBIPlus enc, long value, long chunk) {
+        TimeCryptEncryptionBIPlus.TCAuthBICiphertext ciphertext =
+                enc.encryptMetadata(BigInteger.valueOf(value), chunk, 0);
+        // the way the server receives the content
+        return new BigintMacNodeContent(ciphertext.getCiphertext(), ciphertext.getAuthCode());
+    }
+
+    private static long decrypt(TimeCryptEncryptionBIPlus enc, NodeContent content, long from, long to)
+            throws MACCheckFailed {
+        BigintMacNodeContent aggregate = (BigintMacNodeContent) content;
+        return enc.decryptMetadata(new TimeCryptEncryptionBIPlus.TCAuthBICiphertext(aggregate.getContent(),
+                aggregate.getMac()), from, to, 0).longValueExact();
+    }
+
+    private static void assertTreeAggregatesVerify(int numBits, boolean columnar) throws Exception {
+        Random rand = new Random(numBits);
+        TimeCryptEncryptionBIPlus enc = encryption(rand, numBits);
+        BlockTree tree = new DebugBlockTreeManager().createTree(1, "1", 4, 1);
+        tree.setColumnarAggregation(columnar);
+        long[] prefix = new long[NUM_CHUNKS + 1];
+        for (int chunk = 0; chunk < NUM_CHUNKS; chunk++) {
+            long value = rand.nextInt(1 << 20);
+            prefix[chunk + 1] = prefix[chunk] + value;
+            tree.insert(chunk, new NodeContent[]{encrypt(enc, value, chunk)}, chunk, chunk + 1);
+            tree.updateToLatest();
+        }
+        for (int from = 0; from < NUM_CHUNKS; from++) {
+            for (int to = from + 1; to <= NUM_CHUNKS; to++) {
+                NodeContent content = tree.getAggregation(from, to)[0];
+                // through the storage encoding as well
+                content = CryptoContentFactory.decodeNodeContent(content.encode());
+                assertEquals(prefix[to] - prefix[from], decrypt(enc, content, from, to - 1));
+            }
+        }
+    }
+
+    @Test
+    public void testTreeAggregatesVerifyWith128BitCiphertexts() throws Exception {
+        assertTreeAggregatesVerify(128, false);
+        assertTreeAggregatesVerify(128, true);
+    }
+
+    @Test
+    public void testTreeAggregatesVerifyWithCiphertextsModuloThePrime() throws Exception {
+        assertTreeAggregatesVerify(0, false);
+        assertTreeAggregatesVerify(0, true);
+    }
+
+    @Test
+    public void testBinaryNodeAggregatesVerify() throws Exception {
+        Random rand = new Random(3);
+        TimeCryptEncryptionBIPlus enc = encryption(rand, 128);
+        int k = 64;
+        MetaInnerNode[] children = new MetaInnerNode[k];
+        long[] prefix = new long[k + 1];
+        for (int chunk = 0; chunk < k; chunk++) {
+            long value = rand.nextInt(1 << 20);
+            prefix[chunk + 1] = prefix[chunk] + value;
+            children[chunk] = new MetaInnerNode(new NodeContent[]{encrypt(enc, value, chunk)});
+        }
+        BlockNodeView view = new BlockNodeView(ByteBuffer.wrap(BlockNodeCodec.encode(children)));
+        for (int from = 0; from < k; from++) {
+            for (int to = from + 1; to <= k; to++) {
+                assertEquals(prefix[to] - prefix[from], decrypt(enc, view.aggregate(from, to)[0], from, to - 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+import ch.ethz.dsg.timecrypt.db.mmap.MmapBlockTreeManager;
+import ch.ethz.dsg.timecrypt.db.mmap.MmapDatabase;
+import ch.ethz.dsg.timecrypt.db.mmap.MmapStorage;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
+import ch.ethz.dsg.timecrypt.index.Chunk;
+import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
+import ch.ethz.dsg.timecrypt.index.blockindex.DebugBlockTreeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestMmapStorage {
+
+    private static final int SEGMENT_SIZE = 1 << 20;
+    private static final int NUM_SLOTS = 3;
+    private static final int K = 16;
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("timecrypt-mmap");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private MmapDatabase open() throws IOException {
+        return new MmapDatabase(directory, SEGMENT_SIZE, false);
+    }
+
+    private static byte[] createData(Random rand, int size) {
+        byte[] data = new byte[size];
+        rand.nextBytes(data);
+        return data;
+    }
+
+    private static void insert(BlockTree tree, BlockTree expected, Random values, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            NodeContent[] content = new NodeContent[NUM_SLOTS];
+            for (int slot = 0; slot < NUM_SLOTS; slot++) {
+                content[slot] = new LongNodeContent(values.nextLong());
+            }
+            tree.insert(i, content, i, i + 1);
+            expected.insert(i, content, i, i + 1);
+            expected.updateToLatest();
+        }
+    }
+
+    private static void assertSameAggregations(BlockTree expected, BlockTree tree, int numLeaves) throws Exception {
+        Random rand = new Random(5);
+        for (int i = 0; i < 2000; i++) {
+            int from = rand.nextInt(numLeaves - 1);
+            int to = from + 1 + rand.nextInt(numLeaves - from);
+            NodeContent[] a = tree.getAggregation(from, to);
+            NodeContent[] b = expected.getAggregation(from, to);
+            for (int slot = 0; slot < NUM_SLOTS; slot++) {
+                assertEquals(b[slot].getStringRepresentation(), a[slot].getStringRepresentation());
+            }
+        }
+    }
+
+    @Test
+    public void testChunksSurviveRestart() throws Exception {
+        Random rand = new Random(1);
+        byte[][] expected = new byte[5000][];
+        try (MmapDatabase db = open()) {
+            MmapStorage storage = new MmapStorage(db);
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = createData(rand, rand.nextInt(300));
+                storage.putChunk(1, "owner", new Chunk(i, expected[i]));
+            }
+            for (int i = 0; i < expected.length; i += 3) {
+                expected[i] = createData(rand, rand.nextInt(300));
+                storage.putChunk(1, "owner", new Chunk(i, expected[i]));
+            }
+            assertTrue(storage.deleteChunk(1, "owner", 7));
+            expected[7] = null;
+            storage.putChunk(2, "owner", new Chunk(0, createData(rand, 10)));
+            storage.deleteALL(2, "owner");
+        }
+        try (MmapDatabase db = open()) {
+            MmapStorage storage = new MmapStorage(db);
+            for (int i = 0; i < expected.length; i++) {
+                Chunk chunk = storage.getChunk(1, "owner", i);
+                if (expected[i] == null)
+                    assertNull(chunk);
+                else
+                    assertArrayEquals(expected[i], chunk.getData());
+            }
+            assertEquals(99, storage.getChunks(1, "owner", 0, 100).size());
+            assertNull(storage.getChunk(2, "owner", 0));
+        }
+    }
+
+    @Test
+    public void testTreeSurvivesRestart() throws Exception {
+        int numLeaves = 5000;
+        Random values = new Random(2);
+        BlockTree expected = new DebugBlockTreeManager().createTree(1, "1", K, 1);
+        try (MmapDatabase db = open()) {
+            BlockTree tree = new MmapBlockTreeManager(db, 64).createTree(1, "1", K, 1);
+            insert(tree, expected, values, 0, numLeaves / 2);
+        }
+        try (MmapDatabase db = open()) {
+            BlockTree tree = new MmapBlockTreeManager(db, 64).fetchTree(1, "1");
+            insert(tree, expected, values, numLeaves / 2, numLeaves);
+        }
+        try (MmapDatabase db = open()) {
+            MmapBlockTreeManager man = new MmapBlockTreeManager(db, 64);
+            assertSameAggregations(expected, man.fetchTree(1, "1"), numLeaves);
+            man.deleteTree(1, "1");
+            assertNull(man.fetchTree(1, "1"));
+        }
+        try (MmapDatabase db = open()) {
+            MmapBlockTreeManager man = new MmapBlockTreeManager(db, 64);
+            assertNull(man.fetchTree(1, "1"));
+            man.createTree(1, "1", K, 1);
+        }
+        try (MmapDatabase db = open()) {
+            // the number of the deleted tree is not reused, its records in the segments do not show up again
+            assertEquals(0, new MmapBlockTreeManager(db, 64).fetchTree(1, "1").root.getVersion());
+        }
+    }
+
+    @Test
+    public void testInsertIntoADeletedTreeFails() throws Exception {
+        Random values = new Random(8);
+        try (MmapDatabase db = open()) {
+            MmapBlockTreeManager man = new MmapBlockTreeManager(db, 64);
+            BlockTree tree = man.createTree(1, "1", K, 1);
+            BlockTree expected = new DebugBlockTreeManager().createTree(1, "1", K, 1);
+            insert(tree, expected, values, 0, 10);
+            man.deleteTree(1, "1");
+            try {
+                insert(tree, expected, values, 10, 11);
+                fail("The tree was deleted");
+            } catch (TimeCryptTreeException | IOException e) {
+                // expected
+            }
+        }
+        // the log names no commit of the deleted tree
+        try (MmapDatabase db = open()) {
+            assertNull(new MmapBlockTreeManager(db, 64).fetchTree(1, "1"));
+        }
+    }
+
+    @Test
+    public void testConcurrentDeleteLeavesARecoverableLog() throws Exception {
+        Random values = new Random(9);
+        Random rand = new Random(10);
+        for (int round = 0; round < 100; round++) {
+            try (MmapDatabase db = open()) {
+                MmapBlockTreeManager man = new MmapBlockTreeManager(db, 64);
+                BlockTree tree = man.createTree(round, "1", K, 1);
+                BlockTree expected = new DebugBlockTreeManager().createTree(round, "1", K, 1);
+                Thread inserts = new Thread(() -> {
+                    try {
+                        insert(tree, expected, values, 0, 1000);
+                    } catch (Exception e) {
+                        // the tree was deleted
+                    }
+                });
+                inserts.start();
+                // let the inserts run into the delete
+                LockSupport.parkNanos(rand.nextInt(2000000));
+                man.deleteTree(round, "1");
+                inserts.join();
+            }
+            try (MmapDatabase db = open()) {
+                assertNull(new MmapBlockTreeManager(db, 64).fetchTree(round, "1"));
+            }
+        }
+    }
+
+    @Test
+    public void testTornTailIsCutOff() throws Exception {
+        Random rand = new Random(3);
+        byte[] data = createData(rand, 100);
+        try (MmapDatabase db = open()) {
+            new MmapStorage(db).putChunk(1, "owner", new Chunk(0, data));
+            new MmapStorage(db).putChunk(1, "owner", new Chunk(1, data));
+        }
+        // flip a byte in the second record, as if the process died while writing it
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.filter(file -> file.toString().endsWith(".seg")).findFirst().get();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), 2 * (8 + 29 + data.length) - 1);
+        }
+        try (MmapDatabase db = open()) {
+            MmapStorage storage = new MmapStorage(db);
+            assertArrayEquals(data, storage.getChunk(1, "owner", 0).getData());
+            assertNull(storage.getChunk(1, "owner", 1));
+            storage.putChunk(1, "owner", new Chunk(2, data));
+        }
+        try (MmapDatabase db = open()) {
+            assertArrayEquals(data, new MmapStorage(db).getChunk(1, "owner", 2).getData());
+        }
+    }
+
+    @Test
+    public void testCompactionKeepsLiveRecords() throws Exception {
+        Random rand = new Random(4);
+        byte[][] expected = new byte[100][];
+        try (MmapDatabase db = open()) {
+            MmapStorage storage = new MmapStorage(db);
+            // rewrite the same chunks, so most of the sealed segments are garbage
+            for (int round = 0; round < 50; round++) {
+                for (int i = 0; i < expected.length; i++) {
+                    expected[i] = createData(rand, 1000);
+                    storage.putChunk(1, "owner", new Chunk(i, expected[i]));
+                }
+            }
+            int before = db.getNumSegments();
+            db.compact();
+            assertTrue(db.getNumSegments() < before);
+            for (int i = 0; i < expected.length; i++) {
+                assertArrayEquals(expected[i], storage.getChunk(1, "owner", i).getData());
+            }
+        }
+        try (MmapDatabase db = open()) {
+            MmapStorage storage = new MmapStorage(db);
+            for (int i = 0; i < expected.length; i++) {
+                assertArrayEquals(expected[i], storage.getChunk(1, "owner", i).getData());
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkNodeReads() throws Exception {
+        int numLeaves = 100000;
+        try (MmapDatabase db = open()) {
+            // no node cache, every read goes to the mapped segments
+            MmapBlockTreeManager man = new MmapBlockTreeManager(db, 0);
+            BlockTree tree = man.createTree(1, "1", K, 1);
+            insert(tree, new DebugBlockTreeManager().createTree(1, "1", K, 1), new Random(6), 0, numLeaves);
+            BlockTree reopened = new MmapBlockTreeManager(db, 0).fetchTree(1, "1");
+            int numReads = 100000;
+            long[] latencies = new long[numReads];
+            Random rand = new Random(7);
+            for (int i = 0; i < numReads; i++) {
+                int leaf = rand.nextInt(numLeaves);
+                long start = System.nanoTime();
+                reopened.getAggregation(leaf, leaf + 1);
+                latencies[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(latencies);
+            System.out.format("mmap leaf aggregation: p50 %.1f us, p99 %.1f us%n", latencies[numReads / 2] / 1e3,
+                    latencies[numReads * 99 / 100] / 1e3);
+        }
+    }
+}
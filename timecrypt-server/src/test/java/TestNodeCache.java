@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.crypto.BigintMacNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.BigintNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.LongMacNodeNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+import ch.ethz.dsg.timecrypt.index.blockindex.NodeCache;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.HeapSize;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.MetaInnerNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestNodeCache {
+
+    private static BlockNode node(int k, int slots, int from, Function<Random, NodeContent> content, Random rand) {
+        MetaInnerNode[] children = new MetaInnerNode[k];
+        for (int i = 0; i < k; i++) {
+            NodeContent[] contents = new NodeContent[slots];
+            for (int slot = 0; slot < slots; slot++) {
+                contents[slot] = content.apply(rand);
+            }
+            children[i] = new MetaInnerNode(contents);
+        }
+        return new BlockNode(1, from, from + k, children);
+    }
+
+    private static BigInteger mac(Random rand) {
+        return new BigInteger(128, rand).setBit(127);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    /**
+     * Allocates the nodes and compares the growth of the heap with the estimated size of the nodes.
+     */
+    private static void assertEstimateMatchesHeap(String name, int count, int k, int slots,
+                                                  Function<Random, NodeContent> content) throws Exception {
+        Random rand = new Random(1);
+        long before = usedHeap();
+        BlockNode[] nodes = new BlockNode[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = node(k, slots, i * k, content, rand);
+        }
+        long measured = usedHeap() - before;
+
+        long estimated = HeapSize.referenceArray(count);
+        for (BlockNode node : nodes) {
+            estimated += node.retainedSize();
+        }
+        double error = Math.abs(estimated - measured) / (double) measured;
+        System.out.format("%s: %d bytes per node estimated, %d bytes measured (%.1f%% off)%n", name,
+                estimated / count, measured / count, error * 100);
+        assertEquals(count, nodes.length);
+        assertTrue(name + " is off by " + error, error < 0.15);
+    }
+
+    @Test
+    public void testSizeEstimatorMatchesTheHeap() throws Exception {
+        assertEstimateMatchesHeap("k=2, 2 longs", 50000, 2, 2, rand -> new LongNodeContent(rand.nextLong()));
+        assertEstimateMatchesHeap("k=16, 4 longs with mac", 3000, 16, 4,
+                rand -> new LongMacNodeNodeContent(rand.nextLong(), mac(rand)));
+        assertEstimateMatchesHeap("k=16, 3 bigints", 3000, 16, 3, rand -> new BigintNodeContent(mac(rand)));
+        assertEstimateMatchesHeap("k=64, 10 bigints with mac", 150, 64, 10,
+                rand -> new BigintMacNodeContent(mac(rand), mac(rand)));
+    }
+
+    @Test
+    public void testLargeNodesWeighMore() {
+        Random rand = new Random(2);
+        long small = node(2, 2, 0, r -> new LongNodeContent(r.nextLong()), rand).retainedSize();
+        long large = node(64, 10, 0, r -> new BigintMacNodeContent(mac(r), mac(r)), rand).retainedSize();
+        assertTrue(large > 100 * small);
+    }
+
+    private static String ownerOf(String key) {
+        return key.substring(0, key.indexOf('|'));
+    }
+
+    @Test
+    public void testHeavyOwnerDoesNotFlushTheOthers() {
+        long budget = 4L << 20;
+        NodeCache<String, BlockNode> cache = new NodeCache<>(budget, NodeCache.ownerQuota(budget, 25),
+                TestNodeCache::ownerOf, BlockNode::retainedSize);
+        Random rand = new Random(3);
+        int hot = 20;
+        for (int i = 0; i < hot; i++) {
+            cache.put("light|" + i, node(16, 4, i * 16, r -> new LongNodeContent(r.nextLong()), rand));
+        }
+        long light = cache.ownerSize("light");
+
+        // scans ten times the budget
+        long scanned = 0;
+        for (int i = 0; scanned < 10 * budget; i++) {
+            BlockNode node = node(64, 10, i * 64, r -> new BigintMacNodeContent(mac(r), mac(r)), rand);
+            scanned += node.retainedSize();
+            cache.put("heavy|" + i, node);
+            for (int j = 0; j < hot; j += 5) {
+                assertNotNull(cache.getIfPresent("light|" + j));
+            }
+        }
+        for (int i = 0; i < hot; i++) {
+            assertNotNull(cache.getIfPresent("light|" + i));
+        }
+        assertEquals(light, cache.ownerSize("light"));
+        assertTrue(cache.weightedSize() <= budget);
+        System.out.format("budget %d KB: light user %d KB, heavy user %d KB%n", budget >> 10, light >> 10,
+                cache.ownerSize("heavy") >> 10);
+    }
+
+    @Test
+    public void testUsageFollowsTheEntries() {
+        NodeCache<String, BlockNode> cache = new NodeCache<>(1L << 30, 1L << 30, TestNodeCache::ownerOf,
+                BlockNode::retainedSize);
+        Random rand = new Random(4);
+        BlockNode first = node(4, 2, 0, r -> new LongNodeContent(r.nextLong()), rand);
+        BlockNode larger = node(16, 2, 0, r -> new LongNodeContent(r.nextLong()), rand);
+        cache.put("a|1", first);
+        assertEquals(NodeCache.ENTRY_OVERHEAD + first.retainedSize(), cache.weightedSize());
+
+        // a replaced entry is released with the weight it was stored with
+        cache.put("a|1", larger);
+        assertEquals(NodeCache.ENTRY_OVERHEAD + larger.retainedSize(), cache.ownerSize("a"));
+        assertEquals(larger, cache.compute("a|1", (key, current) -> current));
+        assertEquals(NodeCache.ENTRY_OVERHEAD + larger.retainedSize(), cache.ownerSize("a"));
+
+        cache.put("a|2", first);
+        cache.put("b|1", first);
+        cache.removeIf(key -> key.startsWith("a|"));
+        assertEquals(0, cache.ownerSize("a"));
+        assertEquals(NodeCache.ENTRY_OVERHEAD + first.retainedSize(), cache.weightedSize());
+        cache.invalidateAll();
+        assertEquals(0, cache.weightedSize());
+    }
+}
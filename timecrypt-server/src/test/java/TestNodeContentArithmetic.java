@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.crypto.BigintMacNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.BigintNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.CryptoContentFactory;
+import ch.ethz.dsg.timecrypt.crypto.LongMacNodeNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.UInt128;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestNodeContentArithmetic {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestNodeContentArithmetic.class);
+
+    private static final BigInteger MOD_128 = BigInteger.ONE.shiftLeft(128);
+    private static final BigInteger PRIME = UInt128.PRIME;
+    private static final int ROUNDS = 200000;
+
+    private static final BigInteger[] EDGES = {
+            BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(159), BigInteger.valueOf(Long.MAX_VALUE),
+            BigInteger.ONE.shiftLeft(63), BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE),
+            BigInteger.ONE.shiftLeft(64), BigInteger.ONE.shiftLeft(127), PRIME.subtract(BigInteger.ONE), PRIME,
+            PRIME.add(BigInteger.ONE), MOD_128.subtract(BigInteger.ONE)};
+
+    /**
+     * @return an edge case, a value of a random width or a value close to the moduli
+     */
+    private static BigInteger value(Random rand) {
+        switch (rand.nextInt(4)) {
+            case 0:
+                return EDGES[rand.nextInt(EDGES.length)];
+            case 1:
+                return new BigInteger(1 + rand.nextInt(128), rand);
+            case 2:
+                BigInteger offset = BigInteger.valueOf(rand.nextInt(2000) - 1000);
+                return PRIME.add(offset);
+            default:
+                return new BigInteger(128, rand);
+        }
+    }
+
+    private static BigInteger mac(Random rand) {
+        return value(rand).mod(PRIME);
+    }
+
+    @Test
+    public void testBigintAddsModulo128() {
+        Random rand = new Random(1);
+        for (int i = 0; i < ROUNDS; i++) {
+            BigInteger a = value(rand), b = value(rand);
+            BigintNodeContent content = new BigintNodeContent(a);
+            content.mergeOther(new BigintNodeContent(b));
+            assertEquals(a.add(b).mod(MOD_128), content.getContent());
+        }
+    }
+
+    @Test
+    public void testMacsAddModuloThePrime() {
+        Random rand = new Random(2);
+        for (int i = 0; i < ROUNDS; i++) {
+            BigInteger a = value(rand), b = value(rand), macA = mac(rand), macB = mac(rand);
+            long l = rand.nextLong(), m = rand.nextLong();
+
+            BigintMacNodeContent content = new BigintMacNodeContent(a, macA);
+            content.mergeOther(new BigintMacNodeContent(b, macB));
+            assertEquals(a.add(b), content.getContent());
+            assertEquals(macA.add(macB).mod(PRIME), content.getMac());
+
+            LongMacNodeNodeContent longContent = new LongMacNodeNodeContent(l, macA);
+            longContent.mergeOther(new LongMacNodeNodeContent(m, macB));
+            assertEquals(l + m, longContent.getLong());
+            assertEquals(macA.add(macB).mod(PRIME), longContent.getMac());
+        }
+    }
+
+    @Test
+    public void testAggregatesLikeTheReference() {
+        Random rand = new Random(3);
+        for (int round = 0; round < 200; round++) {
+            BigintMacNodeContent sum = new BigintMacNodeContent(BigInteger.ZERO, BigInteger.ZERO);
+            BigInteger content = BigInteger.ZERO, mac = BigInteger.ZERO;
+            for (int i = 0; i < 500; i++) {
+                BigInteger value = value(rand), valueMac = mac(rand);
+                NodeContent other = new BigintMacNodeContent(value, valueMac);
+                sum = (BigintMacNodeContent) sum.mergeOtherCopy(other);
+                content = content.add(value);
+                mac = mac.add(valueMac);
+            }
+            assertEquals(content, sum.getContent());
+            assertEquals(mac.mod(PRIME), sum.getMac());
+        }
+    }
+
+    @Test
+    public void testMacContentsKeepTheCarries() {
+        BigInteger max = MOD_128.subtract(BigInteger.ONE);
+        BigintMacNodeContent sum = new BigintMacNodeContent(max, BigInteger.ONE);
+        BigInteger content = max;
+        for (int i = 0; i < 1000; i++) {
+            sum.mergeOther(new BigintMacNodeContent(max, BigInteger.ONE));
+            content = content.add(max);
+        }
+        assertEquals(content, sum.getContent());
+        assertTrue(sum.getTop() > 0);
+        BigintMacNodeContent decoded = (BigintMacNodeContent) CryptoContentFactory.decodeNodeContent(sum.encode());
+        assertEquals(content, decoded.getContent());
+        assertEquals(BigInteger.valueOf(1001), decoded.getMac());
+    }
+
+    @Test
+    public void testReducesWideAndNegativeValues() {
+        Random rand = new Random(4);
+        for (int i = 0; i < ROUNDS / 10; i++) {
+            BigInteger wide = new BigInteger(129 + rand.nextInt(200), rand);
+            if (rand.nextBoolean())
+                wide = wide.negate();
+            assertEquals(wide.mod(MOD_128), new BigintNodeContent(wide).getContent());
+            assertEquals(wide.mod(PRIME), new BigintMacNodeContent(wide, wide).getMac());
+            assertEquals(wide.mod(PRIME), new LongMacNodeNodeContent(1, wide).getMac());
+        }
+    }
+
+    @Test
+    public void testEncodingIsCompatible() {
+        Random rand = new Random(5);
+        for (int i = 0; i < ROUNDS; i++) {
+            BigInteger value = value(rand).mod(MOD_128), mac = mac(rand);
+            long[] words = UInt128.fromBigInteger(value);
+            assertArrayEquals(value.toByteArray(), UInt128.toByteArray(words[0], words[1]));
+            assertEquals(value.toString(), UInt128.toString(words[0], words[1]));
+
+            BigintMacNodeContent content = new BigintMacNodeContent(value, mac);
+            byte[] contentBytes = value.toByteArray(), macBytes = mac.toByteArray();
+            byte[] expected = new byte[2 + contentBytes.length + macBytes.length];
+            expected[0] = CryptoContentFactory.CASTELLUCIA_MAC_TYPE;
+            expected[1] = (byte) contentBytes.length;
+            System.arraycopy(contentBytes, 0, expected, 2, contentBytes.length);
+            System.arraycopy(macBytes, 0, expected, 2 + contentBytes.length, macBytes.length);
+            assertArrayEquals(expected, content.encode());
+
+            BigintMacNodeContent decoded = (BigintMacNodeContent) CryptoContentFactory.decodeNodeContent(expected);
+            assertEquals(value, decoded.getContent());
+            assertEquals(mac, decoded.getMac());
+            LongMacNodeNodeContent longContent = (LongMacNodeNodeContent) CryptoContentFactory.decodeNodeContent(
+                    new LongMacNodeNodeContent(words[0], mac).encode());
+            assertEquals(words[0], longContent.getLong());
+            assertEquals(mac, longContent.getMac());
+        }
+    }
+
+    @Test
+    public void benchmarkMerge() {
+        Benchmarks.assumeEnabled();
+        Random rand = new Random(6);
+        int count = 1 << 12;
+        BigInteger[] values = new BigInteger[count], macs = new BigInteger[count];
+        NodeContent[] contents = new NodeContent[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new BigInteger(128, rand);
+            macs[i] = mac(rand);
+            contents[i] = new BigintMacNodeContent(values[i], macs[i]);
+        }
+        int merges = 10_000_000;
+        double reference = 0, words = 0;
+        BigInteger content = BigInteger.ZERO, mac = BigInteger.ZERO;
+        NodeContent sum = null;
+        for (int round = 0; round < 3; round++) {
+            // the merge of the previous versions, unbounded BigInteger additions
+            content = BigInteger.ZERO;
+            mac = BigInteger.ZERO;
+            long start = System.nanoTime();
+            for (int i = 0; i < merges; i++) {
+                content = content.add(values[i & (count - 1)]);
+                mac = mac.add(macs[i & (count - 1)]);
+            }
+            reference = merges / ((System.nanoTime() - start) / 1e9);
+
+            sum = new BigintMacNodeContent(0, 0, 0, 0);
+            start = System.nanoTime();
+            for (int i = 0; i < merges; i++) {
+                sum.mergeOther(contents[i & (count - 1)]);
+            }
+            words = merges / ((System.nanoTime() - start) / 1e9);
+        }
+        assertEquals(content, ((BigintMacNodeContent) sum).getContent());
+        assertEquals(mac.mod(PRIME), ((BigintMacNodeContent) sum).getMac());
+        LOGGER.info(String.format("merges of bigints with mac: %.1f M/s with BigInteger, %.1f M/s with longs, %d " +
+                "bits after %d merges", reference / 1e6, words / 1e6, content.bitLength(), merges));
+        assertTrue(words > 0);
+    }
+}
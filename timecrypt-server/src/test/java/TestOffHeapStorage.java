@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+import ch.ethz.dsg.timecrypt.db.debug.DebugStorage;
+import ch.ethz.dsg.timecrypt.db.offheap.LongAddressMap;
+import ch.ethz.dsg.timecrypt.db.offheap.OffHeapBlockTreeManager;
+import ch.ethz.dsg.timecrypt.db.offheap.OffHeapStorage;
+import ch.ethz.dsg.timecrypt.db.offheap.SlabArena;
+import ch.ethz.dsg.timecrypt.index.Chunk;
+import ch.ethz.dsg.timecrypt.index.IStorage;
+import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
+import ch.ethz.dsg.timecrypt.index.blockindex.DebugBlockTreeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+import org.junit.Test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestOffHeapStorage {
+
+    private static final int BENCH_CHUNKS = 10_000_000;
+    private static final int BENCH_CHUNK_SIZE = 32;
+
+    private static byte[] createData(Random rand, int size) {
+        byte[] data = new byte[size];
+        rand.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testLongAddressMapMatchesHashMap() {
+        LongAddressMap map = new LongAddressMap();
+        Map<Long, Long> expected = new HashMap<>();
+        Random rand = new Random(1);
+        for (int i = 0; i < 200000; i++) {
+            // few distinct keys, so removes hit existing entries and shift clusters
+            long key = rand.nextInt(5000) - 2500;
+            if (rand.nextInt(3) == 0) {
+                Long before = expected.remove(key);
+                assertEquals(before == null ? LongAddressMap.NO_ADDRESS : before, map.remove(key));
+            } else {
+                long address = rand.nextLong() & Long.MAX_VALUE;
+                Long before = expected.put(key, address);
+                assertEquals(before == null ? LongAddressMap.NO_ADDRESS : before, map.put(key, address));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (long key = -2500; key < 2500; key++) {
+            Long value = expected.get(key);
+            assertEquals(value == null ? LongAddressMap.NO_ADDRESS : value, map.get(key));
+        }
+    }
+
+    @Test
+    public void testChunksRoundTrip() throws Exception {
+        OffHeapStorage storage = new OffHeapStorage(new SlabArena(1 << 16));
+        Random rand = new Random(2);
+        byte[][] expected = new byte[5000][];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = createData(rand, rand.nextInt(300));
+            storage.putChunk(1, "owner", new Chunk(i, expected[i]));
+        }
+        // overwrite with the same and with another size class
+        for (int i = 0; i < expected.length; i += 3) {
+            expected[i] = createData(rand, (i % 2 == 0) ? expected[i].length : 1000 + rand.nextInt(100000));
+            storage.putChunk(1, "owner", new Chunk(i, expected[i]));
+        }
+        for (int i = 0; i < expected.length; i++) {
+            Chunk chunk = storage.getChunk(1, "owner", i);
+            assertEquals(i, chunk.getStorageKey());
+            assertArrayEquals(expected[i], chunk.getData());
+        }
+        List<Chunk> chunks = storage.getChunks(1, "owner", 100, 200);
+        assertEquals(100, chunks.size());
+        for (Chunk chunk : chunks) {
+            assertArrayEquals(expected[chunk.getStorageKey()], chunk.getData());
+        }
+        assertNull(storage.getChunk(2, "owner", 0));
+        assertNull(storage.getChunk(1, "owner", expected.length));
+        assertEquals(true, storage.deleteChunk(1, "owner", 7));
+        assertNull(storage.getChunk(1, "owner", 7));
+        assertEquals(false, storage.deleteChunk(1, "owner", 7));
+    }
+
+    @Test
+    public void testDeletedStreamsAreReused() throws Exception {
+        SlabArena arena = new SlabArena(1 << 20);
+        OffHeapStorage storage = new OffHeapStorage(arena);
+        Random rand = new Random(3);
+        for (long uid = 0; uid < 20; uid++) {
+            for (int i = 0; i < 10000; i++) {
+                storage.putChunk(uid, "owner", new Chunk(i, createData(rand, 64)));
+            }
+            long reserved = arena.getReservedBytes();
+            storage.deleteALL(uid, "owner");
+            assertEquals(0, arena.getUsedBytes());
+            if (uid > 0)
+                assertEquals(reserved, arena.getReservedBytes());
+        }
+    }
+
+    @Test
+    public void testTreeMatchesInMemory() throws Exception {
+        int numLeaves = 20000, numSlots = 3, k = 16;
+        // a small node cache, so most reads decode the nodes from the arena
+        OffHeapBlockTreeManager man = new OffHeapBlockTreeManager(new SlabArena(1 << 20), 64);
+        BlockTree offHeap = man.createTree(1, "1", k, 1);
+        BlockTree onHeap = new DebugBlockTreeManager().createTree(1, "1", k, 1);
+        Random values = new Random(4);
+        for (int i = 0; i < numLeaves; i++) {
+            NodeContent[] content = new NodeContent[numSlots];
+            for (int slot = 0; slot < numSlots; slot++) {
+                content[slot] = new LongNodeContent(values.nextLong());
+            }
+            offHeap.insert(i, content, i, i + 1);
+            onHeap.insert(i, content, i, i + 1);
+            onHeap.updateToLatest();
+        }
+
+        Random rand = new Random(5);
+        for (int i = 0; i < 5000; i++) {
+            int from = rand.nextInt(numLeaves - 1);
+            int to = from + 1 + rand.nextInt(numLeaves - from);
+            NodeContent[] a = offHeap.getAggregation(from, to);
+            NodeContent[] b = onHeap.getAggregation(from, to);
+            for (int slot = 0; slot < numSlots; slot++) {
+                assertEquals(b[slot].getStringRepresentation(), a[slot].getStringRepresentation());
+            }
+        }
+
+        man.deleteTree(1, "1");
+        assertEquals(0, man.getArena().getUsedBytes());
+        assertNull(man.fetchTree(1, "1"));
+    }
+
+    private static long gcTimeMillis() {
+        long res = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            res += Math.max(0, gc.getCollectionTime());
+        }
+        return res;
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void runStorageBenchmark(String name, IStorage storage, int numChunks) throws Exception {
+        byte[] data = createData(new Random(6), BENCH_CHUNK_SIZE);
+        long heapBefore = usedHeapAfterGc();
+        long gcBefore = gcTimeMillis();
+        long start = System.nanoTime();
+        for (int i = 0; i < numChunks; i++) {
+            storage.putChunk(1, "owner", new Chunk(i, data.clone()));
+        }
+        long loadTime = System.nanoTime() - start;
+        long gcDuringLoad = gcTimeMillis() - gcBefore;
+        // a full collection with all chunks alive
+        start = System.nanoTime();
+        long heapAfter = usedHeapAfterGc();
+        long fullGcTime = System.nanoTime() - start;
+        long offHeapBytes = (storage instanceof OffHeapStorage) ? ((OffHeapStorage) storage).getArena()
+                .getReservedBytes() : 0;
+        System.out.format("%s: %d chunks, %.0f puts/s, %.1f heap bytes/chunk, %.1f off-heap bytes/chunk, " +
+                        "%d ms GC during load, %d ms full GC%n", name, numChunks, numChunks / (loadTime / 1e9),
+                (double) (heapAfter - heapBefore) / numChunks, (double) offHeapBytes / numChunks, gcDuringLoad,
+                fullGcTime / 1000000);
+        storage.deleteALL(1, "owner");
+    }
+
+    @Test
+    public void benchmarkFootprintAndGcPause() throws Exception {
+        // the heap storage needs about 200 bytes per chunk, only load as many as the test heap can hold
+        int heapChunks = (int) Math.min(BENCH_CHUNKS, Runtime.getRuntime().maxMemory() / 2 / 200);
+        DebugStorage heap = new DebugStorage();
+        runStorageBenchmark("heap (HashMap)", heap, heapChunks);
+        heap.keys.clear();
+        runStorageBenchmark("off-heap (slab arena)", new OffHeapStorage(), BENCH_CHUNKS);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.db.debug.DebugStorage;
+import ch.ethz.dsg.timecrypt.db.mmap.MmapDatabase;
+import ch.ethz.dsg.timecrypt.db.mmap.MmapStorage;
+import ch.ethz.dsg.timecrypt.db.offheap.OffHeapStorage;
+import ch.ethz.dsg.timecrypt.db.offheap.SlabArena;
+import ch.ethz.dsg.timecrypt.index.Chunk;
+import ch.ethz.dsg.timecrypt.index.IStorage;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Counts the heap copies of the chunk payload between the decoded request and the store, and between the store and
+ * the response, by measuring the bytes the thread allocates. The payload is large, so the few small objects of an
+ * insert do not count as a copy.
+ */
+public class TestPayloadCopies {
+
+    private static final int PAYLOAD_SIZE = 4 << 20;
+    private static final int NUM_INSERTS = 8;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Path directory;
+    private ByteString[] payloads;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(THREADS.isThreadAllocatedMemorySupported());
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+        directory = Files.createTempDirectory("timecrypt-copies");
+        // stands in for the chunk field of the parsed request, reading it from the wire is not counted
+        Random rand = new Random(1);
+        payloads = new ByteString[NUM_INSERTS];
+        for (int i = 0; i < NUM_INSERTS; i++) {
+            byte[] data = new byte[PAYLOAD_SIZE];
+            rand.nextBytes(data);
+            payloads[i] = ByteString.copyFrom(data);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (directory == null)
+            return;
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static double copiesPerInsert(long allocated) {
+        return (double) allocated / PAYLOAD_SIZE / NUM_INSERTS;
+    }
+
+    /**
+     * Decodes and stores the payloads as the request handlers do.
+     *
+     * @return the payload copies per insert
+     */
+    private double insert(IStorage storage) throws Exception {
+        // a warm up, so the classes are loaded and the stores have their first buffers
+        storage.putChunk(2, "owner", new Chunk(0, payloads[0].asReadOnlyByteBuffer()));
+
+        long before = allocatedBytes();
+        for (int i = 0; i < NUM_INSERTS; i++) {
+            storage.putChunk(1, "owner", new Chunk(i, payloads[i].asReadOnlyByteBuffer()));
+        }
+        return copiesPerInsert(allocatedBytes() - before);
+    }
+
+    private void checkStored(IStorage storage) throws Exception {
+        for (int i = 0; i < NUM_INSERTS; i++) {
+            assertArrayEquals(payloads[i].toByteArray(), storage.getChunk(1, "owner", i).getData());
+        }
+    }
+
+    @Test
+    public void testInMemoryStoreKeepsThePayload() throws Exception {
+        DebugStorage storage = new DebugStorage();
+        double copies = insert(storage);
+        assertTrue("Payload copies per insert: " + copies, copies < 0.5);
+        checkStored(storage);
+    }
+
+    @Test
+    public void testOffHeapStoreCopiesOnlyOffHeap() throws Exception {
+        OffHeapStorage storage = new OffHeapStorage(new SlabArena(1 << 20));
+        double copies = insert(storage);
+        assertTrue("Payload copies per insert: " + copies, copies < 0.5);
+        checkStored(storage);
+    }
+
+    @Test
+    public void testMmapStoreCopiesOnlyIntoTheSegment() throws Exception {
+        try (MmapDatabase db = new MmapDatabase(directory, 1 << 20, false)) {
+            MmapStorage storage = new MmapStorage(db);
+            double copies = insert(storage);
+            assertTrue("Payload copies per insert: " + copies, copies < 0.5);
+            checkStored(storage);
+        }
+    }
+
+    @Test
+    public void testResponseWrapsTheStoredPayload() throws Exception {
+        DebugStorage storage = new DebugStorage();
+        insert(storage);
+
+        long before = allocatedBytes();
+        long size = 0;
+        for (int i = 0; i < NUM_INSERTS; i++) {
+            size += UnsafeByteOperations.unsafeWrap(storage.getChunk(1, "owner", i).getBuffer()).size();
+        }
+        double copies = copiesPerInsert(allocatedBytes() - before);
+        assertTrue("Payload copies per response: " + copies, copies < 0.5);
+        assertEquals((long) PAYLOAD_SIZE * NUM_INSERTS, size);
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.crypto.CryptoContentFactory;
+import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+import ch.ethz.dsg.timecrypt.db.debug.DebugStorage;
+import ch.ethz.dsg.timecrypt.index.MemoryTreeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.DebugBlockTreeManager;
+import ch.ethz.dsg.timecrypt.protocol.TimeCryptNettyProtocol.*;
+import ch.ethz.dsg.timecrypt.server.NettyRequestManager;
+import ch.ethz.dsg.timecrypt.server.RequestExecutors;
+import ch.ethz.dsg.timecrypt.server.TimeCryptServerChannelInitializer;
+import com.google.protobuf.ByteString;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends requests with request IDs over a loopback connection to the Netty server and keeps a fixed number of them in
+ * flight.
+ */
+public class TestPipelinedRequests {
+
+    private static final String OWNER = "user";
+    private static final ByteString PAYLOAD = ByteString.copyFrom(new byte[256]);
+
+    private EventLoopGroup serverGroup;
+    private EventLoopGroup workerGroup;
+    private EventExecutorGroup dbHandlerPool;
+    private Channel serverChannel;
+
+    /**
+     * Keeps up to depth requests in flight and collects the responses by request ID.
+     */
+    private static class PipelinedConnection implements AutoCloseable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+        private final Semaphore inFlight;
+        private final Map<Long, List<ResponseMessage>> responses = new ConcurrentHashMap<>();
+        private final Map<Long, Integer> expected = new ConcurrentHashMap<>();
+        private final Thread reader;
+        private volatile CountDownLatch done;
+        private long nextRequestId = 0;
+
+        PipelinedConnection(int port, int depth) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new BufferedInputStream(socket.getInputStream());
+            inFlight = new Semaphore(depth);
+            reader = new Thread(this::read);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void read() {
+            try {
+                ResponseMessage response;
+                while ((response = ResponseMessage.parseDelimitedFrom(in)) != null) {
+                    long id = response.getRequestId();
+                    List<ResponseMessage> list = responses.get(id);
+                    if (list.isEmpty() && response.getType() == MessageResponseType.MULTIRESPONSE)
+                        expected.put(id, 1 + response.getMultiTransfer().getNumTransfers());
+                    list.add(response);
+                    if (list.size() == expected.get(id)) {
+                        inFlight.release();
+                        done.countDown();
+                    }
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        /**
+         * Sends the requests, at most depth at a time, and waits for all responses.
+         *
+         * @return the responses by request ID, the requests are numbered from 0 in every call
+         */
+        Map<Long, List<ResponseMessage>> run(List<RequestMessage.Builder> requests) throws Exception {
+            responses.clear();
+            expected.clear();
+            done = new CountDownLatch(requests.size());
+            long first = nextRequestId;
+            for (RequestMessage.Builder request : requests) {
+                inFlight.acquire();
+                long id = nextRequestId++;
+                responses.put(id, new ArrayList<>());
+                expected.put(id, 1);
+                RequestMessage message = request.setRequestId(id).build();
+                synchronized (out) {
+                    message.writeDelimitedTo(out);
+                    out.flush();
+                }
+            }
+            assertTrue(done.await(60, TimeUnit.SECONDS));
+            Map<Long, List<ResponseMessage>> result = new ConcurrentHashMap<>();
+            responses.forEach((id, list) -> result.put(id - first, list));
+            return result;
+        }
+
+        @Override
+        public void close() throws Exception {
+            socket.close();
+            reader.join();
+        }
+    }
+
+    @Before
+    public void start() throws InterruptedException {
+        serverGroup = new NioEventLoopGroup(1);
+        workerGroup = new NioEventLoopGroup(2);
+        dbHandlerPool = new DefaultEventExecutorGroup(8);
+        NettyRequestManager manager = new NettyRequestManager(new MemoryTreeManager(new DebugBlockTreeManager()),
+                new DebugStorage());
+        serverChannel = new ServerBootstrap()
+                .group(serverGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new TimeCryptServerChannelInitializer(manager, dbHandlerPool))
+                .bind(0).sync().channel();
+    }
+
+    @After
+    public void stop() throws InterruptedException {
+        serverChannel.close().sync();
+        serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        workerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        dbHandlerPool.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    private int port() {
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    private static RequestMessage.Builder createStream(long uid) {
+        return RequestMessage.newBuilder()
+                .setType(MessageRequestType.CREATE_STREAM)
+                .setCreateStream(CreateStream.newBuilder()
+                        .setUid(uid)
+                        .setOwner(OWNER)
+                        .setMetadataConfig(MetaConfig.newBuilder().setNumdigests(1)));
+    }
+
+    private static RequestMessage.Builder insertChunk(long uid, long chunkId) {
+        return RequestMessage.newBuilder()
+                .setType(MessageRequestType.INSERT_CHUNK)
+                .setInsertChunk(InsertChunk.newBuilder()
+                        .setUid(uid)
+                        .setOwner(OWNER)
+                        .setFrom(chunkId)
+                        .setTo(chunkId + 1)
+                        .setKey((int) chunkId)
+                        .setChunk(PAYLOAD)
+                        .addMetadata(Metadata.newBuilder()
+                                .setDigestid(0)
+                                .setData(ByteString.copyFrom(new LongNodeContent(chunkId).encode()))));
+    }
+
+    private static RequestMessage.Builder getStatistics(long uid, long from, long to, long granularity) {
+        return RequestMessage.newBuilder()
+                .setType(MessageRequestType.GET_STATISTICS)
+                .setGetStatistics(GetStatistics.newBuilder()
+                        .setUid(uid)
+                        .setOwner(OWNER)
+                        .setFrom(from)
+                        .setTo(to)
+                        .setGranularity(granularity)
+                        .addDigestid(0));
+    }
+
+    private static long sum(ResponseMessage statistics) {
+        byte[] data = statistics.getStatisticsResponse().getData(0).getData().toByteArray();
+        return ((LongNodeContent) CryptoContentFactory.decodeNodeContent(data)).getLong();
+    }
+
+    /**
+     * Creates the streams and inserts the chunks of every stream.
+     */
+    private static void fill(PipelinedConnection connection, int streams, int chunks) throws Exception {
+        List<RequestMessage.Builder> requests = new ArrayList<>();
+        for (long uid = 0; uid < streams; uid++) {
+            requests.add(createStream(uid));
+        }
+        connection.run(requests);
+        requests.clear();
+        // the inserts of the streams interleave, the inserts of one stream keep their order
+        for (long chunkId = 0; chunkId < chunks; chunkId++) {
+            for (long uid = 0; uid < streams; uid++) {
+                requests.add(insertChunk(uid, chunkId));
+            }
+        }
+        Map<Long, List<ResponseMessage>> responses = connection.run(requests);
+        for (List<ResponseMessage> response : responses.values()) {
+            assertEquals(1, response.size());
+            assertTrue(response.get(0).hasSuccessResponse());
+        }
+    }
+
+    @Test
+    public void testMatchesResponsesByRequestId() throws Exception {
+        int streams = 16, chunks = 64;
+        try (PipelinedConnection connection = new PipelinedConnection(port(), 32)) {
+            fill(connection, streams, chunks);
+
+            // requests of different lengths, the short ones overtake the long ones
+            List<RequestMessage.Builder> requests = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                long uid = i % streams;
+                long granularity = (i % 3 == 0) ? 1 : chunks;
+                requests.add(getStatistics(uid, 0, chunks, granularity));
+            }
+            Map<Long, List<ResponseMessage>> responses = connection.run(requests);
+            assertEquals(requests.size(), responses.size());
+            for (long id = 0; id < requests.size(); id++) {
+                List<ResponseMessage> response = responses.get(id);
+                if (id % 3 == 0) {
+                    assertEquals(MessageResponseType.MULTIRESPONSE, response.get(0).getType());
+                    assertEquals(1 + chunks, response.size());
+                    for (int chunkId = 0; chunkId < chunks; chunkId++) {
+                        assertEquals(chunkId, sum(response.get(1 + chunkId)));
+                    }
+                } else {
+                    assertEquals(1, response.size());
+                    assertEquals((long) chunks * (chunks - 1) / 2, sum(response.get(0)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAnswersRequestsWithoutIdInOrder() throws Exception {
+        assertAnswersInOrder(port());
+    }
+
+    @Test
+    public void testAnswersRequestsWithoutIdInOrderWithSplitPools() throws Exception {
+        RequestExecutors executors = RequestExecutors.split(4, 4, RequestExecutors.DEFAULT_QUEUE_SIZE);
+        NettyRequestManager manager = new NettyRequestManager(new MemoryTreeManager(new DebugBlockTreeManager()),
+                new DebugStorage());
+        Channel channel = new ServerBootstrap()
+                .group(serverGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new TimeCryptServerChannelInitializer(manager, dbHandlerPool, executors))
+                .bind(0).sync().channel();
+        try {
+            assertAnswersInOrder(((InetSocketAddress) channel.localAddress()).getPort());
+        } finally {
+            channel.close().sync();
+            executors.close();
+        }
+    }
+
+    private static void assertAnswersInOrder(int port) throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            createStream(1).build().writeDelimitedTo(out);
+            for (long chunkId = 0; chunkId < 10; chunkId++) {
+                insertChunk(1, chunkId).build().writeDelimitedTo(out);
+            }
+            getStatistics(1, 0, 10, 10).build().writeDelimitedTo(out);
+            out.flush();
+            for (int i = 0; i < 11; i++) {
+                ResponseMessage response = ResponseMessage.parseDelimitedFrom(in);
+                assertTrue(response.hasSuccessResponse());
+                assertFalse(response.hasRequestId());
+            }
+            assertEquals(45, sum(ResponseMessage.parseDelimitedFrom(in)));
+        }
+    }
+
+    @Test
+    public void benchmarkPipelineDepth() throws Exception {
+        int streams = 64, chunks = 256, num = 20000;
+        List<RequestMessage.Builder> requests = new ArrayList<>();
+        for (int i = 0; i < num; i++) {
+            requests.add(getStatistics(i % streams, 0, chunks, chunks / 4));
+        }
+        try (PipelinedConnection connection = new PipelinedConnection(port(), 256)) {
+            fill(connection, streams, chunks);
+        }
+        StringBuilder result = new StringBuilder();
+        for (int depth : new int[]{1, 8, 64, 256}) {
+            double throughput = 0;
+            try (PipelinedConnection connection = new PipelinedConnection(port(), depth)) {
+                for (int round = 0; round < 3; round++) {
+                    long start = System.nanoTime();
+                    assertEquals(num, connection.run(requests).size());
+                    throughput = num / ((System.nanoTime() - start) / 1e9);
+                }
+            }
+            result.append(String.format(" depth %d: %.0f requests/s", depth, throughput));
+        }
+        System.out.println("loopback statistics requests," + result);
+    }
+}
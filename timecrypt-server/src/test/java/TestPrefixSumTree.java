@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.crypto.BigintNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.LongMacNodeNodeContent;
+import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+import ch.ethz.dsg.timecrypt.exceptions.TimeCryptTreeException;
+import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
+import ch.ethz.dsg.timecrypt.index.blockindex.DebugBlockTreeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+import ch.ethz.dsg.timecrypt.index.prefixindex.PrefixSumTree;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestPrefixSumTree {
+
+    private static final BigInteger MOD_128 = BigInteger.ONE.shiftLeft(128);
+
+    private static NodeContent[] createContent(Random rand, int numSlots) {
+        NodeContent[] res = new NodeContent[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            res[i] = new LongNodeContent(rand.nextLong());
+        }
+        return res;
+    }
+
+    private static void load(Random rand, int numLeaves, int numSlots, BlockTree blockTree, PrefixSumTree prefixTree)
+            throws Exception {
+        for (int i = 0; i < numLeaves; i++) {
+            NodeContent[] content = createContent(rand, numSlots);
+            blockTree.insert(i, content, i, i + 1);
+            blockTree.updateToLatest();
+            prefixTree.insert(i, content, i, i + 1);
+        }
+    }
+
+    @Test
+    public void testLongMatchesBlockTree() throws Exception {
+        int numLeaves = 20000, numSlots = 3;
+        BlockTree blockTree = new DebugBlockTreeManager().createTree(1, "1", 16, 1);
+        PrefixSumTree prefixTree = new PrefixSumTree();
+        load(new Random(8), numLeaves, numSlots, blockTree, prefixTree);
+        assertEquals(numLeaves, prefixTree.getLeavesCount());
+
+        Random rand = new Random(5);
+        int[] ids = new int[]{0, 2};
+        for (int i = 0; i < 5000; i++) {
+            int from = rand.nextInt(numLeaves - 1);
+            int to = from + 1 + rand.nextInt(numLeaves - from);
+            NodeContent[] a = blockTree.getAggregation(from, to);
+            NodeContent[] b = prefixTree.getAggregation(from, to);
+            for (int slot = 0; slot < numSlots; slot++) {
+                assertArrayEquals(a[slot].encode(), b[slot].encode());
+            }
+            b = prefixTree.getAggregation(from, to, ids);
+            for (int id : ids) {
+                assertArrayEquals(a[id].encode(), b[id].encode());
+            }
+        }
+
+        List<NodeContent[]> a = blockTree.getAggregationSeries(100, numLeaves, 37, ids);
+        List<NodeContent[]> b = prefixTree.getAggregationSeries(100, numLeaves, 37, ids);
+        assertEquals(a.size(), b.size());
+        for (int window = 0; window < a.size(); window++) {
+            for (int id : ids) {
+                assertArrayEquals(a.get(window)[id].encode(), b.get(window)[id].encode());
+            }
+        }
+        assertNull(prefixTree.getAggregation(numLeaves, numLeaves + 10));
+    }
+
+    @Test
+    public void testBigintModulo128() throws Exception {
+        int numLeaves = 5000;
+        Random rand = new Random(3);
+        PrefixSumTree prefixTree = new PrefixSumTree();
+        List<BigInteger> values = new ArrayList<>();
+        List<NodeContent[]> batch = new ArrayList<>();
+        for (int i = 0; i < numLeaves; i++) {
+            BigInteger value = new BigInteger(128, rand);
+            values.add(value);
+            batch.add(new NodeContent[]{new BigintNodeContent(value), new LongNodeContent(i)});
+        }
+        prefixTree.insertBatch(0, batch);
+
+        for (int i = 0; i < 2000; i++) {
+            int from = rand.nextInt(numLeaves - 1);
+            int to = from + 1 + rand.nextInt(numLeaves - from);
+            BigInteger expected = BigInteger.ZERO;
+            long expectedLong = 0;
+            for (int j = from; j < to; j++) {
+                expected = expected.add(values.get(j));
+                expectedLong += j;
+            }
+            NodeContent[] res = prefixTree.getAggregation(from, to);
+            assertEquals(expected.mod(MOD_128), ((BigintNodeContent) res[0]).getContent());
+            assertEquals(expectedLong, ((LongNodeContent) res[1]).getLong());
+        }
+    }
+
+    @Test(expected = TimeCryptTreeException.class)
+    public void testRejectsMacSchema() throws Exception {
+        new PrefixSumTree().insert(0, new NodeContent[]{new LongMacNodeNodeContent(1, BigInteger.ONE)}, 0, 1);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testRejectsOutOfOrderInsert() throws Exception {
+        PrefixSumTree prefixTree = new PrefixSumTree();
+        prefixTree.insert(0, createContent(new Random(1), 1), 0, 1);
+        prefixTree.insert(2, createContent(new Random(1), 1), 2, 3);
+    }
+
+    @Test
+    public void benchmarkPrefixSumTree() throws Exception {
+        int numLeaves = 64 * 64 * 64, numSlots = 3, numQueries = 100000;
+        BlockTree blockTree = new DebugBlockTreeManager().createTree(1, "1", 64, 1);
+        PrefixSumTree prefixTree = new PrefixSumTree();
+        load(new Random(2), numLeaves, numSlots, blockTree, prefixTree);
+        int[] ids = new int[]{0, 1, 2};
+
+        for (int round = 0; round < 2; round++) {
+            Random rand = new Random(6);
+            long start = System.nanoTime();
+            for (int i = 0; i < numQueries; i++) {
+                int from = rand.nextInt(numLeaves - 1);
+                blockTree.getAggregation(from, from + 1 + rand.nextInt(numLeaves - from), ids);
+            }
+            long blockTime = System.nanoTime() - start;
+            rand = new Random(6);
+            start = System.nanoTime();
+            for (int i = 0; i < numQueries; i++) {
+                int from = rand.nextInt(numLeaves - 1);
+                prefixTree.getAggregation(from, from + 1 + rand.nextInt(numLeaves - from), ids);
+            }
+            long prefixTime = System.nanoTime() - start;
+            System.out.format("Random ranges: %.0f queries/s with BlockTree, %.0f queries/s with PrefixSumTree%n",
+                    numQueries / (blockTime / 1e9), numQueries / (prefixTime / 1e9));
+        }
+
+        for (int numWindows : new int[]{100, 10000, numLeaves}) {
+            int granularity = numLeaves / numWindows;
+            blockTree.getAggregationSeries(0, numLeaves, granularity, ids);
+            prefixTree.getAggregationSeries(0, numLeaves, granularity, ids);
+            long start = System.nanoTime();
+            blockTree.getAggregationSeries(0, numLeaves, granularity, ids);
+            long blockTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            prefixTree.getAggregationSeries(0, numLeaves, granularity, ids);
+            long prefixTime = System.nanoTime() - start;
+            System.out.format("%d windows: %.2f ms with BlockTree, %.2f ms with PrefixSumTree%n",
+                    numWindows, blockTime / 1e6, prefixTime / 1e6);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2020. by ETH Zurich, see AUTHORS file for more
+ * Licensed under the Apache License, Version 2.0, see LICENSE file for more details.
+ */
+
+import ch.ethz.dsg.timecrypt.crypto.LongNodeContent;
+import ch.ethz.dsg.timecrypt.index.blockindex.BlockTree;
+import ch.ethz.dsg.timecrypt.index.blockindex.INodeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.InMemoryCacheBlockTreeManager;
+import ch.ethz.dsg.timecrypt.index.blockindex.RightEdge;
+import ch.ethz.dsg.timecrypt.index.blockindex.UpdateSummary;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.BlockNode;
+import ch.ethz.dsg.timecrypt.index.blockindex.node.NodeContent;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestRightEdgePinning {
+
+    private static final int K = 4;
+    private static final int CACHE_SIZE = 32;
+    private static final long LOAD_MICROS = 200;
+    private static final long INSERT_PAUSE_MICROS = 5000;
+
+    /**
+     * Works like the cassandra node manager: a small block cache in front of a storage where every miss takes a round
+     * trip. With pinning the right edge is held next to the cache and only the sealed nodes are cached.
+     */
+    private static class CachedStoreNodeManager implements INodeManager {
+        private final Map<Long, BlockNode> store = new ConcurrentHashMap<>();
+        private final Cache<Long, BlockNode> cache = Caffeine.newBuilder().maximumSize(CACHE_SIZE).build();
+        private final RightEdge edge;
+        private final AtomicInteger insertLoads = new AtomicInteger(0);
+        private volatile BlockNode root;
+
+        CachedStoreNodeManager(BlockNode root, boolean pinned) {
+            this.root = root;
+            this.edge = pinned ? new RightEdge() : null;
+            store.put(root.getId(), root);
+            if (pinned)
+                edge.set(root, new ArrayList<>());
+            else
+                cache.put(root.getId(), root);
+        }
+
+        private BlockNode load(long id, boolean forInsert) throws InterruptedException {
+            BlockNode node = (edge == null) ? null : edge.get(id);
+            if (node != null)
+                return node;
+            node = cache.getIfPresent(id);
+            if (node != null)
+                return node;
+            if (forInsert)
+                insertLoads.incrementAndGet();
+            TimeUnit.MICROSECONDS.sleep(LOAD_MICROS);
+            node = store.get(id);
+            cache.put(id, node);
+            return node;
+        }
+
+        @Override
+        public BlockNode loadNode(long id) throws Exception {
+            return load(id, false);
+        }
+
+        @Override
+        public void pushUpdates(UpdateSummary summary) {
+            for (BlockNode node : summary.getNewNodes()) {
+                store.put(node.getId(), node);
+            }
+            store.put(summary.getNewRoot().getId(), summary.getNewRoot());
+            if (edge != null) {
+                for (BlockNode node : RightEdge.sealedNodes(summary)) {
+                    cache.put(node.getId(), node);
+                }
+                edge.update(summary);
+            } else {
+                for (BlockNode node : summary.getNewNodes()) {
+                    cache.put(node.getId(), node);
+                }
+                cache.put(summary.getNewRoot().getId(), summary.getNewRoot());
+            }
+            root = summary.getNewRoot();
+        }
+
+        @Override
+        public void writeNodes(List<BlockNode> nodes) {
+            for (BlockNode node : nodes) {
+                store.put(node.getId(), node);
+                cache.put(node.getId(), node);
+            }
+        }
+
+        @Override
+        public void updateToLatest(BlockTree tree) {
+            tree.root = root;
+        }
+
+        @Override
+        public BlockNode loadNodeWithMinVersion(long blockid, int version) throws Exception {
+            return load(blockid, false);
+        }
+
+        @Override
+        public BlockNode loadNodeWithVersionForInsert(long blockid, int version) throws Exception {
+            return load(blockid, true);
+        }
+
+        @Override
+        public void updateToLatest(BlockTree tree, int minVersion) {
+            tree.root = root;
+        }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitNodeVersion(long blockid, int minVersion) {
+            return CompletableFuture.completedFuture(store.get(blockid));
+        }
+
+        @Override
+        public CompletableFuture<BlockNode> awaitTreeVersion(int minVersion) {
+            return CompletableFuture.completedFuture(root);
+        }
+    }
+
+    private static class Result {
+        final List<Long> latencies;
+        final int insertLoads;
+        final int queries;
+
+        Result(List<Long> latencies, int insertLoads, int queries) {
+            this.latencies = latencies;
+            this.insertLoads = insertLoads;
+            this.queries = queries;
+        }
+
+        double percentileMicros(double p) {
+            return latencies.get((int) Math.min(latencies.size() - 1, latencies.size() * p)) / 1000.0;
+        }
+    }
+
+    private static NodeContent[] digest(Random rand) {
+        return new NodeContent[]{new LongNodeContent(rand.nextInt(1000)), new LongNodeContent(1)};
+    }
+
+    /**
+     * Loads a tree, then inserts while the query threads aggregate random ranges of the loaded history.
+     */
+    private static Result runMixed(boolean pinned, int history, int inserts, int queryThreads) throws Exception {
+        Random rand = new Random(9);
+        CachedStoreNodeManager man = new CachedStoreNodeManager(new BlockNode(0, 0, K, K), pinned);
+        BlockTree tree = new BlockTree(K, man.root, man);
+        for (int i = 0; i < history; i++) {
+            tree.insert(i, digest(rand), i, i + 1);
+        }
+        man.insertLoads.set(0);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger queries = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < queryThreads; t++) {
+            long seed = t;
+            Thread thread = new Thread(() -> {
+                Random queryRand = new Random(seed);
+                try {
+                    while (running.get()) {
+                        int from = queryRand.nextInt(history - 1);
+                        int to = from + 1 + queryRand.nextInt(Math.min(history - from, 2000));
+                        new BlockTree(K, man.root, man).getAggregation(from, to);
+                        queries.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        List<Long> latencies = new ArrayList<>(inserts);
+        for (int i = history; i < history + inserts; i++) {
+            NodeContent[] content = digest(rand);
+            long start = System.nanoTime();
+            tree.insert(i, content, i, i + 1);
+            latencies.add(System.nanoTime() - start);
+            // an insert per chunk interval, the queries run in between
+            TimeUnit.MICROSECONDS.sleep(INSERT_PAUSE_MICROS);
+        }
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Collections.sort(latencies);
+        return new Result(latencies, man.insertLoads.get(), queries.get());
+    }
+
+    @Test
+    public void testInsertLatencyUnderQueryChurn() throws Exception {
+        for (boolean pinned : new boolean[]{false, true}) {
+            Result res = runMixed(pinned, 20000, 400, 4);
+            System.out.format("%s: insert p50 %.1f us, p99 %.1f us, %d storage loads of inserts, %d queries%n",
+                    pinned ? "pinned right edge" : "right edge in the cache", res.percentileMicros(0.5),
+                    res.percentileMicros(0.99), res.insertLoads, res.queries);
+            // with pinning an insert never waits for the storage, however hard the queries churn the cache
+            if (pinned)
+                assertEquals(0, res.insertLoads);
+        }
+    }
+
+    @Test
+    public void testInMemoryManagerKeepsTheEdgeOutOfTheCache() throws Exception {
+        // a block map that is much smaller than the tree caches the sealed nodes it can, the edge is always complete
+        InMemoryCacheBlockTreeManager man = new InMemoryCacheBlockTreeManager(8 << 10, 8 << 10);
+        BlockTree tree = man.createTree(1, "user", 4, 1);
+        BlockTree reference = new BlockTree(4, new BlockNode(0, 0, 4, 4),
+                new CachedStoreNodeManager(new BlockNode(0, 0, 4, 4), true));
+        Random rand = new Random(4);
+        for (int i = 0; i < 5000; i++) {
+            NodeContent[] content = digest(rand);
+            tree.insert(i, content, i, i + 1);
+            reference.insert(i, content, i, i + 1);
+        }
+        assertEquals(5000, man.fetchTree(1, "user").root.getVersion());
+        // the newest leaves are on the edge or just sealed, the oldest ones were evicted from the block map
+        for (int from : new int[]{4990, 0}) {
+            NodeContent[] expected = reference.getAggregation(from, from + 10);
+            NodeContent[] actual = tree.getAggregation(from, from + 10);
+            for (int slot = 0; slot < expected.length; slot++) {
+                assertArrayEquals(expected[slot].encode(), actual[slot].encode());
+            }
+        }
+    }
+}
@@ -47,7 +47,7 @@ public class TestServerBasic {
         cassandraHost[0] = cassandra.getContainerIpAddress();
         cassandraPort = cassandra.getMappedPort(Server.DEFAULT_CASSANDRA_PORT);
 
-        runnable = new Server(Server.DEFAULT_PORT, 2, 16, 32, 2000,
+        runnable = new Server(Server.DEFAULT_PORT, 2, 16, 32,
                 1000, cassandraHost, cassandraPort, false,
                 2, 16, Server.InterfaceProvider.NETTY_SERVER_INTERFACE);
         server = new Thread(runnable);
@@ -108,7 +108,7 @@ public class TestServerBasic {
     //@Test
     public void testTreeCassandra() throws Exception {
         CassandraDatabaseManager db = new CassandraDatabaseManager(cassandraHost, cassandraPort, 1);
-        CassandraBlockTreeManager man = new CassandraBlockTreeManager(db, 10, 10000);
+        CassandraBlockTreeManager man = new CassandraBlockTreeManager(db, 16L << 20, 16L << 20);
         BlockTree tree = man.createTree(1, "1", 2, 1);
         for (int i = 0; i < 16; i++) {
             tree.insert(0, new NodeContent[]{new LongNodeContent(1)}, i, i + 1);
@@ -123,7 +123,7 @@ public class TestServerBasic {
     //@Test
     public void testTreeCassandraSum() throws Exception {
         CassandraDatabaseManager db = new CassandraDatabaseManager(cassandraHost, cassandraPort, 1);
-        CassandraBlockTreeManager man = new CassandraBlockTreeManager(db, 10, 10000);
+        CassandraBlockTreeManager man = new CassandraBlockTreeManager(db, 16L << 20, 16L << 20);
         int iter = 100;
         BlockTree tree = man.createTree(1, "1", 32, 1);
         for (int i = 0; i < iter; i++) {
@@ -153,7 +153,7 @@ public class TestServerBasic {
     //@Test
     public void testTreeCassandraInsertFlush() throws Exception {
         CassandraDatabaseManager db = new CassandraDatabaseManager(cassandraHost, cassandraPort, 1);
-        CassandraBlockTreeManager man = new CassandraBlockTreeManager(db, 10, 10000);
+        CassandraBlockTreeManager man = new CassandraBlockTreeManager(db, 16L << 20, 16L << 20);
         int iter = 100;
         BlockTree tree = man.createTree(1, "1", 32, 1);
         for (int i = 0; i < iter; i++) {
@@ -195,10 +195,10 @@ public class TestServerBasic {
     //@Test
     public void testTreeCassandraPar() throws Exception {
         CassandraDatabaseManager db1 = new CassandraDatabaseManager(cassandraHost, cassandraPort, 1);
-        CassandraBlockTreeManager man1 = new CassandraBlockTreeManager(db1, 10, 10000);
+        CassandraBlockTreeManager man1 = new CassandraBlockTreeManager(db1, 16L << 20, 16L << 20);
 
         CassandraDatabaseManager db2 = new CassandraDatabaseManager(cassandraHost, cassandraPort, 1);
-        CassandraBlockTreeManager man2 = new CassandraBlockTreeManager(db2, 10, 10000);
+        CassandraBlockTreeManager man2 = new CassandraBlockTreeManager(db2, 16L << 20, 16L << 20);
 
         final int iter = 100;
         TestServerBasic.QueryTask task = new TestServerBasic.QueryTask(man2, iter);
@@ -226,10 +226,10 @@ public class TestServerBasic {
     public void testTreeCassandraParInsert() throws Exception {
         String user = "6";
         CassandraDatabaseManager db1 = new CassandraDatabaseManager(cassandraHost, cassandraPort, 1);
-        CassandraBlockTreeManager man1 = new CassandraBlockTreeManager(db1, 10, 10000);
+        CassandraBlockTreeManager man1 = new CassandraBlockTreeManager(db1, 16L << 20, 16L << 20);
 
         CassandraDatabaseManager db2 = new CassandraDatabaseManager(cassandraHost, cassandraPort, 1);
-        CassandraBlockTreeManager man2 = new CassandraBlockTreeManager(db2, 10, 10000);
+        CassandraBlockTreeManager man2 = new CassandraBlockTreeManager(db2, 16L << 20, 16L << 20);
 
         final int iter = 100;
 